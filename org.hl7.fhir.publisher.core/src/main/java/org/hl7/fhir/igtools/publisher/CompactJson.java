@@ -0,0 +1,263 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A compact binary form of json, for holding resources in memory that aren't being used.
+ *
+ * Property names, and short string values that are repeated (codes, systems, references),
+ * are replaced by their index in a dictionary that's shared by everything encoded with the
+ * same instance, so a name that is used in every resource is only held once. A value only
+ * goes in the dictionary once it has been seen MIN_USES times; until then it's written out
+ * in full, so values that only occur once (ids, narrative, dates) don't fill it up.
+ *
+ * The dictionary doesn't shrink, since whatever was encoded with it might refer to any of
+ * its words. Once it's full (isFull()), names and values that aren't in it are written out
+ * in full; the way to get a smaller one is to encode what's still wanted again with a new
+ * instance (see ResourceStore). Objects and arrays are held
+ * as a count followed by their contents, and numbers are kept as they were written, so
+ * decoding gives back exactly the json that was encoded (apart from whitespace).
+ */
+public class CompactJson {
+
+  private static final int NULL = 0;
+  private static final int TRUE = 1;
+  private static final int FALSE = 2;
+  private static final int NUMBER = 3;
+  private static final int STRING = 4;
+  private static final int WORD = 5; // a string in the dictionary
+  private static final int OBJECT = 6;
+  private static final int ARRAY = 7;
+
+  private static final int MAX_WORD = 64; // longer values than this aren't worth putting in the dictionary
+  private static final int MAX_WORDS = 256*1024;
+  private static final int MIN_USES = 2; // how many times a value is seen before it goes in the dictionary
+  private static final int MAX_CANDIDATES = 64*1024; // values being counted; when there's this many, the counts start again
+
+  private List<String> words = new ArrayList<>();
+  private Map<String, Integer> index = new HashMap<>();
+  private Map<String, Integer> candidates = new HashMap<>();
+
+  public byte[] encode(byte[] json) {
+    JsonElement e = new com.google.gson.JsonParser().parse(new String(json, StandardCharsets.UTF_8));
+    ByteArrayOutputStream b = new ByteArrayOutputStream(json.length / 4);
+    write(b, e);
+    return b.toByteArray();
+  }
+
+  public byte[] decode(byte[] data) throws IOException {
+    ByteArrayOutputStream b = new ByteArrayOutputStream(data.length * 4);
+    JsonWriter w = new JsonWriter(new OutputStreamWriter(b, StandardCharsets.UTF_8));
+    w.setHtmlSafe(false);
+    w.setSerializeNulls(true);
+    int[] cursor = new int[] {0};
+    read(data, cursor, w);
+    w.close();
+    return b.toByteArray();
+  }
+
+  private void write(ByteArrayOutputStream b, JsonElement e) {
+    if (e.isJsonNull()) {
+      b.write(NULL);
+    } else if (e.isJsonObject()) {
+      JsonObject o = e.getAsJsonObject();
+      b.write(OBJECT);
+      writeInt(b, o.entrySet().size());
+      for (Map.Entry<String, JsonElement> p : o.entrySet()) {
+        Integer i = name(p.getKey());
+        if (i == null) {
+          // the dictionary is full; 0 says the name follows
+          writeInt(b, 0);
+          writeString(b, p.getKey());
+        } else {
+          writeInt(b, i+1);
+        }
+        write(b, p.getValue());
+      }
+    } else if (e.isJsonArray()) {
+      JsonArray a = e.getAsJsonArray();
+      b.write(ARRAY);
+      writeInt(b, a.size());
+      for (JsonElement c : a) {
+        write(b, c);
+      }
+    } else {
+      JsonPrimitive p = e.getAsJsonPrimitive();
+      if (p.isBoolean()) {
+        b.write(p.getAsBoolean() ? TRUE : FALSE);
+      } else if (p.isNumber()) {
+        b.write(NUMBER);
+        writeString(b, p.getAsString());
+      } else {
+        String s = p.getAsString();
+        Integer i = s.length() <= MAX_WORD ? value(s) : null;
+        if (i == null) {
+          b.write(STRING);
+          writeString(b, s);
+        } else {
+          b.write(WORD);
+          writeInt(b, i);
+        }
+      }
+    }
+  }
+
+  private void read(byte[] data, int[] cursor, JsonWriter w) throws IOException {
+    int tag = data[cursor[0]++];
+    switch (tag) {
+    case NULL:
+      w.nullValue();
+      break;
+    case TRUE:
+      w.value(true);
+      break;
+    case FALSE:
+      w.value(false);
+      break;
+    case NUMBER:
+      w.jsonValue(readString(data, cursor));
+      break;
+    case STRING:
+      w.value(readString(data, cursor));
+      break;
+    case WORD:
+      w.value(word(readInt(data, cursor)));
+      break;
+    case OBJECT:
+      w.beginObject();
+      for (int c = readInt(data, cursor); c > 0; c--) {
+        int i = readInt(data, cursor);
+        w.name(i == 0 ? readString(data, cursor) : word(i-1));
+        read(data, cursor, w);
+      }
+      w.endObject();
+      break;
+    case ARRAY:
+      w.beginArray();
+      for (int c = readInt(data, cursor); c > 0; c--) {
+        read(data, cursor, w);
+      }
+      w.endArray();
+      break;
+    default:
+      throw new IOException("Unknown tag "+tag+" at "+(cursor[0]-1));
+    }
+  }
+
+  private synchronized Integer name(String s) {
+    Integer i = index.get(s);
+    if (i == null) {
+      i = add(s);
+    }
+    return i;
+  }
+
+  private synchronized Integer value(String s) {
+    Integer i = index.get(s);
+    if (i == null && words.size() < MAX_WORDS) {
+      Integer c = candidates.get(s);
+      c = c == null ? 1 : c + 1;
+      if (c < MIN_USES) {
+        if (candidates.size() >= MAX_CANDIDATES) {
+          candidates.clear();
+        }
+        candidates.put(s, c);
+      } else {
+        candidates.remove(s);
+        i = add(s);
+      }
+    }
+    return i;
+  }
+
+  private Integer add(String s) {
+    if (words.size() >= MAX_WORDS) {
+      return null;
+    }
+    int i = words.size();
+    words.add(s);
+    index.put(s, i);
+    return i;
+  }
+
+  private synchronized String word(int i) {
+    return words.get(i);
+  }
+
+  private void writeInt(ByteArrayOutputStream b, int v) {
+    while ((v & ~0x7F) != 0) {
+      b.write((v & 0x7F) | 0x80);
+      v = v >>> 7;
+    }
+    b.write(v);
+  }
+
+  private int readInt(byte[] data, int[] cursor) {
+    int res = 0;
+    int shift = 0;
+    int v;
+    do {
+      v = data[cursor[0]++];
+      res = res | ((v & 0x7F) << shift);
+      shift = shift + 7;
+    } while ((v & 0x80) != 0);
+    return res;
+  }
+
+  private void writeString(ByteArrayOutputStream b, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeInt(b, bytes.length);
+    b.write(bytes, 0, bytes.length);
+  }
+
+  private String readString(byte[] data, int[] cursor) {
+    int len = readInt(data, cursor);
+    String res = new String(data, cursor[0], len, StandardCharsets.UTF_8);
+    cursor[0] = cursor[0] + len;
+    return res;
+  }
+
+  public synchronized int getDictionarySize() {
+    return words.size();
+  }
+
+  /**
+   * true if nothing more can be added to the dictionary
+   */
+  public synchronized boolean isFull() {
+    return words.size() >= MAX_WORDS;
+  }
+
+  /**
+   * the dictionary, for saving with content that is encoded with it
+   */
+  public synchronized List<String> getDictionary() {
+    return new ArrayList<>(words);
+  }
+
+  /**
+   * for decoding content that was encoded with a saved dictionary
+   */
+  public synchronized void setDictionary(List<String> dictionary) {
+    words.clear();
+    index.clear();
+    candidates.clear();
+    for (String s : dictionary) {
+      index.put(s, words.size());
+      words.add(s);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 content digests, used to tell whether source files have changed, and to key the
+ * caches the publisher keeps between runs.
+ *
+ * Digests are presented as lowercase hex, so they can be used directly as file names.
+ */
+public class ContentDigest {
+
+  private byte[] content;
+  private String digest;
+
+  private ContentDigest(byte[] content, String digest) {
+    super();
+    this.content = content;
+    this.digest = digest;
+  }
+
+  public byte[] getContent() {
+    return content;
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  /**
+   * reads the stream to the end, working out the digest as the content is read
+   */
+  public static ContentDigest read(InputStream stream, int sizeHint) throws IOException {
+    DigestInputStream ds = new DigestInputStream(stream, newDigest());
+    ByteArrayOutputStream bs = new ByteArrayOutputStream(sizeHint > 0 ? sizeHint : 1024);
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = ds.read(buffer)) != -1) {
+      bs.write(buffer, 0, n);
+    }
+    return new ContentDigest(bs.toByteArray(), toHex(ds.getMessageDigest().digest()));
+  }
+
+  public static ContentDigest read(File f) throws IOException {
+    try (InputStream s = new FileInputStream(f)) {
+      return read(s, (int) Math.min(f.length(), Integer.MAX_VALUE));
+    }
+  }
+
+  public static String of(byte[] content) {
+    return toHex(newDigest().digest(content));
+  }
+
+  public static String of(String content) {
+    return of(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-256
+      throw new Error(e);
+    }
+  }
+
+  static String toHex(byte[] digest) {
+    StringBuilder b = new StringBuilder(digest.length * 2);
+    for (byte x : digest) {
+      b.append(Character.forDigit((x >> 4) & 0xF, 16));
+      b.append(Character.forDigit(x & 0xF, 16));
+    }
+    return b.toString();
+  }
+}
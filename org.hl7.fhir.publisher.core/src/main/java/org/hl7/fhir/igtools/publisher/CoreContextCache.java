@@ -0,0 +1,76 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.ToolsVersion;
+
+/**
+ * The parts of the publisher set up that don't depend on the IG, kept so that they can be
+ * shared by more than one build in the same JVM (the daemon, or a multi-IG build).
+ *
+ * The core context (the core package loaded into a worker context, with its snapshots) is
+ * loaded once for each core package, and then never changed: each build gets a copy of it,
+ * which it loads its dependencies and its own content into. The copy has its own indexes,
+ * so nothing the build adds is seen by the other builds, but the core resources themselves
+ * are shared, not copied.
+ */
+public class CoreContextCache {
+
+  private class Core {
+    private SimpleWorkerContext context;
+  }
+
+  private Map<String, Core> cores = new HashMap<>();
+  private Map<Boolean, FilesystemPackageCacheManager> packageCaches = new HashMap<>();
+  private int loads;
+  private int copies;
+
+  /**
+   * @param key - identifies the core package, and anything else the loaded context depends on
+   * @param loader - loads the context, if this is the first time the key has been asked for
+   * @return a copy of the loaded context for the build to use
+   */
+  public SimpleWorkerContext copy(String key, Callable<SimpleWorkerContext> loader) throws Exception {
+    Core core;
+    synchronized (cores) {
+      core = cores.get(key);
+      if (core == null) {
+        core = new Core();
+        cores.put(key, core);
+      }
+    }
+    // different cores can be loaded at the same time, but each is only loaded once
+    synchronized (core) {
+      if (core.context == null) {
+        core.context = loader.call();
+        synchronized (this) {
+          loads++;
+        }
+      }
+    }
+    synchronized (this) {
+      copies++;
+    }
+    return new SimpleWorkerContext(core.context);
+  }
+
+  public FilesystemPackageCacheManager getPackageCacheManager(boolean userMode) throws IOException {
+    synchronized (packageCaches) {
+      FilesystemPackageCacheManager pcm = packageCaches.get(userMode);
+      if (pcm == null) {
+        pcm = new FilesystemPackageCacheManager(userMode, ToolsVersion.TOOLS_VERSION);
+        packageCaches.put(userMode, pcm);
+      }
+      return pcm;
+    }
+  }
+
+  public synchronized String report() {
+    return "Core contexts: "+loads+" loaded, "+copies+" used";
+  }
+}
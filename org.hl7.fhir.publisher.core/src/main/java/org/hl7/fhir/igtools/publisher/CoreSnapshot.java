@@ -0,0 +1,243 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+/**
+ * A saved copy of the conformance resources in a loaded core context, so that later runs
+ * don't have to read them from the core package, convert them to R5, and fix them up
+ * (ids, snapshots) again.
+ *
+ * The snapshot is specific to the core package, the publisher build, and the way the core
+ * was loaded (the key), and is just not used if any of them don't match. The resources are
+ * held in the dictionary encoded form of CompactJson, along with the user data that the
+ * loader puts on them (the web paths). The file is memory mapped to read it back.
+ *
+ * Verify compares a snapshot with a fresh load, to check that what's loaded from the
+ * snapshot is the same as what would have been loaded from the package. Only what the
+ * snapshot holds is compared: the conformance resources (allConformanceResources) and the
+ * USER_DATA on them. Anything else that loading the package puts in the context (the
+ * binaries, other user data) isn't in the snapshot - the binaries are loaded from the
+ * package either way, and other user data isn't kept.
+ */
+public class CoreSnapshot {
+
+  private static final String MAGIC = "FHIR-IG-Publisher-Core-Snapshot";
+  private static final int FORMAT = 1;
+  private static final String[] USER_DATA = new String[] {"path", "versionpath"};
+
+  /**
+   * types to pass to the loader to make a context for the package without loading any resources into it
+   */
+  public static final String[] NO_TYPES = new String[] {"Snapshot"};
+
+  private String key;
+  private File file;
+  private int count;
+
+  private static class Entry {
+    private Map<String, String> userData = new HashMap<>();
+    private byte[] json;
+  }
+
+  public CoreSnapshot(String folder, NpmPackage pi, String key) throws IOException {
+    super();
+    this.key = key+"|"+IGVersionUtil.getVersion()+"|"+IGVersionUtil.getBuildTime();
+    this.file = new File(Utilities.path(folder, pi.name()+"-"+pi.version()+"-"+ContentDigest.of(this.key).substring(0, 16)+".snapshot"));
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public boolean exists() {
+    return file.exists();
+  }
+
+  public void save(SimpleWorkerContext context) throws IOException {
+    CompactJson compact = new CompactJson();
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    DataOutputStream content = new DataOutputStream(bs);
+    List<CanonicalResource> list = context.allConformanceResources();
+    content.writeInt(list.size());
+    for (CanonicalResource cr : list) {
+      List<String> data = new ArrayList<>();
+      for (String n : USER_DATA) {
+        if (cr.getUserData(n) instanceof String) {
+          data.add(n);
+        }
+      }
+      content.writeInt(data.size());
+      for (String n : data) {
+        writeString(content, n);
+        writeString(content, (String) cr.getUserData(n));
+      }
+      byte[] json = compact.encode(new JsonParser().composeBytes(cr));
+      content.writeInt(json.length);
+      content.write(json);
+    }
+    content.close();
+
+    // written alongside, and then moved into place, so a build starting up never sees a partial snapshot
+    Utilities.createDirectory(file.getParent());
+    File tmp = new File(file.getAbsolutePath()+".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+      writeString(out, MAGIC);
+      out.writeInt(FORMAT);
+      writeString(out, key);
+      List<String> words = compact.getDictionary();
+      out.writeInt(words.size());
+      for (String w : words) {
+        writeString(out, w);
+      }
+      bs.writeTo(out);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    count = list.size();
+  }
+
+  /**
+   * load the resources in the snapshot into the context
+   *
+   * @return false if there's no usable snapshot
+   * @throws IOException if the snapshot was read but its resources couldn't be loaded
+   */
+  public boolean load(SimpleWorkerContext context) throws IOException {
+    List<Entry> entries = read();
+    if (entries == null) {
+      return false;
+    }
+    JsonParser p = new JsonParser();
+    for (Entry e : entries) {
+      try {
+        Resource r = p.parse(e.json);
+        for (String n : e.userData.keySet()) {
+          r.setUserData(n, e.userData.get(n));
+        }
+        context.cacheResource(r);
+      } catch (Exception ex) {
+        // the context may already have some of them, so this can't be put right
+        throw new IOException("Unable to load the core snapshot "+file.getAbsolutePath()+": "+ex.getMessage(), ex);
+      }
+    }
+    count = entries.size();
+    return true;
+  }
+
+  /**
+   * compare the snapshot with the freshly loaded context: the same conformance resources, 
+   * with the same content and the same USER_DATA (see the class comments for what isn't compared)
+   *
+   * @return the differences (empty if there are none)
+   */
+  public List<String> verify(SimpleWorkerContext context) throws IOException {
+    List<String> res = new ArrayList<>();
+    List<Entry> entries = read();
+    if (entries == null) {
+      res.add("No usable snapshot at "+file.getAbsolutePath());
+      return res;
+    }
+    Map<String, Entry> map = new HashMap<>();
+    com.google.gson.JsonParser gson = new com.google.gson.JsonParser();
+    for (Entry e : entries) {
+      CanonicalResource cr = (CanonicalResource) new JsonParser().parse(e.json);
+      map.put(id(cr), e);
+    }
+    for (CanonicalResource cr : context.allConformanceResources()) {
+      Entry e = map.remove(id(cr));
+      if (e == null) {
+        res.add(id(cr)+": not in the snapshot");
+      } else {
+        if (!gson.parse(new String(e.json, StandardCharsets.UTF_8)).equals(gson.parse(new JsonParser().composeString(cr)))) {
+          res.add(id(cr)+": content is different");
+        }
+        for (String n : USER_DATA) {
+          Object v = cr.getUserData(n);
+          String s = e.userData.get(n);
+          if (v instanceof String ? !v.equals(s) : s != null) {
+            res.add(id(cr)+": user data '"+n+"' is different ("+s+" instead of "+v+")");
+          }
+        }
+      }
+    }
+    for (String id : map.keySet()) {
+      res.add(id+": only in the snapshot");
+    }
+    return res;
+  }
+
+  private String id(CanonicalResource cr) {
+    return cr.fhirType()+"/"+cr.getId()+" ("+cr.getUrl()+"|"+cr.getVersion()+")";
+  }
+
+  private List<Entry> read() {
+    if (!file.exists()) {
+      return null;
+    }
+    try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      if (!MAGIC.equals(readString(buf)) || buf.getInt() != FORMAT || !key.equals(readString(buf))) {
+        return null;
+      }
+      List<String> words = new ArrayList<>();
+      for (int c = buf.getInt(); c > 0; c--) {
+        words.add(readString(buf));
+      }
+      CompactJson compact = new CompactJson();
+      compact.setDictionary(words);
+      List<Entry> res = new ArrayList<>();
+      for (int c = buf.getInt(); c > 0; c--) {
+        Entry e = new Entry();
+        for (int u = buf.getInt(); u > 0; u--) {
+          String n = readString(buf);
+          e.userData.put(n, readString(buf));
+        }
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        e.json = compact.decode(b);
+        res.add(e);
+      }
+      return res;
+    } catch (Exception e) {
+      // unreadable (e.g. truncated) - it'll be replaced by a fresh one
+      return null;
+    }
+  }
+
+  private void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private String readString(ByteBuffer buf) {
+    byte[] b = new byte[buf.getInt()];
+    buf.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+}
@@ -5,13 +5,20 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
@@ -57,11 +64,19 @@ import org.hl7.fhir.r5.model.Enumerations;
 import org.hl7.fhir.r5.model.Library;
 import org.hl7.fhir.r5.model.ParameterDefinition;
 import org.hl7.fhir.r5.model.RelatedArtifact;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.JsonTrackingParser;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
 public class CqlSubSystem {
 
   /** 
@@ -170,6 +185,8 @@ public class CqlSubSystem {
    */
   private UcumService ucumService;
 
+  public static final String CACHE_FOLDER = "_cql-cache";
+
   /**
    * Map of translated files by fully qualified file name.
    * Populated during execute
@@ -192,6 +209,28 @@ public class CqlSubSystem {
 
   private NamespaceInfo namespaceInfo;
 
+  /**
+   * Where the translations are kept between runs (null = not kept). Each file's translation is 
+   * keyed by its source, the source of the libraries it includes from the same folder (and 
+   * theirs), the translator options, and the packages, so a file is only translated again 
+   * when one of those changes
+   */
+  private String cacheFolder;
+  private Set<String> used = new HashSet<>();
+  private int translated;
+  private int reused;
+
+  /**
+   * The translator's model and library managers aren't thread safe, so each task gets its own, 
+   * which it keeps for all the files in its group (see groupByIncludes)
+   */
+  private class Translator {
+    private ModelManager modelManager;
+    private LibraryManager libraryManager;
+  }
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
   public CqlSubSystem(List<NpmPackage> packages, List<String> folders, ILibraryReader reader, ILoggingService logger, UcumService ucumService, String packageId, String canonicalBase) {
     super();
     this.packages = packages;
@@ -216,18 +255,47 @@ public class CqlSubSystem {
   public void execute() throws FHIRException {
     try {
       logger.logMessage("Translating CQL source");
-      fileMap = new HashMap<>();
+      fileMap = new ConcurrentHashMap<>();
+      used.clear();
+      translated = 0;
+      reused = 0;
 
        // foreach folder
       for (String folder : folders) {
         translateFolder(folder);
       }
+      prune();
+      logger.logMessage(String.format("CQL: %d files translated, %d unchanged", translated, reused));
     }
     catch (Exception E) {
       logger.logDebugMessage(ILoggingService.LogCategory.PROGRESS, String.format("Errors occurred attempting to translate CQL content: %s", E.getMessage()));
     }
   }
 
+  public String getCacheFolder() {
+    return cacheFolder;
+  }
+
+  public void setCacheFolder(String cacheFolder) {
+    this.cacheFolder = cacheFolder;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getTranslated() {
+    return translated;
+  }
+
+  public int getReused() {
+    return reused;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   /**
    * Return CqlSourceFileInformation for the given filename
    * @param filename Fully qualified name of the source file
@@ -288,25 +356,257 @@ public class CqlSubSystem {
     return options;
   }
 
-  private void translateFolder(String folder) {
+  private void translateFolder(String folder) throws Exception {
     logger.logMessage(String.format("Translating CQL source in folder %s", folder));
 
     CqlTranslatorOptions options = getTranslatorOptions(folder);
 
-    // Setup
-    // Construct DefaultLibrarySourceProvider
-    // Construct FhirLibrarySourceProvider
-    ModelManager modelManager = new ModelManager();
-    LibraryManager libraryManager = new LibraryManager(modelManager);
-    libraryManager.getLibrarySourceLoader().registerProvider(new NpmLibrarySourceProvider());
-    libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
-    libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(Paths.get(folder)));
+    // work out which files have changed (or depend on a file that has)
+    Map<String, File> libraries = new HashMap<>();
+    Map<File, String> sources = new HashMap<>();
+    for (File file : new File(folder).listFiles(getCqlFilenameFilter())) {
+      String src = TextFile.fileToString(file);
+      sources.put(file, src);
+      Matcher m = LIBRARY.matcher(src);
+      if (m.find()) {
+        libraries.put(unquote(m.group(1)), file);
+      }
+    }
+    String settings = folderSettings(folder);
+    Map<File, String> keys = new HashMap<>();
+    List<File> todo = new ArrayList<>();
+    for (File file : sources.keySet()) {
+      String key = ContentDigest.of(settings+"\n"+libraryHash(file, sources, libraries, new HashSet<>()));
+      keys.put(file, key);
+      CqlSourceFileInformation result = loadCached(key);
+      if (result != null) {
+        fileMap.put(file.getAbsoluteFile().toString(), result);
+        reused++;
+      } else {
+        todo.add(file);
+      }
+    }
+    if (todo.isEmpty()) {
+      return;
+    }
+    translated = translated + todo.size();
+
+    // libraries that include each other are translated by the same task, includes first, so the
+    // task's library manager compiles each shared include once. Unrelated groups run in parallel
+    List<List<File>> groups = groupByIncludes(todo, sources, libraries);
+    try (WorkerPool pool = new WorkerPool("cql", Math.min(threads, groups.size()))) {
+      List<Future<Void>> results = new ArrayList<>();
+      for (List<File> group : groups) {
+        results.add(pool.submit(() -> {
+          // Setup
+          // Construct DefaultLibrarySourceProvider
+          // Construct FhirLibrarySourceProvider
+          Translator t = new Translator();
+          t.modelManager = new ModelManager();
+          t.libraryManager = new LibraryManager(t.modelManager);
+          t.libraryManager.getLibrarySourceLoader().registerProvider(new NpmLibrarySourceProvider());
+          t.libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+          t.libraryManager.getLibrarySourceLoader().registerProvider(new DefaultLibrarySourceProvider(Paths.get(folder)));
+          loadNamespaces(t.libraryManager);
+          // foreach changed *.cql file
+          for (File file : group) {
+            CqlSourceFileInformation result = translateFile(t.modelManager, t.libraryManager, file, options);
+            storeCached(keys.get(file), result);
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> f : results) {
+        WorkerPool.get(f);
+      }
+    }
+  }
 
-    loadNamespaces(libraryManager);
+  /**
+   * the files to translate, in groups of libraries connected by their includes (in this folder),
+   * each group in include order
+   */
+  private List<List<File>> groupByIncludes(List<File> todo, Map<File, String> sources, Map<String, File> libraries) {
+    Map<File, List<File>> includes = new HashMap<>();
+    Map<File, Set<File>> linked = new HashMap<>();
+    for (File file : sources.keySet()) {
+      includes.put(file, new ArrayList<>());
+      linked.put(file, new HashSet<>());
+    }
+    for (File file : sources.keySet()) {
+      Matcher m = INCLUDE.matcher(sources.get(file));
+      while (m.find()) {
+        File inc = libraries.get(unquote(m.group(1)));
+        if (inc != null && inc != file) {
+          includes.get(file).add(inc);
+          linked.get(file).add(inc);
+          linked.get(inc).add(file);
+        }
+      }
+    }
+    Set<File> wanted = new HashSet<>(todo);
+    Set<File> grouped = new HashSet<>();
+    List<List<File>> groups = new ArrayList<>();
+    for (File file : todo) {
+      if (!grouped.contains(file)) {
+        // everything connected to this file
+        List<File> group = new ArrayList<>();
+        List<File> queue = new ArrayList<>();
+        queue.add(file);
+        grouped.add(file);
+        while (!queue.isEmpty()) {
+          File f = queue.remove(queue.size()-1);
+          group.add(f);
+          for (File l : linked.get(f)) {
+            if (grouped.add(l)) {
+              queue.add(l);
+            }
+          }
+        }
+        // includes first
+        List<File> ordered = new ArrayList<>();
+        Set<File> visited = new HashSet<>();
+        for (File f : group) {
+          orderByIncludes(f, includes, visited, ordered);
+        }
+        ordered.retainAll(wanted);
+        groups.add(ordered);
+      }
+    }
+    return groups;
+  }
 
-    // foreach *.cql file
-    for (File file : new File(folder).listFiles(getCqlFilenameFilter())) {
-      translateFile(modelManager, libraryManager, file, options);
+  private void orderByIncludes(File file, Map<File, List<File>> includes, Set<File> visited, List<File> ordered) {
+    if (visited.add(file)) {
+      for (File inc : includes.get(file)) {
+        orderByIncludes(inc, includes, visited, ordered);
+      }
+      ordered.add(file);
+    }
+  }
+
+  private static final Pattern LIBRARY = Pattern.compile("(?m)^\\s*library\\s+((?:\"[^\"]+\")|[\\w.]+)");
+  private static final Pattern INCLUDE = Pattern.compile("(?m)^\\s*include\\s+((?:\"[^\"]+\")|[\\w.]+)");
+
+  private String unquote(String name) {
+    if (name.startsWith("\"")) {
+      name = name.substring(1, name.length()-1);
+    }
+    // the namespace doesn't matter - it can only be a library in this folder if it's in this IG's namespace 
+    return name.contains(".") ? name.substring(name.lastIndexOf(".")+1) : name;
+  }
+
+  /**
+   * the hash of the source, and the hashes of the libraries it includes from the same folder
+   */
+  private String libraryHash(File file, Map<File, String> sources, Map<String, File> libraries, Set<File> done) {
+    done.add(file);
+    String src = sources.get(file);
+    StringBuilder b = new StringBuilder();
+    b.append(ContentDigest.of(src));
+    List<String> includes = new ArrayList<>();
+    Matcher m = INCLUDE.matcher(src);
+    while (m.find()) {
+      File inc = libraries.get(unquote(m.group(1)));
+      if (inc != null && !done.contains(inc)) {
+        includes.add(libraryHash(inc, sources, libraries, done));
+      }
+    }
+    Collections.sort(includes);
+    for (String s : includes) {
+      b.append(",");
+      b.append(s);
+    }
+    return ContentDigest.of(b.toString());
+  }
+
+  /**
+   * everything that applies to all the files in the folder
+   */
+  private String folderSettings(String folder) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append(IGVersionUtil.getVersion());
+    b.append("|"+packageId+"|"+canonicalBase);
+    File opt = new File(folder + File.separator + "cql-options.json");
+    b.append("|"+(opt.exists() ? ContentDigest.read(opt).getDigest() : "default"));
+    for (NpmPackage p : packages) {
+      b.append("|"+p.name()+"#"+p.version());
+    }
+    return b.toString();
+  }
+
+  private CqlSourceFileInformation loadCached(String key) {
+    if (cacheFolder == null) {
+      return null;
+    }
+    try {
+      used.add(key);
+      File f = new File(Utilities.path(cacheFolder, key+".json"));
+      if (!f.exists()) {
+        return null;
+      }
+      JsonObject json = JsonTrackingParser.parseJsonFile(f.getAbsolutePath());
+      CqlSourceFileInformation result = new CqlSourceFileInformation();
+      if (json.has("elm")) {
+        result.setElm(json.get("elm").getAsString().getBytes(StandardCharsets.UTF_8));
+      }
+      if (json.has("jsonElm")) {
+        result.setJsonElm(json.get("jsonElm").getAsString().getBytes(StandardCharsets.UTF_8));
+      }
+      for (JsonElement e : json.getAsJsonArray("errors")) {
+        result.getErrors().add(ValidationCache.readMessage((JsonObject) e));
+      }
+      // the extracted details are held in a library, which has a place for each of them
+      Library lib = (Library) new org.hl7.fhir.r5.formats.JsonParser().parse(json.get("library").getAsString());
+      result.relatedArtifacts.addAll(lib.getRelatedArtifact());
+      result.parameters.addAll(lib.getParameter());
+      result.dataRequirements.addAll(lib.getDataRequirement());
+      return result;
+    } catch (Exception e) {
+      // corrupt or old entry - just translate again
+      return null;
+    }
+  }
+
+  private void storeCached(String key, CqlSourceFileInformation result) throws IOException {
+    if (cacheFolder == null) {
+      return;
+    }
+    JsonObject json = new JsonObject();
+    if (result.getElm() != null) {
+      json.addProperty("elm", new String(result.getElm(), StandardCharsets.UTF_8));
+    }
+    if (result.getJsonElm() != null) {
+      json.addProperty("jsonElm", new String(result.getJsonElm(), StandardCharsets.UTF_8));
+    }
+    JsonArray arr = new JsonArray();
+    json.add("errors", arr);
+    for (ValidationMessage vm : result.getErrors()) {
+      arr.add(ValidationCache.writeMessage(vm));
+    }
+    Library lib = new Library();
+    lib.getRelatedArtifact().addAll(result.relatedArtifacts);
+    lib.getParameter().addAll(result.parameters);
+    lib.getDataRequirement().addAll(result.dataRequirements);
+    json.addProperty("library", new org.hl7.fhir.r5.formats.JsonParser().composeString(lib));
+    Utilities.createDirectory(cacheFolder);
+    TextFile.stringToFile(new Gson().toJson(json), Utilities.path(cacheFolder, key+".json"), false);
+  }
+
+  /**
+   * delete the translations that weren't looked up in this run
+   */
+  private void prune() {
+    if (cacheFolder == null) {
+      return;
+    }
+    File[] list = new File(cacheFolder).listFiles();
+    if (list != null) {
+      for (File f : list) {
+        if (f.getName().endsWith(".json") && !used.contains(f.getName().substring(0, f.getName().length()-5))) {
+          f.delete();
+        }
+      }
     }
   }
 
@@ -354,7 +654,7 @@ public class CqlSubSystem {
     }
   }
 
-  private void translateFile(ModelManager modelManager, LibraryManager libraryManager, File file, CqlTranslatorOptions options) {
+  private CqlSourceFileInformation translateFile(ModelManager modelManager, LibraryManager libraryManager, File file, CqlTranslatorOptions options) {
     logger.logMessage(String.format("Translating CQL source in file %s", file.toString()));
     CqlSourceFileInformation result = new CqlSourceFileInformation();
     fileMap.put(file.getAbsoluteFile().toString(), result);
@@ -378,12 +678,12 @@ public class CqlSubSystem {
       else {
         // convert to base64 bytes
         // NOTE: Publication tooling requires XML content
-        result.setElm(translator.toXml().getBytes());
+        result.setElm(translator.toXml().getBytes(StandardCharsets.UTF_8));
         if (options.getFormats().contains(CqlTranslator.Format.JSON)) {
-          result.setJsonElm(translator.toJson().getBytes());
+          result.setJsonElm(translator.toJson().getBytes(StandardCharsets.UTF_8));
         }
         if (options.getFormats().contains(CqlTranslator.Format.JXSON)) {
-          result.setJsonElm(translator.toJxson().getBytes());
+          result.setJsonElm(translator.toJxson().getBytes(StandardCharsets.UTF_8));
         }
 
         // TODO: Report context, requires 1.5 translator (ContextDef)
@@ -409,6 +709,7 @@ public class CqlSubSystem {
     catch (Exception e) {
       result.getErrors().add(new ValidationMessage(ValidationMessage.Source.Publisher, IssueType.EXCEPTION, file.getName(), "CQL Processing failed with exception: "+e.getMessage(), IssueSeverity.ERROR));
     }
+    return result;
   }
 
   private FilenameFilter getCqlFilenameFilter() {
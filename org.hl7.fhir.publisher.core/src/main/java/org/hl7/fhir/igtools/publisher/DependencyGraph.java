@@ -0,0 +1,77 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which source files depend on which other source files, for working out what needs to be
+ * regenerated in watch mode when some files change.
+ *
+ * Files are identified by their path, since a changed file is reloaded as a new FetchedFile.
+ * The edges for a file are recorded when it is processed, and kept until the file is processed
+ * again (i.e. when it has changed).
+ */
+public class DependencyGraph {
+
+  private Map<String, Set<String>> uses = new HashMap<>();
+  private Map<String, Set<String>> usedBy = new HashMap<>();
+  private Map<String, FetchedFile> owners = new HashMap<>();
+
+  /**
+   * @return true if the dependencies for this file (this actual load of it) have already been recorded
+   */
+  public boolean isKnown(FetchedFile f) {
+    return owners.get(f.getPath()) == f;
+  }
+
+  /**
+   * replaces whatever dependencies were previously recorded for the file
+   */
+  public void setDependencies(FetchedFile f, Set<String> dependencies) {
+    String path = f.getPath();
+    Set<String> old = uses.get(path);
+    if (old != null) {
+      for (String d : old) {
+        Set<String> s = usedBy.get(d);
+        if (s != null) {
+          s.remove(path);
+        }
+      }
+    }
+    Set<String> deps = new HashSet<>(dependencies);
+    deps.remove(path);
+    uses.put(path, deps);
+    owners.put(path, f);
+    for (String d : deps) {
+      usedBy.computeIfAbsent(d, k -> new HashSet<>()).add(path);
+    }
+  }
+
+  /**
+   * @return the paths of all the files that depend on the changed files, directly or indirectly (including the changed files themselves)
+   */
+  public Set<String> findAffected(Collection<String> changed) {
+    Set<String> res = new HashSet<>(changed);
+    Deque<String> queue = new ArrayDeque<>(changed);
+    while (!queue.isEmpty()) {
+      Set<String> s = usedBy.get(queue.pop());
+      if (s != null) {
+        for (String p : s) {
+          if (res.add(p)) {
+            queue.push(p);
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  public int size() {
+    return uses.size();
+  }
+}
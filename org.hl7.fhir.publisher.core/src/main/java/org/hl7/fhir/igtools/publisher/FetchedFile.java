@@ -21,14 +21,16 @@ package org.hl7.fhir.igtools.publisher;
  */
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 
 public class FetchedFile {
@@ -46,10 +48,11 @@ public class FetchedFile {
   private byte[] xslt;
   
   private byte[] source;
-  private long hash;
+  private File sourceFile; // if the source hasn't been read yet
+  private String hash;
   private long time;
+  private long size;
   private String contentType;
-  private List<FetchedFile> dependencies;
   private List<FetchedResource> resources = new ArrayList<FetchedResource>();
   private List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
   private FetchedResource bundle;
@@ -60,6 +63,8 @@ public class FetchedFile {
   private int processMode;
   private Set<String> outputNames = new HashSet<String>();
   private String statedPath;  
+  private Element parsed; // if the scan had to parse the file to find out what it is
+  private List<ValidationMessage> parseErrors;
   
   public FetchedFile(String statedPath) {
     super();
@@ -103,26 +108,66 @@ public class FetchedFile {
     this.contentType = contentType;
   }
  
-  public List<FetchedFile> getDependencies() {
-    return dependencies;
-  }
-  public void setDependencies(List<FetchedFile> dependencies) {
-    this.dependencies = dependencies;
-  }
-  public long getHash() {
+  /**
+   * @return the SHA-256 digest of the source (see ContentDigest)
+   */
+  public String getHash() {
     return hash;
   }
-  public void setHash(long hash) {
+  public void setHash(String hash) {
     this.hash = hash;
   }
+  public long getSize() {
+    return size;
+  }
+  public void setSize(long size) {
+    this.size = size;
+  }
   public byte[] getSource() {
+    if (source == null && sourceFile != null) {
+      try {
+        ContentDigest cd = ContentDigest.read(sourceFile);
+        source = cd.getContent();
+        hash = cd.getDigest();
+      } catch (IOException e) {
+        throw new Error("Unable to read "+sourceFile+": "+e.getMessage(), e);
+      }
+      sourceFile = null;
+    }
     if (source == null)
       throw new Error("Source has been dropped");
     return source;
   }
   public void setSource(byte[] source) {
+    setSource(source, ContentDigest.of(source));
+  }
+  /**
+   * @param hash - the digest of the source, if it was worked out as the source was read
+   */
+  public void setSource(byte[] source, String hash) {
     this.source = source;
-    this.hash =Arrays.hashCode(source);
+    this.sourceFile = null;
+    this.hash = hash;
+    this.size = source.length;
+  }
+  /**
+   * the file is unchanged since it was last read (same time and size) so the source is
+   * only read if something asks for it
+   */
+  public void setUnreadSource(File file, String hash) {
+    this.source = null;
+    this.sourceFile = file;
+    this.hash = hash;
+  }
+  /**
+   * true if the other file has the same content as this one. If we don't know the content
+   * (e.g. folders), then the file timestamps are compared
+   */
+  public boolean hasSameContent(FetchedFile other) {
+    if (hash == null || other.hash == null) {
+      return time == other.time;
+    }
+    return hash.equals(other.hash);
   }
   
 
@@ -193,8 +238,21 @@ public class FetchedFile {
   public String getStatedPath() {
     return statedPath;
   }
+  public Element getParsed() {
+    return parsed;
+  }
+  public List<ValidationMessage> getParseErrors() {
+    return parseErrors;
+  }
+  public void setParsed(Element parsed, List<ValidationMessage> parseErrors) {
+    this.parsed = parsed;
+    this.parseErrors = parseErrors;
+  }
   public void trim() {
     source = null;
+    sourceFile = null;
+    parsed = null;
+    parseErrors = null;
   }
   
 }
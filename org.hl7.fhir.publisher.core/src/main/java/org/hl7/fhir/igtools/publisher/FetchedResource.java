@@ -51,25 +51,63 @@ public class FetchedResource {
   private List<ProvenanceDetails> audits = new ArrayList<>();
   private List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
   private boolean isProvenance = false;
+  private ResourceStore store; // if there's a memory budget, the element and resource may be spilled to disk
 
   public Resource getResource() {
-    return resource;
+    return store == null ? resource : store.resource(this);
   }
 
   public void setResource(Resource resource) {
     this.resource = resource;
+    if (store != null) {
+      store.changed(this);
+    }
   }
   
   public Element getElement() {
-    return element;
+    return store == null ? element : store.element(this);
   }
   
   public FetchedResource setElement(Element element) {
     this.element = element;
     type = element.fhirType();
+    if (store != null) {
+      store.changed(this);
+    }
     return this;
   }
 
+  public ResourceStore getStore() {
+    return store;
+  }
+
+  public void setStore(ResourceStore store) {
+    this.store = store;
+  }
+
+  // for the store: what's actually loaded right now
+  Element loadedElement() {
+    return element;
+  }
+
+  Resource loadedResource() {
+    return resource;
+  }
+
+  void unload(boolean element, boolean resource) {
+    if (element) {
+      this.element = null;
+    }
+    if (resource) {
+      this.resource = null;
+    }
+  }
+
+  void reload(Element element, Resource resource) {
+    this.element = element;
+    this.resource = resource;
+  }
+
   public String getId() {
     return id;
   }
@@ -21,21 +21,34 @@ package org.hl7.fhir.igtools.publisher;
  */
 
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.hl7.fhir.exceptions.FHIRFormatError;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
@@ -52,9 +65,11 @@ import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
 import org.hl7.fhir.utilities.xhtml.NodeType;
 import org.hl7.fhir.utilities.xhtml.XhtmlComposer;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
-import org.hl7.fhir.utilities.xhtml.XhtmlNode.Location;
 import org.hl7.fhir.utilities.xhtml.XhtmlParser;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 //import org.owasp.html.Handler;
@@ -69,10 +84,6 @@ import com.google.gson.JsonObject;
 public class HTLMLInspector {
 
   
-  public enum NodeChangeType {
-    NONE, SELF, CHILD
-  }
-
   public class HtmlChangeListenerContext {
 
     private List<ValidationMessage> messages;
@@ -109,6 +120,42 @@ public class HTLMLInspector {
     }
   }
 
+  private enum LinkType {
+    A, IMG, LINK, SCRIPT
+  }
+
+  /**
+   * a link found in a page when it was loaded, so that the links can be checked without parsing the page again
+   */
+  private static class LinkRef {
+    private LinkType type;
+    private String location;
+    private String path;
+    private String ref;
+    private String text;
+    private String uuid; // the id of the parent node, which is where the anchor goes if the link is broken
+
+    public LinkRef(LinkType type, String location, String path, String ref, String text, String uuid) {
+      super();
+      this.type = type;
+      this.location = location;
+      this.path = path;
+      this.ref = ref;
+      this.text = text;
+      this.uuid = uuid;
+    }
+  }
+
+  /**
+   * the outcome of checking the links in a page
+   */
+  private static class PageCheck {
+    private List<ValidationMessage> messages = new ArrayList<>();
+    private boolean referencesValidatorPack;
+    private Set<String> pages = new HashSet<>(); // the pages the links were looked up in
+    private boolean anchored; // broken links were found, and anchors added to the page
+  }
+
   public class LoadedFile {
     private String filename;
     private long lastModified;
@@ -119,6 +166,13 @@ public class HTLMLInspector {
     private String path;
     private boolean hasXhtml;
     private int id = 0;
+    private List<LinkRef> links = new ArrayList<>();
+    private boolean textReferencesValidatorPack;
+    private long size;
+    private String hash; // of the content as it was read, before the publish box was filled in
+    private List<ValidationMessage> messages = new ArrayList<>(); // from loading the file
+    private boolean targetsChanged = true; // since the last check
+    private PageCheck check; // the outcome of the last link check
 
     public LoadedFile(String filename, String path, long lastModified, int iteration, Boolean hl7State, boolean exempt, boolean hasXhtml) {
       this.filename = filename;
@@ -177,10 +231,11 @@ public class HTLMLInspector {
   private String rootFolder;
   private String altRootFolder;
   private List<SpecMapManager> specs;
+  private SpecLinkIndex specIndex;
   private Map<String, LoadedFile> cache = new HashMap<String, LoadedFile>();
   private int iteration = 0;
   private List<StringPair> otherlinks = new ArrayList<StringPair>();
-  private int links;
+  private AtomicInteger links = new AtomicInteger();
   private List<String> manual = new ArrayList<String>(); // pages that will be provided manually when published, so allowed to be broken links
   private ILoggingService log;
   private boolean forHL7;
@@ -197,7 +252,14 @@ public class HTLMLInspector {
   private boolean missingPublishBox;
   private List<String> missingPublishBoxList = new ArrayList<>();
   private Set<String> exceptions = new HashSet<>();
-  private boolean referencesValidatorPack;
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  // Jekyll builds from the temp folder, and ignores folders that start with _
+  public static final String CACHE_FOLDER = "_html-cache";
+  private static final String CACHE_FILE = "pages.json.gz";
+  private String cacheFolder;
+  private Map<String, JsonObject> stored; // what the last run found, by path
+  private String linkSettings = "";
 
   public HTLMLInspector(String rootFolder, List<SpecMapManager> specs, ILoggingService log, String canonical, String packageId) {
     this.rootFolder = rootFolder.replace("/", File.separator);
@@ -213,8 +275,19 @@ public class HTLMLInspector {
   }
   
   public List<ValidationMessage> check(String statusText) throws IOException {  
+    // the pool only lasts for the check, so its threads don't outlive the build
+    try (WorkerPool pool = new WorkerPool("link-checker", threads)) {
+      return check(statusText, pool);
+    }
+  }
+
+  private List<ValidationMessage> check(String statusText, WorkerPool pool) throws IOException {  
     this.statusText = statusText;
     iteration ++;
+    specIndex = new SpecLinkIndex(specs); // specs may have been added since the last check
+    if (iteration == 1 && cacheFolder != null) {
+      loadStore();
+    }
 
     List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
 
@@ -227,11 +300,22 @@ public class HTLMLInspector {
     checkGoneFiles();
 
     log.logDebugMessage(LogCategory.HTML, "Loading Files");
-    // load files
+    // load files: each file is parsed once (on the worker pool), and its targets and links are kept
+    // (unless the last run saw the same file, in which case what it found is used)
+    List<Future<LoadedFile>> loads = new ArrayList<>();
+    for (String s : loadList) {
+      loads.add(pool.submit(() -> loadFile(s, rootFolder)));
+    }
     int i = 0;
     int c = loadList.size() / 40;
-    for (String s : loadList) {
-      loadFile(s, rootFolder, messages);
+    for (int j = 0; j < loadList.size(); j++) {
+      log.logDebugMessage(LogCategory.HTML, "Load "+loadList.get(j));
+      LoadedFile lf = waitFor(loads.get(j));
+      LoadedFile old = cache.put(loadList.get(j), lf);
+      if (old != null) {
+        lf.targetsChanged = !old.targets.equals(lf.targets);
+      }
+      messages.addAll(lf.messages);
       if (i == c) {
         System.out.print(".");
         i = 0;
@@ -242,12 +326,33 @@ public class HTLMLInspector {
 
 
     log.logDebugMessage(LogCategory.HTML, "Checking Files");
-    links = 0;
-    // check links
+    links.set(0);
+    // check links: all the files are loaded now, so the links can be checked in parallel. 
+    // A page doesn't need to be checked again if it hasn't changed, and nor have the pages it links to
+    String settings = makeLinkSettings();
+    boolean checkAll = !settings.equals(linkSettings);
+    linkSettings = settings;
+    List<String> names = sorted(cache.keySet());
+    List<Future<PageCheck>> checks = new ArrayList<>();
+    int reused = 0;
+    for (String s : names) {
+      LoadedFile lf = cache.get(s);
+      if (lf.isHasXhtml() && (checkAll || !isStillValid(lf.check))) {
+        checks.add(pool.submit(() -> checkPage(s, lf)));
+      } else {
+        checks.add(null);
+        if (lf.isHasXhtml()) {
+          links.addAndGet(countLinks(lf));
+          reused++;
+        }
+      }
+    }
+    log.logDebugMessage(LogCategory.HTML, "Links unchanged in "+reused+" pages");
     boolean first = true;
     i = 0;
     c = cache.size() / 40;
-    for (String s : sorted(cache.keySet())) {
+    for (int j = 0; j < names.size(); j++) {
+      String s = names.get(j);
       log.logDebugMessage(LogCategory.HTML, "Check "+s);
       LoadedFile lf = cache.get(s);
       if (lf.getHl7State() != null && !lf.getHl7State()) {
@@ -273,12 +378,10 @@ public class HTLMLInspector {
         }
       }
       if (lf.isHasXhtml()) {
-        XhtmlNode x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(lf.filename), null);
-        referencesValidatorPack = false;
-        if (checkLinks(lf, s, "", x, null, messages, false) != NodeChangeType.NONE) { // returns true if changed
-          saveFile(lf, x);
-        }
-        if (referencesValidatorPack) {
+        PageCheck pc = checks.get(j) == null ? lf.check : waitFor(checks.get(j));
+        lf.check = pc;
+        messages.addAll(pc.messages);
+        if (pc.referencesValidatorPack) {
           if (lf.getHl7State() != null && lf.getHl7State()) {
             messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.ERROR));                      
           } else {
@@ -297,15 +400,231 @@ public class HTLMLInspector {
     log.logDebugMessage(LogCategory.HTML, "Checking Other Links");
     // check other links:
     for (StringPair sp : otherlinks) {
-      checkResolveLink(sp.source, null, null, sp.link, sp.text, messages, null);
+      checkResolveLink(sp.source, null, null, sp.link, sp.text, messages, null, null);
     }
     
+    if (cacheFolder != null) {
+      saveStore();
+    }
     log.logDebugMessage(LogCategory.HTML, "Done checking");
     
     return messages;
   }
 
 
+  /**
+   * true if nothing that the link check depended on has changed since the page was checked
+   */
+  private boolean isStillValid(PageCheck pc) {
+    if (pc == null || pc.anchored) {
+      return false;
+    }
+    for (String p : pc.pages) {
+      LoadedFile t = cache.get(p);
+      if (t == null || t.targetsChanged) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int countLinks(LoadedFile lf) {
+    int res = 0;
+    for (LinkRef l : lf.links) {
+      if (l.type == LinkType.A || l.type == LinkType.IMG) {
+        res++;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * everything other than the pages that decides whether links resolve
+   */
+  private String makeLinkSettings() {
+    List<String> parts = new ArrayList<>();
+    parts.add(canonical+"|"+rootFolder+"|"+altRootFolder+"|"+forHL7);
+    parts.addAll(manual);
+    if (specs != null) {
+      for (SpecMapManager spec : specs) {
+        String v;
+        try {
+          v = spec.getVersion();
+        } catch (Exception e) {
+          v = null;
+        }
+        parts.add(spec.getBase()+"|"+spec.getBase2()+"|"+v+"|"+spec.getTargets().size()+"|"+spec.getImages().size());
+      }
+    }
+    return ContentDigest.of(String.join("\n", parts));
+  }
+
+  /**
+   * everything other than the file content that decides what's found when a file is loaded
+   */
+  private String makeLoadSettings() {
+    return IGVersionUtil.getVersion()+"|"+strict+"|"+forHL7+"|"+statusText;
+  }
+
+  private void loadStore() throws IOException {
+    stored = new HashMap<>();
+    File f = new File(Utilities.path(cacheFolder, CACHE_FILE));
+    if (f.exists()) {
+      try (Reader r = new InputStreamReader(new GZIPInputStream(new FileInputStream(f)), StandardCharsets.UTF_8)) {
+        JsonObject json = (JsonObject) new com.google.gson.JsonParser().parse(r);
+        if (makeLoadSettings().equals(json.get("settings").getAsString())) {
+          for (Entry<String, JsonElement> e : json.getAsJsonObject("files").entrySet()) {
+            stored.put(e.getKey(), (JsonObject) e.getValue());
+          }
+          linkSettings = json.get("links").getAsString();
+        }
+      } catch (Exception e) {
+        // corrupt or old - just check everything
+        stored.clear();
+        linkSettings = "";
+      }
+    }
+  }
+
+  private void saveStore() throws IOException {
+    stored = null; // not needed any more - from now on, the files are compared with what's in the cache 
+    JsonObject json = new JsonObject();
+    json.addProperty("settings", makeLoadSettings());
+    json.addProperty("links", linkSettings);
+    JsonObject files = new JsonObject();
+    json.add("files", files);
+    for (String s : sorted(cache.keySet())) {
+      LoadedFile lf = cache.get(s);
+      if (lf.hash != null) {
+        files.add(lf.path, store(lf));
+      }
+    }
+    Utilities.createDirectory(cacheFolder);
+    try (Writer w = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(Utilities.path(cacheFolder, CACHE_FILE))), StandardCharsets.UTF_8)) {
+      new Gson().toJson(json, w);
+    }
+  }
+
+  private JsonObject store(LoadedFile lf) {
+    JsonObject j = new JsonObject();
+    j.addProperty("size", lf.size);
+    j.addProperty("modified", lf.lastModified);
+    j.addProperty("hash", lf.hash);
+    if (lf.hl7State != null) {
+      j.addProperty("hl7", lf.hl7State);
+    }
+    j.addProperty("exempt", lf.exempt);
+    j.addProperty("xhtml", lf.hasXhtml);
+    j.addProperty("validatorPack", lf.textReferencesValidatorPack);
+    j.add("targets", writeSet(lf.targets));
+    JsonArray arr = new JsonArray();
+    j.add("links", arr);
+    for (LinkRef l : lf.links) {
+      JsonObject lj = new JsonObject();
+      arr.add(lj);
+      lj.addProperty("type", l.type.name());
+      lj.addProperty("location", l.location);
+      lj.addProperty("path", l.path);
+      lj.addProperty("ref", l.ref);
+      lj.addProperty("text", l.text);
+      lj.addProperty("uuid", l.uuid);
+    }
+    j.add("messages", writeMessages(lf.messages));
+    if (lf.check != null && !lf.check.anchored) {
+      JsonObject cj = new JsonObject();
+      j.add("check", cj);
+      cj.add("messages", writeMessages(lf.check.messages));
+      cj.addProperty("validatorPack", lf.check.referencesValidatorPack);
+      Set<String> pages = new HashSet<>();
+      for (String p : lf.check.pages) {
+        if (p.startsWith(rootFolder+File.separator)) {
+          pages.add(getPath(p, rootFolder));
+        } else {
+          return j; // can't keep the check
+        }
+      }
+      cj.add("pages", writeSet(pages));
+    }
+    return j;
+  }
+
+  private LoadedFile restore(String s, String base, File f, JsonObject j) {
+    LoadedFile lf = new LoadedFile(s, getPath(s, base), f.lastModified(), iteration, j.has("hl7") ? j.get("hl7").getAsBoolean() : null, 
+        j.get("exempt").getAsBoolean(), j.get("xhtml").getAsBoolean());
+    lf.size = f.length();
+    lf.hash = j.get("hash").getAsString();
+    lf.textReferencesValidatorPack = j.get("validatorPack").getAsBoolean();
+    lf.targets.addAll(readSet(j.getAsJsonArray("targets")));
+    for (JsonElement e : j.getAsJsonArray("links")) {
+      JsonObject lj = (JsonObject) e;
+      lf.links.add(new LinkRef(LinkType.valueOf(lj.get("type").getAsString()), str(lj, "location"), str(lj, "path"), str(lj, "ref"), str(lj, "text"), str(lj, "uuid")));
+    }
+    lf.messages = readMessages(j.getAsJsonArray("messages"));
+    if (j.has("check")) {
+      JsonObject cj = j.getAsJsonObject("check");
+      lf.check = new PageCheck();
+      lf.check.messages = readMessages(cj.getAsJsonArray("messages"));
+      lf.check.referencesValidatorPack = cj.get("validatorPack").getAsBoolean();
+      for (String p : readSet(cj.getAsJsonArray("pages"))) {
+        lf.check.pages.add(rootFolder+File.separator+p.replace("/", File.separator));
+      }
+    }
+    lf.targetsChanged = false;
+    return lf;
+  }
+
+  private String str(JsonObject j, String name) {
+    return j.has(name) && !j.get(name).isJsonNull() ? j.get(name).getAsString() : null;
+  }
+
+  private JsonArray writeSet(Set<String> set) {
+    JsonArray arr = new JsonArray();
+    for (String s : sorted(set)) {
+      arr.add(s);
+    }
+    return arr;
+  }
+
+  private Set<String> readSet(JsonArray arr) {
+    Set<String> res = new HashSet<>();
+    for (JsonElement e : arr) {
+      res.add(e.getAsString());
+    }
+    return res;
+  }
+
+  private JsonArray writeMessages(List<ValidationMessage> messages) {
+    JsonArray arr = new JsonArray();
+    for (ValidationMessage vm : messages) {
+      arr.add(ValidationCache.writeMessage(vm));
+    }
+    return arr;
+  }
+
+  private List<ValidationMessage> readMessages(JsonArray arr) {
+    List<ValidationMessage> res = new ArrayList<>();
+    for (JsonElement e : arr) {
+      res.add(ValidationCache.readMessage((JsonObject) e));
+    }
+    return res;
+  }
+
+  private <T> T waitFor(Future<T> f) throws IOException {
+    try {
+      return f.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
   private List<String> sorted(Set<String> keys) {
     List<String> res = new ArrayList<>();
     res.addAll(keys);
@@ -340,22 +659,64 @@ public class HTLMLInspector {
           LoadedFile lf = cache.get(f.getAbsolutePath());
           if (lf == null || lf.getLastModified() != f.lastModified())
             loadList.add(f.getAbsolutePath());
-          else
+          else {
             lf.setIteration(iteration);
+            lf.targetsChanged = false;
+          }
         }
       }
     }
   }
 
-  private void loadFile(String s, String base, List<ValidationMessage> messages) {
-    log.logDebugMessage(LogCategory.HTML, "Load "+s);
-
+  /**
+   * parses the file (once), and makes the index of its targets and links. If the file has the publish
+   * box marker, the status text is substituted before the file is parsed, and the file updated
+   */
+  private LoadedFile loadFile(String s, String base) {
     File f = new File(s);
+    JsonObject rec = stored == null ? null : stored.get(getPath(s, base));
+    if (rec != null && rec.get("size").getAsLong() == f.length() && rec.get("modified").getAsLong() == f.lastModified()) {
+      return restore(s, base, f, rec);
+    }
+    List<ValidationMessage> messages = new ArrayList<>();
     Boolean hl7State = null;
     XhtmlNode x = null;
     boolean htmlName = f.getName().endsWith(".html") || f.getName().endsWith(".xhtml");
+    byte[] content;
+    try {
+      content = TextFile.fileToBytes(f);
+    } catch (IOException e) {
+      messages.add(new ValidationMessage(Source.LinkChecker, IssueType.STRUCTURE, s, e.getMessage(), IssueSeverity.ERROR).setLocationLink(makeLocal(f.getAbsolutePath())));
+      LoadedFile lf = new LoadedFile(s, getPath(s, base), f.lastModified(), iteration, null, false, false);
+      lf.messages = messages;
+      return lf;
+    }
+    String hash = ContentDigest.of(content);
+    String src = null;
+    try {
+      src = new String(content, StandardCharsets.UTF_8);
+      if (src.contains(RELEASE_HTML_MARKER)) {
+        src = src.replace(RELEASE_HTML_MARKER, START_HTML_MARKER + statusText+END_HTML_MARKER);
+        content = src.getBytes(StandardCharsets.UTF_8);
+      } else {
+        src = null;
+      }
+    } catch (Exception e) {
+      src = null;
+    }
+    if (rec != null && hash.equals(rec.get("hash").getAsString())) {
+      // the same content as last time (e.g. Jekyll wrote the same page again)
+      try {
+        if (src != null) {
+          TextFile.stringToFile(src, f, false);
+        }
+        return restore(s, base, f, rec);
+      } catch (Exception e) {
+        // load it properly, and find out what's wrong
+      }
+    }
     try {
-      x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(f), null);
+      x = new XhtmlParser().setMustBeWellFormed(strict).parse(new ByteArrayInputStream(content), null);
       if (x.getElement("html")==null && !htmlName) {
         // We don't want resources being treated as HTML.  We'll check the HTML of the narrative in the page representation
         x = null;
@@ -367,28 +728,31 @@ public class HTLMLInspector {
       }
     }
     if (x != null) {
-      String src;
-      try {
-        src = TextFile.fileToString(f);
-        hl7State = src.contains(RELEASE_HTML_MARKER);
-        if (hl7State) {
-          src = src.replace(RELEASE_HTML_MARKER, START_HTML_MARKER + statusText+END_HTML_MARKER);
+      hl7State = src != null;
+      if (hl7State) {
+        try {
           TextFile.stringToFile(src, f, false);
+        } catch (Exception e1) {
+          hl7State = false;
         }
-        x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(f), null);
-      } catch (Exception e1) {
-        hl7State = false;
       }
     }
     LoadedFile lf = new LoadedFile(s, getPath(s, base), f.lastModified(), iteration, hl7State, findExemptionComment(x) || Utilities.existsInList(f.getName(), "searchform.html"), x != null);
-    cache.put(s, lf);
     if (x != null) {
       checkHtmlStructure(s, x, messages);
       listTargets(x, lf.getTargets());
       if (forHL7 & !isRedirect(x)) {
         checkTemplatePoints(x, messages, s);
       }
+      listLinks(lf, "", x, null);
+    }
+    lf.size = f.length();
+    lf.hash = hash;
+    lf.messages = messages;
+    if (rec != null) {
+      lf.targetsChanged = !lf.targets.equals(readSet(rec.getAsJsonArray("targets")));
     }
+    return lf;
     
     // ok, now check for XSS safety:
     // this is presently disabled; it's not clear whether oWasp is worth trying out for the purpose we are seeking (XSS safety)
@@ -496,76 +860,126 @@ public class HTLMLInspector {
       listTargets(c, targets);
   }
 
-  private NodeChangeType checkLinks(LoadedFile lf, String s, String path, XhtmlNode x, String uuid, List<ValidationMessage> messages, boolean inPre) throws IOException {
-    boolean changed = false;
+  /**
+   * records the links in the page. The nodes are numbered the same way as addAnchors numbers them, so that
+   * anchors for broken links can be added later
+   */
+  private void listLinks(LoadedFile lf, String path, XhtmlNode x, String uuid) {
     if (x.getName() != null) {
       path = path + "/"+ x.getName();
     } else {
       if (x.getContent() != null && x.getContent().contains("validator.pack")) {
-        referencesValidatorPack = true;
+        lf.textReferencesValidatorPack = true;
       }
     }
-    if ("title".equals(x.getName()) && Utilities.noString(x.allText())) {
-      x.addText("?html-link?");
-    }
     if ("a".equals(x.getName()) && x.hasAttribute("href")) {
-      changed = checkResolveLink(s, x.getLocation(), path, x.getAttribute("href"), x.allText(), messages, uuid);
+      lf.links.add(new LinkRef(LinkType.A, location(x), path.intern(), x.getAttribute("href"), x.allText(), uuid));
     }
     if ("img".equals(x.getName()) && x.hasAttribute("src")) {
-      changed = checkResolveImageLink(s, x.getLocation(), path, x.getAttribute("src"), messages, uuid) || changed;
+      lf.links.add(new LinkRef(LinkType.IMG, location(x), path.intern(), x.getAttribute("src"), null, uuid));
     }
     if ("link".equals(x.getName())) {
-      changed = checkLinkElement(s, x.getLocation(), path, x.getAttribute("href"), messages, uuid) || changed;
+      lf.links.add(new LinkRef(LinkType.LINK, location(x), path.intern(), x.getAttribute("href"), null, uuid));
     }
     if ("script".equals(x.getName())) {
-      checkScriptElement(s, x.getLocation(), path, x, messages);
+      lf.links.add(new LinkRef(LinkType.SCRIPT, location(x), path.intern(), x.getAttribute("src"), null, uuid));
+    }
+    String nuid = genID(lf);
+    for (XhtmlNode c : x.getChildNodes()) { 
+      listLinks(lf, path, c, nuid);
+    }
+    if ("title".equals(x.getName()) && Utilities.noString(x.allText())) {
+      // addAnchors adds a text node to an empty title, which gets numbered too
+      genID(lf);
+    }
+  }
+
+  private String location(XhtmlNode x) {
+    return x.getLocation() == null ? null : x.getLocation().toString();
+  }
+
+  /**
+   * checks the links that were found when the file was loaded. If any are broken, the page is 
+   * parsed again, and an anchor added before each broken link, so the messages can link to it
+   */
+  private PageCheck checkPage(String s, LoadedFile lf) throws IOException {
+    PageCheck res = new PageCheck();
+    res.referencesValidatorPack = lf.textReferencesValidatorPack;
+    Set<String> anchors = new HashSet<>();
+    for (LinkRef l : lf.links) {
+      boolean changed = false;
+      switch (l.type) {
+      case A:
+        if (Utilities.URLDecode(l.ref).contains("validator.pack")) {
+          res.referencesValidatorPack = true;
+        }
+        changed = checkResolveLink(s, l.location, l.path, l.ref, l.text, res.messages, l.uuid, res.pages);
+        break;
+      case IMG:
+        changed = checkResolveImageLink(s, l.location, l.path, l.ref, res.messages, l.uuid, res.pages);
+        break;
+      case LINK:
+        changed = checkLinkElement(s, l.location, l.path, l.ref, res.messages, l.uuid);
+        break;
+      case SCRIPT:
+        checkScriptElement(s, l.location, l.path, l.ref, res.messages);
+        break;
+      }
+      if (changed) {
+        anchors.add(l.uuid);
+      }
+    }
+    if (!anchors.isEmpty()) {
+      XhtmlNode x;
+      try (InputStream f = new FileInputStream(lf.filename)) {
+        x = new XhtmlParser().setMustBeWellFormed(strict).parse(f, null);
+      }
+      lf.id = 0;
+      addAnchors(lf, x, anchors);
+      saveFile(lf, x);
+      res.anchored = true;
+    }
+    return res;
+  }
+
+  private void addAnchors(LoadedFile lf, XhtmlNode x, Set<String> anchors) {
+    if ("title".equals(x.getName()) && Utilities.noString(x.allText())) {
+      x.addText("?html-link?");
     }
     String nuid = genID(lf);
-    boolean nchanged = false;
-    boolean nSelfChanged = false;
     for (XhtmlNode c : x.getChildNodes()) { 
-      NodeChangeType ct = checkLinks(lf, s, path, c, nuid, messages, inPre || "pre".equals(x.getName()));
-      if (ct == NodeChangeType.SELF) {
-        nSelfChanged = true;
-        nchanged = true;
-      } else if (ct == NodeChangeType.CHILD) {
-        nchanged = true;
-      }      
-    }
-    if (nSelfChanged) {
+      addAnchors(lf, c, anchors);
+    }
+    if (anchors.contains(nuid)) {
       XhtmlNode a = new XhtmlNode(NodeType.Element);
       a.setName("a").setAttribute("name", nuid).addText("\u200B");
       x.getChildNodes().add(0, a);
     } 
-    if (changed)
-      return NodeChangeType.SELF;
-    else if (nchanged)
-      return NodeChangeType.CHILD;
-    else
-      return NodeChangeType.NONE;
   }
 
   public String genID(LoadedFile lf) {
     return "l"+lf.getNextId(); // UUID.randomUUID().toString().toLowerCase();
   }
 
-  private void checkScriptElement(String filename, Location loc, String path, XhtmlNode x, List<ValidationMessage> messages) {
-    String src = x.getAttribute("src");
+  private void checkScriptElement(String filename, String loc, String path, String src, List<ValidationMessage> messages) {
     if (!Utilities.noString(src) && Utilities.isAbsoluteUrl(src) && !Utilities.existsInList(src, 
         "http://hl7.org/fhir/history-cm.js", "http://hl7.org/fhir/assets-hist/js/jquery.js"))
-      messages.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, filename+(loc == null ? "" : " at "+loc.toString()), "The <script> src '"+src+"' is llegal", IssueSeverity.FATAL));    
+      messages.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, filename+(loc == null ? "" : " at "+loc), "The <script> src '"+src+"' is llegal", IssueSeverity.FATAL));    
   }
 
-  private boolean checkLinkElement(String filename, Location loc, String path, String href, List<ValidationMessage> messages, String uuid) {
+  private boolean checkLinkElement(String filename, String loc, String path, String href, List<ValidationMessage> messages, String uuid) {
     if (Utilities.isAbsoluteUrl(href) && !href.startsWith("http://hl7.org/") && !href.startsWith("http://cql.hl7.org/")) {
-      messages.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, filename+(loc == null ? "" : " at "+loc.toString()), "The <link> href '"+href+"' is llegal", IssueSeverity.FATAL).setLocationLink(uuid == null ? null : filename+"#"+uuid));
+      messages.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, filename+(loc == null ? "" : " at "+loc), "The <link> href '"+href+"' is llegal", IssueSeverity.FATAL).setLocationLink(uuid == null ? null : filename+"#"+uuid));
       return true;        
     } else
       return false;
   }
 
-  private boolean checkResolveLink(String filename, Location loc, String path, String ref, String text, List<ValidationMessage> messages, String uuid) throws IOException {
-    links++;
+  /**
+   * @param pages - if not null, the pages the link was looked up in are added to this
+   */
+  private boolean checkResolveLink(String filename, String loc, String path, String ref, String text, List<ValidationMessage> messages, String uuid, Set<String> pages) throws IOException {
+    links.incrementAndGet();
     String rref = Utilities.URLDecode(ref);
     if ((rref.startsWith("http:") || rref.startsWith("https:") ) && (rref.endsWith(".sch") || rref.endsWith(".xsd") || rref.endsWith(".shex"))) { // work around for the fact that spec.internals does not track all these minor things 
       rref = Utilities.changeFileExt(ref, ".html");
@@ -573,10 +987,6 @@ public class HTLMLInspector {
     if (rref.startsWith("./")) {
       rref = rref.substring(2);
     }
-    
-    if (rref.contains("validator.pack")) {
-      referencesValidatorPack = true;
-    }
     if (ref.startsWith("data:")) {
       return true;
     }
@@ -589,17 +999,8 @@ public class HTLMLInspector {
       resolved = filename.contains("searchform.html") && ref.equals("history.html"); 
     if (!resolved)
       resolved = manual.contains(rref);
-    if (!resolved && specs != null){
-      for (SpecMapManager spec : specs) {
-        if (!resolved && spec.getBase() != null) {
-          resolved = resolved || spec.getBase().equals(rref) || (spec.getBase()).equals(rref+"/") || spec.hasTarget(rref) || 
-            Utilities.existsInList(rref, Utilities.pathURL(spec.getBase(), "definitions.json.zip"), Utilities.pathURL(spec.getBase(), "full-ig.zip"), Utilities.pathURL(spec.getBase(), "definitions.xml.zip"), Utilities.pathURL(spec.getBase(), "package.tgz"));
-        }
-        if (!resolved && spec.getBase2() != null) {
-          resolved = spec.getBase2().equals(rref) || (spec.getBase2()).equals(rref+"/") || 
-              Utilities.existsInList(rref, Utilities.pathURL(spec.getBase2(), "definitions.json.zip"), Utilities.pathURL(spec.getBase2(), "definitions.xml.zip"), Utilities.pathURL(spec.getBase2(), "package.tgz"), Utilities.pathURL(spec.getBase2(), "full-ig.zip")); 
-        }
-      }
+    if (!resolved) {
+      resolved = specIndex.isSpecUrl(rref) || specIndex.hasTarget(rref);
     }
     
     if (!resolved) {
@@ -621,14 +1022,7 @@ public class HTLMLInspector {
     
     if (!resolved) {
       if (rref.startsWith("http://") || rref.startsWith("https://") || rref.startsWith("ftp://") || rref.startsWith("tel:")) {
-        resolved = true;
-        if (specs != null) {
-          for (SpecMapManager spec : specs) {
-            if (spec.getBase() != null && rref.startsWith(spec.getBase())) {
-              resolved = false;
-            }
-          }
-        }
+        resolved = !specIndex.isInSpec(rref);
       } else { 
         String page = rref;
         String name = null;
@@ -646,6 +1040,9 @@ public class HTLMLInspector {
           page = Utilities.path(folder == null ? (altRootFolder != null && filename.startsWith(altRootFolder) ? altRootFolder : rootFolder) : folder, page.replace("/", File.separator));
         }
         LoadedFile f = cache.get(page);
+        if (pages != null) {
+          pages.add(page);
+        }
         if (f != null) {
           if (Utilities.noString(name))
             resolved = true;
@@ -666,7 +1063,7 @@ public class HTLMLInspector {
     } else {
       if (text == null)
         text = "";
-      messages.add(new ValidationMessage(Source.LinkChecker, IssueType.NOTFOUND, filename+(path == null ? "" : "#"+path+(loc == null ? "" : " at "+loc.toString())), "The link '"+ref+"' for \""+text.replaceAll("[\\s\\n]+", " ").trim()+"\" cannot be resolved"+tgtList, IssueSeverity.ERROR).setLocationLink(uuid == null ? null : makeLocal(filename)+"#"+uuid));
+      messages.add(new ValidationMessage(Source.LinkChecker, IssueType.NOTFOUND, filename+(path == null ? "" : "#"+path+(loc == null ? "" : " at "+loc)), "The link '"+ref+"' for \""+text.replaceAll("[\\s\\n]+", " ").trim()+"\" cannot be resolved"+tgtList, IssueSeverity.ERROR).setLocationLink(uuid == null ? null : makeLocal(filename)+"#"+uuid));
       return true;
     } 
   }
@@ -710,8 +1107,8 @@ public class HTLMLInspector {
     return filename;
   }
 
-  private boolean checkResolveImageLink(String filename, Location loc, String path, String ref, List<ValidationMessage> messages, String uuid) throws IOException {
-    links++;
+  private boolean checkResolveImageLink(String filename, String loc, String path, String ref, List<ValidationMessage> messages, String uuid, Set<String> pages) throws IOException {
+    links.incrementAndGet();
     String tgtList = "";
     boolean resolved = Utilities.existsInList(ref);
     if (ref.startsWith("data:"))
@@ -721,26 +1118,21 @@ public class HTLMLInspector {
     }
     if (!resolved)
       resolved = manual.contains(ref);
-    if (!resolved && specs != null){
-      for (SpecMapManager spec : specs) {
-        resolved = resolved || (spec.getBase() != null && spec.hasImage(ref)); 
-      }
+    if (!resolved) {
+      resolved = specIndex.hasImage(ref);
     }
     if (!resolved) {
       ;resolved = Utilities.existsInList(ref, "http://hl7.org/fhir/assets-hist/images/fhir-logo-www.png", "http://hl7.org/fhir/assets-hist/images/hl7-logo-n.png"); 
     }
     if (!resolved) {
       if (ref.startsWith("http://") || ref.startsWith("https://")) {
-        resolved = true;
-        if (specs != null) {
-          for (SpecMapManager spec : specs) {
-            if (ref.startsWith(spec.getBase()))
-              resolved = false;
-          }
-        }
+        resolved = !specIndex.isInSpec(ref);
       } else if (!ref.contains("#")) { 
         String page = Utilities.path(Utilities.getDirectoryForFile(filename), ref.replace("/", File.separator));
         LoadedFile f = cache.get(page);
+        if (pages != null) {
+          pages.add(page);
+        }
         resolved = f != null;
       }
     }
@@ -748,7 +1140,7 @@ public class HTLMLInspector {
     if (resolved)
       return false;
     else {
-      messages.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, filename+(path == null ? "" : "#"+path+(loc == null ? "" : " at "+loc.toString())), "The image source '"+ref+"' cannot be resolved"+tgtList, IssueSeverity.ERROR).setLocationLink(uuid == null ? null : filename+"#"+uuid));
+      messages.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, filename+(path == null ? "" : "#"+path+(loc == null ? "" : " at "+loc)), "The image source '"+ref+"' cannot be resolved"+tgtList, IssueSeverity.ERROR).setLocationLink(uuid == null ? null : filename+"#"+uuid));
       return true;
     } 
   }
@@ -763,7 +1155,7 @@ public class HTLMLInspector {
   }
 
   public int links() {
-    return links;
+    return links.get();
   }
 
   public static void main(String[] args) throws Exception {
@@ -810,6 +1202,32 @@ public class HTLMLInspector {
     this.strict = strict;
   }
 
+  public String getCacheFolder() {
+    return cacheFolder;
+  }
+
+  /**
+   * where to keep what was found in each page, so that the next run only has to check the pages that changed
+   */
+  public void setCacheFolder(String cacheFolder) {
+    this.cacheFolder = cacheFolder;
+  }
+
+  public void clearCache() throws IOException {
+    new File(Utilities.path(cacheFolder, CACHE_FILE)).delete();
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * the number of threads used to load the files and check the links (default: the number of processors)
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   public  List<SpecMapManager> getSpecMaps() {
     return specs;
   }
@@ -51,4 +51,10 @@ public interface IFetchFile {
   InputStream openAsStream(String filename) throws FileNotFoundException;
   String openAsString(String path) throws FileNotFoundException, IOException;
   void setRootDir(String rootDir);
+
+  /**
+   * how many threads to use for scanning, where the fetcher scans in parallel
+   */
+  default void setThreads(int threads) {
+  }
 }
@@ -0,0 +1,258 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hl7.fhir.igtools.publisher.Publisher.CacheOption;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Builds a list of IGs (-multi), with the core contexts and the package cache shared
+ * between the builds (see CoreContextCache), so the core is loaded once per version
+ * rather than once per IG.
+ *
+ * The builds can be run at the same time. The threads and memory given to the scheduler
+ * are divided between the builds that are running at once: each build gets an equal share
+ * of the threads, for validation, generation, and its other pools, and an equal share of 
+ * the memory as its memory budget. When a build fails, no more builds are started (the ones 
+ * that are running are allowed to finish). At the end, there's a report of the time taken 
+ * and the outcome of each build.
+ *
+ * While the builds run, the console is shared between them (see BuildConsole): each line a 
+ * build writes goes to its log, and is shown with the build's number when there's more than
+ * one build running at once.
+ */
+public class MultiBuildScheduler {
+
+  private class Build {
+    private int index;
+    private String ig;
+    private long start;
+    private long end;
+    private boolean started;
+    private String error;
+    private JsonObject qa;
+    private StringBuilder log = new StringBuilder();
+  }
+
+  /**
+   * System.out and System.err while the builds run. The threads a build starts inherit 
+   * the build from the thread that started them, so what's written on them is the build's 
+   * as well. A line at a time, so lines from different threads aren't mixed up
+   */
+  private class BuildConsole extends OutputStream {
+    private PrintStream console;
+    private ThreadLocal<ByteArrayOutputStream> line = ThreadLocal.withInitial(() -> new ByteArrayOutputStream());
+
+    private BuildConsole(PrintStream console) {
+      this.console = console;
+    }
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ByteArrayOutputStream bs = line.get();
+      for (int i = off; i < off + len; i++) {
+        if (b[i] == '\n') {
+          println(new String(bs.toByteArray(), StandardCharsets.UTF_8));
+          bs.reset();
+        } else if (b[i] != '\r') {
+          bs.write(b[i]);
+        }
+      }
+    }
+
+    private void println(String l) {
+      Build build = current.get();
+      if (build == null) {
+        console.println(l);
+      } else {
+        synchronized (build.log) {
+          build.log.append(l+"\r\n");
+        }
+        console.println(builds > 1 ? "["+build.index+"] "+l : l);
+      }
+    }
+  }
+
+  private String[] args;
+  private int builds = 1;
+  private int threads;
+  private int memory;
+  private CoreContextCache coreContexts = new CoreContextCache();
+  private AtomicBoolean failed = new AtomicBoolean(false);
+  private InheritableThreadLocal<Build> current = new InheritableThreadLocal<>();
+
+  /**
+   * @param args - the command line, for the parameters that apply to all the builds
+   */
+  public MultiBuildScheduler(String[] args) {
+    super();
+    this.args = args;
+  }
+
+  public int getBuilds() {
+    return builds;
+  }
+
+  /**
+   * @param builds - how many IGs are built at the same time
+   */
+  public void setBuilds(int builds) {
+    this.builds = Math.max(1, builds);
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @param threads - the threads to share between the builds that are running, for all their pools (0 = each build uses its defaults)
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  public int getMemory() {
+    return memory;
+  }
+
+  /**
+   * @param memory - MB to share between the builds that are running as their memory budgets (0 = no limit)
+   */
+  public void setMemory(int memory) {
+    this.memory = memory;
+  }
+
+  /**
+   * @return the exit code - 1 if any of the builds failed
+   */
+  public int execute(List<String> igs) throws Exception {
+    List<Build> list = new ArrayList<>();
+    for (String ig : igs) {
+      Build b = new Build();
+      b.index = list.size()+1;
+      b.ig = ig;
+      list.add(b);
+    }
+    long startTime = System.nanoTime();
+    PrintStream console = System.out;
+    PrintStream consoleErr = System.err;
+    PrintStream out = new PrintStream(new BuildConsole(console), true, "UTF-8");
+    System.setOut(out);
+    System.setErr(out);
+    try (WorkerPool pool = new WorkerPool("ig-build", builds)) {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (Build b : list) {
+        futures.add(pool.submit(() -> {
+          build(b);
+          return null;
+        }));
+      }
+      for (Future<Void> f : futures) {
+        WorkerPool.get(f);
+      }
+    } finally {
+      System.setOut(console);
+      System.setErr(consoleErr);
+    }
+    String report = report(list, System.nanoTime() - startTime);
+    System.out.println(report);
+    TextFile.stringToFile(report, Utilities.path(System.getProperty("java.io.tmpdir"), "fhir-ig-publisher-multi.log"), false);
+    return failed.get() ? 1 : 0;
+  }
+
+  private void build(Build b) throws Exception {
+    if (failed.get()) {
+      return;
+    }
+    b.started = true;
+    current.set(b);
+    try {
+      build(b, new Publisher());
+    } finally {
+      current.remove();
+    }
+  }
+
+  private void build(Build b, Publisher self) throws Exception {
+    System.out.println("=======================================================================================");
+    System.out.println("Publish IG "+b.index+": "+b.ig);
+    self.setConfigFile(Publisher.determineActualIG(b.ig, null));
+    Publisher.setTxServerValue(args, self);
+    if (Publisher.hasNamedParam(args, "-resetTx")) {
+      self.setCacheOption(CacheOption.CLEAR_ALL);
+    } else if (Publisher.hasNamedParam(args, "-resetTxErrors")) {
+      self.setCacheOption(CacheOption.CLEAR_ERRORS);
+    } else {
+      self.setCacheOption(CacheOption.LEAVE);
+    }
+    self.setCoreContexts(coreContexts);
+    if (threads > 0) {
+      int t = Math.max(1, threads / builds);
+      self.setValidationThreads(t);
+      self.setGenerationThreads(t);
+      self.setThreads(t);
+    }
+    if (memory > 0) {
+      self.setMemoryBudget(Math.max(1, memory / builds));
+    }
+    b.start = System.nanoTime();
+    try {
+      self.execute();
+    } catch (Exception e) {
+      failed.set(true);
+      b.error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+      System.out.println("Publishing Implementation Guide "+b.ig+" Failed: "+e.getMessage());
+      System.out.println("");
+      System.out.println("Stack Dump (for debugging):");
+      e.printStackTrace();
+    }
+    b.end = System.nanoTime();
+    b.qa = self.getQAOutcome();
+    TextFile.stringToFile(self.getBuildReport(b.ig, logOf(b)), Utilities.path(System.getProperty("java.io.tmpdir"), "fhir-ig-publisher-"+Integer.toString(b.index)+".log"), false);
+    System.out.println("Finished IG "+b.index+": "+b.ig+" ("+Utilities.presentDuration(b.end - b.start)+")");
+  }
+
+  private String logOf(Build b) {
+    synchronized (b.log) {
+      return b.log.toString();
+    }
+  }
+
+  private String report(List<Build> list, long duration) {
+    StringBuilder b = new StringBuilder();
+    b.append("=======================================================================================\r\n");
+    b.append("Built "+list.size()+" IGs in "+Utilities.presentDuration(duration)+" ("+builds+" at a time). "+coreContexts.report()+"\r\n");
+    for (Build build : list) {
+      b.append(Utilities.padRight(Integer.toString(build.index), ' ', 4));
+      if (!build.started) {
+        b.append("not built (an earlier build failed)");
+      } else {
+        b.append(Utilities.padRight(Utilities.presentDuration(build.end - build.start), ' ', 14));
+        if (build.error != null) {
+          b.append("failed: "+build.error);
+        } else if (build.qa != null && build.qa.has("errs")) {
+          b.append("ok: "+build.qa.get("errs").getAsInt()+" errors, "+build.qa.get("warnings").getAsInt()+" warnings, "+build.qa.get("hints").getAsInt()+" hints");
+        } else {
+          b.append("ok");
+        }
+      }
+      b.append("  "+build.ig+"\r\n");
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,290 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.utilities.CSFile;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Writes the generated files (fragments, pages, copied content), but only when their content
+ * has changed.
+ *
+ * A manifest of the digest of every file written (or found on disk) is kept, so deciding
+ * whether a file has changed doesn't mean reading it back: if the file on disk still has
+ * the size and time it had when it was written, the digests are compared in memory. The
+ * writes themselves are queued and done on a background thread, in order; flush() must be
+ * called before anything else reads the files.
+ *
+ * If a write fails, the next call to checkMakeFile() or flush() throws, naming the file.
+ * close() ends the background thread at the end of the build.
+ *
+ * The manifest is kept in the temp folder (see setCacheFolder()), so the next run doesn't
+ * have to read every file it produces to find that it hasn't changed.
+ */
+public class OutputManager {
+
+  public static final String FOLDER = "_output-manifest";
+  private static final String MANIFEST_FILE = "manifest.json";
+
+  private static class Entry {
+    private String digest;
+    private long size;
+    private long modified;
+    private boolean pending; // the write is queued but hasn't happened yet
+
+    public Entry(String digest, long size, long modified, boolean pending) {
+      super();
+      this.digest = digest;
+      this.size = size;
+      this.modified = modified;
+      this.pending = pending;
+    }
+  }
+
+  private Map<String, Entry> manifest = new ConcurrentHashMap<>();
+  private Set<String> changed = ConcurrentHashMap.newKeySet();
+  private ExecutorService writer;
+  private List<Future<?>> writes = new ArrayList<>();
+  private List<IOException> failures = new ArrayList<>();
+  private String cacheFolder;
+  private int written;
+  private int unchanged;
+
+  /**
+   * @return true if the content is different to what's in the file, in which case the file will be written
+   */
+  public boolean checkMakeFile(byte[] bs, String path) throws IOException {
+    checkFailures();
+    String digest = ContentDigest.of(bs);
+    Entry e = manifest.get(path);
+    if (e == null || !isCurrent(e, path)) {
+      File f = new CSFile(path);
+      e = f.exists() ? new Entry(ContentDigest.read(f).getDigest(), f.length(), f.lastModified(), false) : null;
+    }
+    if (e != null && e.digest.equals(digest)) {
+      synchronized (this) {
+        unchanged++;
+      }
+      return false;
+    }
+    Entry pending = new Entry(digest, -1, -1, true);
+    manifest.put(path, pending);
+    changed.add(path);
+    synchronized (this) {
+      written++;
+      writes.add(getWriter().submit(() -> {
+        try {
+          TextFile.bytesToFile(bs, path);
+        } catch (IOException ex) {
+          manifest.remove(path, pending);
+          IOException error = new IOException("Unable to write "+path+": "+ex.getMessage(), ex);
+          synchronized (this) {
+            failures.add(error);
+          }
+          throw error;
+        }
+        File f = new File(path);
+        manifest.replace(path, pending, new Entry(digest, f.length(), f.lastModified(), false));
+        return null;
+      }));
+    }
+    return true;
+  }
+
+  private boolean isCurrent(Entry e, String path) {
+    if (e.pending) {
+      return true;
+    }
+    File f = new File(path);
+    return f.length() == e.size && f.lastModified() == e.modified;
+  }
+
+  /**
+   * waits until all the queued writes are done
+   */
+  public void flush() throws IOException {
+    List<Future<?>> list;
+    synchronized (this) {
+      list = writes;
+      writes = new ArrayList<>();
+    }
+    for (Future<?> f : list) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        if (!(e.getCause() instanceof IOException)) {
+          synchronized (this) {
+            failures.add(new IOException(e.getCause()));
+          }
+        }
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+    checkFailures();
+  }
+
+  /**
+   * waits for the queued writes, and ends the writer thread (call flush() first to find out
+   * whether they worked). If anything else is written, a new writer is started
+   */
+  public void close() {
+    ExecutorService w;
+    synchronized (this) {
+      w = writer;
+      writer = null;
+    }
+    if (w != null) {
+      w.shutdown();
+      try {
+        w.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * throws the first write that failed (naming the others), and forgets them
+   */
+  private synchronized void checkFailures() throws IOException {
+    if (!failures.isEmpty()) {
+      IOException error = failures.get(0);
+      if (failures.size() > 1) {
+        StringBuilder b = new StringBuilder(error.getMessage());
+        b.append(" (also failed:");
+        for (int i = 1; i < failures.size(); i++) {
+          b.append(" ");
+          b.append(failures.get(i).getMessage());
+        }
+        b.append(")");
+        error = new IOException(b.toString(), error);
+      }
+      failures.clear();
+      throw error;
+    }
+  }
+
+  /**
+   * where the manifest is kept between runs. Loads the manifest the last run saved, if
+   * there is one (and this run hasn't already got one)
+   */
+  public void setCacheFolder(String cacheFolder) throws IOException {
+    if (cacheFolder.equals(this.cacheFolder)) {
+      return;
+    }
+    this.cacheFolder = cacheFolder;
+    File f = new File(Utilities.path(cacheFolder, MANIFEST_FILE));
+    if (manifest.isEmpty() && f.exists()) {
+      try (Reader r = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+        JsonObject json = (JsonObject) new com.google.gson.JsonParser().parse(r);
+        for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("files").entrySet()) {
+          JsonObject o = e.getValue().getAsJsonObject();
+          manifest.put(e.getKey(), new Entry(o.get("digest").getAsString(), o.get("size").getAsLong(), o.get("modified").getAsLong(), false));
+        }
+      } catch (Exception e) {
+        // corrupt or old - the files will be read to see whether they've changed
+        manifest.clear();
+      }
+    }
+  }
+
+  /**
+   * saves the manifest in the cache folder, if there is one. Call after flush()
+   */
+  public void save() throws IOException {
+    if (cacheFolder == null) {
+      return;
+    }
+    JsonObject files = new JsonObject();
+    for (Map.Entry<String, Entry> e : new TreeMap<>(manifest).entrySet()) {
+      if (!e.getValue().pending) {
+        JsonObject o = new JsonObject();
+        o.addProperty("digest", e.getValue().digest);
+        o.addProperty("size", e.getValue().size);
+        o.addProperty("modified", e.getValue().modified);
+        files.add(e.getKey(), o);
+      }
+    }
+    JsonObject json = new JsonObject();
+    json.add("files", files);
+    Utilities.createDirectory(cacheFolder);
+    try (Writer w = new OutputStreamWriter(new FileOutputStream(Utilities.path(cacheFolder, MANIFEST_FILE)), StandardCharsets.UTF_8)) {
+      new Gson().toJson(json, w);
+    }
+  }
+
+  /**
+   * forgets what was written, so every file is read again to see whether it has changed
+   */
+  public void clearCache() {
+    manifest.clear();
+    if (cacheFolder != null) {
+      new File(Utilities.path(cacheFolder, MANIFEST_FILE)).delete();
+    }
+  }
+
+  /**
+   * start tracking which files change (e.g. for the next run in watch mode)
+   */
+  public synchronized void startRun() {
+    changed.clear();
+    written = 0;
+    unchanged = 0;
+  }
+
+  /**
+   * @return the files that were written (because they changed) since startRun()
+   */
+  public Set<String> getChanged() {
+    return new HashSet<>(changed);
+  }
+
+  public boolean hasChanged(String path) {
+    return changed.contains(path);
+  }
+
+  public int getWritten() {
+    return written;
+  }
+
+  public int getUnchanged() {
+    return unchanged;
+  }
+
+  private synchronized ExecutorService getWriter() {
+    if (writer == null) {
+      writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "output-writer");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return writer;
+  }
+}
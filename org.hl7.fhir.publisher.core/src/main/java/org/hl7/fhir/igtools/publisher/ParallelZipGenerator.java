@@ -0,0 +1,559 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.hl7.fhir.utilities.CSFile;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * A replacement for ZipGenerator that compresses the entries in parallel.
+ *
+ * Entries are compressed on the pool as they are added, and written in the order they
+ * were added, so only a limited number of compressed entries are held in memory. If
+ * there's a previous version of the zip (e.g. from the last build), entries that have
+ * the same name and content as an entry in it are copied across as they are, instead
+ * of being compressed again. Whether the content is the same is decided by the SHA-256
+ * of each entry, which is kept in a file alongside the zip (see the digests parameter),
+ * as well as the CRC and size; if there's no digests file for the previous zip, or it
+ * was written for some other version of the zip, nothing is copied.
+ *
+ * The zip is written to a temporary file alongside, and moved into place by close(). It
+ * uses the zip64 extensions if it needs to: for the archive if it has more than 65535
+ * entries or is over 4GB, and for each entry that is (or starts) beyond 4GB.
+ */
+public class ParallelZipGenerator {
+
+  private static final long MAX32 = 0xFFFFFFFFL;
+
+  private static class OldEntry {
+    private String digest;
+    private long crc;
+    private long size;
+    private long compressedSize;
+    private int method;
+    private long offset;
+  }
+
+  private static class Entry {
+    private String name;
+    private byte[] data; // compressed, or null if it's copied from the old zip
+    private OldEntry old;
+    private String digest;
+    private int method;
+    private long crc;
+    private long size;
+    private long compressedSize;
+    private long offset;
+  }
+
+  private String path;
+  private File tmp;
+  private String digests;
+  private WorkerPool pool;
+  private OutputStream stream;
+  private long position;
+  private Map<String, OldEntry> oldEntries = new HashMap<>();
+  private RandomAccessFile oldZip;
+  private Set<String> names = new HashSet<String>();
+  private Deque<Future<Entry>> pending = new ArrayDeque<>();
+  private int window;
+  private List<Entry> written = new ArrayList<>();
+  private int dosTime;
+  private int reused;
+
+  /**
+   * @param previous - the last version of the zip, if there is one (can be the same as path)
+   * @param digests - the file the digests of the entries are kept in between builds (or null, to not reuse entries)
+   */
+  public ParallelZipGenerator(String path, String previous, String digests, WorkerPool pool, int threads) throws IOException {
+    super();
+    this.path = path;
+    this.digests = digests;
+    this.pool = pool;
+    this.window = threads * 4;
+    this.tmp = new File(path+".tmp");
+    File f = new File(previous == null ? path : previous);
+    Map<String, String> known = digests == null ? null : readDigests(new File(digests), f);
+    if (known != null) {
+      try {
+        readOldEntries(f, known);
+      } catch (Exception e) {
+        // not a zip we can read - compress everything
+        oldEntries.clear();
+        closeOld();
+      }
+    }
+    stream = new BufferedOutputStream(new FileOutputStream(tmp), 65536);
+    dosTime = dosTime(Calendar.getInstance());
+  }
+
+  public void addFolder(String actualDir, String statedDir, boolean omitIfExists) throws IOException {
+    File fd = new CSFile(actualDir);
+    String files[] = fd.list();
+    for (String f : files) {
+      File file = new CSFile(Utilities.path(actualDir, f));
+      if (isSelf(file)) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        addFolder(Utilities.path(actualDir, f), Utilities.pathURL(statedDir, f), omitIfExists);
+      } else {
+        addFileName(Utilities.pathURL(statedDir, f), Utilities.path(actualDir, f), omitIfExists);
+      }
+    }
+  }
+
+  private boolean isSelf(File file) throws IOException {
+    String p = file.getCanonicalPath();
+    return p.equals(new File(path).getCanonicalPath()) || p.equals(tmp.getCanonicalPath());
+  }
+
+  public void addFileSource(String path, String cont, boolean omitIfExists) throws IOException {
+    addBytes(path, TextFile.stringToBytes(cont, false), omitIfExists);
+  }
+
+  public void addFileName(String statedPath, String actualPath, boolean omitIfExists) throws IOException {
+    if (checkName(statedPath, omitIfExists)) {
+      add(statedPath, null, actualPath);
+    }
+  }
+
+  public void addBytes(String statedPath, byte[] content, boolean omitIfExists) throws IOException {
+    if (checkName(statedPath, omitIfExists)) {
+      add(statedPath, content, null);
+    }
+  }
+
+  private boolean checkName(String name, boolean omitIfExists) throws IOException {
+    if (names.contains(name)) {
+      if (omitIfExists) {
+        return false;
+      }
+      throw new IOException("duplicate entry: "+name);
+    }
+    names.add(name);
+    return true;
+  }
+
+  private void add(String name, byte[] content, String actualPath) throws IOException {
+    while (pending.size() >= window) {
+      write(waitFor(pending.removeFirst()));
+    }
+    pending.addLast(pool.submit(() -> compress(name, content == null ? TextFile.fileToBytes(actualPath) : content)));
+  }
+
+  private Entry compress(String name, byte[] content) {
+    Entry e = new Entry();
+    e.name = name;
+    e.size = content.length;
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    e.crc = crc.getValue();
+    e.digest = ContentDigest.of(content);
+    OldEntry old = oldEntries.get(name);
+    if (old != null && old.crc == e.crc && old.size == e.size && old.digest.equals(e.digest)) {
+      e.old = old;
+      e.method = old.method;
+      e.compressedSize = old.compressedSize;
+      return e;
+    }
+    Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      def.setInput(content);
+      def.finish();
+      ByteArrayOutputStream bs = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+      byte[] buf = new byte[65536];
+      while (!def.finished()) {
+        int n = def.deflate(buf);
+        bs.write(buf, 0, n);
+      }
+      e.data = bs.toByteArray();
+    } finally {
+      def.end();
+    }
+    e.method = Deflater.DEFLATED;
+    e.compressedSize = e.data.length;
+    return e;
+  }
+
+  private Entry waitFor(Future<Entry> f) throws IOException {
+    try {
+      return f.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static boolean needs64(long v) {
+    return v >= MAX32;
+  }
+
+  private void write(Entry e) throws IOException {
+    e.offset = position;
+    byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+    // in the local header, the zip64 extra has both sizes, or isn't there
+    boolean zip64 = needs64(e.size) || needs64(e.compressedSize);
+    writeInt(0x04034b50);
+    writeShort(zip64 ? 45 : 20);
+    writeShort(flags(e.name));
+    writeShort(e.method);
+    writeInt(dosTime);
+    writeInt(e.crc);
+    writeInt(zip64 ? MAX32 : e.compressedSize);
+    writeInt(zip64 ? MAX32 : e.size);
+    writeShort(name.length);
+    writeShort(zip64 ? 20 : 0);
+    writeBytes(name, name.length);
+    if (zip64) {
+      writeShort(0x0001);
+      writeShort(16);
+      writeLong(e.size);
+      writeLong(e.compressedSize);
+    }
+    if (e.data != null) {
+      writeBytes(e.data, e.data.length);
+      e.data = null;
+    } else {
+      copyOld(e.old);
+      reused++;
+    }
+    written.add(e);
+  }
+
+  private int flags(String name) {
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) > 127) {
+        return 0x0800; // the name is UTF-8
+      }
+    }
+    return 0;
+  }
+
+  private void copyOld(OldEntry old) throws IOException {
+    oldZip.seek(old.offset + 26);
+    int nameLength = oldZip.read() | (oldZip.read() << 8);
+    int extraLength = oldZip.read() | (oldZip.read() << 8);
+    oldZip.seek(old.offset + 30 + nameLength + extraLength);
+    byte[] buf = new byte[65536];
+    long left = old.compressedSize;
+    while (left > 0) {
+      int n = oldZip.read(buf, 0, (int) Math.min(buf.length, left));
+      if (n < 0) {
+        throw new IOException("Unexpected end of "+path);
+      }
+      writeBytes(buf, n);
+      left = left - n;
+    }
+  }
+
+  public void close() throws IOException {
+    try {
+      while (!pending.isEmpty()) {
+        write(waitFor(pending.removeFirst()));
+      }
+      long cdStart = position;
+      for (Entry e : written) {
+        writeCentralEntry(e);
+      }
+      long cdSize = position - cdStart;
+      boolean zip64 = written.size() > 0xFFFF || needs64(cdStart) || needs64(cdSize);
+      if (zip64) {
+        long eocd64 = position;
+        writeInt(0x06064b50);
+        writeLong(44);
+        writeShort(45);
+        writeShort(45);
+        writeInt(0);
+        writeInt(0);
+        writeLong(written.size());
+        writeLong(written.size());
+        writeLong(cdSize);
+        writeLong(cdStart);
+        writeInt(0x07064b50);
+        writeInt(0);
+        writeLong(eocd64);
+        writeInt(1);
+      }
+      writeInt(0x06054b50);
+      writeShort(0);
+      writeShort(0);
+      writeShort(Math.min(written.size(), 0xFFFF));
+      writeShort(Math.min(written.size(), 0xFFFF));
+      writeInt(Math.min(cdSize, MAX32));
+      writeInt(Math.min(cdStart, MAX32));
+      writeShort(0);
+      stream.close();
+    } catch (IOException | RuntimeException e) {
+      stream.close();
+      closeOld();
+      tmp.delete();
+      throw e;
+    }
+    closeOld();
+    Files.move(tmp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    if (digests != null) {
+      writeDigests();
+    }
+  }
+
+  /**
+   * the digests are written after the zip is in place, and record its length, so that
+   * if they don't get written, they won't be used with the wrong zip
+   */
+  private void writeDigests() throws IOException {
+    JsonObject entries = new JsonObject();
+    for (Entry e : written) {
+      entries.addProperty(e.name, e.digest);
+    }
+    JsonObject json = new JsonObject();
+    json.addProperty("length", new File(path).length());
+    json.add("entries", entries);
+    File f = new File(digests);
+    Utilities.createDirectory(f.getParent());
+    try (Writer w = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+      new Gson().toJson(json, w);
+    }
+  }
+
+  /**
+   * @return the digests of the entries in the zip, or null if they're missing, or for some other version of the zip
+   */
+  private Map<String, String> readDigests(File f, File zip) {
+    if (!f.exists() || !zip.exists()) {
+      return null;
+    }
+    try (Reader r = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+      JsonObject json = (JsonObject) new com.google.gson.JsonParser().parse(r);
+      if (json.get("length").getAsLong() != zip.length()) {
+        return null;
+      }
+      Map<String, String> res = new HashMap<>();
+      for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("entries").entrySet()) {
+        res.put(e.getKey(), e.getValue().getAsString());
+      }
+      return res;
+    } catch (Exception e) {
+      // corrupt or old - compress everything
+      return null;
+    }
+  }
+
+  private void writeCentralEntry(Entry e) throws IOException {
+    byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+    // in the central directory, the zip64 extra only has the values that don't fit, in this order
+    boolean size64 = needs64(e.size) || needs64(e.compressedSize);
+    boolean offset64 = needs64(e.offset);
+    int extra = (size64 ? 16 : 0) + (offset64 ? 8 : 0);
+    writeInt(0x02014b50);
+    writeShort(extra > 0 ? 45 : 20);
+    writeShort(extra > 0 ? 45 : 20);
+    writeShort(flags(e.name));
+    writeShort(e.method);
+    writeInt(dosTime);
+    writeInt(e.crc);
+    writeInt(size64 ? MAX32 : e.compressedSize);
+    writeInt(size64 ? MAX32 : e.size);
+    writeShort(name.length);
+    writeShort(extra > 0 ? extra + 4 : 0);
+    writeShort(0);
+    writeShort(0);
+    writeShort(0);
+    writeInt(0);
+    writeInt(offset64 ? MAX32 : e.offset);
+    writeBytes(name, name.length);
+    if (extra > 0) {
+      writeShort(0x0001);
+      writeShort(extra);
+      if (size64) {
+        writeLong(e.size);
+        writeLong(e.compressedSize);
+      }
+      if (offset64) {
+        writeLong(e.offset);
+      }
+    }
+  }
+
+  /**
+   * @return the number of entries that were copied from the old zip without compressing them again
+   */
+  public int getReused() {
+    return reused;
+  }
+
+  public int getCount() {
+    return written.size();
+  }
+
+  private void writeBytes(byte[] b, int length) throws IOException {
+    stream.write(b, 0, length);
+    position = position + length;
+  }
+
+  private void writeShort(int v) throws IOException {
+    stream.write(v & 0xFF);
+    stream.write((v >> 8) & 0xFF);
+    position = position + 2;
+  }
+
+  private void writeInt(long v) throws IOException {
+    writeShort((int) (v & 0xFFFF));
+    writeShort((int) ((v >> 16) & 0xFFFF));
+  }
+
+  private void writeLong(long v) throws IOException {
+    writeInt(v & MAX32);
+    writeInt((v >> 32) & MAX32);
+  }
+
+  private int dosTime(Calendar c) {
+    int year = c.get(Calendar.YEAR) - 1980;
+    if (year < 0) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (year << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16) |
+        (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+  }
+
+  // -- reading the old zip ------------------------------------------------
+
+  private void readOldEntries(File f, Map<String, String> known) throws IOException {
+    oldZip = new RandomAccessFile(f, "r");
+    long length = oldZip.length();
+    // the end of central directory record is in the last 64k (+ 22 bytes for the record itself)
+    int tail = (int) Math.min(length, 65536 + 22);
+    byte[] buf = new byte[tail];
+    oldZip.seek(length - tail);
+    oldZip.readFully(buf);
+    int eocd = -1;
+    for (int i = tail - 22; i >= 0; i--) {
+      if (readInt(buf, i) == 0x06054b50) {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd == -1) {
+      throw new IOException("Not a zip file");
+    }
+    long count = readShort(buf, eocd + 10);
+    long cdStart = readInt(buf, eocd + 16);
+    if (eocd >= 20 && readInt(buf, eocd - 20) == 0x07064b50) {
+      long eocd64 = readLong(buf, eocd - 20 + 8);
+      byte[] rec = new byte[56];
+      oldZip.seek(eocd64);
+      oldZip.readFully(rec);
+      if (readInt(rec, 0) == 0x06064b50) {
+        count = readLong(rec, 32);
+        cdStart = readLong(rec, 48);
+      }
+    }
+    oldZip.seek(cdStart);
+    byte[] hdr = new byte[46];
+    for (long i = 0; i < count; i++) {
+      oldZip.readFully(hdr);
+      if (readInt(hdr, 0) != 0x02014b50) {
+        throw new IOException("Bad central directory");
+      }
+      OldEntry e = new OldEntry();
+      int flags = readShort(hdr, 8);
+      e.method = readShort(hdr, 10);
+      e.crc = readInt(hdr, 16);
+      e.compressedSize = readInt(hdr, 20);
+      e.size = readInt(hdr, 24);
+      int nameLength = readShort(hdr, 28);
+      int extraLength = readShort(hdr, 30);
+      int commentLength = readShort(hdr, 32);
+      e.offset = readInt(hdr, 42);
+      byte[] name = new byte[nameLength];
+      oldZip.readFully(name);
+      byte[] extra = new byte[extraLength];
+      oldZip.readFully(extra);
+      oldZip.skipBytes(commentLength);
+      readZip64Extra(e, extra);
+      String n = new String(name, (flags & 0x0800) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+      e.digest = known.get(n);
+      if (e.digest != null && (flags & 1) == 0 && (e.method == Deflater.DEFLATED || e.method == 0)) { // not encrypted, and a method we write
+        oldEntries.put(n, e);
+      }
+    }
+  }
+
+  private void readZip64Extra(OldEntry e, byte[] extra) {
+    int i = 0;
+    while (i + 4 <= extra.length) {
+      int id = readShort(extra, i);
+      int size = readShort(extra, i + 2);
+      if (id == 0x0001) {
+        int p = i + 4;
+        if (e.size == MAX32) {
+          e.size = readLong(extra, p);
+          p = p + 8;
+        }
+        if (e.compressedSize == MAX32) {
+          e.compressedSize = readLong(extra, p);
+          p = p + 8;
+        }
+        if (e.offset == MAX32) {
+          e.offset = readLong(extra, p);
+        }
+      }
+      i = i + 4 + size;
+    }
+  }
+
+  private void closeOld() throws IOException {
+    if (oldZip != null) {
+      oldZip.close();
+      oldZip = null;
+    }
+  }
+
+  private static int readShort(byte[] b, int i) {
+    return (b[i] & 0xFF) | ((b[i+1] & 0xFF) << 8);
+  }
+
+  private static long readInt(byte[] b, int i) {
+    return (readShort(b, i) | ((long) readShort(b, i+2) << 16)) & MAX32;
+  }
+
+  private static long readLong(byte[] b, int i) {
+    return readInt(b, i) | (readInt(b, i+4) << 32);
+  }
+}
@@ -34,16 +34,20 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.InvocationTargetException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
@@ -59,7 +63,12 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -119,6 +128,7 @@ import org.hl7.fhir.igtools.renderers.QuestionnaireResponseRenderer;
 import org.hl7.fhir.igtools.renderers.StatusRenderer;
 import org.hl7.fhir.igtools.renderers.StructureDefinitionRenderer;
 import org.hl7.fhir.igtools.renderers.StructureMapRenderer;
+import org.hl7.fhir.igtools.renderers.StructureUsageIndex;
 import org.hl7.fhir.igtools.renderers.ValidationPresenter;
 import org.hl7.fhir.igtools.renderers.ValueSetRenderer;
 import org.hl7.fhir.igtools.renderers.VersionCheckRenderer;
@@ -166,6 +176,7 @@ import org.hl7.fhir.r5.model.ContactPoint.ContactPointSystem;
 import org.hl7.fhir.r5.model.DateTimeType;
 import org.hl7.fhir.r5.model.DomainResource;
 import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
 import org.hl7.fhir.r5.model.ElementDefinition.ElementDefinitionConstraintComponent;
 import org.hl7.fhir.r5.model.Enumeration;
 import org.hl7.fhir.r5.model.Enumerations.FHIRVersion;
@@ -419,12 +430,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         } else
           return null;;
       }
-      for (FetchedFile f : fileList) {
-        for (FetchedResource r : f.getResources()) {
-          if (r.getElement() != null && url.equals(r.fhirType()+"/"+r.getId())) {
-            return r.getElement();
-          }
-        }
+      FetchedResource r = registry.getByRef(url);
+      if (r != null && r.getElement() != null) {
+        return r.getElement();
       }
       return null;
     }
@@ -511,7 +519,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   public static final boolean USE_COMMONS_EXEC = true;
 
   public enum GenerationTool {
-    Jekyll
+    Jekyll,
+    Native // the jekyll site is rendered in process by SiteRenderer; falls back to Jekyll if the site needs something it doesn't do
   }
 
   private static final String IG_NAME = "!ig!";
@@ -524,6 +533,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   public static String txServerProd = "http://tx.fhir.org";
   public static String txServerDev = "http://local.fhir.org:960";
   private static final int PRISM_SIZE_LIMIT = 16384;
+  private static final Pattern PAGE_INCLUDE = Pattern.compile("\\{%\\s*include\\s+([^\\s%]+)");
 
   private String consoleLog;
   private String configFile;
@@ -541,6 +551,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private Publisher childPublisher = null;
   private GenerationTool tool;
+  private SiteRenderer siteRenderer;
   private boolean genExampleNarratives = true;
 
   private List<String> resourceDirs = new ArrayList<String>();
@@ -560,6 +571,21 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private IFetchFile fetcher = new SimpleFetcher(this);
   private SimpleWorkerContext context; // 
   private InstanceValidator validator;
+  private boolean hintAboutNonMustSupport;
+  private boolean anyExtensionsAllowed;
+  private boolean showReferenceMessages;
+  private List<String> extensionDomains = new ArrayList<>();
+  private int validationThreads = 1;
+  private int generationThreads = 1;
+  private ThreadLocal<GenerationOutput> generationOutput = new ThreadLocal<>();
+  // the threads for the pools that validation and generation don't use: the source scan, CQL, 
+  // conversions, archives, the native site renderer, and link checking (one phase at a time)
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private WorkerPool archivePool; // only while the archives are being built
+  // Jekyll builds from the temp folder, and ignores folders that start with _
+  private static final String ARCHIVE_FOLDER = "_archives";
+  private static final String DIGESTS_FOLDER = "digests"; // in the archive folder
+  private ValidationCache validationCache;
   private ProfileValidator pvalidator;
   private CodeSystemValidator csvalidator;
   private XVerExtensionManager xverManager;
@@ -571,7 +597,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private Map<ImplementationGuideDefinitionResourceComponent, FetchedFile> fileMap = new HashMap<ImplementationGuideDefinitionResourceComponent, FetchedFile>();
   private Map<String, FetchedFile> altMap = new HashMap<String, FetchedFile>();
   private List<FetchedFile> fileList = new ArrayList<FetchedFile>();
+  private ResourceRegistry registry = new ResourceRegistry(fileList);
   private List<FetchedFile> changeList = new ArrayList<FetchedFile>();
+  private DependencyGraph dependencyGraph = new DependencyGraph();
   private List<String> fileNames = new ArrayList<String>();
   private Map<String, FetchedFile> relativeNames = new HashMap<String, FetchedFile>();
   private Set<String> bndIds = new HashSet<String>();
@@ -581,10 +609,19 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
   private Calendar execTime = Calendar.getInstance();
   private Set<String> otherFilesStartup = new HashSet<String>();
-  private Set<String> otherFilesRun = new HashSet<String>();
+  private Set<String> otherFilesRun = Collections.synchronizedSet(new HashSet<String>());
   private Set<String> regenList = new HashSet<String>();
   private StringBuilder filelog;
-  private Set<String> allOutputs = new HashSet<String>();
+  private Set<String> allOutputs = Collections.synchronizedSet(new HashSet<String>());
+  private OutputManager outputs = new OutputManager();
+  private ResourceSerialiser serialiser;
+  private StructureUsageIndex usages;
+  private int memoryBudget; // MB; 0 means no budget
+  private boolean compactResources;
+  private ResourceStore store;
+  private CoreContextCache coreContexts; // when the core is shared with other builds
+  private boolean coreSnapshot;
+  private boolean verifyCoreSnapshot;
   private Set<FetchedResource> examples = new HashSet<FetchedResource>();
   private HashMap<String, FetchedResource> resources = new HashMap<String, FetchedResource>();
   private HashMap<String, ImplementationGuideDefinitionPageComponent> igPages = new HashMap<String, ImplementationGuideDefinitionPageComponent>();
@@ -625,7 +662,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private String configFileRootPath;
 
   private MarkDownProcessor markdownEngine;
-  private List<ValueSet> expansions = new ArrayList<>();
+  private List<ValueSet> expansions = Collections.synchronizedList(new ArrayList<>());
 
   private String npmName;
 
@@ -742,6 +779,18 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   public void execute() throws Exception {
+    try {
+      build();
+    } finally {
+      // the other pools only last for their phase; this one is for the whole build
+      outputs.close();
+      if (store != null) {
+        store.close();
+      }
+    }
+  }
+
+  private void build() throws Exception {
     tt = new TimeTracker();
     initialize();
     if (isBuildingTemplate) {
@@ -757,27 +806,51 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
       if (watch) {
         firstExecution = false;
-        log("Watching for changes on a 5sec cycle");
-        while (watch) { // terminated externally
-          Thread.sleep(5000);
-          if (load()) {
-            log("Processing changes to "+Integer.toString(changeList.size())+(changeList.size() == 1 ? " file" : " files")+" @ "+genTime());
-            long startTime = System.nanoTime();
-            loadConformance();
-            generateNarratives();
-            checkDependencies();
-            validate();
-            generate();
-            clean();
-            long endTime = System.nanoTime();
-            processTxLog(Utilities.path(destDir != null ? destDir : outputDir, "qa-tx.html"));
-            BallotChecker bc = new BallotChecker(repoRoot);
-            ValidationPresenter val = new ValidationPresenter(version, workingVersion(), igpkp, childPublisher == null? null : childPublisher.getIgpkp(), outputDir, npmName, childPublisher == null? null : childPublisher.npmName, 
-                bc.check(igpkp.getCanonical(), npmName, workingVersion(), historyPage, version), IGVersionUtil.getVersion(), fetchCurrentIGPubVersion(), realmRules, previousVersionComparator,
-                new DependencyRenderer(pcm, outputDir, npmName, templateManager).render(publishedIg), new HTAAnalysisRenderer(context, outputDir, markdownEngine).render(publishedIg.getPackageId(), fileList, publishedIg.present()), 
-                new VersionCheckRenderer(npm.version(), publishedIg.getVersion(), bc.getPackageList(), igpkp.getCanonical()).generate(), copyrightYear, context);
-            log("Finished. "+Utilities.presentDuration(endTime - startTime)+". Validation output in "+val.generate(sourceIg.getName(), errors, fileList, Utilities.path(destDir != null ? destDir : outputDir, "qa.html"), suppressedMessages));
-            recordOutcome(null, val);
+        SourceWatcher watcher = makeSourceWatcher();
+        try {
+          if (watcher == null) {
+            log("Watching for changes on a 5sec cycle");
+          } else {
+            log("Watching for changes in "+watcher.getFolderCount()+" folders");
+          }
+          while (watch) { // terminated externally
+            if (watcher == null) {
+              Thread.sleep(5000);
+            } else {
+              Set<String> changes = watcher.waitForChanges();
+              if (changes.isEmpty()) {
+                continue;
+              }
+              logDebugMessage(LogCategory.PROGRESS, "Changed: "+String.join(", ", changes));
+              if (fetcher instanceof SimpleFetcher) {
+                // the watcher knows better than the file times what has changed
+                ((SimpleFetcher) fetcher).changed(changes);
+              }
+            }
+            if (load()) {
+              log("Processing changes to "+Integer.toString(changeList.size())+(changeList.size() == 1 ? " file" : " files")+" @ "+genTime());
+              long startTime = System.nanoTime();
+              loadConformance();
+              generateNarratives();
+              checkDependencies();
+              validate();
+              startMemoryBudget();
+              generate();
+              clean();
+              long endTime = System.nanoTime();
+              processTxLog(Utilities.path(destDir != null ? destDir : outputDir, "qa-tx.html"));
+              BallotChecker bc = new BallotChecker(repoRoot);
+              ValidationPresenter val = new ValidationPresenter(version, workingVersion(), igpkp, childPublisher == null? null : childPublisher.getIgpkp(), outputDir, npmName, childPublisher == null? null : childPublisher.npmName, 
+                  bc.check(igpkp.getCanonical(), npmName, workingVersion(), historyPage, version), IGVersionUtil.getVersion(), fetchCurrentIGPubVersion(), realmRules, previousVersionComparator,
+                  new DependencyRenderer(pcm, outputDir, npmName, templateManager).render(publishedIg), new HTAAnalysisRenderer(context, outputDir, markdownEngine).render(publishedIg.getPackageId(), fileList, publishedIg.present()), 
+                  new VersionCheckRenderer(npm.version(), publishedIg.getVersion(), bc.getPackageList(), igpkp.getCanonical()).generate(), copyrightYear, context);
+              log("Finished. "+Utilities.presentDuration(endTime - startTime)+". Validation output in "+val.generate(sourceIg.getName(), errors, fileList, Utilities.path(destDir != null ? destDir : outputDir, "qa.html"), suppressedMessages));
+              recordOutcome(null, val);
+            }
+          }
+        } finally {
+          if (watcher != null) {
+            watcher.close();
           }
         }
       } else {
@@ -898,10 +971,12 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       log("Validating Resources");
       try {
         validate();
+        validationCache.prune();
       } catch (Exception ex){
         log("Unhandled Exception: " +ex.toString());
         throw(ex);
       }
+      startMemoryBudget();
       log("Processing Provenance Records");
       processProvenanceDetails();
       log("Generating Outputs in "+outputDir);
@@ -1079,6 +1154,80 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     this.cacheOption = cacheOption;
   }
 
+  public int getValidationThreads() {
+    return validationThreads;
+  }
+
+  public void setValidationThreads(int validationThreads) {
+    this.validationThreads = validationThreads;
+  }
+
+  public int getGenerationThreads() {
+    return generationThreads;
+  }
+
+  public void setGenerationThreads(int generationThreads) {
+    this.generationThreads = generationThreads;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  public int getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * @param memoryBudget - MB that the loaded resources can use before they are spilled to disk (0 = no limit)
+   */
+  public void setMemoryBudget(int memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  public boolean isCompactResources() {
+    return compactResources;
+  }
+
+  /**
+   * @param compactResources - hold the resources that are over the memory budget in memory, in a compact form, instead of spilling them to disk
+   */
+  public void setCompactResources(boolean compactResources) {
+    this.compactResources = compactResources;
+  }
+
+  public CoreContextCache getCoreContexts() {
+    return coreContexts;
+  }
+
+  public void setCoreContexts(CoreContextCache coreContexts) {
+    this.coreContexts = coreContexts;
+  }
+
+  public boolean isWatch() {
+    return watch;
+  }
+
+  public boolean isCoreSnapshot() {
+    return coreSnapshot;
+  }
+
+  public void setCoreSnapshot(boolean coreSnapshot) {
+    this.coreSnapshot = coreSnapshot;
+  }
+
+  public boolean isVerifyCoreSnapshot() {
+    return verifyCoreSnapshot;
+  }
+
+  public void setVerifyCoreSnapshot(boolean verifyCoreSnapshot) {
+    this.verifyCoreSnapshot = verifyCoreSnapshot;
+  }
+
 
   @Override
   public ResourceWithReference resolve(RenderingContext context, String url) {
@@ -1088,49 +1237,25 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     
     String[] parts = url.split("\\/");
     if (parts.length >= 2 && !Utilities.startsWithInList(url, "urn:uuid:", "urn:oid:", "cid:")) {
-      for (FetchedFile f : fileList) {
-        for (FetchedResource r : f.getResources()) {
-          if (r.getElement() != null && r.fhirType().equals(parts[0]) && r.getId().equals(parts[1])) {
-            String path = igpkp.getLinkFor(r, true);
-            return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
-          }
-          if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
-            if (url.equals(((CanonicalResource) r.getResource()).getUrl())) {
-              String path = igpkp.getLinkFor(r, true);
-              return new ResourceWithReference(path, new DirectWrappers.ResourceWrapperDirect(context, r.getResource()));            
-            }
-          }
-        }
-      }
-      for (FetchedFile f : fileList) {
-        for (FetchedResource r : f.getResources()) {
-          if (r.fhirType().equals("Bundle")) {
-            List<Element> entries = r.getElement().getChildrenByName("entry");
-            for (Element entry : entries) {
-              Element res = entry.getNamedChild("resource");
-              if (res != null && res.fhirType().equals(parts[0]) && res.hasChild("id") && res.getNamedChildValue("id").equals(parts[1])) {
-                String path = igpkp.getLinkFor(r, true)+"#"+parts[0]+"_"+parts[1];
-                return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
-              }
-            }
-          }
-        }
-      }
-    }
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.fhirType().equals("Bundle")) {
-          List<Element> entries = r.getElement().getChildrenByName("entry");
-          for (Element entry : entries) {
-            Element res = entry.getNamedChild("resource");
-            String fu = entry.getNamedChildValue("fullUrl");
-            if (res != null && fu != null && fu.equals(url)) {
-              String path = igpkp.getLinkFor(r, true)+"#"+fu.replace(":", "-");
-              return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
-            }
-          }
-        }
-      }
+      FetchedResource r = registry.getByRefWithElement(parts[0], parts[1]);
+      FetchedResource cr = registry.getByCanonical(url);
+      if (cr != null && registry.first(r, cr) == cr) {
+        String path = igpkp.getLinkFor(cr, true);
+        return new ResourceWithReference(path, new DirectWrappers.ResourceWrapperDirect(context, cr.getResource()));            
+      } else if (r != null) {
+        String path = igpkp.getLinkFor(r, true);
+        return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
+      }
+      r = registry.getBundleForEntryRef(parts[0]+"/"+parts[1]);
+      if (r != null) {
+        String path = igpkp.getLinkFor(r, true)+"#"+parts[0]+"_"+parts[1];
+        return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, r.getElement()));
+      }
+    }
+    FetchedResource b = registry.getBundleForFullUrl(url);
+    if (b != null) {
+      String path = igpkp.getLinkFor(b, true)+"#"+url.replace(":", "-");
+      return new ResourceWithReference(path, new ElementWrappers.ResourceWrapperMetaElement(context, b.getElement()));
     }
     
     for (SpecMapManager sp : specMaps) {
@@ -1271,88 +1396,189 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return new SimpleDateFormat("dd/MM/yyyy", new Locale("en", "US")).format(execTime.getTime());
   }
 
+  /**
+   * the context, validator, caches and the html inspector stay in memory between cycles, so 
+   * all a change costs is the reload (where unchanged files are only checked, not read) and 
+   * regenerating what depends on the change
+   * 
+   * @return null if the file system can't be watched, in which case we poll instead
+   */
+  private SourceWatcher makeSourceWatcher() {
+    try {
+      SourceWatcher res = new SourceWatcher();
+      res.exclude(tempDir);
+      res.exclude(outputDir);
+      res.exclude(qaDir);
+      res.exclude(vsCache);
+      if (rootDir != null) {
+        res.exclude(Utilities.path(rootDir, "template")); // the template is loaded there, not edited there
+      }
+      if (igName != null) {
+        res.watch(Utilities.getDirectoryForFile(igName));
+      }
+      res.watch(sourceDir);
+      for (String s : resourceDirs) {
+        res.watch(s);
+      }
+      for (String s : pagesDirs) {
+        res.watch(s);
+      }
+      for (String s : prePagesDirs) {
+        res.watch(s);
+      }
+      for (String s : binaryPaths) {
+        res.watch(s);
+      }
+      return res;
+    } catch (Exception e) {
+      log("Unable to watch the source folders ("+e.getMessage()+")");
+      return null;
+    }
+  }
+
+  /**
+   * adds to the change list all the files that depend (directly or indirectly) on the files that have changed
+   */
   private void checkDependencies() {
-    // first, we load all the direct dependency lists
+    Set<String> changed = new HashSet<>();
+    for (FetchedFile f : changeList) {
+      changed.add(f.getPath());
+    }
+    Set<String> affected = dependencyGraph.findAffected(changed);
     for (FetchedFile f : fileList) {
-      if (f.getDependencies() == null) {
-        loadDependencyList(f);
+      if (affected.contains(f.getPath()) && changed.add(f.getPath())) {
+        changeList.add(f);
+      }
+    }
+    for (String path : affected) {
+      FetchedFile page = altMap.containsKey("page/"+path) ? altMap.get("page/"+path) : altMap.get("pre-page/"+path);
+      if (page != null && changed.add(path)) {
+        changeList.add(page);
       }
     }
+  }
 
-    // now, we keep adding to the change list till there's no change
-    boolean changed;
-    do {
-      changed = false;
-      for (FetchedFile f : fileList) {
-        if (!changeList.contains(f)) {
-          boolean dep = false;
-          for (FetchedFile d : f.getDependencies())
-            if (changeList.contains(d))
-              dep = true;
-          if (dep) {
-            changeList.add(f);
-            changed = true;
-          }
+  /**
+   * records the dependencies of the files that have been (re)loaded this time around. This has to
+   * be done before the sources are trimmed, since pages are scanned for the fragments they include
+   */
+  private void updateDependencies() {
+    for (FetchedFile f : changeList) {
+      if (f.getPath() != null && !f.isFolder() && !dependencyGraph.isKnown(f)) {
+        Set<String> deps = new HashSet<>();
+        if (f.getResources().isEmpty()) {
+          loadPageDependencies(f, deps);
+        }
+        for (FetchedResource r : f.getResources()) {
+          loadResourceDependencies(r, deps);
         }
+        dependencyGraph.setDependencies(f, deps);
       }
-    } while (changed);
+    }
   }
 
-  private void loadDependencyList(FetchedFile f) {
-    f.setDependencies(new ArrayList<FetchedFile>());
-    for (FetchedResource r : f.getResources()) {
-      if (r.fhirType().equals("ValueSet"))
-        loadValueSetDependencies(f, r);
-      else if (r.fhirType().equals("StructureDefinition"))
-        loadProfileDependencies(f, r);
-      else
-        ; // all other resource types don't have dependencies that we care about for rendering purposes
+  private void loadResourceDependencies(FetchedResource r, Set<String> deps) {
+    if (r.getResource() instanceof ValueSet) {
+      ValueSet vs = (ValueSet) r.getResource();
+      for (ConceptSetComponent cc : vs.getCompose().getInclude()) {
+        addDependency(deps, cc.getSystem());
+        for (UriType vsi : cc.getValueSet()) {
+          addDependency(deps, vsi.getValue());
+        }
+      }
+      for (ConceptSetComponent cc : vs.getCompose().getExclude()) {
+        addDependency(deps, cc.getSystem());
+        for (UriType vsi : cc.getValueSet()) {
+          addDependency(deps, vsi.getValue());
+        }
+      }
+    } else if (r.getResource() instanceof CodeSystem) {
+      CodeSystem cs = (CodeSystem) r.getResource();
+      addDependency(deps, cs.getSupplements());
+      addDependency(deps, cs.getValueSet());
+    } else if (r.getResource() instanceof StructureDefinition) {
+      StructureDefinition sd = (StructureDefinition) r.getResource();
+      addDependency(deps, sd.getBaseDefinition());
+      for (ElementDefinition ed : sd.getDifferential().getElement()) {
+        for (TypeRefComponent tr : ed.getType()) {
+          for (CanonicalType c : tr.getProfile()) {
+            addDependency(deps, c.getValue());
+          }
+          for (CanonicalType c : tr.getTargetProfile()) {
+            addDependency(deps, c.getValue());
+          }
+        }
+        if (ed.hasBinding()) {
+          addDependency(deps, ed.getBinding().getValueSet());
+        }
+      }
+    }
+    // examples depend on their profiles and extensions, and any resource depends on the resources it refers to (including bundle entries)
+    for (String p : r.getStatedProfiles()) {
+      addDependency(deps, p);
+    }
+    addDependency(deps, r.getExampleUri());
+    if (r.getElement() != null) {
+      loadElementDependencies(r.getElement(), deps);
     }
   }
 
-  private void loadValueSetDependencies(FetchedFile f, FetchedResource r) {
-    ValueSet vs = (ValueSet) r.getResource();
-    for (ConceptSetComponent cc : vs.getCompose().getInclude()) {
-      for (UriType vsi : cc.getValueSet()) {
-        FetchedFile fi = getFileForUri(vsi.getValue());
-        if (fi != null)
-          f.getDependencies().add(fi);
+  private void loadElementDependencies(Element e, Set<String> deps) {
+    if ("Extension".equals(e.fhirType())) {
+      addDependency(deps, e.getNamedChildValue("url"));
+    } else if ("Reference".equals(e.fhirType())) {
+      addDependency(deps, e.getNamedChildValue("reference"));
+    } else if ("Meta".equals(e.fhirType())) {
+      for (Element p : e.getChildrenByName("profile")) {
+        addDependency(deps, p.primitiveValue());
       }
     }
-    for (ConceptSetComponent cc : vs.getCompose().getExclude()) {
-      for (UriType vsi : cc.getValueSet()) {
-        FetchedFile fi = getFileForUri(vsi.getValue());
-        if (fi != null)
-          f.getDependencies().add(fi);
-      }
+    for (Element c : e.getChildren()) {
+      loadElementDependencies(c, deps);
     }
-    for (ConceptSetComponent vsc : vs.getCompose().getInclude()) {
-      FetchedFile fi = getFileForUri(vsc.getSystem());
-      if (fi != null)
-        f.getDependencies().add(fi);
+  }
+
+  /**
+   * pages depend on the resources whose fragments they include
+   */
+  private void loadPageDependencies(FetchedFile f, Set<String> deps) {
+    if (Utilities.existsInList(Utilities.getFileExtension(f.getPath()), "md", "html", "htm", "xml")) {
+      Matcher m = PAGE_INCLUDE.matcher(new String(f.getSource(), StandardCharsets.UTF_8));
+      while (m.find()) {
+        String name = m.group(1).contains(".") ? m.group(1).substring(0, m.group(1).lastIndexOf(".")) : m.group(1);
+        String[] parts = name.split("\\-");
+        FetchedFile fi = null;
+        String id = null;
+        for (int i = 1; i < parts.length; i++) {
+          id = id == null ? parts[i] : id+"-"+parts[i];
+          FetchedResource r = registry.getByRef(parts[0], id);
+          if (r != null) {
+            fi = registry.getFileForResource(r);
+          }
+        }
+        if (fi != null) {
+          deps.add(fi.getPath());
+        }
+      }
     }
-    for (ConceptSetComponent vsc : vs.getCompose().getExclude()) {
-      FetchedFile fi = getFileForUri(vsc.getSystem());
-      if (fi != null)
-        f.getDependencies().add(fi);
+  }
+
+  private void addDependency(Set<String> deps, String ref) {
+    FetchedResource r = ref == null ? null : registry.getByRefOrCanonical(ref);
+    FetchedFile fi = r == null ? null : registry.getFileForResource(r);
+    if (fi != null && fi.getPath() != null) {
+      deps.add(fi.getPath());
     }
   }
 
   private FetchedFile getFileForFile(String path) {
-    for (FetchedFile f : fileList) {
-      if (f.getPath().equals(path))
-        return f;
-    }
-    return null;
+    return registry.getFileForPath(path);
   }
 
   
   private FetchedFile getFileForUri(String uri) {
-    for (FetchedFile f : fileList) {
-      if (getResourceForUri(f, uri) != null)
-        return f;
-    }
-    return null;
+    FetchedResource r = registry.getByCanonical(uri);
+    return r == null ? null : registry.getFileForResource(r);
   }
 
   private FetchedResource getResourceForUri(FetchedFile f, String uri) {
@@ -1371,32 +1597,11 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       if ((r.fhirType()+"/"+r.getId()).equals(ref))
         return r;
     }
-    for (FetchedFile f1 : fileList) {
-      for (FetchedResource r : f1.getResources()) {
-        if ((r.fhirType()+"/"+r.getId()).equals(ref))
-          return r;
-        if (r.getResource() != null && r.getResource() instanceof CanonicalResource && ((CanonicalResource) r.getResource()).getUrl().equals(ref))
-          return r;
-      }
-    }
-    
-    return null;
+    return registry.getByRefOrCanonical(ref);
   }
 
   private FetchedResource getResourceForUri(String uri) {
-    for (FetchedFile f : fileList) {
-      FetchedResource r = getResourceForUri(f, uri);
-      if (r != null)
-        return r;
-    }
-    return null;
-  }
-
-  private void loadProfileDependencies(FetchedFile f, FetchedResource r) {
-    StructureDefinition sd = (StructureDefinition) r.getResource();
-    FetchedFile fi = getFileForUri(sd.getBaseDefinition());
-    if (fi != null)
-      f.getDependencies().add(fi);
+    return registry.getByCanonical(uri);
   }
 
   private boolean bool(JsonObject obj, String name) throws Exception {
@@ -1449,7 +1654,12 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   public void initialize() throws Exception {
     firstExecution = true;
-    pcm = new FilesystemPackageCacheManager(mode == null || mode == IGBuildMode.MANUAL || mode == IGBuildMode.PUBLICATION, ToolsVersion.TOOLS_VERSION);
+    boolean userMode = mode == null || mode == IGBuildMode.MANUAL || mode == IGBuildMode.PUBLICATION;
+    if (coreContexts != null && packagesFolder == null) {
+      pcm = coreContexts.getPackageCacheManager(userMode);
+    } else {
+      pcm = new FilesystemPackageCacheManager(userMode, ToolsVersion.TOOLS_VERSION);
+    }
     if (mode == IGBuildMode.PUBLICATION)
       log("Build Formal Publication package, intended for "+getTargetOutput());
     
@@ -1467,6 +1677,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     fetcher.setRootDir(rootDir);
     fetcher.setResourceDirs(resourceDirs);
+    fetcher.setThreads(threads);
     if (configFile != null && focusDir().contains(" ")) {
       throw new Error("There is a space in the folder path: \""+focusDir()+"\". Please fix your directory arrangement to remove the space and try again");
     }
@@ -1685,7 +1896,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     sourceIg = template.onLoadEvent(sourceIg, messages);
     checkOutcomes(messages);
     // ok, loaded. Now we start loading settings out of the IG
-    tool = GenerationTool.Jekyll;
+    if (tool == null) {
+      tool = GenerationTool.Jekyll;
+    }
     version = processVersion(sourceIg.getFhirVersion().get(0).asStringValue()); // todo: support multiple versions
 
     if (!VersionUtilities.isSupportedVersion(version)) {
@@ -1700,14 +1913,14 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     
     String expParams = null;
     List<String> exemptHtmlPatterns = new ArrayList<>();
-    boolean hintAboutNonMustSupport = false;
-    boolean anyExtensionsAllowed = false;
+    hintAboutNonMustSupport = false;
+    anyExtensionsAllowed = false;
     boolean checkAggregation = false;
     boolean autoLoad = false;
-    boolean showReferenceMessages = false;
+    showReferenceMessages = false;
     copyrightYear = null;
     Boolean useStatsOptOut = null;
-    List<String> extensionDomains = new ArrayList<>();
+    extensionDomains.clear();
     tempDir = Utilities.path(rootDir, "temp");
     outputDir = Utilities.path(rootDir, "output");
     Map<String, String> expParamMap = new HashMap<>();
@@ -1848,12 +2061,13 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     pagesDirs.removeAll(missingDirs);
 
     logDebugMessage(LogCategory.INIT, "Temp: "+tempDir);
-    Utilities.clearDirectory(tempDir);
+    Utilities.clearDirectory(tempDir, ValidationCache.FOLDER, HTLMLInspector.CACHE_FOLDER, CqlSubSystem.CACHE_FOLDER, OutputManager.FOLDER, ARCHIVE_FOLDER);
     forceDir(tempDir);
     forceDir(Utilities.path(tempDir, "_includes"));
     forceDir(Utilities.path(tempDir, "_data"));
     logDebugMessage(LogCategory.INIT, "Output: "+outputDir);
     forceDir(outputDir);
+    keepArchives();
     Utilities.clearDirectory(outputDir);
     if (qaDir != null) {
       logDebugMessage(LogCategory.INIT, "QA Dir: "+qaDir);
@@ -1934,6 +2148,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     inspector.getManual().add("qa-tx.html");
     inspector.getExemptHtmlPatterns().addAll(exemptHtmlPatterns);
     inspector.setPcm(pcm);
+    inspector.setThreads(threads);
+    setInspectorCache();
+    setOutputsCache();
     
     int i = 0;
     for (ImplementationGuideDependsOnComponent dep : sourceIg.getDependsOn()) {
@@ -1943,26 +2160,15 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     generateLoadedSnapshots();
     
     // set up validator;
-    validator = new InstanceValidator(context, new IGPublisherHostServices(), context.getXVer()); // todo: host services for reference resolution....
-    validator.setAllowXsiLocation(true);
-    validator.setNoBindingMsgSuppressed(true);
-    validator.setNoExtensibleWarnings(true);
-    validator.setHintAboutNonMustSupport(hintAboutNonMustSupport);
-    validator.setAnyExtensionsAllowed(anyExtensionsAllowed);
-    validator.setAllowExamples(true);
-    validator.setCrumbTrails(true);
-    validator.setWantCheckSnapshotUnchanged(true);
+    validator = makeValidator();
+    validationCache = makeValidationCache();
     
     pvalidator = new ProfileValidator(context, context.getXVer());
     csvalidator = new CodeSystemValidator(context, context.getXVer());
     pvalidator.setCheckAggregation(checkAggregation);
     pvalidator.setCheckMustSupport(hintAboutNonMustSupport);
-    validator.setShowMessagesFromReferences(showReferenceMessages);
-    validator.getExtensionDomains().addAll(extensionDomains);
-    validator.getExtensionDomains().add(IGHelper.EXT_PRIVATE_BASE);
     validationFetcher = new ValidationServices(context, igpkp, fileList, npmList, bundleReferencesResolve);
     validator.setFetcher(validationFetcher);
-    validator.setTracker(this);
     for (String s : context.getBinaries().keySet()) {
       if (needFile(s)) {
         if (makeQA)
@@ -1970,6 +2176,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         checkMakeFile(context.getBinaries().get(s), Utilities.path(tempDir, s), otherFilesStartup);
       }
     }
+    outputs.flush();
     otherFilesStartup.add(Utilities.path(tempDir, "_data"));
     otherFilesStartup.add(Utilities.path(tempDir, "_data", "fhir.json"));
     otherFilesStartup.add(Utilities.path(tempDir, "_data", "structuredefinitions.json"));
@@ -2143,7 +2350,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
     if (configuration.has("tool") && !"jekyll".equals(str(configuration, "tool")))
       throw new Exception("Error: At present, configuration file must include a \"tool\" property with a value of 'jekyll'");
-    tool = GenerationTool.Jekyll;
+    if (tool == null) {
+      tool = GenerationTool.Jekyll;
+    }
     version = ostr(configuration, "version");
     if (Utilities.noString(version))
       version = Constants.VERSION;
@@ -2239,12 +2448,13 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       checkDir(s);
     }
     logDebugMessage(LogCategory.INIT, "Temp: "+tempDir);
-    Utilities.clearDirectory(tempDir);
+    Utilities.clearDirectory(tempDir, ValidationCache.FOLDER, HTLMLInspector.CACHE_FOLDER, CqlSubSystem.CACHE_FOLDER, OutputManager.FOLDER, ARCHIVE_FOLDER);
     forceDir(tempDir);
     forceDir(Utilities.path(tempDir, "_includes"));
     forceDir(Utilities.path(tempDir, "_data"));
     logDebugMessage(LogCategory.INIT, "Output: "+outputDir);
     forceDir(outputDir);
+    keepArchives();
     Utilities.clearDirectory(outputDir);
     logDebugMessage(LogCategory.INIT, "Temp: "+qaDir);
     forceDir(qaDir);
@@ -2338,6 +2548,9 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     inspector.setStrict("true".equals(ostr(configuration, "allow-malformed-html")));
     inspector.setPcm(pcm);
+    inspector.setThreads(threads);
+    setInspectorCache();
+    setOutputsCache();
     makeQA = mode == IGBuildMode.WEBSERVER ? false : !"true".equals(ostr(configuration, "suppress-qa"));
     
     JsonArray deps = configuration.getAsJsonArray("dependencyList");
@@ -2359,15 +2572,16 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
     
     // ;
-    validator = new InstanceValidator(context, new IGPublisherHostServices(), context.getXVer()); // todo: host services for reference resolution....
-    validator.setAllowXsiLocation(true);
-    validator.setNoBindingMsgSuppressed(true);
-    validator.setNoExtensibleWarnings(true);
-    validator.setHintAboutNonMustSupport(bool(configuration, "hintAboutNonMustSupport"));
-    validator.setAnyExtensionsAllowed(bool(configuration, "anyExtensionsAllowed"));
-    validator.setAllowExamples(true);
-    validator.setCrumbTrails(true);
-    validator.setWantCheckSnapshotUnchanged(true);
+    hintAboutNonMustSupport = bool(configuration, "hintAboutNonMustSupport");
+    anyExtensionsAllowed = bool(configuration, "anyExtensionsAllowed");
+    showReferenceMessages = configuration.has("show-reference-messages") && configuration.get("show-reference-messages").getAsBoolean();
+    extensionDomains.clear();
+    if (paths.get("extension-domains") instanceof JsonArray) {
+      for (JsonElement e : (JsonArray) paths.get("extension-domains"))
+        extensionDomains.add(((JsonPrimitive) e).getAsString());
+    }
+    validator = makeValidator();
+    validationCache = makeValidationCache();
     
     pvalidator = new ProfileValidator(context, context.getXVer());
     csvalidator = new CodeSystemValidator(context, context.getXVer());
@@ -2375,14 +2589,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       pvalidator.setCheckAggregation(true);
     if (configuration.has("check-mustSupport") && configuration.get("check-mustSupport").getAsBoolean())
       pvalidator.setCheckMustSupport(true);
-    if (configuration.has("show-reference-messages") && configuration.get("show-reference-messages").getAsBoolean())
-      validator.setShowMessagesFromReferences(true);
 
-    if (paths.get("extension-domains") instanceof JsonArray) {
-      for (JsonElement e : (JsonArray) paths.get("extension-domains"))
-        validator.getExtensionDomains().add(((JsonPrimitive) e).getAsString());
-    }
-    validator.getExtensionDomains().add(IGHelper.EXT_PRIVATE_BASE);
     if (configuration.has("jurisdiction")) {
       jurisdictions = new ArrayList<CodeableConcept>();
       for (String s : configuration.getAsJsonPrimitive("jurisdiction").getAsString().trim().split("\\,")) {
@@ -2406,13 +2613,13 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     validationFetcher = new ValidationServices(context, igpkp, fileList, npmList, bool(configuration, "bundleReferencesResolve"));
     validator.setFetcher(validationFetcher);
-    validator.setTracker(this);
     for (String s : context.getBinaries().keySet())
       if (needFile(s)) {
         if (makeQA)
           checkMakeFile(context.getBinaries().get(s), Utilities.path(qaDir, s), otherFilesStartup);
         checkMakeFile(context.getBinaries().get(s), Utilities.path(tempDir, s), otherFilesStartup);
       }
+    outputs.flush();
     otherFilesStartup.add(Utilities.path(tempDir, "_data"));
     otherFilesStartup.add(Utilities.path(tempDir, "_data", "fhir.json"));
     otherFilesStartup.add(Utilities.path(tempDir, "_data", "structuredefinitions.json"));
@@ -2777,12 +2984,54 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     logDebugMessage(LogCategory.INIT, "Load hl7.fhir.core-"+v+" package from "+pi.summary());
     npmList.add(pi);
     
+    // every build needs the core's spec map (for links and the validator), even when it shares a context that's already loaded
     SpecMapManager spm = loadSpecDetails(TextFile.streamToBytes(pi.load("other", "spec.internals")));
     SimpleWorkerContext sp;
-    IContextResourceLoader loader = new PublisherLoader(pi, spm, specPath, igpkp).makeLoader();
+    String key = pi.name()+"#"+pi.version()+"|"+igPack+"|"+specPath+"|"+version;
+    if (coreContexts != null) {
+      NpmPackage core = pi;
+      sp = coreContexts.copy(key, () -> buildCoreContext(core, spm, key));
+    } else {
+      sp = buildCoreContext(pi, spm, key);
+    }
+    sp.setCacheId(UUID.randomUUID().toString());
+    return sp;    
+  }
+
+  private SimpleWorkerContext buildCoreContext(NpmPackage pi, SpecMapManager spm, String key) throws Exception {
+    SimpleWorkerContext sp;
+    PublisherLoader pl = new PublisherLoader(pi, spm, specPath, igpkp);
+    CoreSnapshot snapshot = null;
+    if (coreSnapshot || verifyCoreSnapshot) {
+      // the current build is replaced in place, so its date is part of the key
+      String date = pi.getNpm().has("date") ? pi.getNpm().get("date").getAsString() : "";
+      snapshot = new CoreSnapshot(Utilities.path(Utilities.getDirectoryForFile(pcm.getFolder()), "publisher-snapshots"), pi, key+"|"+date+"|"+ToolsVersion.TOOLS_VERSION);
+    }
+    // the two ways of loading the core are timed separately (core-snapshot and core-package), so the tt report shows what the snapshot saves
+    long snapshotTime = -1;
+    if (snapshot != null && snapshot.exists()) {
+      Session tts = tt.start("core-snapshot");
+      long start = System.nanoTime();
+      sp = SimpleWorkerContext.fromPackage(pi, pl.makeLoader(CoreSnapshot.NO_TYPES));
+      boolean ok = snapshot.load(sp);
+      if (ok) {
+        sp.loadBinariesFromFolder(pi);
+      }
+      tts.end();
+      if (ok) {
+        snapshotTime = System.nanoTime() - start;
+        log("Loaded "+snapshot.getCount()+" core resources from "+snapshot.getFile().getAbsolutePath()+" in "+(snapshotTime / 1000000)+"ms");
+        if (!verifyCoreSnapshot) {
+          return sp;
+        }
+        // when verifying, it's loaded from the package as well, to compare them
+      }
+    }
+    Session tts = tt.start("core-package");
+    long start = System.nanoTime();
+    IContextResourceLoader loader = pl.makeLoader();
     sp = SimpleWorkerContext.fromPackage(pi, loader);
     sp.loadBinariesFromFolder(pi);
-    sp.setCacheId(UUID.randomUUID().toString());
     if (!version.equals(Constants.VERSION)) {
       // If it wasn't a 4.0 source, we need to set the ids because they might not have been set in the source
       ProfileUtilities utils = new ProfileUtilities(context, new ArrayList<ValidationMessage>(), igpkp);
@@ -2790,7 +3039,27 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         utils.setIds(sd, true);
       }
     }
-    return sp;    
+    tts.end();
+    long packageTime = System.nanoTime() - start;
+    if (snapshot != null) {
+      if (verifyCoreSnapshot) {
+        if (snapshotTime >= 0) {
+          log("Core load: "+(snapshotTime / 1000000)+"ms from the snapshot, "+(packageTime / 1000000)+"ms from the package");
+        }
+        List<String> diffs = snapshot.verify(sp);
+        if (diffs.isEmpty()) {
+          log("Core snapshot "+snapshot.getFile().getAbsolutePath()+" matches the core package (conformance resources and their paths)");
+        } else {
+          log("Core snapshot "+snapshot.getFile().getAbsolutePath()+" doesn't match the core package ("+diffs.size()+" differences):");
+          for (String d : diffs) {
+            log("  "+d);
+          }
+        }
+      }
+      snapshot.save(sp);
+      logDebugMessage(LogCategory.INIT, "Saved "+snapshot.getCount()+" core resources to "+snapshot.getFile().getAbsolutePath());
+    }
+    return sp;
   }
   
   private int getBuildVersionForCorePackage(NpmPackage pi) throws IOException {
@@ -3089,20 +3358,11 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     logDebugMessage(LogCategory.GENERATE, "Check Generate "+path);
     if (firstExecution) {
       String s = path.toLowerCase();
-      if (allOutputs.contains(s))
+      if (!allOutputs.add(s))
         throw new Error("Error generating build: the file "+path+" is being generated more than once (may differ by case)");
-      allOutputs.add(s);
     }
     outputTracker.add(path);
-    File f = new CSFile(path);
-    byte[] existing = null;
-    if (f.exists())
-      existing = TextFile.fileToBytes(path);
-    if (!Arrays.equals(bs, existing)) {
-      TextFile.bytesToFile(bs, path);
-      return true;
-    }
-    return false;
+    return outputs.checkMakeFile(bs, path);
   }
 
   private boolean needFile(String s) {
@@ -3131,6 +3391,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private boolean load() throws Exception {
     validationFetcher.initOtherUrls();
     fileList.clear();
+    registry.clear();
     changeList.clear();
     bndIds.clear();
     boolean needToBuild = false;
@@ -3149,6 +3410,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       // special case; the source is updated during the build, so we track it differently
       publishedIg = sourceIg.copy();
       altMap.get(IG_NAME).getResources().get(0).setResource(publishedIg);
+      registry.invalidate();
     }
     
     loadMappingSpaces(context.getBinaries().get("mappingSpaces.details"));
@@ -3181,6 +3443,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       publishedIg.setUrl(igpkp.getCanonical()+"/ImplementationGuide/"+id);
       if (r != null) { // it better be....
         r.setId(id);
+        registry.invalidate();
         r.getElement().getNamedChild("id").setValue(id);
         r.getElement().getNamedChild("url").setValue(publishedIg.getUrl());
       }        
@@ -3189,6 +3452,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       
     // Cql Compile
     cql = new CqlSubSystem(npmList, binaryPaths, new LibraryLoader(version), this, context.getUcumService(), publishedIg.getPackageId(), igpkp.getCanonical());
+    cql.setCacheFolder(Utilities.path(tempDir, CqlSubSystem.CACHE_FOLDER));
+    cql.setThreads(threads);
     if (binaryPaths.size() > 0) {
       cql.execute();
     }
@@ -3391,13 +3656,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private FetchedResource fetchByResource(String type, String id) {
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.fhirType().equals(type) && r.getId().equals(id))
-          return r;
-      }
-    }
-    return null;
+    return registry.getByRef(type, id);
   }
 
 
@@ -3578,7 +3837,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private boolean loadPrePage(FetchedFile file, PreProcessInfo ppinfo) {
     FetchedFile existing = altMap.get("pre-page/"+file.getPath());
-    if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
+    if (existing == null || !existing.hasSameContent(file)) {
       file.setProcessMode(ppinfo.hasXslt() && !file.getPath().endsWith(".md") ? FetchedFile.PROCESS_XSLT : FetchedFile.PROCESS_NONE);
       file.setXslt(ppinfo.getXslt());
       if (ppinfo.hasRelativePath())
@@ -3625,7 +3884,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private boolean loadPage(FetchedFile file) {
     FetchedFile existing = altMap.get("page/"+file.getPath());
-    if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
+    if (existing == null || !existing.hasSameContent(file)) {
       file.setProcessMode(FetchedFile.PROCESS_NONE);
       addFile(file);
       altMap.put("page/"+file.getPath(), file);
@@ -3935,16 +4194,27 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void validate(String type) throws Exception {
+    validationCache.startPass(fileList, npmList);
+    List<FetchedFile> files = new ArrayList<>();
+    List<FetchedResource> resources = new ArrayList<>();
     for (FetchedFile f : fileList) {
       for (FetchedResource r : f.getResources()) {
         if (r.fhirType().equals(type)) {
           logDebugMessage(LogCategory.PROGRESS, "validate res: "+r.fhirType()+"/"+r.getId());
           if (!r.isValidated()) {
-            validate(f, r);
+            if (validationThreads > 1) {
+              files.add(f);
+              resources.add(r);
+            } else {
+              validate(f, r);
+            }
           }
         }
       }
     }
+    if (!resources.isEmpty()) {
+      validateInParallel(files, resources);
+    }
   }
 
   private void loadInfo() {
@@ -4090,6 +4360,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
             nr.setResource(sd);
             nr.setTitle("Generated Profile (by Transform)");
             f.getResources().add(nr);
+            registry.invalidate();
             igpkp.findConfiguration(f, nr);
             sd.setUserData("path", igpkp.getLinkFor(nr, true));
             generateSnapshot(f, nr, sd, true);
@@ -4140,6 +4411,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
               nr.setTitle("Generated Example (by Transform)");
               nr.setValidateAsResource(true);
               f.getResources().add(nr);
+              registry.invalidate();
               igpkp.findConfiguration(f, nr);
             }
           }
@@ -4150,26 +4422,30 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   private boolean noteFile(ImplementationGuideDefinitionResourceComponent key, FetchedFile file) {
     FetchedFile existing = fileMap.get(key);
-    if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
+    if (existing == null || !existing.hasSameContent(file)) {
       fileList.add(file);
       fileMap.put(key, file);
+      registry.seeFile(file);
       addFile(file);
       return true;
     } else {
       fileList.add(existing); // this one is already parsed
+      registry.seeFile(existing);
       return false;
     }
   }
 
   private boolean noteFile(String key, FetchedFile file) {
     FetchedFile existing = altMap.get(key);
-    if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
+    if (existing == null || !existing.hasSameContent(file)) {
       fileList.add(file);
       altMap.put(key, file);
+      registry.seeFile(file);
       addFile(file);
       return true;
     } else {
       fileList.add(existing); // this one is already parsed
+      registry.seeFile(existing);
       return false;
     }
   }
@@ -4220,6 +4496,10 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         e = loadFromJson(file);
       } else if (file.getContentType().contains("xml")) {
         e = loadFromXml(file);
+      } else if (file.getParsed() != null) {
+        e = file.getParsed(); // already parsed when the source directories were scanned
+        file.getErrors().addAll(file.getParseErrors());
+        file.setParsed(null, null);
       } else
         throw new Exception("Unable to determine file type for "+file.getName());
     } catch (Exception ex) {
@@ -4429,6 +4709,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         }
       }
     }
+    registry.invalidate();
   }
   
   private void load(String type) throws Exception {
@@ -4561,6 +4842,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         }
       }
     }
+    registry.invalidate();
   }
 
   private boolean replaceLiquidTags(DomainResource resource) {
@@ -4607,6 +4889,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
             nr.setTitle("Generated Example");
             nr.getStatedProfiles().add(sd.getUrl());
             f.getResources().add(nr);
+            registry.invalidate();
             igpkp.findConfiguration(f, nr);
           }
         }
@@ -4736,18 +5019,13 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private StructureDefinition fetchSnapshotted(String url) throws Exception {
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.getResource() instanceof StructureDefinition) {
-          StructureDefinition sd = (StructureDefinition) r.getResource();
-          if (sd.getUrl().equals(url)) {
-            if (!r.isSnapshotted()) {
-              generateSnapshot(f, r, sd, false);
-            }
-            return sd;
-          }
-        }
+    FetchedResource r = registry.getByCanonical(url);
+    if (r != null && r.getResource() instanceof StructureDefinition) {
+      StructureDefinition sd = (StructureDefinition) r.getResource();
+      if (!r.isSnapshotted()) {
+        generateSnapshot(registry.getFileForResource(r), r, sd, false);
       }
+      return sd;
     }
     // Special case for logical models:
     if ("http://hl7.org/fhir/StructureDefinition/Base".equals(url)) {
@@ -4777,6 +5055,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         igpkp.findConfiguration(f, nr);
       }
     }
+    registry.invalidate();
   }
 
   private Resource parseContent(String name, String contentType, String parseVersion, byte[] source) throws Exception {
@@ -4854,6 +5133,10 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private void validate() throws Exception {
+    validationCache.startPass(fileList, npmList);
+    validationFetcher.startPass();
+    List<FetchedFile> files = new ArrayList<>();
+    List<FetchedResource> resources = new ArrayList<>();
     for (FetchedFile f : fileList) {
       logDebugMessage(LogCategory.PROGRESS, " .. validate "+f.getName());
       if (firstExecution) {
@@ -4861,21 +5144,33 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       }
       for (FetchedResource r : f.getResources()) {
         if (!r.isValidated()) {
-          logDebugMessage(LogCategory.PROGRESS, "     validating "+r.getTitle());
-          validate(f, r);
+          if (validationThreads > 1) {
+            files.add(f);
+            resources.add(r);
+          } else {
+            logDebugMessage(LogCategory.PROGRESS, "     validating "+r.getTitle());
+            validate(f, r);
+          }
         }
       }
     }
+    if (!resources.isEmpty()) {
+      validateInParallel(files, resources);
+    }
+    log("Validation cache: "+validationCache.getHits()+" hits, "+validationCache.getMisses()+" misses");
+    log("Reference resolution: "+validationFetcher.getHits()+" hits, "+validationFetcher.getMisses()+" misses");
     logDebugMessage(LogCategory.PROGRESS, " .. check Profile Examples");
     logDebugMessage(LogCategory.PROGRESS, "gen narratives");
+    Map<String, Integer> statedExamples = registry.countProfileUsage(true);
+    Map<String, Integer> foundExamples = registry.countProfileUsage(false);
     for (FetchedFile f : fileList) {
       for (FetchedResource r : f.getResources()) {
         if (r.fhirType().equals("StructureDefinition")) {
           StructureDefinition sd = (StructureDefinition) r.getResource();
           if (!sd.getAbstract()) {
             if (sd.getKind() == StructureDefinitionKind.RESOURCE) {
-              int cE = countStatedExamples(sd.getUrl());
-              int cI = countFoundExamples(sd.getUrl());
+              int cE = countExamples(statedExamples, sd.getUrl());
+              int cI = countExamples(foundExamples, sd.getUrl());
               if (cE + cI == 0) {
                 f.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "The Implementation Guide contains no examples for this profile", IssueSeverity.WARNING));
                 r.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "The Implementation Guide contains no examples for this profile", IssueSeverity.WARNING));
@@ -4891,7 +5186,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
                   r.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "The Implementation Guide contains no examples for this extension", IssueSeverity.WARNING));
                 }
               } else {
-                int cI = countFoundExamples(sd.getUrl());
+                int cI = countExamples(foundExamples, sd.getUrl());
                 if (cI == 0) {
                   f.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "The Implementation Guide contains no examples for this data type profile", IssueSeverity.WARNING));
                   r.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "The Implementation Guide contains no examples for this data type profile", IssueSeverity.WARNING));
@@ -4940,36 +5235,136 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
 
 
-  private int countStatedExamples(String url) {
-    int res = 0;
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        for (String p : r.getStatedProfiles()) {
-          if (url.equals(p)) {
-            res++;
+  private int countExamples(Map<String, Integer> usage, String url) {
+    Integer res = usage.get(url);
+    return res == null ? 0 : res;
+  }
+
+  private void validate(FetchedFile file, FetchedResource r) throws Exception {
+    Session tts = tt.start("validation");
+    recordValidation(file, r, validateCached(validator, file, r));
+    tts.end();
+  }
+
+  /**
+   * validates a set of resources on the validation worker pool. The validation messages are 
+   * collected per resource, and then added to the files and resources in the original order, 
+   * so the outcome is the same as for a serial run.
+   * 
+   * The pool (and the validator each of its threads holds) only lasts for the call, so each 
+   * pass uses the current fetcher and settings, and the context isn't kept alive after the build
+   */
+  private void validateInParallel(List<FetchedFile> files, List<FetchedResource> resources) throws Exception {
+    Session tts = tt.start("validation");
+    long start = System.nanoTime();
+    ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+    AtomicLong cpu = new AtomicLong();
+    ThreadLocal<InstanceValidator> workerValidator = ThreadLocal.withInitial(() -> makeValidator());
+    try (WorkerPool pool = new WorkerPool("validator", validationThreads)) {
+      List<Future<List<ValidationMessage>>> results = new ArrayList<>();
+      for (int i = 0; i < resources.size(); i++) {
+        FetchedFile f = files.get(i);
+        FetchedResource r = resources.get(i);
+        logDebugMessage(LogCategory.PROGRESS, "     validating "+r.getTitle());
+        results.add(pool.submit(() -> {
+          long c = tmx.isCurrentThreadCpuTimeSupported() ? tmx.getCurrentThreadCpuTime() : 0;
+          try {
+            return validateCached(workerValidator.get(), f, r);
+          } finally {
+            if (tmx.isCurrentThreadCpuTimeSupported()) {
+              cpu.addAndGet(tmx.getCurrentThreadCpuTime() - c);
+            }
           }
-        }
+        }));
+      }
+      for (int i = 0; i < resources.size(); i++) {
+        recordValidation(files.get(i), resources.get(i), WorkerPool.get(results.get(i)));
       }
     }
+    tts.end();
+    log("Validated "+resources.size()+" resources on "+validationThreads+" threads: wall time "+Utilities.presentDuration(System.nanoTime() - start)+", cpu time "+Utilities.presentDuration(cpu.get()));
+  }
+
+  /**
+   * each validation thread gets its own InstanceValidator, since the validator keeps per-validation state
+   */
+  private InstanceValidator makeValidator() {
+    InstanceValidator res = new InstanceValidator(context, new IGPublisherHostServices(), context.getXVer()); // todo: host services for reference resolution....
+    res.setAllowXsiLocation(true);
+    res.setNoBindingMsgSuppressed(true);
+    res.setNoExtensibleWarnings(true);
+    res.setHintAboutNonMustSupport(hintAboutNonMustSupport);
+    res.setAnyExtensionsAllowed(anyExtensionsAllowed);
+    res.setAllowExamples(true);
+    res.setCrumbTrails(true);
+    res.setWantCheckSnapshotUnchanged(true);
+    res.setShowMessagesFromReferences(showReferenceMessages);
+    res.getExtensionDomains().addAll(extensionDomains);
+    res.getExtensionDomains().add(IGHelper.EXT_PRIVATE_BASE);
+    if (validationFetcher != null) {
+      res.setFetcher(validationFetcher);
+    }
+    res.setTracker(this);
     return res;
   }
 
-  private int countFoundExamples(String url) {
-    int res = 0;
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        for (String p : r.getFoundProfiles()) {
-          if (url.equals(p)) {
-            res++;
-          }
-        }
-      }
+  private void setInspectorCache() throws IOException {
+    inspector.setCacheFolder(Utilities.path(tempDir, HTLMLInspector.CACHE_FOLDER));
+    if (cacheOption == CacheOption.CLEAR_ALL) {
+      inspector.clearCache();
+    }
+  }
+
+  private void setOutputsCache() throws IOException {
+    outputs.setCacheFolder(Utilities.path(tempDir, OutputManager.FOLDER));
+    if (cacheOption == CacheOption.CLEAR_ALL) {
+      outputs.clearCache();
+    }
+  }
+
+  private ValidationCache makeValidationCache() throws Exception {
+    StringBuilder b = new StringBuilder();
+    b.append(IGVersionUtil.getVersion()+"|"+Constants.VERSION+"|"+version+"|"+txServer+"|"+vsCache+"|"+igpkp.getCanonical());
+    b.append("|"+hintAboutNonMustSupport+"|"+anyExtensionsAllowed+"|"+showReferenceMessages+"|"+bundleReferencesResolve+"|"+String.join(",", extensionDomains));
+    ValidationCache res = new ValidationCache(Utilities.path(tempDir, ValidationCache.FOLDER), context, registry, igpkp.getCanonical(), b.toString());
+    if (cacheOption == CacheOption.CLEAR_ALL) {
+      res.clear();
     }
     return res;
   }
 
-  private void validate(FetchedFile file, FetchedResource r) throws Exception {
-    Session tts = tt.start("validation");
+  /**
+   * validates the resource, unless an earlier run validated exactly the same content against the same 
+   * profiles and conformance resources, in which case the messages from that run are used
+   */
+  private List<ValidationMessage> validateCached(InstanceValidator validator, FetchedFile file, FetchedResource r) throws Exception {
+    String key = validationCache.makeKey(r);
+    if (key != null) {
+      List<String> found = new ArrayList<>();
+      List<ValidationMessage> errs = validationCache.load(key, found);
+      if (errs != null) {
+        replayProfileUsage(r, found);
+        return errs;
+      }
+    }
+    List<ValidationMessage> errs = validate(validator, file, r);
+    if (key != null) {
+      validationCache.store(key, errs, r.getFoundProfiles());
+    }
+    return errs;
+  }
+
+  private synchronized void replayProfileUsage(FetchedResource example, List<String> profiles) {
+    for (String url : profiles) {
+      FetchedResource source = registry.getByCanonical(url);
+      if (source != null) {
+        source.addFoundExample(example);
+        example.getFoundProfiles().add(url);
+      }
+    }
+  }
+
+  private List<ValidationMessage> validate(InstanceValidator validator, FetchedFile file, FetchedResource r) throws Exception {
     List<ValidationMessage> errs = new ArrayList<ValidationMessage>();
     r.getElement().setUserData("igpub.context.file", file);
     r.getElement().setUserData("igpub.context.resource", r);
@@ -5003,6 +5398,10 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         validator.validate(r.getElement(), errs, r.getElement());
       }
     }
+    return errs;
+  }
+
+  private void recordValidation(FetchedFile file, FetchedResource r, List<ValidationMessage> errs) throws Exception {
     for (ValidationMessage vm : errs) {
       String loc = r.fhirType()+"/"+r.getId();
       if (!vm.getLocation().startsWith(loc)) {
@@ -5015,7 +5414,6 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (r.getConfig() == null) {
       igpkp.findConfiguration(file, r);
     }
-    tts.end();
   }
 
   public FhirFormat getFhirFormatFromMimeType(String mt) {
@@ -5036,6 +5434,11 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     otherFilesRun.clear();
     otherFilesRun.add(Utilities.path(outputDir, "package.tgz"));
     otherFilesRun.add(Utilities.path(outputDir, "package.manifest.json"));
+    outputs.startRun();
+    serialiser = new ResourceSerialiser(context);
+    if (store != null) {
+      store.setSerialiser(serialiser);
+    }
     for (String rg : regenList) {
       regenerate(rg);
     }
@@ -5044,12 +5447,19 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     
     for (FetchedFile f : changeList) {
       generateNativeOutputs(f, false);
+      checkMemoryBudget();
     }
     
+    outputs.flush(); // the template works on the generated files
     templateBeforeGenerate();
 
-    for (FetchedFile f : changeList) {
-      generateHtmlOutputs(f, false);
+    if (generationThreads > 1) {
+      generateHtmlOutputsInParallel(changeList);
+    } else {
+      for (FetchedFile f : changeList) {
+        generateHtmlOutputs(f, false);
+        checkMemoryBudget();
+      }
     }
 
     if (!changeList.isEmpty()) {
@@ -5067,7 +5477,14 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     previousVersionComparator.addOtherFiles(otherFilesRun, outputDir);
     otherFilesRun.add(Utilities.path(tempDir, "usage-stats.json"));
     
+    updateDependencies();
+    outputs.flush();
+    outputs.save();
+    log("Generated files: "+outputs.getWritten()+" changed, "+outputs.getUnchanged()+" unchanged");
     printMemUsage();
+    if (store != null) {
+      log(store.report());
+    }
     System.out.println("Reclaiming memory...");
     cleanOutput(tempDir);
     for (FetchedFile f : fileList) {
@@ -5090,6 +5507,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       childPublisher = new Publisher();
       childPublisher.setConfigFile(Utilities.path(Utilities.getDirectoryForFile(this.getConfigFile()), nestedIgConfig));
       childPublisher.setJekyllCommand(this.getJekyllCommand());
+      childPublisher.setTool(this.getTool());
       childPublisher.setTxServer(this.getTxServer());
       childPublisher.setDebug(this.debug);
       childPublisher.setCacheOption(this.getCacheOption());
@@ -5140,6 +5558,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (childPublisher!=null) {
       // Combine list of files so that the validation report will include everything
       fileList.addAll(childPublisher.getFileList());
+      registry.invalidate();
     }
     
     if (!isChild()) {
@@ -5180,12 +5599,13 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       }
 
       log("Build final .zip");
-      ZipGenerator zip = new ZipGenerator(Utilities.path(tempDir, "full-ig.zip"));
-      zip.addFolder(outputDir, "site/", false);
-      zip.addFileSource("index.html", REDIRECT_SOURCE, false);
-      zip.close();
-      Utilities.copyFile(Utilities.path(tempDir, "full-ig.zip"), Utilities.path(outputDir, "full-ig.zip"));
-      log("Final .zip built");
+      try (WorkerPool pool = openArchivePool()) {
+        ParallelZipGenerator zip = makeZip(Utilities.path(outputDir, "full-ig.zip"));
+        zip.addFolder(outputDir, "site/", false);
+        zip.addFileSource("index.html", REDIRECT_SOURCE, false);
+        zip.close();
+        log("Final .zip built ("+zip.getCount()+" files, "+zip.getReused()+" unchanged)");
+      }
     }
   }
 
@@ -5248,6 +5668,41 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }    
   }
 
+  /**
+   * once validation is done, the loaded resources are kept within the memory budget (if there is one)
+   */
+  private void startMemoryBudget() throws IOException {
+    usages = null;
+    if (memoryBudget > 0 || compactResources) {
+      // the usage index goes through every resource, so it's built while they're all still loaded
+      getUsages();
+      if (store == null) {
+        store = new ResourceStore(context, memoryBudget * 1024L * 1024L, compactResources);
+      }
+      store.register(fileList);
+      store.checkpoint();
+    }
+  }
+
+  private void checkMemoryBudget() {
+    if (store != null) {
+      store.checkpoint();
+    }
+  }
+
+  /**
+   * where the structures are used, for the profile pages; built the first time a profile page needs it in each build
+   * (or before anything is spilled, if there's a memory budget)
+   */
+  private synchronized StructureUsageIndex getUsages() {
+    if (usages == null) {
+      Session tts = tt.start("usage-index");
+      usages = new StructureUsageIndex(context, fileList);
+      tts.end();
+    }
+    return usages;
+  }
+
   private void printMemUsage() {
     int mb = 1024*1024;
     Runtime runtime = Runtime.getRuntime();
@@ -5294,20 +5749,15 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
     r.setResource(publishedIg);
     r.setElement(convertToElement(publishedIg));
+    registry.invalidate();
     
     ByteArrayOutputStream bs = new ByteArrayOutputStream();
     new JsonParser().setOutputStyle(OutputStyle.NORMAL).compose(bs, publishedIg);
     npm.addFile(Category.RESOURCE, "ig-r4.json", bs.toByteArray());
     
     for (ImplementationGuideDefinitionResourceComponent res : publishedIg.getDefinition().getResource()) {
-      FetchedResource rt = null;
-      for (FetchedFile tf : fileList) {
-        for (FetchedResource tr : tf.getResources()) {
-          if (tr.getLocalRef().equals(res.getReference().getReference())) {
-            rt = tr;
-          }
-        }
-      }
+      // if there's more than one, it's the last one
+      FetchedResource rt = registry.getLastByRef(res.getReference().getReference());
       if (rt != null) {
         if (!rt.getProvenance()) {
           // Don't expose a page for a resource that is just provenance information
@@ -5351,6 +5801,12 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
 
   private Element convertToElement(Resource res) throws IOException, org.hl7.fhir.exceptions.FHIRException, FHIRFormatError, DefinitionException {
+    if (version.equals(Constants.VERSION)) {
+      Element e = new ResourceElementConverter(context).convert(res);
+      if (e != null) {
+        return e;
+      }
+    }
     ByteArrayOutputStream bs = new ByteArrayOutputStream();
     if (VersionUtilities.isR3Ver(version)) {
       org.hl7.fhir.dstu3.formats.JsonParser jp = new org.hl7.fhir.dstu3.formats.JsonParser();
@@ -5464,23 +5920,130 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return df;
   }
   
+  /**
+   * the archives are independent of each other, so they are all built at once (and the entries 
+   * in each are compressed in parallel, on the archive pool)
+   */
   private void generateZips(File df) throws Exception {
-    if (generateExampleZip(FhirFormat.XML)) {
-      generateDefinitions(FhirFormat.XML, df.getCanonicalPath());
+    String specFile = df.getCanonicalPath();
+    FhirFormat[] formats = supportsTurtle() ? new FhirFormat[] {FhirFormat.XML, FhirFormat.JSON, FhirFormat.TURTLE} : new FhirFormat[] {FhirFormat.XML, FhirFormat.JSON};
+    // the canonical resources are converted to the publication version once, ahead of the writers, 
+    // which all consume them in the same order
+    Set<FetchedResource> canonicals = new HashSet<FetchedResource>();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
+          canonicals.add(r);
+        }
+      }
     }
-    if (generateExampleZip(FhirFormat.JSON)) {
-      generateDefinitions(FhirFormat.JSON, df.getCanonicalPath());
+    Session tts = tt.start("archives");
+    // the converters record their times in tt until the archives are done; nothing else uses it meanwhile
+    serialiser.setTimeTracker(tt);
+    try (WorkerPool conversions = new WorkerPool("converter", threads); WorkerPool pool = openArchivePool()) {
+      List<FetchedResource> definitions = serialiser.prepare(conversions, canonicals, version, formats);
+      try {
+        generateZips(specFile, formats, definitions);
+      } catch (Exception e) {
+        serialiser.cancel();
+        throw e;
+      }
+    } finally {
+      serialiser.setTimeTracker(null);
+      tts.end();
     }
-    if (supportsTurtle() && generateExampleZip(FhirFormat.TURTLE)) {
-      generateDefinitions(FhirFormat.TURTLE, df.getCanonicalPath());
+  }
+
+  private void generateZips(String specFile, FhirFormat[] formats, List<FetchedResource> definitions) throws Exception {
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (FhirFormat fmt : formats) {
+      tasks.add(() -> {
+        if (generateExampleZip(fmt)) {
+          generateDefinitions(fmt, specFile, definitions);
+        }
+        return null;
+      });
     }
-    generateExpansions();
-    generateValidationPack(df.getCanonicalPath());
-    // Create an IG-specific named igpack to make is easy to grab the igpacks for multiple igs without the names colliding (Talk to Lloyd before removing this)
-    FileUtils.copyFile(new File(Utilities.path(outputDir, "validator.pack")),new File(Utilities.path(outputDir, "validator-" + sourceIg.getId() + ".pack")));
-    generateCsvZip();
-    generateExcelZip();
+    tasks.add(() -> {
+      generateExpansions();
+      return null;
+    });
+    tasks.add(() -> {
+      generateValidationPack(specFile, definitions);
+      // Create an IG-specific named igpack to make is easy to grab the igpacks for multiple igs without the names colliding (Talk to Lloyd before removing this)
+      FileUtils.copyFile(new File(Utilities.path(outputDir, "validator.pack")),new File(Utilities.path(outputDir, "validator-" + sourceIg.getId() + ".pack")));
+      return null;
+    });
+    tasks.add(() -> {
+      generateCsvZip();
+      return null;
+    });
+    tasks.add(() -> {
+      generateExcelZip();
+      return null;
+    });
 //    generateRegistryUploadZip(df.getCanonicalPath());
+    // not the archive pool: these tasks wait for the entries being compressed on it
+    try (WorkerPool archives = new WorkerPool("archives", Math.min(threads, tasks.size()))) {
+      List<Future<Void>> results = new ArrayList<>();
+      for (Callable<Void> t : tasks) {
+        results.add(archives.submit(t));
+      }
+      Exception error = null;
+      for (Future<Void> ft : results) {
+        try {
+          WorkerPool.get(ft);
+        } catch (Exception e) {
+          if (error == null) {
+            error = e;
+          }
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+      logDebugMessage(LogCategory.PROGRESS, "Resource serialisations: "+serialiser.getMisses()+" made, "+serialiser.getHits()+" reused");
+    }
+  }
+
+  /**
+   * the pool makeZip() uses, until it's closed
+   */
+  private WorkerPool openArchivePool() {
+    archivePool = new WorkerPool("archiver", threads) {
+      @Override
+      public void close() {
+        super.close();
+        archivePool = null;
+      }
+    };
+    return archivePool;
+  }
+
+  private ParallelZipGenerator makeZip(String path) throws IOException {
+    String name = new File(path).getName();
+    File previous = new File(Utilities.path(tempDir, ARCHIVE_FOLDER, name));
+    // only the archives in the output are kept for the next build (not the temporary ones inside them)
+    String digests = new File(path).getParentFile().getCanonicalPath().equals(new File(outputDir).getCanonicalPath()) ? Utilities.path(tempDir, ARCHIVE_FOLDER, DIGESTS_FOLDER, name+".json") : null;
+    return new ParallelZipGenerator(path, previous.exists() ? previous.getAbsolutePath() : path, digests, archivePool, threads);
+  }
+
+  /**
+   * the archives from the last build are moved to the temp folder, instead of being deleted with the 
+   * rest of the output, so that the entries that haven't changed don't have to be compressed again
+   */
+  private void keepArchives() throws IOException {
+    String folder = Utilities.path(tempDir, ARCHIVE_FOLDER);
+    Utilities.createDirectory(folder);
+    Utilities.clearDirectory(folder, DIGESTS_FOLDER);
+    File[] list = new File(outputDir).listFiles();
+    if (list != null) {
+      for (File f : list) {
+        if (f.isFile() && (f.getName().endsWith(".zip") || f.getName().endsWith(".pack"))) {
+          Files.move(f.toPath(), new File(Utilities.path(folder, f.getName())).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+    }
   }
 
   private boolean supportsTurtle() {
@@ -5493,16 +6056,19 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     exp.setType(BundleType.COLLECTION);
     exp.setId(UUID.randomUUID().toString());
     exp.getMeta().setLastUpdated(execTime.getTime());
-    for (ValueSet vs : expansions) {
+    // sorted, so that the output doesn't depend on the order the expansions were done in 
+    List<ValueSet> vsl = new ArrayList<>(expansions);
+    Collections.sort(vsl, (vs1, vs2) -> (vs1.getUrl()+"|"+vs1.getVersion()).compareTo(vs2.getUrl()+"|"+vs2.getVersion()));
+    for (ValueSet vs : vsl) {
       exp.addEntry().setResource(vs).setFullUrl(vs.getUrl());
     }
     
     new JsonParser().setOutputStyle(OutputStyle.PRETTY).compose(new FileOutputStream(Utilities.path(outputDir, "expansions.json")), exp);
     new XmlParser().setOutputStyle(OutputStyle.PRETTY).compose(new FileOutputStream(Utilities.path(outputDir, "expansions.xml")), exp);
-    ZipGenerator zip = new ZipGenerator(Utilities.path(outputDir, "expansions.json.zip"));
+    ParallelZipGenerator zip = makeZip(Utilities.path(outputDir, "expansions.json.zip"));
     zip.addFileName("expansions.json", Utilities.path(outputDir, "expansions.json"), false);
     zip.close();
-    zip = new ZipGenerator(Utilities.path(outputDir, "expansions.xml.zip"));
+    zip = makeZip(Utilities.path(outputDir, "expansions.xml.zip"));
     zip.addFileName("expansions.xml", Utilities.path(outputDir, "expansions.xml"), false);
     zip.close();
   }
@@ -5512,67 +6078,12 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return listedURLExemptions.contains(uc);
   }
 
-  private void generateDefinitions(FhirFormat fmt, String specFile)  throws Exception {
+  private void generateDefinitions(FhirFormat fmt, String specFile, List<FetchedResource> files)  throws Exception {
     // public definitions
-    Set<FetchedResource> files = new HashSet<FetchedResource>();
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
-          files.add(r);
-        }
-      }
-    }
     if (!files.isEmpty()) {
-      ZipGenerator zip = new ZipGenerator(Utilities.path(outputDir, "definitions."+fmt.getExtension()+".zip"));
+      ParallelZipGenerator zip = makeZip(Utilities.path(outputDir, "definitions."+fmt.getExtension()+".zip"));
       for (FetchedResource r : files) {
-        ByteArrayOutputStream bs = new ByteArrayOutputStream();
-        if (VersionUtilities.isR3Ver(version)) {
-          org.hl7.fhir.dstu3.model.Resource r3 = VersionConvertorFactory_30_50.convertResource(r.getResource());
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.dstu3.formats.JsonParser().compose(bs, r3);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.dstu3.formats.XmlParser().compose(bs, r3);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new org.hl7.fhir.dstu3.formats.RdfParser().compose(bs, r3);
-          }
-        } else if (VersionUtilities.isR4Ver(version)) {
-          org.hl7.fhir.r4.model.Resource r4 = VersionConvertorFactory_40_50.convertResource(r.getResource());
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.r4.formats.JsonParser().compose(bs, r4);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.r4.formats.XmlParser().compose(bs, r4);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new org.hl7.fhir.r4.formats.RdfParser().compose(bs, r4);
-          }
-        } else if (VersionUtilities.isR2BVer(version)) {
-          org.hl7.fhir.dstu2016may.model.Resource r14 = VersionConvertorFactory_14_50.convertResource(r.getResource());
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.dstu2016may.formats.JsonParser().compose(bs, r14);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.dstu2016may.formats.XmlParser().compose(bs, r14);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new org.hl7.fhir.dstu2016may.formats.RdfParser().compose(bs, r14);
-          }
-        } else if (VersionUtilities.isR2Ver(version)) {
-          BaseAdvisor_10_50 advisor = new IGR2ConvertorAdvisor5();
-          org.hl7.fhir.dstu2.model.Resource r14 = VersionConvertorFactory_10_50.convertResource(r.getResource(), advisor);
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.dstu2.formats.JsonParser().compose(bs, r14);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.dstu2.formats.XmlParser().compose(bs, r14);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            throw new Exception("Turtle is not supported for releases < 3");
-          }
-        } else {
-          if (fmt.equals(FhirFormat.JSON)) {
-            new JsonParser().compose(bs, r.getResource());
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new XmlParser().compose(bs, r.getResource());
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new RdfParser().compose(bs, r.getResource());
-          }
-        }
-        zip.addBytes(r.fhirType()+"-"+r.getId()+"."+fmt.getExtension(), bs.toByteArray(), false);
+        zip.addBytes(r.fhirType()+"-"+r.getId()+"."+fmt.getExtension(), serialiser.resource(r, fmt, version), false);
       }
       zip.addFileName("spec.internals", specFile, false);
       zip.close();
@@ -5599,10 +6110,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       for (FetchedResource r : f.getResources()) {
         if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
           try {
-            ByteArrayOutputStream bs = new ByteArrayOutputStream();
-            org.hl7.fhir.dstu3.model.Resource r3 = VersionConvertorFactory_30_50.convertResource(r.getResource());
-            new org.hl7.fhir.dstu3.formats.JsonParser().compose(bs, r3);
-            zip.addBytes(r.fhirType()+"-"+r.getId()+".json", bs.toByteArray(), false);
+            zip.addBytes(r.fhirType()+"-"+r.getId()+".json", serialiser.resource(r, FhirFormat.JSON, "3.0.2"), false);
           } catch (Exception e) {
             log("Can't store "+r.fhirType()+"-"+r.getId()+" in R3 format for registry.fhir.org");
             e.printStackTrace();
@@ -5616,35 +6124,19 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     zip.close();
   }
 
-  private void generateValidationPack(String specFile)  throws Exception {
+  private void generateValidationPack(String specFile, List<FetchedResource> files)  throws Exception {
+    if (!ResourceSerialiser.isSupportedVersion(version)) {
+      throw new Exception("Unsupported version "+version);
+    }
     String sch = makeTempZip(".sch");
     String js = makeTempZip(".schema.json");
     String shex = makeTempZip(".shex");
 
-    ZipGenerator zip = new ZipGenerator(Utilities.path(outputDir, "validator.pack"));
+    ParallelZipGenerator zip = makeZip(Utilities.path(outputDir, "validator.pack"));
     zip.addBytes("version.info", makeNewVersionInfo(version), false);
     zip.addFileName("spec.internals", specFile, false);
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
-          ByteArrayOutputStream bs = new ByteArrayOutputStream();
-          if (VersionUtilities.isR3Ver(version)) {
-            new org.hl7.fhir.dstu3.formats.JsonParser().compose(bs, VersionConvertorFactory_30_50.convertResource(r.getResource()));
-          } else if (VersionUtilities.isR4Ver(version)) {
-            new org.hl7.fhir.r4.formats.JsonParser().compose(bs, VersionConvertorFactory_40_50.convertResource(r.getResource()));
-          } else if (VersionUtilities.isR2BVer(version)) {
-            new org.hl7.fhir.dstu2016may.formats.JsonParser().compose(bs, VersionConvertorFactory_14_50.convertResource(r.getResource()));
-          } else if (VersionUtilities.isR2Ver(version)) {
-            BaseAdvisor_10_50 advisor = new IGR2ConvertorAdvisor5();
-            new org.hl7.fhir.dstu2.formats.JsonParser().compose(bs, VersionConvertorFactory_10_50.convertResource(r.getResource(), advisor));
-          } else if (version.equals(Constants.VERSION) || VersionUtilities.isR4BVer(version)) {
-            new JsonParser().compose(bs, r.getResource());
-          } else {
-            throw new Exception("Unsupported version "+version);
-          }
-          zip.addBytes(r.fhirType()+"-"+r.getId()+".json", bs.toByteArray(), false);
-        }
-      }
+    for (FetchedResource r : files) {
+      zip.addBytes(r.fhirType()+"-"+r.getId()+".json", serialiser.resource(r, FhirFormat.JSON, version), false);
     }
     if (sch != null) {
       zip.addFileName("schematron.zip", sch, false);
@@ -5689,7 +6181,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (files.size() == 0) {
       return false;
     }
-    ZipGenerator zip = new ZipGenerator(path);
+    ParallelZipGenerator zip = makeZip(path);
     for (String fn : files) {
       zip.addFileName(fn, Utilities.path(outputDir, fn), false);
     }
@@ -5698,19 +6190,25 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   }
   
   private boolean generateExampleZip(FhirFormat fmt) throws Exception {
-    Set<String> files = new HashSet<String>();
+    Map<String, FetchedResource> files = new HashMap<String, FetchedResource>();
     for (FetchedFile f : fileList) {
       for (FetchedResource r : f.getResources()) {
         String fn = Utilities.path(outputDir, r.fhirType()+"-"+r.getId()+"."+fmt.getExtension());
         if (new File(fn).exists()) {
-          files.add(fn);
+          files.put(fn, r);
         }
       }
     }
     if (!files.isEmpty()) {
-      ZipGenerator zip = new ZipGenerator(Utilities.path(outputDir, "examples."+fmt.getExtension()+".zip"));
-      for (String fn : files) {
-        zip.addFileName(fn.substring(fn.lastIndexOf(File.separator)+1), fn, false);
+      ParallelZipGenerator zip = makeZip(Utilities.path(outputDir, "examples."+fmt.getExtension()+".zip"));
+      for (String fn : files.keySet()) {
+        FetchedResource r = files.get(fn);
+        // if we wrote the file, the content is already at hand
+        if (serialiser.hasElement(r, fmt, OutputStyle.PRETTY, igpkp.getCanonical())) {
+          zip.addBytes(fn.substring(fn.lastIndexOf(File.separator)+1), serialiser.element(r, fmt, OutputStyle.PRETTY, igpkp.getCanonical()), false);
+        } else {
+          zip.addFileName(fn.substring(fn.lastIndexOf(File.separator)+1), fn, false);
+        }
       }
       zip.close();
     }
@@ -5721,6 +6219,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
   private boolean runTool() throws Exception {
     switch (tool) {
     case Jekyll: return runJekyll();
+    case Native: return runSiteRenderer();
     default:
       throw new Exception("unimplemented tool");
     }
@@ -5814,6 +6313,26 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return true;
   }
 
+  private boolean runSiteRenderer() throws IOException, InterruptedException {
+    Session tts = tt.start("jekyll");
+    long start = System.nanoTime();
+    try {
+      if (siteRenderer == null) {
+        siteRenderer = new SiteRenderer(tempDir, outputDir, threads);
+      }
+      siteRenderer.render();
+      tts.end();
+      log("Rendered site: "+siteRenderer.getRenderedCount()+" pages rendered, "+siteRenderer.getUnchangedCount()+" unchanged, "+siteRenderer.getCopiedCount()+" files copied ("+Utilities.presentDuration(System.nanoTime() - start)+")");
+      return true;
+    } catch (SiteLiquid.UnsupportedFeatureException e) {
+      tts.end();
+      log("The site can't be rendered natively ("+e.getMessage()+"), so using Jekyll");
+      // and don't try again in watch mode
+      tool = GenerationTool.Jekyll;
+      return runJekyll();
+    }
+  }
+
   private void dumpVars() {
     log("---- Props -------------");
     Properties properties = System.getProperties();
@@ -6796,6 +7315,78 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         saveNativeResourceOutputs(f, r);
     }    
   }
+  /**
+   * what generating the html outputs for a file adds to the package and to the build errors. 
+   * When the files are generated in parallel, this is collected for each file, and added in 
+   * the file order once they're all done, so the package and the qa are the same as for a 
+   * serial run
+   */
+  private class GenerationOutput {
+    private List<Category> categories = new ArrayList<>();
+    private List<String> names = new ArrayList<>();
+    private List<byte[]> contents = new ArrayList<>();
+    private List<ValidationMessage> errors = new ArrayList<>();
+  }
+
+  private void addToPackage(Category category, String name, byte[] content) throws IOException {
+    GenerationOutput go = generationOutput.get();
+    if (go == null) {
+      npm.addFile(category, name, content);
+    } else {
+      go.categories.add(category);
+      go.names.add(name);
+      go.contents.add(content);
+    }
+  }
+
+  private List<ValidationMessage> generationErrors() {
+    GenerationOutput go = generationOutput.get();
+    return go == null ? errors : go.errors;
+  }
+
+  /**
+   * generates the html outputs for each file on a pool of workers. Each file is done by a 
+   * single worker, so the per-file output tracking isn't shared, and the shared output sets 
+   * are synchronized. What goes into the package and the error list is kept for each file 
+   * (see GenerationOutput), and the usage index is built before the workers start.
+   * 
+   * The files are handed out in batches, and the memory budget is checked on this thread 
+   * between them, when none of the workers are using any resources
+   */
+  private void generateHtmlOutputsInParallel(List<FetchedFile> files) throws Exception {
+    Session tts = tt.start("html-generation");
+    long start = System.nanoTime();
+    getUsages(); // not on the workers, since it uses the time tracker
+    int batch = generationThreads * 4;
+    try (WorkerPool pool = new WorkerPool("generator", generationThreads)) {
+      for (int b = 0; b < files.size(); b = b + batch) {
+        List<Future<GenerationOutput>> results = new ArrayList<>();
+        for (FetchedFile f : files.subList(b, Math.min(files.size(), b + batch))) {
+          results.add(pool.submit(() -> {
+            GenerationOutput go = new GenerationOutput();
+            generationOutput.set(go);
+            try {
+              generateHtmlOutputs(f, false);
+            } finally {
+              generationOutput.remove();
+            }
+            return go;
+          }));
+        }
+        for (Future<GenerationOutput> ft : results) {
+          GenerationOutput go = WorkerPool.get(ft);
+          for (int i = 0; i < go.names.size(); i++) {
+            npm.addFile(go.categories.get(i), go.names.get(i), go.contents.get(i));
+          }
+          errors.addAll(go.errors);
+        }
+        checkMemoryBudget();
+      }
+    }
+    tts.end();
+    log("Generated outputs for "+files.size()+" files on "+generationThreads+" threads: "+Utilities.presentDuration(System.nanoTime() - start));
+  }
+
   private void generateHtmlOutputs(FetchedFile f, boolean regen) throws Exception {
     if (f.getProcessMode() == FetchedFile.PROCESS_NONE) {
       String dst = tempDir;
@@ -7216,36 +7807,28 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
    * @throws Exception
    */
   private void saveNativeResourceOutputs(FetchedFile f, FetchedResource r) throws FHIRException, IOException {
-    ByteArrayOutputStream bs = new ByteArrayOutputStream();
-    new org.hl7.fhir.r5.elementmodel.JsonParser(context).compose(r.getElement(), bs, OutputStyle.NORMAL, igpkp.getCanonical());
-    npm.addFile(isExample(f,r ) ? Category.EXAMPLE : Category.RESOURCE, r.fhirType()+"-"+r.getId()+".json", bs.toByteArray());
+    byte[] bs = serialiser.element(r, FhirFormat.JSON, OutputStyle.NORMAL, igpkp.getCanonical());
+    npm.addFile(isExample(f,r ) ? Category.EXAMPLE : Category.RESOURCE, r.fhirType()+"-"+r.getId()+".json", bs);
     String path = Utilities.path(tempDir, "_includes", r.fhirType()+"-"+r.getId()+".json");
-    String json = new String(bs.toByteArray());
-    TextFile.stringToFile(json, path);
+    TextFile.bytesToFile(bs, path);
     path = Utilities.path(tempDir, "_includes", r.fhirType()+"-"+r.getId()+".escaped.json");
-    json = Utilities.escapeXml(json);
+    String json = Utilities.escapeXml(new String(bs));
     TextFile.stringToFile(json, path);
     
     if (igpkp.wantGen(r, "xml") || forHL7orFHIR()) {
       path = Utilities.path(tempDir, r.fhirType()+"-"+r.getId()+".xml");
       f.getOutputNames().add(path);
-      FileOutputStream stream = new FileOutputStream(path);
-      new org.hl7.fhir.r5.elementmodel.XmlParser(context).compose(r.getElement(), stream, OutputStyle.PRETTY, igpkp.getCanonical());
-      stream.close();
+      TextFile.bytesToFile(serialiser.element(r, FhirFormat.XML, OutputStyle.PRETTY, igpkp.getCanonical()), path);
     }
     if (igpkp.wantGen(r, "json") || forHL7orFHIR()) {
       path = Utilities.path(tempDir, r.fhirType()+"-"+r.getId()+".json");
       f.getOutputNames().add(path);
-      FileOutputStream stream = new FileOutputStream(path);
-      new org.hl7.fhir.r5.elementmodel.JsonParser(context).compose(r.getElement(), stream, OutputStyle.PRETTY, igpkp.getCanonical());
-      stream.close();
+      TextFile.bytesToFile(serialiser.element(r, FhirFormat.JSON, OutputStyle.PRETTY, igpkp.getCanonical()), path);
     } 
     if (igpkp.wantGen(r, "ttl")) {
       path = Utilities.path(tempDir, r.fhirType()+"-"+r.getId()+".ttl");
       f.getOutputNames().add(path);
-      FileOutputStream stream = new FileOutputStream(path);
-      new org.hl7.fhir.r5.elementmodel.TurtleParser(context).compose(r.getElement(), stream, OutputStyle.PRETTY, igpkp.getCanonical());
-      stream.close();
+      TextFile.bytesToFile(serialiser.element(r, FhirFormat.TURTLE, OutputStyle.PRETTY, igpkp.getCanonical()), path);
     }    
   }
 
@@ -7358,23 +7941,29 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
     String template = igpkp.getProperty(r, "template-format");
     if (igpkp.wantGen(r, "xml")) {
-      if (tool == GenerationTool.Jekyll)
+      if (tool == GenerationTool.Jekyll || tool == GenerationTool.Native)
         genWrapper(null, r, template, igpkp.getProperty(r, "format"), f.getOutputNames(), vars, "xml", "");
     }
     if (igpkp.wantGen(r, "json")) {
-      if (tool == GenerationTool.Jekyll)
+      if (tool == GenerationTool.Jekyll || tool == GenerationTool.Native)
         genWrapper(null, r, template, igpkp.getProperty(r, "format"), f.getOutputNames(), vars, "json", "");
     } 
 
     if (igpkp.wantGen(r, "ttl")) {
-      if (tool == GenerationTool.Jekyll)
+      if (tool == GenerationTool.Jekyll || tool == GenerationTool.Native)
         genWrapper(null, r, template, igpkp.getProperty(r, "format"), f.getOutputNames(), vars, "ttl", "");
     }
 
     org.hl7.fhir.r5.elementmodel.XmlParser xp = new org.hl7.fhir.r5.elementmodel.XmlParser(context);
-    ByteArrayOutputStream bs = new ByteArrayOutputStream();
-    xp.compose(r.getElement(), bs, OutputStyle.NORMAL, null);
-    int size = bs.size();
+    // the size only decides whether the renderings are highlighted, so the json already made for the package does, if it's still kept
+    int size;
+    if (serialiser.hasElement(r, FhirFormat.JSON, OutputStyle.NORMAL, igpkp.getCanonical())) {
+      size = serialiser.element(r, FhirFormat.JSON, OutputStyle.NORMAL, igpkp.getCanonical()).length;
+    } else {
+      ByteArrayOutputStream bs = new ByteArrayOutputStream();
+      xp.compose(r.getElement(), bs, OutputStyle.NORMAL, null);
+      size = bs.size();
+    }
     
     if (igpkp.wantGen(r, "xml-html")) {
       XmlXHtmlRenderer x = new XmlXHtmlRenderer();
@@ -7877,7 +8466,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       new OpenApiGenerator(context, cpbs, oa).generate(displ, "http://spdx.org/licenses/"+lic+".html");
       oa.commit();
       otherFilesRun.add(Utilities.path(tempDir, cpbs.getId()+ ".openapi.json"));
-      npm.addFile(Category.OPENAPI, cpbs.getId()+ ".openapi.json", TextFile.fileToBytes(Utilities.path(tempDir, cpbs.getId()+ ".openapi.json")));
+      addToPackage(Category.OPENAPI, cpbs.getId()+ ".openapi.json", TextFile.fileToBytes(Utilities.path(tempDir, cpbs.getId()+ ".openapi.json")));
     }
   }
 
@@ -7896,6 +8485,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       fragmentError("StructureDefinition-"+prefixForContainer+sd.getId()+"-json-schema", "yet to be done: json schema as html", null, f.getOutputNames());
 
     StructureDefinitionRenderer sdr = new StructureDefinitionRenderer(context, checkAppendSlash(specPath), sd, Utilities.path(tempDir), igpkp, specMaps, markdownEngine, packge, fileList, rc, allInvariants);
+    sdr.setUsages(getUsages());
     if (igpkp.wantGen(r, "summary")) {
       fragment("StructureDefinition-"+prefixForContainer+sd.getId()+"-summary", sdr.summary(), f.getOutputNames(), r, vars, null);
     }
@@ -7967,7 +8557,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (igpkp.wantGen(r, "csv")) {
       String path = Utilities.path(tempDir, sdPrefix + r.getId()+".csv");
       f.getOutputNames().add(path);
-      new ProfileUtilities(context, errors, igpkp).generateCsvs(new FileOutputStream(path), sd, true);
+      new ProfileUtilities(context, generationErrors(), igpkp).generateCsvs(new FileOutputStream(path), sd, true);
     }
 
     if (igpkp.wantGen(r, "java")) {
@@ -7990,8 +8580,8 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     if (!regen && sd.getKind() != StructureDefinitionKind.LOGICAL &&  igpkp.wantGen(r, "sch")) {
       String path = Utilities.path(tempDir, sdPrefix + r.getId()+".sch");
       f.getOutputNames().add(path);
-      new ProfileUtilities(context, errors, igpkp).generateSchematrons(new FileOutputStream(path), sd);
-      npm.addFile(Category.SCHEMATRON, sdPrefix + r.getId()+".sch", IOUtils.toByteArray(Utilities.path(tempDir, sdPrefix + r.getId()+".sch")));
+      new ProfileUtilities(context, generationErrors(), igpkp).generateSchematrons(new FileOutputStream(path), sd);
+      addToPackage(Category.SCHEMATRON, sdPrefix + r.getId()+".sch", IOUtils.toByteArray(Utilities.path(tempDir, sdPrefix + r.getId()+".sch")));
     }
     if (igpkp.wantGen(r, "sch"))
       fragmentError("StructureDefinition-"+prefixForContainer+sd.getId()+"-sch", "yet to be done: schematron as html", null, f.getOutputNames());
@@ -8278,7 +8868,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       igPack = s;
   }
 
-  private static String getNamedParam(String[] args, String param) {
+  static String getNamedParam(String[] args, String param) {
     boolean found = false;
     for (String a : args) {
       if (found)
@@ -8290,7 +8880,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return null;
   }
 
-  private static boolean hasNamedParam(String[] args, String param) {
+  static boolean hasNamedParam(String[] args, String param) {
     for (String a : args) {
       if (a.equals(param)) {
         return true;
@@ -8308,6 +8898,30 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return Utilities.path(outputDir, "qa.html");
   }
 
+  /**
+   * @return the content of qa.json, or null if the build didn't get far enough to produce it
+   */
+  public JsonObject getQAOutcome() {
+    try {
+      File f = new File(Utilities.path(destDir != null ? destDir : outputDir, "qa.json"));
+      if (f.exists()) {
+        return new com.google.gson.JsonParser().parse(TextFile.fileToString(f)).getAsJsonObject();
+      }
+    } catch (Exception e) {
+      // nothing
+    }
+    return null;
+  }
+
+  /**
+   * the report that is left in the temp directory after a build
+   *
+   * @param log - what the build wrote to the console
+   */
+  public String getBuildReport(String ig, String log) throws Exception {
+    return buildReport(ig, null, log, Utilities.path(qaDir, "validation.txt"), txServer);
+  }
+
   @Override
   public void logMessage(String msg) {
     if (firstExecution)
@@ -8318,11 +8932,18 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
   @Override
   public void logDebugMessage(LogCategory category, String msg) {
-    if (logOptions.contains(category.toString().toLowerCase())) {
+    if (isLogging(category)) {
       logMessage(msg);
   }
   }
 
+  /**
+   * whether the debug messages in the category are wanted (see the ig's log settings)
+   */
+  boolean isLogging(LogCategory category) {
+    return logOptions.contains(category.toString().toLowerCase());
+  }
+
   public static void prop(StringBuilder b, String name, String value) {
     b.append(name+": ");
     b.append(value);
@@ -8408,6 +9029,25 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       System.out.println("");
       System.out.println("-packages: a directory to load packages (*.tgz) from before resolving dependencies");
       System.out.println("           this parameter can be present multiple times");
+      System.out.println("-validation-threads [n] (optional): validate resources on n threads (default 1)");
+      System.out.println("-generation-threads [n] (optional): generate the resource html outputs on n threads (default 1)");
+      System.out.println("-memory-budget [mb] (optional): once validated, spill the least recently used resources to disk when they take more than this (default: no limit)");
+      System.out.println("-compact-resources (optional): keep the resources over the memory budget in memory in a compact form instead of on disk (with no budget, all resources not in use)");
+      System.out.println("-core-snapshot (optional): load the core specification from a snapshot saved by an earlier run (saving one if there isn't one)");
+      System.out.println("-verify-core-snapshot (optional): load the core specification from the package, and report any differences from the snapshot");
+      System.out.println("-native-site (optional): render the jekyll site in process instead of running Jekyll");
+      System.out.println("  (Jekyll is still used if the site uses features the native renderer doesn't support)");
+      System.out.println("");
+      System.out.println("To avoid loading the core specification for every build, the publisher can be left running:");
+      System.out.println("");
+      System.out.println("-daemon [-daemon-port n]: wait for builds on a local port (default "+PublisherDaemon.DEFAULT_PORT+")");
+      System.out.println("-use-daemon [-daemon-port n] -ig [source] ...: have the running publisher do the build, with the other parameters as usual (except -prompt and -proxy)");
+      System.out.println("  (the daemon only takes builds from clients that can read the token it writes to fhir-ig-publisher-daemon-[port].token in the home folder)");
+      System.out.println("");
+      System.out.println("-multi [file]: build each of the IGs listed in the file (one per line), loading the core specification once");
+      System.out.println("  -multi-builds [n] (optional): build n IGs at a time (default 1)");
+      System.out.println("  -multi-threads [n] (optional): threads to share between the IGs being built at the same time (for validation, generation, and the other parallel work)");
+      System.out.println("  -multi-memory [mb] (optional): memory to share between the IGs being built at the same time, as their memory budgets");
       System.out.println("");
       System.out.println("The most important output from the publisher is qa.html");
       System.out.println("");
@@ -8488,39 +9128,36 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       IGRegistryMaintainer reg = "n/a".equals(registry) ? null : new IGRegistryMaintainer(registry);
       IGWebSiteMaintainer.execute(f.getAbsolutePath(), reg, doCore, filter);
       reg.finish();      
+    } else if (hasNamedParam(args, "-daemon")) {
+      new PublisherDaemon(daemonPort(args)).serve();
+    } else if (hasNamedParam(args, "-use-daemon")) {
+      List<String> list = new ArrayList<>();
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-daemon-port")) {
+          i++;
+        } else if (!args[i].equals("-use-daemon")) {
+          list.add(args[i]);
+        }
+      }
+      exitCode = PublisherDaemon.submit(daemonPort(args), list.toArray(new String[list.size()]));
     } else if (hasNamedParam(args, "-multi")) {
-      int i = 1;
+      List<String> igs = new ArrayList<>();
       for (String ig : TextFile.fileToString(getNamedParam(args, "-multi")).split("\\r?\\n")) {
         if (!ig.startsWith(";")) {
-          System.out.println("=======================================================================================");
-          System.out.println("Publish IG "+ig);
-          Publisher self = new Publisher();
-          self.setConfigFile(determineActualIG(ig, null));
-          setTxServerValue(args, self);
-          if (hasNamedParam(args, "-resetTx")) {
-            self.setCacheOption(CacheOption.CLEAR_ALL);
-          } else if (hasNamedParam(args, "-resetTxErrors")) {
-            self.setCacheOption(CacheOption.CLEAR_ERRORS);
-          } else {
-            self.setCacheOption(CacheOption.LEAVE);
-          }
-          try {
-            self.execute();
-          } catch (Exception e) {
-            exitCode = 1;
-            System.out.println("Publishing Implementation Guide Failed: "+e.getMessage());
-            System.out.println("");
-            System.out.println("Stack Dump (for debugging):");
-            e.printStackTrace();
-            break;
-          }
-          TextFile.stringToFile(buildReport(ig, null, self.filelog.toString(), Utilities.path(self.qaDir, "validation.txt"), self.txServer), Utilities.path(System.getProperty("java.io.tmpdir"), "fhir-ig-publisher-"+Integer.toString(i)+".log"), false);
-          System.out.println("=======================================================================================");
-          System.out.println("");
-          System.out.println("");
-          i++;
+          igs.add(ig);
         }
       }
+      MultiBuildScheduler mbs = new MultiBuildScheduler(args);
+      if (hasNamedParam(args, "-multi-builds")) {
+        mbs.setBuilds(Integer.parseInt(getNamedParam(args, "-multi-builds")));
+      }
+      if (hasNamedParam(args, "-multi-threads")) {
+        mbs.setThreads(Integer.parseInt(getNamedParam(args, "-multi-threads")));
+      }
+      if (hasNamedParam(args, "-multi-memory")) {
+        mbs.setMemory(Integer.parseInt(getNamedParam(args, "-multi-memory")));
+      }
+      exitCode = mbs.execute(igs);
     } else {
       Publisher self = new Publisher();
       String consoleLog = getNamedParam(args, "log");
@@ -8545,121 +9182,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
       self.logMessage(s);
       self.logMessage("Start Clock @ "+nowAsString(self.execTime)+" ("+nowAsDate(self.execTime)+")");
       self.logMessage("");
-      if (hasNamedParam(args, "-auto-ig-build")) {
-        self.setMode(IGBuildMode.AUTOBUILD);
-        self.targetOutput = getNamedParam(args, "-target");
-      }
-      if (hasNamedParam(args, "-api-key-file")) {
-        self.apiKeyFile = new IniFile(new File(getNamedParam(args, "-api-key-file")).getAbsolutePath());
-      }
-
-      setTxServerValue(args, self);
-      if (hasNamedParam(args, "-source")) {
-        // run with standard template. this is publishing lite
-        self.setSourceDir(getNamedParam(args, "-source"));
-        self.setDestDir(getNamedParam(args, "-destination"));
-        self.specifiedVersion = getNamedParam(args, "-version");
-      } else if(!hasNamedParam(args, "-ig") && args.length == 1 && new File(args[0]).exists()) {
-        self.setConfigFile(determineActualIG(args[0], IGBuildMode.MANUAL));
-      } else if (hasNamedParam(args, "-prompt")) {
-        IniFile ini = new IniFile("publisher.ini");
-        String last = ini.getStringProperty("execute", "path");
-        boolean ok = false;
-        if (Utilities.noString(last)) {
-          while (!ok) {
-            System.out.print("Enter path of IG: ");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            last = reader.readLine();
-            if (new File(last).exists()) {
-              ok = true;
-            } else {
-              System.out.println("Can't find "+last);
-            }
-          } 
-        } else {
-          while (!ok) {
-            System.out.print("Enter path of IG ["+last+"]: ");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            String nlast = reader.readLine();
-            if (Utilities.noString(nlast))
-              nlast = last;
-            if (new File(nlast).exists()) {
-              ok = true;
-              last = nlast;
-            } else {
-              System.out.println("Can't find "+nlast);
-            }
-          }
-        }
-        ini.setStringProperty("execute", "path", last, null);
-        ini.save();
-        if (new File(last).isDirectory()) {
-          self.setConfigFile(determineActualIG(Utilities.path(last, "ig.json"), IGBuildMode.MANUAL));
-        } else {
-          self.setConfigFile(determineActualIG(last, IGBuildMode.MANUAL));
-        }
-      } else if (hasNamedParam(args, "-simplifier")) {
-        if (!hasNamedParam(args, "-destination")) {
-          throw new Exception("A destination folder (-destination) must be provided for the output from processing the simplifier IG");
-        }
-        if (!hasNamedParam(args, "-canonical")) {
-          throw new Exception("A canonical URL (-canonical) must be provided in order to process a simplifier IG");
-        }
-        if (!hasNamedParam(args, "-npm-name")) {
-          throw new Exception("A package name (-npm-name) must be provided in order to process a simplifier IG");
-        }
-        if (!hasNamedParam(args, "-license")) {
-          throw new Exception("A license code (-license) must be provided in order to process a simplifier IG");
-        }
-        List<String> packages = new ArrayList<String>();
-        for (int i = 0; i < args.length; i++) {
-          if (args[i].equals("-dependsOn")) { 
-            packages.add(args[i+1]);
-          }
-        }
-        // create an appropriate ig.json in the specified folder
-        self.setConfigFile(generateIGFromSimplifier(getNamedParam(args, "-simplifier"), getNamedParam(args, "-destination"), getNamedParam(args, "-canonical"), getNamedParam(args, "-npm-name"), getNamedParam(args, "-license"), packages));
-        self.folderToDelete = Utilities.getDirectoryForFile(self.getConfigFile());
-      } else {
-        self.setConfigFile(determineActualIG(getNamedParam(args, "-ig"), self.mode));
-        if (Utilities.noString(self.getConfigFile())) {
-          throw new Exception("No Implementation Guide Specified (-ig parameter)");
-        }
-        if (!(new File(self.getConfigFile()).isAbsolute())) {
-          self.setConfigFile(Utilities.path(System.getProperty("user.dir"), self.getConfigFile()));
-        }
-      }
-      self.setJekyllCommand(getNamedParam(args, "-jekyll"));
-      self.setIgPack(getNamedParam(args, "-spec"));
-      String proxy = getNamedParam(args, "-proxy");
-      if (!Utilities.noString(proxy)) {
-        String[] p = proxy.split("\\:");
-        System.setProperty("http.proxyHost", p[0]);
-        System.setProperty("http.proxyPort", p[1]);
-        System.setProperty("https.proxyHost", p[0]);
-        System.setProperty("https.proxyPort", p[1]);
-      }
-      self.setTxServer(getNamedParam(args, "-tx"));
-      self.setPackagesFolder(getNamedParam(args, "-packages"));
-      self.watch = hasNamedParam(args, "-watch");
-      self.debug = hasNamedParam(args, "-debug");
-      self.cacheVersion = hasNamedParam(args, "-cacheVersion");
-      if (hasNamedParam(args, "-publish")) {
-        self.setMode(IGBuildMode.PUBLICATION);
-        self.targetOutput = getNamedParam(args, "-publish");   
-        self.publishing  = true;
-        self.targetOutputNested = getNamedParam(args, "-nested");        
-      }
-      if (hasNamedParam(args, "-resetTx")) {
-        self.setCacheOption(CacheOption.CLEAR_ALL);
-      } else if (hasNamedParam(args, "-resetTxErrors")) {
-        self.setCacheOption(CacheOption.CLEAR_ERRORS);
-      } else {
-        self.setCacheOption(CacheOption.LEAVE);
-      }
-      if (hasNamedParam(args, "-no-sushi")) {
-        self.noFSH = true;
-      }
+      configure(self, args);
       try {
         self.execute();
         if (hasNamedParam(args, "-no-errors")) {
@@ -8695,6 +9218,152 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     }
   }
 
+  /**
+   * set the publisher up from the command line parameters for a build 
+   */
+  static void configure(Publisher self, String[] args) throws Exception {
+    if (hasNamedParam(args, "-auto-ig-build")) {
+      self.setMode(IGBuildMode.AUTOBUILD);
+      self.targetOutput = getNamedParam(args, "-target");
+    }
+    if (hasNamedParam(args, "-api-key-file")) {
+      self.apiKeyFile = new IniFile(new File(getNamedParam(args, "-api-key-file")).getAbsolutePath());
+    }
+
+    setTxServerValue(args, self);
+    if (hasNamedParam(args, "-source")) {
+      // run with standard template. this is publishing lite
+      self.setSourceDir(getNamedParam(args, "-source"));
+      self.setDestDir(getNamedParam(args, "-destination"));
+      self.specifiedVersion = getNamedParam(args, "-version");
+    } else if(!hasNamedParam(args, "-ig") && args.length == 1 && new File(args[0]).exists()) {
+      self.setConfigFile(determineActualIG(args[0], IGBuildMode.MANUAL));
+    } else if (hasNamedParam(args, "-prompt")) {
+      IniFile ini = new IniFile("publisher.ini");
+      String last = ini.getStringProperty("execute", "path");
+      boolean ok = false;
+      if (Utilities.noString(last)) {
+        while (!ok) {
+          System.out.print("Enter path of IG: ");
+          BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+          last = reader.readLine();
+          if (new File(last).exists()) {
+            ok = true;
+          } else {
+            System.out.println("Can't find "+last);
+          }
+        } 
+      } else {
+        while (!ok) {
+          System.out.print("Enter path of IG ["+last+"]: ");
+          BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+          String nlast = reader.readLine();
+          if (Utilities.noString(nlast))
+            nlast = last;
+          if (new File(nlast).exists()) {
+            ok = true;
+            last = nlast;
+          } else {
+            System.out.println("Can't find "+nlast);
+          }
+        }
+      }
+      ini.setStringProperty("execute", "path", last, null);
+      ini.save();
+      if (new File(last).isDirectory()) {
+        self.setConfigFile(determineActualIG(Utilities.path(last, "ig.json"), IGBuildMode.MANUAL));
+      } else {
+        self.setConfigFile(determineActualIG(last, IGBuildMode.MANUAL));
+      }
+    } else if (hasNamedParam(args, "-simplifier")) {
+      if (!hasNamedParam(args, "-destination")) {
+        throw new Exception("A destination folder (-destination) must be provided for the output from processing the simplifier IG");
+      }
+      if (!hasNamedParam(args, "-canonical")) {
+        throw new Exception("A canonical URL (-canonical) must be provided in order to process a simplifier IG");
+      }
+      if (!hasNamedParam(args, "-npm-name")) {
+        throw new Exception("A package name (-npm-name) must be provided in order to process a simplifier IG");
+      }
+      if (!hasNamedParam(args, "-license")) {
+        throw new Exception("A license code (-license) must be provided in order to process a simplifier IG");
+      }
+      List<String> packages = new ArrayList<String>();
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-dependsOn")) { 
+          packages.add(args[i+1]);
+        }
+      }
+      // create an appropriate ig.json in the specified folder
+      self.setConfigFile(generateIGFromSimplifier(getNamedParam(args, "-simplifier"), getNamedParam(args, "-destination"), getNamedParam(args, "-canonical"), getNamedParam(args, "-npm-name"), getNamedParam(args, "-license"), packages));
+      self.folderToDelete = Utilities.getDirectoryForFile(self.getConfigFile());
+    } else {
+      self.setConfigFile(determineActualIG(getNamedParam(args, "-ig"), self.mode));
+      if (Utilities.noString(self.getConfigFile())) {
+        throw new Exception("No Implementation Guide Specified (-ig parameter)");
+      }
+      if (!(new File(self.getConfigFile()).isAbsolute())) {
+        self.setConfigFile(Utilities.path(System.getProperty("user.dir"), self.getConfigFile()));
+      }
+    }
+    self.setJekyllCommand(getNamedParam(args, "-jekyll"));
+    if (hasNamedParam(args, "-native-site")) {
+      self.setTool(GenerationTool.Native);
+    }
+    self.setIgPack(getNamedParam(args, "-spec"));
+    String proxy = getNamedParam(args, "-proxy");
+    if (!Utilities.noString(proxy)) {
+      String[] p = proxy.split("\\:");
+      System.setProperty("http.proxyHost", p[0]);
+      System.setProperty("http.proxyPort", p[1]);
+      System.setProperty("https.proxyHost", p[0]);
+      System.setProperty("https.proxyPort", p[1]);
+    }
+    self.setTxServer(getNamedParam(args, "-tx"));
+    self.setPackagesFolder(getNamedParam(args, "-packages"));
+    self.watch = hasNamedParam(args, "-watch");
+    self.debug = hasNamedParam(args, "-debug");
+    self.cacheVersion = hasNamedParam(args, "-cacheVersion");
+    if (hasNamedParam(args, "-publish")) {
+      self.setMode(IGBuildMode.PUBLICATION);
+      self.targetOutput = getNamedParam(args, "-publish");   
+      self.publishing  = true;
+      self.targetOutputNested = getNamedParam(args, "-nested");        
+    }
+    if (hasNamedParam(args, "-resetTx")) {
+      self.setCacheOption(CacheOption.CLEAR_ALL);
+    } else if (hasNamedParam(args, "-resetTxErrors")) {
+      self.setCacheOption(CacheOption.CLEAR_ERRORS);
+    } else {
+      self.setCacheOption(CacheOption.LEAVE);
+    }
+    if (hasNamedParam(args, "-no-sushi")) {
+      self.noFSH = true;
+    }
+    if (hasNamedParam(args, "-validation-threads")) {
+      self.setValidationThreads(Integer.parseInt(getNamedParam(args, "-validation-threads")));
+    }
+    if (hasNamedParam(args, "-generation-threads")) {
+      self.setGenerationThreads(Integer.parseInt(getNamedParam(args, "-generation-threads")));
+    }
+    if (hasNamedParam(args, "-memory-budget")) {
+      self.setMemoryBudget(Integer.parseInt(getNamedParam(args, "-memory-budget")));
+    }
+    if (hasNamedParam(args, "-compact-resources")) {
+      self.setCompactResources(true);
+    }
+    if (hasNamedParam(args, "-core-snapshot")) {
+      self.setCoreSnapshot(true);
+    }
+    if (hasNamedParam(args, "-verify-core-snapshot")) {
+      self.setVerifyCoreSnapshot(true);
+    }
+  }
+
+  private static int daemonPort(String[] args) {
+    return hasNamedParam(args, "-daemon-port") ? Integer.parseInt(getNamedParam(args, "-daemon-port")) : PublisherDaemon.DEFAULT_PORT;
+  }
+
   public static void setTxServerValue(String[] args, Publisher self) {
     if (hasNamedParam(args, "-tx")) {
       self.setTxServer(getNamedParam(args, "-tx"));
@@ -8790,6 +9459,14 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
     return this.jekyllCommand;
   }
 
+  public GenerationTool getTool() {
+    return tool;
+  }
+
+  public void setTool(GenerationTool tool) {
+    this.tool = tool;
+  }
+
   public static String determineActualIG(String ig, IGBuildMode mode) throws Exception {
     if (ig.startsWith("http://") || ig.startsWith("https://")) {
       ig = convertUrlToLocalIg(ig);
@@ -9067,7 +9744,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
 
 
   @Override
-  public void recordProfileUsage(StructureDefinition profile, Object appContext, Element element) {
+  public synchronized void recordProfileUsage(StructureDefinition profile, Object appContext, Element element) {
     if (profile.getUrl().startsWith(igpkp.getCanonical())) { // ignore anything we didn't define
       FetchedResource example;
       if (appContext instanceof ValidatorHostContext) {
@@ -9076,14 +9753,7 @@ public class Publisher implements IWorkerContext.ILoggingService, IReferenceReso
         example= (FetchedResource) ((Element) appContext).getUserData("igpub.context.resource");
       }
       if (example != null) {
-        FetchedResource source = null;
-        for (FetchedFile f : fileList) {
-          for (FetchedResource r : f.getResources()) {
-            if (r.getResource() == profile) {
-              source = r;
-            }
-          }
-        }
+        FetchedResource source = registry.getByResource(profile);
         if (source != null) {
           source.addFoundExample(example);
           example.getFoundProfiles().add(profile.getUrl());
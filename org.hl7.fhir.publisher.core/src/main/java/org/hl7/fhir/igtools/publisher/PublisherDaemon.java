@@ -0,0 +1,377 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Keeps the publisher running between builds, so that the core contexts (and the package
+ * cache) are only loaded once, instead of once per build.
+ *
+ * Builds are requested over a socket on the loopback interface. The request is a single
+ * line of json: {"token" : "[token]", "dir" : "[working directory]", "args" : ["-ig", "...", ...]}, 
+ * with the same parameters as the command line, apart from -prompt and -proxy, which would 
+ * change the daemon rather than the build. The token is written to a file in the user's home 
+ * folder that only they can read when the daemon starts, so that only they can ask for builds. 
+ * The progress (and anything else the build writes to the console) is sent back a line at a 
+ * time as the build runs, followed by a line "#qa [json]" with the contents of qa.json (or the 
+ * error), and a line "#exit [code]".
+ *
+ * Each connection is handled on its own thread, so a client that is slow to send its request
+ * (it has REQUEST_TIMEOUT to send at most MAX_REQUEST bytes) doesn't hold up the others. Builds
+ * are done one at a time, in the order they get the build lock. Each build gets its own
+ * copy of the core context (see CoreContextCache), so nothing one IG loads is seen by the
+ * next.
+ */
+public class PublisherDaemon {
+
+  public static final int DEFAULT_PORT = 8071;
+
+  private static final String[] PATH_PARAMS = new String[] {"-ig", "-source", "-destination", "-packages", "-spec", "-api-key-file"};
+  private static final String[] DAEMON_PARAMS = new String[] {"-prompt", "-proxy"};
+  private static final int REQUEST_TIMEOUT = 30000; // ms
+  private static final int MAX_REQUEST = 64 * 1024; // bytes
+  private static final int CONNECTIONS = 4; // handled at once; the rest wait to be accepted
+
+  private int port;
+  private File tokenFile;
+  private int requestTimeout;
+  private String token;
+  private CoreContextCache coreContexts = new CoreContextCache();
+  private int builds;
+  private Object buildLock = new Object();
+  private PrintStream console = System.out; // the daemon's own, not a build's
+
+  public PublisherDaemon(int port) {
+    this(port, null, REQUEST_TIMEOUT);
+  }
+
+  /**
+   * for testing: port 0 is any free port, and the token file can be somewhere other than the user's home folder
+   */
+  PublisherDaemon(int port, File tokenFile, int requestTimeout) {
+    super();
+    this.port = port;
+    this.tokenFile = tokenFile;
+    this.requestTimeout = requestTimeout;
+  }
+
+  private class SocketLogger implements ILoggingService {
+    private PrintWriter out;
+    private Publisher publisher; // for the log options, once it has them
+
+    private SocketLogger(PrintWriter out) {
+      this.out = out;
+    }
+
+    @Override
+    public void logMessage(String msg) {
+      synchronized (out) {
+        // the protocol is line based, and lines starting with # are ours
+        for (String l : msg.split("\\r?\\n")) {
+          out.println(l.startsWith("#") ? " "+l : l);
+        }
+        out.flush();
+      }
+    }
+
+    @Override
+    public void logDebugMessage(LogCategory category, String msg) {
+      if (publisher != null && publisher.isLogging(category)) {
+        logMessage(msg);
+      }
+    }
+  }
+
+  /**
+   * what the build writes to System.out and System.err, sent on a line at a time
+   */
+  private class SocketStream extends OutputStream {
+    private SocketLogger logger;
+    private ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    private SocketStream(SocketLogger logger) {
+      this.logger = logger;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      if (b == '\n') {
+        finish();
+      } else if (b != '\r') {
+        line.write(b);
+      }
+    }
+
+    private synchronized void finish() {
+      if (line.size() > 0) {
+        logger.logMessage(new String(line.toByteArray(), StandardCharsets.UTF_8));
+        line.reset();
+      }
+    }
+  }
+
+  public static File tokenFile(int port) throws IOException {
+    return new File(Utilities.path(System.getProperty("user.home"), "fhir-ig-publisher-daemon-"+port+".token"));
+  }
+
+  /**
+   * a new token for each time the daemon is started, readable only by the user running it
+   */
+  private void writeToken() throws IOException {
+    byte[] b = new byte[32];
+    new SecureRandom().nextBytes(b);
+    token = ContentDigest.toHex(b);
+    File f = tokenFile;
+    f.delete();
+    f.createNewFile();
+    f.setReadable(false, false);
+    f.setWritable(false, false);
+    if (!f.setReadable(true, true) || !f.setWritable(true, true)) {
+      throw new IOException("Unable to restrict access to "+f.getAbsolutePath());
+    }
+    TextFile.stringToFile(token, f.getAbsolutePath(), false);
+    f.deleteOnExit();
+  }
+
+  public void serve() throws IOException {
+    try (ServerSocket server = start()) {
+      serve(server);
+    }
+  }
+
+  /**
+   * listens on the port (and writes the token file), ready for serve(server)
+   */
+  ServerSocket start() throws IOException {
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    try {
+      if (tokenFile == null) {
+        tokenFile = tokenFile(port);
+      }
+      writeToken();
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    return server;
+  }
+
+  /**
+   * handles connections until the server is closed
+   */
+  void serve(ServerSocket server) throws IOException {
+    console.println("FHIR IG Publisher "+IGVersionUtil.getVersionString()+" waiting for builds on "+server.getLocalSocketAddress()+" (token in "+tokenFile.getAbsolutePath()+")");
+    try (WorkerPool pool = new WorkerPool("daemon-connection", CONNECTIONS)) {
+      while (true) {
+        Socket socket;
+        try {
+          socket = server.accept();
+        } catch (SocketException e) {
+          if (server.isClosed()) {
+            return;
+          }
+          throw e;
+        }
+        pool.submit(() -> {
+          try (Socket s = socket) {
+            handle(s);
+          } catch (Exception e) {
+            // the client went away - nothing to tell it
+            console.println("Build request failed: "+e.getMessage());
+          }
+          return null;
+        });
+      }
+    }
+  }
+
+  private void handle(Socket socket) throws IOException {
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    SocketLogger logger = new SocketLogger(out);
+    String[] args;
+    try {
+      socket.setSoTimeout(requestTimeout);
+      args = readRequest(readLine(new BufferedInputStream(socket.getInputStream())));
+      socket.setSoTimeout(0);
+    } catch (Exception e) {
+      console.println("Build request refused: "+e.getMessage());
+      logger.logMessage("Build request refused: "+e.getMessage());
+      synchronized (out) {
+        out.println("#exit 1");
+        out.flush();
+      }
+      return;
+    }
+    synchronized (buildLock) {
+      build(args, logger);
+    }
+  }
+
+  private void build(String[] args, SocketLogger logger) throws IOException {
+    PrintWriter out = logger.out;
+    int exitCode = 1;
+    String qa = null;
+    PrintStream consoleErr = System.err;
+    SocketStream stream = new SocketStream(logger);
+    try {
+      builds++;
+      console.println("Build #"+builds+": "+String.join(" ", args));
+      // builds are one at a time, so while this one runs, the console is its
+      PrintStream ps = new PrintStream(stream, true, "UTF-8");
+      System.setOut(ps);
+      System.setErr(ps);
+      Publisher self = new Publisher();
+      logger.publisher = self;
+      self.setLogger(logger);
+      self.setCoreContexts(coreContexts);
+      Publisher.configure(self, args);
+      if (self.isWatch()) {
+        throw new Exception("-watch can't be used with the daemon");
+      }
+      try {
+        self.execute();
+        exitCode = 0;
+      } finally {
+        JsonObject json = self.getQAOutcome();
+        qa = json == null ? null : new Gson().toJson(json);
+      }
+    } catch (Exception e) {
+      logger.logMessage("Publishing Content Failed: "+e.getMessage());
+      if (qa == null) {
+        JsonObject j = new JsonObject();
+        j.addProperty("exception", e.getMessage());
+        qa = new Gson().toJson(j);
+      }
+    } finally {
+      System.out.flush();
+      System.err.flush();
+      System.setOut(console);
+      System.setErr(consoleErr);
+      stream.finish();
+    }
+    logger.logMessage(coreContexts.report());
+    synchronized (out) {
+      out.println("#qa "+qa);
+      out.println("#exit "+exitCode);
+      out.flush();
+    }
+  }
+
+  /**
+   * the request line, up to MAX_REQUEST bytes (or null, if the client closed the connection without sending one)
+   */
+  private String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    try {
+      while ((b = in.read()) != -1 && b != '\n') {
+        if (line.size() == MAX_REQUEST) {
+          throw new IOException("The build request is longer than "+MAX_REQUEST+" bytes");
+        }
+        if (b != '\r') {
+          line.write(b);
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      throw new IOException("No build request within "+(requestTimeout / 1000)+" seconds");
+    }
+    return b == -1 && line.size() == 0 ? null : new String(line.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * the paths are relative to the directory the client was run in, not the daemon's
+   */
+  private String[] readRequest(String line) throws Exception {
+    if (line == null) {
+      throw new Exception("No build request");
+    }
+    JsonObject json = new com.google.gson.JsonParser().parse(line).getAsJsonObject();
+    String t = json.has("token") ? json.get("token").getAsString() : "";
+    if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), t.getBytes(StandardCharsets.UTF_8))) {
+      throw new Exception("The build request doesn't have the token from "+tokenFile.getAbsolutePath());
+    }
+    String dir = json.has("dir") ? json.get("dir").getAsString() : null;
+    List<String> args = new ArrayList<>();
+    for (JsonElement e : json.getAsJsonArray("args")) {
+      args.add(e.getAsString());
+      if (Utilities.existsInList(e.getAsString(), DAEMON_PARAMS)) {
+        throw new Exception(e.getAsString()+" can't be used with the daemon");
+      }
+    }
+    if (dir != null) {
+      for (int i = 0; i < args.size(); i++) {
+        boolean path = (i > 0 && Utilities.existsInList(args.get(i-1), PATH_PARAMS)) || (args.size() == 1 && !args.get(i).startsWith("-"));
+        if (path && !new File(args.get(i)).isAbsolute() && !args.get(i).contains("://")) {
+          args.set(i, Utilities.path(dir, args.get(i)));
+        }
+      }
+    }
+    return args.toArray(new String[args.size()]);
+  }
+
+  /**
+   * sends a build request to a running daemon, and shows the progress as it comes back
+   *
+   * @return the exit code for the build
+   */
+  public static int submit(int port, String[] args) throws IOException {
+    File f = tokenFile(port);
+    if (!f.exists()) {
+      throw new IOException("No publisher daemon is running on port "+port+" ("+f.getAbsolutePath()+" not found)");
+    }
+    JsonObject json = new JsonObject();
+    json.addProperty("token", TextFile.fileToString(f).trim());
+    json.addProperty("dir", System.getProperty("user.dir"));
+    JsonArray arr = new JsonArray();
+    json.add("args", arr);
+    for (String a : args) {
+      arr.add(a);
+    }
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+      out.println(new Gson().toJson(json));
+      out.flush();
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      String line;
+      int exitCode = 1;
+      while ((line = in.readLine()) != null) {
+        if (line.startsWith("#exit ")) {
+          exitCode = Integer.parseInt(line.substring(6).trim());
+        } else if (line.startsWith("#qa ")) {
+          System.out.println("QA: "+line.substring(4));
+        } else {
+          System.out.println(line);
+        }
+      }
+      return exitCode;
+    }
+  }
+}
@@ -41,6 +41,10 @@ public class PublisherLoader implements ILoaderKnowledgeProvider {
                                    "SearchParameter", "OperationDefinition", "CapabilityStatement", "Conformance",
                                    "Questionnaire", "ImplementationGuide",
                                    "Measure"};
+    return makeLoader(types);
+  }
+
+  public IContextResourceLoader makeLoader(String[] types) {
     if (VersionUtilities.isR2Ver(npm.fhirVersion())) {
       return new R2ToR5Loader(types, this);
     } else if (VersionUtilities.isR2BVer(npm.fhirVersion())) {
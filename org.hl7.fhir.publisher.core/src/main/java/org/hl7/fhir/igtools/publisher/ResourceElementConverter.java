@@ -0,0 +1,134 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Element.SpecialElement;
+import org.hl7.fhir.r5.elementmodel.Property;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.Narrative;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.xhtml.XhtmlComposer;
+import org.hl7.fhir.utilities.xhtml.XhtmlParser;
+
+/**
+ * Converts an R5 resource directly to an element model, without writing it to JSON and
+ * parsing it again.
+ *
+ * The element tree is built the same way the element model JsonParser builds it from the
+ * JSON that the R5 JsonParser would produce: children in definition order, empty elements
+ * left out (except inside lists that have content), choice elements named by type, and
+ * narrative carried as both the xhtml string and the parsed node.
+ *
+ * This only works when the context and the resource are the same FHIR version. If the
+ * converter finds anything it doesn't account for (content with no definition, or
+ * comments), it returns null, and the caller should use the JSON route instead.
+ *
+ * Out of scope, on purpose: IGs for other FHIR versions (the resource has to go through the
+ * version convertors, which work on the version specific models, so there's no R5 tree to
+ * walk), and the other direction (element model to R5 resource), which is done much less
+ * often. Both still go through JSON (see Publisher.convertToElement/convertFromElement).
+ */
+public class ResourceElementConverter {
+
+  private static class UnsupportedContent extends Exception {
+    private static final long serialVersionUID = 1L;
+  }
+
+  private IWorkerContext context;
+
+  public ResourceElementConverter(IWorkerContext context) {
+    super();
+    this.context = context;
+  }
+
+  public Element convert(Resource res) throws IOException, FHIRException {
+    try {
+      StructureDefinition sd = context.fetchTypeDefinition(res.fhirType());
+      if (sd == null) {
+        return null;
+      }
+      Element e = new Element(res.fhirType(), new Property(context, sd.getSnapshot().getElement().get(0), sd));
+      e.setType(res.fhirType());
+      fillChildren(e, res);
+      e.numberChildren();
+      return e;
+    } catch (UnsupportedContent e) {
+      return null;
+    }
+  }
+
+  private void fillChildren(Element e, Base src) throws IOException, FHIRException, UnsupportedContent {
+    if (src.hasFormatComment()) {
+      throw new UnsupportedContent();
+    }
+    Set<String> done = new HashSet<>();
+    for (Property p : e.getProperty().getChildProperties(e.getName(), null)) {
+      done.add(p.getName());
+      if (src instanceof Narrative && "div".equals(p.getName())) {
+        addDiv(e, p, (Narrative) src);
+      } else {
+        org.hl7.fhir.r5.model.Property mp = src.getNamedProperty(p.getName());
+        if (mp != null && hasContent(mp.getValues())) {
+          for (Base v : mp.getValues()) {
+            addChild(e, p, v);
+          }
+        }
+      }
+    }
+    // the element model only knows about what's defined; if the resource has content that isn't, we can't do this
+    for (org.hl7.fhir.r5.model.Property mp : src.children()) {
+      if (!done.contains(mp.getName()) && hasContent(mp.getValues())) {
+        throw new UnsupportedContent();
+      }
+    }
+  }
+
+  /**
+   * a single value is included if it has content. For a list, if any item has content, then all the items are
+   */
+  private boolean hasContent(List<Base> values) {
+    for (Base v : values) {
+      if (v != null && !v.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void addChild(Element parent, Property p, Base v) throws IOException, FHIRException, UnsupportedContent {
+    if (v == null) {
+      return;
+    }
+    String name = p.isChoice() ? p.getName().substring(0, p.getName().length()-3)+Utilities.capitalize(v.fhirType()) : p.getName();
+    Element n = new Element(name, p);
+    parent.getChildren().add(n);
+    if (p.isResource()) {
+      StructureDefinition sd = context.fetchTypeDefinition(v.fhirType());
+      if (sd == null) {
+        throw new UnsupportedContent();
+      }
+      n.updateProperty(new Property(context, sd.getSnapshot().getElement().get(0), sd), SpecialElement.fromProperty(n.getProperty()), p);
+      n.setType(v.fhirType());
+    } else if (v.isPrimitive() && v.hasPrimitiveValue()) {
+      n.setValue(v.primitiveValue());
+    }
+    fillChildren(n, v);
+  }
+
+  private void addDiv(Element parent, Property p, Narrative src) throws IOException, FHIRException {
+    if (src.hasDiv()) {
+      Element n = new Element(p.getName(), p);
+      parent.getChildren().add(n);
+      n.setValue(new XhtmlComposer(XhtmlComposer.XML).compose(src.getDiv()));
+      n.setXhtml(new XhtmlParser().parse(n.getValue(), null).getDocumentElement());
+    }
+  }
+}
@@ -0,0 +1,315 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Resource;
+
+/**
+ * Indexes the resources that the publisher has loaded, so that lookups by canonical URL,
+ * type/id, bundle fullUrl or source path don't have to scan every file and every resource
+ *
+ * The registry works off the publisher's file list. Files are noted as they are fetched,
+ * and the resource indexes are rebuilt (in file list order, so the first match wins as
+ * it always did) the next time a lookup is made after something has changed.
+ *
+ * Where a lookup the registry replaces took the last match (or skipped resources without
+ * an element), there's a separate lookup that does the same, so that IGs with duplicate
+ * ids or urls resolve the way they always have.
+ */
+public class ResourceRegistry {
+
+  private List<FetchedFile> fileList;
+  private boolean dirty = true;
+
+  private Map<String, FetchedFile> byPath = new HashMap<>();
+  private Map<String, FetchedResource> byUrl = new HashMap<>();
+  private Map<String, FetchedResource> byVersionedUrl = new HashMap<>();
+  private Map<String, FetchedResource> byRef = new HashMap<>();
+  private Map<String, FetchedResource> byRefLast = new HashMap<>();
+  private Map<String, FetchedResource> byRefWithElement = new HashMap<>();
+  private Map<String, FetchedResource> byEntryRef = new HashMap<>();
+  private Map<String, FetchedResource> byFullUrl = new HashMap<>();
+  private Map<FetchedResource, FetchedFile> files = new IdentityHashMap<>();
+  private Map<FetchedResource, Integer> order = new IdentityHashMap<>();
+  private Map<Resource, FetchedResource> byResource = new IdentityHashMap<>();
+
+  public ResourceRegistry(List<FetchedFile> fileList) {
+    super();
+    this.fileList = fileList;
+  }
+
+  public synchronized void clear() {
+    byPath.clear();
+    clearResources();
+    dirty = true;
+  }
+
+  /**
+   * called when a file is noted in the file list (or reloaded)
+   */
+  public synchronized void seeFile(FetchedFile f) {
+    if (f.getPath() != null && !byPath.containsKey(f.getPath())) {
+      byPath.put(f.getPath(), f);
+    }
+    dirty = true;
+  }
+
+  /**
+   * called when resources have been added, or their identity (id, url, version) may have changed
+   */
+  public synchronized void invalidate() {
+    dirty = true;
+  }
+
+  public synchronized FetchedFile getFileForPath(String path) {
+    checkIndexes();
+    return byPath.get(path);
+  }
+
+  public synchronized FetchedFile getFileForResource(FetchedResource r) {
+    checkIndexes();
+    return files.get(r);
+  }
+
+  /**
+   * @param url - a canonical URL (compared as it is, so url|version doesn't match - see getByCanonical(url, version))
+   * @return the first resource in file order with the URL, whatever its version
+   */
+  public synchronized FetchedResource getByCanonical(String url) {
+    if (url == null) {
+      return null;
+    }
+    checkIndexes();
+    FetchedResource res = byUrl.get(url);
+    if (res != null && !matchesUrl(res, url, null)) {
+      rebuild();
+      res = byUrl.get(url);
+    }
+    return res;
+  }
+
+  /**
+   * @return the first resource in file order with the URL and this version
+   */
+  public synchronized FetchedResource getByCanonical(String url, String version) {
+    if (url == null || version == null) {
+      return null;
+    }
+    checkIndexes();
+    FetchedResource res = byVersionedUrl.get(url+"|"+version);
+    if (res != null && !matchesUrl(res, url, version)) {
+      rebuild();
+      res = byVersionedUrl.get(url+"|"+version);
+    }
+    return res;
+  }
+
+  public synchronized FetchedResource getByRef(String type, String id) {
+    return getByRef(type+"/"+id);
+  }
+
+  /**
+   * @param ref - a local reference in the form type/id
+   */
+  public synchronized FetchedResource getByRef(String ref) {
+    if (ref == null) {
+      return null;
+    }
+    checkIndexes();
+    FetchedResource res = byRef.get(ref);
+    if (res != null && !ref.equals(res.getLocalRef())) {
+      rebuild();
+      res = byRef.get(ref);
+    }
+    return res;
+  }
+
+  /**
+   * @return the last resource in file order with the local reference (type/id)
+   */
+  public synchronized FetchedResource getLastByRef(String ref) {
+    if (ref == null) {
+      return null;
+    }
+    checkIndexes();
+    FetchedResource res = byRefLast.get(ref);
+    if (res != null && !ref.equals(res.getLocalRef())) {
+      rebuild();
+      res = byRefLast.get(ref);
+    }
+    return res;
+  }
+
+  /**
+   * @return the first resource in file order with the local reference (type/id) that has an element (resources without one are skipped)
+   */
+  public synchronized FetchedResource getByRefWithElement(String type, String id) {
+    String ref = type+"/"+id;
+    checkIndexes();
+    FetchedResource res = byRefWithElement.get(ref);
+    if (res != null && (!ref.equals(res.getLocalRef()) || res.getElement() == null)) {
+      rebuild();
+      res = byRefWithElement.get(ref);
+    }
+    return res;
+  }
+
+  /**
+   * returns the first resource in file order that has either the local reference or the canonical URL
+   */
+  public synchronized FetchedResource getByRefOrCanonical(String ref) {
+    return first(getByRef(ref), getByCanonical(ref));
+  }
+
+  /**
+   * @return whichever of the two resources comes first in the file list (either may be null)
+   */
+  public synchronized FetchedResource first(FetchedResource r1, FetchedResource r2) {
+    if (r1 == null) {
+      return r2;
+    } else if (r2 == null) {
+      return r1;
+    } else {
+      checkIndexes();
+      Integer o1 = order.get(r1);
+      Integer o2 = order.get(r2);
+      if (o1 == null) {
+        return r2;
+      } else if (o2 == null) {
+        return r1;
+      } else {
+        return o1 <= o2 ? r1 : r2;
+      }
+    }
+  }
+
+  /**
+   * returns the bundle that contains an entry with the given local reference (type/id)
+   */
+  public synchronized FetchedResource getBundleForEntryRef(String ref) {
+    checkIndexes();
+    return byEntryRef.get(ref);
+  }
+
+  /**
+   * returns the bundle that contains an entry with the given fullUrl
+   */
+  public synchronized FetchedResource getBundleForFullUrl(String fullUrl) {
+    checkIndexes();
+    return byFullUrl.get(fullUrl);
+  }
+
+  /**
+   * returns the loaded resource that wraps this actual resource object (e.g. a profile the validator is using).
+   * If more than one does, this is the last in file order
+   */
+  public synchronized FetchedResource getByResource(Resource resource) {
+    checkIndexes();
+    return byResource.get(resource);
+  }
+
+  /**
+   * @return the number of resources that claim conformance to each profile
+   */
+  public synchronized Map<String, Integer> countProfileUsage(boolean statedOnly) {
+    Map<String, Integer> res = new HashMap<>();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        for (String p : statedOnly ? r.getStatedProfiles() : r.getFoundProfiles()) {
+          Integer c = res.get(p);
+          res.put(p, c == null ? 1 : c + 1);
+        }
+      }
+    }
+    return res;
+  }
+
+  private boolean matchesUrl(FetchedResource r, String url, String version) {
+    if (!(r.getResource() instanceof CanonicalResource)) {
+      return false;
+    }
+    CanonicalResource cr = (CanonicalResource) r.getResource();
+    return url.equals(cr.getUrl()) && (version == null || version.equals(cr.getVersion()));
+  }
+
+  private void checkIndexes() {
+    if (dirty) {
+      rebuild();
+    }
+  }
+
+  private void clearResources() {
+    byUrl.clear();
+    byVersionedUrl.clear();
+    byRef.clear();
+    byRefLast.clear();
+    byRefWithElement.clear();
+    byEntryRef.clear();
+    byFullUrl.clear();
+    files.clear();
+    order.clear();
+    byResource.clear();
+  }
+
+  private void rebuild() {
+    clearResources();
+    int i = 0;
+    for (FetchedFile f : fileList) {
+      if (f.getPath() != null && !byPath.containsKey(f.getPath())) {
+        byPath.put(f.getPath(), f);
+      }
+      for (FetchedResource r : f.getResources()) {
+        files.put(r, f);
+        order.put(r, i++);
+        index(r);
+      }
+    }
+    dirty = false;
+  }
+
+  private void index(FetchedResource r) {
+    if (r.getId() != null) {
+      putIfAbsent(byRef, r.getLocalRef(), r);
+      byRefLast.put(r.getLocalRef(), r);
+      if (r.getElement() != null) {
+        putIfAbsent(byRefWithElement, r.getLocalRef(), r);
+      }
+    }
+    if (r.getResource() != null) {
+      // last one wins
+      byResource.put(r.getResource(), r);
+      if (r.getResource() instanceof CanonicalResource) {
+        CanonicalResource cr = (CanonicalResource) r.getResource();
+        if (cr.hasUrl()) {
+          putIfAbsent(byUrl, cr.getUrl(), r);
+          if (cr.hasVersion()) {
+            putIfAbsent(byVersionedUrl, cr.getUrl()+"|"+cr.getVersion(), r);
+          }
+        }
+      }
+    }
+    if ("Bundle".equals(r.fhirType()) && r.getElement() != null) {
+      for (Element entry : r.getElement().getChildrenByName("entry")) {
+        Element res = entry.getNamedChild("resource");
+        if (res != null && res.hasChild("id")) {
+          putIfAbsent(byEntryRef, res.fhirType()+"/"+res.getNamedChildValue("id"), r);
+        }
+        String fu = entry.getNamedChildValue("fullUrl");
+        if (res != null && fu != null) {
+          putIfAbsent(byFullUrl, fu, r);
+        }
+      }
+    }
+  }
+
+  private void putIfAbsent(Map<String, FetchedResource> map, String key, FetchedResource r) {
+    if (!map.containsKey(key)) {
+      map.put(key, r);
+    }
+  }
+}
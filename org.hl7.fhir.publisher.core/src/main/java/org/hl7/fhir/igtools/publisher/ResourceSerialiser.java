@@ -0,0 +1,422 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.convertors.advisors.impl.BaseAdvisor_10_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_10_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_14_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_30_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.formats.RdfParser;
+import org.hl7.fhir.r5.formats.XmlParser;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.utilities.TimeTracker;
+import org.hl7.fhir.utilities.TimeTracker.Session;
+import org.hl7.fhir.utilities.VersionUtilities;
+
+/**
+ * Serialises the resources for the outputs, but only once per build for each rendering.
+ *
+ * The same resource ends up in many places - the package, the _includes folder, the
+ * downloadable copies, the definitions zips, and the validator pack - and most of them
+ * want the same bytes. Each rendering (format, style and FHIR version) is produced the
+ * first time it's asked for, and then kept until the serialiser is thrown away at the start
+ * of the next build, or until there's a limit on what the renderings can take (see setLimit()),
+ * and it's reached. Then the renderings of the least recently used resources are dropped, and
+ * made again if they're asked for again.
+ *
+ * There are two kinds of rendering: the element model, which is what the IG author wrote
+ * (in the IG's version), and the resource model converted to the FHIR version the IG is
+ * published in, which is what the definitions and the validator pack contain. The
+ * conversion is the expensive part, so it's done once per version, and prepare() spreads
+ * it across a pool ahead of the writers. A conversion is only kept until the renderings
+ * made from it are done. The time spent in each converter goes to the publisher's
+ * TimeTracker while it's attached (see setTimeTracker()); the TimeTracker isn't thread safe,
+ * so while it's attached, only the converters use it, and only one at a time.
+ */
+public class ResourceSerialiser {
+
+  private static class Renderings {
+    private Map<String, byte[]> items = new HashMap<>();
+    private long size;
+    private boolean dropped; // over the limit; anything still using it can, but it's not in the cache
+  }
+
+  private IWorkerContext context;
+  private List<Future<?>> prepared = new ArrayList<>();
+  private TimeTracker tt;
+  private Object ttLock = new Object();
+  private Map<FetchedResource, Renderings> cache = new ConcurrentHashMap<>();
+  private LinkedHashMap<FetchedResource, Renderings> lru = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+  private long limit = -1;
+  private Map<FetchedResource, Map<String, Object>> conversions = new ConcurrentHashMap<>();
+  private int hits;
+  private int misses;
+
+  public ResourceSerialiser(IWorkerContext context) {
+    super();
+    this.context = context;
+  }
+
+  /**
+   * the element model, as the IG author provided it
+   */
+  public byte[] element(FetchedResource r, FhirFormat fmt, OutputStyle style, String base) throws FHIRException, IOException {
+    Renderings list = renderings(r);
+    String key = "e|"+fmt.getExtension()+"|"+style.toString()+"|"+base;
+    synchronized (list) {
+      byte[] res = list.items.get(key);
+      if (res == null) {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        switch (fmt) {
+        case JSON:
+          new org.hl7.fhir.r5.elementmodel.JsonParser(context).compose(r.getElement(), bs, style, base);
+          break;
+        case XML:
+          new org.hl7.fhir.r5.elementmodel.XmlParser(context).compose(r.getElement(), bs, style, base);
+          break;
+        case TURTLE:
+          new org.hl7.fhir.r5.elementmodel.TurtleParser(context).compose(r.getElement(), bs, style, base);
+          break;
+        default:
+          throw new FHIRException("Unsupported format "+fmt.toString());
+        }
+        res = bs.toByteArray();
+        add(r, list, key, res);
+        miss();
+      } else {
+        hit(r, list);
+      }
+      return res;
+    }
+  }
+
+  /**
+   * the resource model, converted to the stated FHIR version, in the default style
+   */
+  public byte[] resource(FetchedResource r, FhirFormat fmt, String version) throws Exception {
+    return resource(r, fmt, version, false);
+  }
+
+  /**
+   * @param prepare - the conversion is kept for the other formats (prepare() drops it when it has done them); otherwise it's dropped once it's composed
+   */
+  private byte[] resource(FetchedResource r, FhirFormat fmt, String version, boolean prepare) throws Exception {
+    Renderings list = renderings(r);
+    String key = "r|"+fmt.getExtension()+"|"+version;
+    synchronized (list) {
+      byte[] res = list.items.get(key);
+      if (res == null) {
+        try {
+          res = compose(r, fmt, version);
+        } finally {
+          if (!prepare) {
+            dropConversion(r, version);
+          }
+        }
+        add(r, list, key, res);
+        miss();
+      } else {
+        hit(r, list);
+      }
+      return res;
+    }
+  }
+
+  /**
+   * @return true if the element model rendering has already been produced (e.g. because it was written to the output)
+   */
+  public boolean hasElement(FetchedResource r, FhirFormat fmt, OutputStyle style, String base) {
+    Renderings list = cache.get(r);
+    if (list == null) {
+      return false;
+    }
+    synchronized (list) {
+      return list.items.containsKey("e|"+fmt.getExtension()+"|"+style.toString()+"|"+base);
+    }
+  }
+
+  /**
+   * Starts converting and serialising the resources on the pool, so that they're ready by the
+   * time the zip writers get to them. Each resource is converted to the version once, and then
+   * serialised in each of the formats from that. If nothing can be kept (the limit is 0),
+   * there's no point, and the writers do the work when they get to the resources.
+   *
+   * @return the resources in the order the writers should consume them (which is the order they are prepared in)
+   */
+  public List<FetchedResource> prepare(WorkerPool pool, Collection<FetchedResource> resources, String version, FhirFormat... formats) {
+    List<FetchedResource> list = new ArrayList<>(resources);
+    Collections.sort(list, (r1, r2) -> (r1.fhirType()+"-"+r1.getId()).compareTo(r2.fhirType()+"-"+r2.getId()));
+    if (limit != 0) {
+      synchronized (prepared) {
+        for (FetchedResource r : list) {
+          // if this fails, the writer will hit the same problem when it asks for the resource, and report it then
+          prepared.add(pool.submit(() -> {
+            try {
+              for (FhirFormat fmt : formats) {
+                resource(r, fmt, version, true);
+              }
+            } finally {
+              dropConversion(r, version);
+            }
+            return null;
+          }));
+        }
+      }
+    }
+    return list;
+  }
+
+  /**
+   * stop preparing the resources that haven't been prepared yet (e.g. because a writer failed, and the rest aren't wanted)
+   */
+  public void cancel() {
+    synchronized (prepared) {
+      for (Future<?> f : prepared) {
+        f.cancel(true);
+      }
+      prepared.clear();
+    }
+  }
+
+  private Object convert(FetchedResource r, String version) throws Exception {
+    Map<String, Object> list = conversions.get(r);
+    if (list == null) {
+      conversions.putIfAbsent(r, new HashMap<>());
+      list = conversions.get(r);
+    }
+    synchronized (list) {
+      Object res = list.get(version);
+      if (res == null) {
+        String converter = converterName(version);
+        Session tts = converter == null ? null : startTiming("convert "+converter);
+        try {
+          if (VersionUtilities.isR3Ver(version)) {
+            res = VersionConvertorFactory_30_50.convertResource(r.getResource());
+          } else if (VersionUtilities.isR4Ver(version)) {
+            res = VersionConvertorFactory_40_50.convertResource(r.getResource());
+          } else if (VersionUtilities.isR2BVer(version)) {
+            res = VersionConvertorFactory_14_50.convertResource(r.getResource());
+          } else if (VersionUtilities.isR2Ver(version)) {
+            BaseAdvisor_10_50 advisor = new IGR2ConvertorAdvisor5();
+            res = VersionConvertorFactory_10_50.convertResource(r.getResource(), advisor);
+          } else {
+            res = r.getResource();
+          }
+        } finally {
+          endTiming(tts);
+        }
+        list.put(version, res);
+      }
+      return res;
+    }
+  }
+
+  private void dropConversion(FetchedResource r, String version) {
+    Map<String, Object> list = conversions.get(r);
+    if (list != null) {
+      synchronized (list) {
+        list.remove(version);
+        if (list.isEmpty()) {
+          conversions.remove(r, list);
+        }
+      }
+    }
+  }
+
+  private String converterName(String version) {
+    if (VersionUtilities.isR3Ver(version)) {
+      return "30_50";
+    } else if (VersionUtilities.isR4Ver(version)) {
+      return "40_50";
+    } else if (VersionUtilities.isR2BVer(version)) {
+      return "14_50";
+    } else if (VersionUtilities.isR2Ver(version)) {
+      return "10_50";
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * the converters record their time in this while it's attached, and the caller doesn't use it until it's detached (null)
+   */
+  public void setTimeTracker(TimeTracker tt) {
+    synchronized (ttLock) {
+      this.tt = tt;
+    }
+  }
+
+  private Session startTiming(String name) {
+    synchronized (ttLock) {
+      return tt == null ? null : tt.start(name);
+    }
+  }
+
+  private void endTiming(Session tts) {
+    synchronized (ttLock) {
+      // not if it has been detached since (e.g. a cancelled conversion that ended late)
+      if (tts != null && tt != null) {
+        tts.end();
+      }
+    }
+  }
+
+  private byte[] compose(FetchedResource r, FhirFormat fmt, String version) throws Exception {
+    Object res = convert(r, version);
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    if (VersionUtilities.isR3Ver(version)) {
+      org.hl7.fhir.dstu3.model.Resource r3 = (org.hl7.fhir.dstu3.model.Resource) res;
+      if (fmt.equals(FhirFormat.JSON)) {
+        new org.hl7.fhir.dstu3.formats.JsonParser().compose(bs, r3);
+      } else if (fmt.equals(FhirFormat.XML)) {
+        new org.hl7.fhir.dstu3.formats.XmlParser().compose(bs, r3);
+      } else if (fmt.equals(FhirFormat.TURTLE)) {
+        new org.hl7.fhir.dstu3.formats.RdfParser().compose(bs, r3);
+      }
+    } else if (VersionUtilities.isR4Ver(version)) {
+      org.hl7.fhir.r4.model.Resource r4 = (org.hl7.fhir.r4.model.Resource) res;
+      if (fmt.equals(FhirFormat.JSON)) {
+        new org.hl7.fhir.r4.formats.JsonParser().compose(bs, r4);
+      } else if (fmt.equals(FhirFormat.XML)) {
+        new org.hl7.fhir.r4.formats.XmlParser().compose(bs, r4);
+      } else if (fmt.equals(FhirFormat.TURTLE)) {
+        new org.hl7.fhir.r4.formats.RdfParser().compose(bs, r4);
+      }
+    } else if (VersionUtilities.isR2BVer(version)) {
+      org.hl7.fhir.dstu2016may.model.Resource r14 = (org.hl7.fhir.dstu2016may.model.Resource) res;
+      if (fmt.equals(FhirFormat.JSON)) {
+        new org.hl7.fhir.dstu2016may.formats.JsonParser().compose(bs, r14);
+      } else if (fmt.equals(FhirFormat.XML)) {
+        new org.hl7.fhir.dstu2016may.formats.XmlParser().compose(bs, r14);
+      } else if (fmt.equals(FhirFormat.TURTLE)) {
+        new org.hl7.fhir.dstu2016may.formats.RdfParser().compose(bs, r14);
+      }
+    } else if (VersionUtilities.isR2Ver(version)) {
+      org.hl7.fhir.dstu2.model.Resource r2 = (org.hl7.fhir.dstu2.model.Resource) res;
+      if (fmt.equals(FhirFormat.JSON)) {
+        new org.hl7.fhir.dstu2.formats.JsonParser().compose(bs, r2);
+      } else if (fmt.equals(FhirFormat.XML)) {
+        new org.hl7.fhir.dstu2.formats.XmlParser().compose(bs, r2);
+      } else if (fmt.equals(FhirFormat.TURTLE)) {
+        throw new Exception("Turtle is not supported for releases < 3");
+      }
+    } else {
+      Resource r5 = (Resource) res;
+      if (fmt.equals(FhirFormat.JSON)) {
+        new JsonParser().compose(bs, r5);
+      } else if (fmt.equals(FhirFormat.XML)) {
+        new XmlParser().compose(bs, r5);
+      } else if (fmt.equals(FhirFormat.TURTLE)) {
+        new RdfParser().compose(bs, r5);
+      }
+    }
+    return bs.toByteArray();
+  }
+
+  /**
+   * true if the resource model can be converted to the version
+   */
+  public static boolean isSupportedVersion(String version) {
+    return VersionUtilities.isR3Ver(version) || VersionUtilities.isR4Ver(version) || VersionUtilities.isR2BVer(version) || VersionUtilities.isR2Ver(version)
+        || version.equals(Constants.VERSION) || VersionUtilities.isR4BVer(version);
+  }
+
+  private Renderings renderings(FetchedResource r) {
+    Renderings list = cache.get(r);
+    if (list == null) {
+      cache.putIfAbsent(r, new Renderings());
+      list = cache.get(r);
+    }
+    return list;
+  }
+
+  /**
+   * the caller holds the lock on the list. The lru lock is only ever taken inside a list lock, not the other way around
+   */
+  private void add(FetchedResource r, Renderings list, String key, byte[] content) {
+    list.items.put(key, content);
+    synchronized (lru) {
+      if (!list.dropped) {
+        list.size = list.size + content.length;
+        size = size + content.length;
+        lru.put(r, list);
+        trim(limit);
+      }
+    }
+  }
+
+  /**
+   * drop the renderings of the least recently used resources until what's left is within the size (-1 = no limit)
+   */
+  public void trim(long target) {
+    synchronized (lru) {
+      Iterator<Map.Entry<FetchedResource, Renderings>> it = lru.entrySet().iterator();
+      while (target >= 0 && size > target && it.hasNext()) {
+        Map.Entry<FetchedResource, Renderings> e = it.next();
+        it.remove();
+        cache.remove(e.getKey(), e.getValue());
+        e.getValue().dropped = true;
+        size = size - e.getValue().size;
+      }
+    }
+  }
+
+  /**
+   * @param limit - the most that the renderings can take, in bytes (-1 = no limit, 0 = nothing is kept)
+   */
+  public void setLimit(long limit) {
+    this.limit = limit;
+    trim(limit);
+  }
+
+  /**
+   * @return the size of the renderings being kept, in bytes
+   */
+  public long getSize() {
+    synchronized (lru) {
+      return size;
+    }
+  }
+
+  private void hit(FetchedResource r, Renderings list) {
+    synchronized (lru) {
+      if (!list.dropped) {
+        lru.get(r); // access order
+      }
+      hits++;
+    }
+  }
+
+  private void miss() {
+    synchronized (lru) {
+      misses++;
+    }
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  public int getMisses() {
+    return misses;
+  }
+}
@@ -0,0 +1,496 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StringType;
+
+/**
+ * Keeps the loaded elements and resources within a memory budget, for large IGs.
+ *
+ * The resources are tracked in least recently used order, with an estimate of how much
+ * memory each takes. When the estimated total goes over the budget, the least recently
+ * used resources are spilled: their element (and resource, if it's not a conformance
+ * resource - those are held by the worker context anyway) are written compressed to a
+ * spill file, and dropped. They are read back the next time they are asked for.
+ *
+ * Spilling only happens at checkpoint(), which the publisher calls between files (or, when
+ * the files are done in parallel, between batches of them, on the thread that hands out the
+ * batches), so that nothing is dropped while it's being worked on. Reading back happens on
+ * whichever thread asks for the resource; each resource has its own lock for that (the
+ * Spill), so threads reading back different resources don't wait for each other. A weak reference is kept to what was
+ * dropped, and if something is still holding it when it's asked for again, the same object
+ * is handed back rather than a new copy. The user data on the root of the element and the
+ * resource is kept; user data deeper in the tree is lost, which is why spilling starts
+ * after validation.
+ *
+ * The renderings the serialiser keeps (see setSerialiser()) count against the budget too.
+ * They're cheaper to make again than resources are to read back, so when the total is
+ * over the budget, they are dropped first.
+ *
+ * In compact mode, what's spilled is kept in memory instead, in the dictionary encoded
+ * form of CompactJson, which is a small fraction of the size of the element tree, and
+ * doesn't cost any disk access to read back. If the dictionary fills up, what's still
+ * spilled is encoded again with a new one (at a checkpoint), so words that are only used
+ * by resources that have since been read back or replaced don't stay in it forever.
+ *
+ * In watch mode, the files that change are loaded again, so each time the store is given
+ * the files (register()), it drops the resources that aren't in them anymore. The space in
+ * the spill file that nothing uses anymore is reclaimed then too, and close() deletes it.
+ */
+public class ResourceStore {
+
+  private static final int NODE_SIZE = 160; // rough bytes per element node, before the values
+
+  private static class Compacted {
+    private final CompactJson dictionary;
+    private final byte[] element;
+    private final byte[] resource;
+
+    public Compacted(CompactJson dictionary, byte[] element, byte[] resource) {
+      super();
+      this.dictionary = dictionary;
+      this.element = element;
+      this.resource = resource;
+    }
+  }
+
+  private class Spill {
+    private long offset;
+    private int elementLength;
+    private int resourceLength;
+    private volatile Compacted compacted; // compact mode; replaced as a whole when the dictionary is rebuilt
+    private WeakReference<Element> element;
+    private WeakReference<Resource> resource;
+    private Base elementData; // only holds the user data
+    private Base resourceData;
+    private boolean linked; // resource.userData("element") was the element
+    private boolean done; // read back (or replaced) - guarded by the store
+  }
+
+  private IWorkerContext context;
+  private long budget;
+  private File file;
+  private RandomAccessFile spill;
+  private CompactJson compact;
+  private ResourceSerialiser serialiser;
+  private LinkedHashMap<FetchedResource, Long> resident = new LinkedHashMap<>(16, 0.75f, true);
+  private Map<FetchedResource, Spill> spilled = new HashMap<>();
+  private long total;
+  private int evictions;
+  private int rehydrations;
+  private int recovered;
+  private long spillSize;
+
+  /**
+   * @param budget - the estimated size, in bytes, that the resources can take before they are spilled
+   */
+  public ResourceStore(IWorkerContext context, long budget, boolean compact) throws IOException {
+    super();
+    this.context = context;
+    this.budget = budget;
+    if (compact) {
+      this.compact = new CompactJson();
+    } else {
+      file = File.createTempFile("fhir-ig-spill", ".bin");
+      file.deleteOnExit();
+      spill = new RandomAccessFile(file, "rw");
+    }
+  }
+
+  /**
+   * start managing the resources in these files, and stop managing any that aren't in them anymore.
+   * This is called between phases, when nothing is being read back
+   */
+  public synchronized void register(List<FetchedFile> files) throws IOException {
+    Set<FetchedResource> current = new HashSet<>();
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        current.add(r);
+        if (r.getStore() == null) {
+          r.setStore(this);
+          track(r);
+        }
+      }
+    }
+    Iterator<Map.Entry<FetchedResource, Long>> it = resident.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<FetchedResource, Long> e = it.next();
+      if (!current.contains(e.getKey())) {
+        it.remove();
+        total = total - e.getValue();
+      }
+    }
+    Iterator<Map.Entry<FetchedResource, Spill>> sit = spilled.entrySet().iterator();
+    while (sit.hasNext()) {
+      Map.Entry<FetchedResource, Spill> e = sit.next();
+      if (!current.contains(e.getKey())) {
+        sit.remove();
+        e.getValue().done = true;
+      }
+    }
+    spillSize = 0;
+    for (Spill sp : spilled.values()) {
+      Compacted c = sp.compacted;
+      spillSize = spillSize + (c == null ? sp.elementLength + sp.resourceLength : c.element.length + (c.resource == null ? 0 : c.resource.length));
+    }
+    if (spill != null) {
+      reclaim();
+    }
+  }
+
+  /**
+   * the spill file is emptied if nothing is spilled, or copied without the space that isn't used anymore if that's most of it
+   */
+  private void reclaim() throws IOException {
+    synchronized (spill) {
+      if (spilled.isEmpty()) {
+        spill.setLength(0);
+      } else if (spillSize < spill.length() / 2) {
+        File nf = File.createTempFile("fhir-ig-spill", ".bin");
+        nf.deleteOnExit();
+        RandomAccessFile ns = new RandomAccessFile(nf, "rw");
+        Map<Spill, Long> offsets = new HashMap<>();
+        try {
+          for (Spill sp : spilled.values()) {
+            byte[] bytes = new byte[sp.elementLength + sp.resourceLength];
+            spill.seek(sp.offset);
+            spill.readFully(bytes);
+            offsets.put(sp, ns.length());
+            ns.seek(ns.length());
+            ns.write(bytes);
+          }
+        } catch (IOException e) {
+          ns.close();
+          nf.delete();
+          throw e;
+        }
+        // only once they've all been copied, so a failure leaves everything as it was
+        for (Map.Entry<Spill, Long> e : offsets.entrySet()) {
+          e.getKey().offset = e.getValue();
+        }
+        spill.close();
+        file.delete();
+        spill = ns;
+        file = nf;
+      }
+    }
+  }
+
+  /**
+   * deletes the spill file; what's still spilled can't be read back after this
+   */
+  public synchronized void close() throws IOException {
+    resident.clear();
+    spilled.clear();
+    total = 0;
+    if (spill != null) {
+      spill.close();
+      spill = null;
+      file.delete();
+    }
+  }
+
+  public Element element(FetchedResource r) {
+    use(r);
+    return r.loadedElement();
+  }
+
+  public Resource resource(FetchedResource r) {
+    use(r);
+    return r.loadedResource();
+  }
+
+  /**
+   * the element or resource has been replaced, so what was spilled is out of date
+   */
+  public synchronized void changed(FetchedResource r) {
+    Spill s = spilled.remove(r);
+    if (s != null) {
+      s.done = true;
+    }
+    Long size = resident.remove(r);
+    if (size != null) {
+      total = total - size;
+    }
+    track(r);
+  }
+
+  /**
+   * the renderings the serialiser keeps count against the budget from now on
+   */
+  public synchronized void setSerialiser(ResourceSerialiser serialiser) {
+    this.serialiser = serialiser;
+    serialiser.setLimit(budget);
+  }
+
+  /**
+   * drop renderings, and then spill the least recently used resources, until the estimated total is within the budget
+   */
+  public synchronized void checkpoint() {
+    if (compact != null && compact.isFull()) {
+      try {
+        recompact();
+      } catch (Exception ex) {
+        // the old dictionary is kept; anything new is just written out in full
+      }
+    }
+    if (serialiser != null) {
+      serialiser.trim(Math.max(0, budget - total));
+    }
+    long other = serialiser == null ? 0 : serialiser.getSize();
+    Iterator<Map.Entry<FetchedResource, Long>> it = resident.entrySet().iterator();
+    while (total + other > budget && it.hasNext()) {
+      Map.Entry<FetchedResource, Long> e = it.next();
+      it.remove();
+      total = total - e.getValue();
+      try {
+        evict(e.getKey());
+      } catch (Exception ex) {
+        // it stays in memory, but isn't tracked anymore, so it won't be tried again
+      }
+    }
+  }
+
+  private void use(FetchedResource r) {
+    Spill s;
+    synchronized (this) {
+      s = spilled.get(r);
+      if (s == null) {
+        if (resident.containsKey(r)) {
+          resident.get(r); // access order
+        }
+        return;
+      }
+    }
+    // only one thread reads each resource back; the others asking for it wait for that
+    synchronized (s) {
+      synchronized (this) {
+        if (s.done) {
+          return;
+        }
+      }
+      Loaded l;
+      try {
+        l = rehydrate(r, s);
+      } catch (IOException e) {
+        throw new FHIRException("Unable to read "+r.fhirType()+"/"+r.getId()+" back"+(file == null ? "" : " from "+file.getAbsolutePath())+": "+e.getMessage(), e);
+      }
+      synchronized (this) {
+        if (!s.done) { // unless it was replaced while it was being read
+          s.done = true;
+          r.reload(l.element, l.resource);
+          spilled.remove(r);
+          track(r);
+          if (l.recovered) {
+            recovered++;
+          } else {
+            rehydrations++;
+          }
+        }
+      }
+    }
+  }
+
+  private void track(FetchedResource r) {
+    if (!spillable(r)) {
+      return;
+    }
+    long size = estimate(r.loadedElement());
+    if (canSpillResource(r)) {
+      size = size * 2;
+    }
+    resident.put(r, size);
+    total = total + size;
+  }
+
+  private boolean spillable(FetchedResource r) {
+    Element e = r.loadedElement();
+    if (e == null || e.hasUserData("logical")) {
+      return false;
+    }
+    Resource res = r.loadedResource();
+    // if the resource is staying in memory, and it refers to the element, so does the element
+    return res == null || canSpillResource(r) || res.getUserData("element") != e;
+  }
+
+  private boolean canSpillResource(FetchedResource r) {
+    return r.loadedResource() != null && !(r.loadedResource() instanceof CanonicalResource);
+  }
+
+  private long estimate(Element e) {
+    long res = NODE_SIZE;
+    if (e.getValue() != null) {
+      res = res + e.getValue().length() * 2;
+    }
+    if (e.hasChildren()) {
+      for (Element c : e.getChildren()) {
+        res = res + estimate(c);
+      }
+    }
+    return res;
+  }
+
+  private void evict(FetchedResource r) throws Exception {
+    Element e = r.loadedElement();
+    Resource res = canSpillResource(r) ? r.loadedResource() : null;
+    Spill s = new Spill();
+    if (compact != null) {
+      ByteArrayOutputStream bs = new ByteArrayOutputStream();
+      new org.hl7.fhir.r5.elementmodel.JsonParser(context).compose(e, bs, OutputStyle.NORMAL, null);
+      byte[] ce = compact.encode(bs.toByteArray());
+      byte[] cr = res == null ? null : compact.encode(new org.hl7.fhir.r5.formats.JsonParser().composeBytes(res));
+      s.compacted = new Compacted(compact, ce, cr);
+      spillSize = spillSize + ce.length + (cr == null ? 0 : cr.length);
+    } else {
+      ByteArrayOutputStream bs = new ByteArrayOutputStream();
+      DeflaterOutputStream zs = new DeflaterOutputStream(bs);
+      new org.hl7.fhir.r5.elementmodel.JsonParser(context).compose(e, zs, OutputStyle.NORMAL, null);
+      zs.close();
+      s.elementLength = bs.size();
+      if (res != null) {
+        zs = new DeflaterOutputStream(bs);
+        new org.hl7.fhir.r5.formats.JsonParser().compose(zs, res);
+        zs.close();
+        s.resourceLength = bs.size() - s.elementLength;
+      }
+      synchronized (spill) {
+        s.offset = spill.length();
+        spill.seek(s.offset);
+        spill.write(bs.toByteArray());
+      }
+      spillSize = spillSize + bs.size();
+    }
+
+    s.element = new WeakReference<>(e);
+    s.elementData = new StringType();
+    s.elementData.copyUserData(e);
+    if (res != null) {
+      s.resource = new WeakReference<>(res);
+      s.resourceData = new StringType();
+      s.resourceData.copyUserData(res);
+      if (res.getUserData("element") == e) {
+        s.linked = true;
+        s.resourceData.clearUserData("element");
+      }
+    }
+    spilled.put(r, s);
+    r.unload(true, res != null);
+    evictions++;
+  }
+
+  private static class Loaded {
+    private Element element;
+    private Resource resource;
+    private boolean recovered;
+  }
+
+  /**
+   * reads the resource back, without holding the lock on the store
+   */
+  private Loaded rehydrate(FetchedResource r, Spill s) throws IOException {
+    Loaded l = new Loaded();
+    Element e = s.element.get();
+    Resource res = s.resource == null ? null : s.resource.get();
+    if (e != null && (s.resource == null || res != null)) {
+      l.recovered = true;
+    } else {
+      InputStream es;
+      InputStream rs;
+      Compacted c = s.compacted;
+      if (c != null) {
+        es = new ByteArrayInputStream(c.dictionary.decode(c.element));
+        rs = c.resource == null ? null : new ByteArrayInputStream(c.dictionary.decode(c.resource));
+      } else {
+        byte[] bytes = new byte[s.elementLength + s.resourceLength];
+        synchronized (spill) {
+          spill.seek(s.offset);
+          spill.readFully(bytes);
+        }
+        es = new InflaterInputStream(new ByteArrayInputStream(bytes, 0, s.elementLength));
+        rs = new InflaterInputStream(new ByteArrayInputStream(bytes, s.elementLength, s.resourceLength));
+      }
+      if (e == null) {
+        e = new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(es);
+        e.copyUserData(s.elementData);
+      }
+      if (s.resource != null && res == null) {
+        res = new org.hl7.fhir.r5.formats.JsonParser().parse(rs);
+        res.copyUserData(s.resourceData);
+        if (s.linked) {
+          res.setUserData("element", e);
+        }
+      }
+    }
+    l.element = e;
+    l.resource = s.resource == null ? r.loadedResource() : res;
+    return l;
+  }
+
+  /**
+   * encodes what's still spilled again, with a new dictionary that only has the words still in use
+   */
+  private void recompact() throws IOException {
+    CompactJson fresh = new CompactJson();
+    Map<Spill, Compacted> done = new HashMap<>();
+    for (Spill s : spilled.values()) {
+      Compacted c = s.compacted;
+      done.put(s, new Compacted(fresh, fresh.encode(c.dictionary.decode(c.element)), c.resource == null ? null : fresh.encode(c.dictionary.decode(c.resource))));
+    }
+    // only once they've all been done, so a failure leaves everything as it was
+    for (Map.Entry<Spill, Compacted> e : done.entrySet()) {
+      e.getKey().compacted = e.getValue();
+    }
+    compact = fresh;
+  }
+
+  public synchronized int getEvictions() {
+    return evictions;
+  }
+
+  public synchronized int getRehydrations() {
+    return rehydrations;
+  }
+
+  public synchronized int getSpilled() {
+    return spilled.size();
+  }
+
+  /**
+   * the spill file, if there is one (not in compact mode)
+   */
+  public synchronized File getFile() {
+    return file;
+  }
+
+  public synchronized String report() {
+    return "Memory budget "+mb(budget)+": "+evictions+" spilled, "+rehydrations+" read back, "+recovered+" still in memory when asked for, "+resident.size()+" resident ("+mb(total)+" est.), "
+      +mb(spillSize)+(compact == null ? " in the spill file" : " held compact ("+compact.getDictionarySize()+" words)")
+      +(serialiser == null ? "" : ", "+mb(serialiser.getSize())+" of renderings");
+  }
+
+  private String mb(long size) {
+    return Long.toString(size / (1024*1024))+"MB";
+  }
+}
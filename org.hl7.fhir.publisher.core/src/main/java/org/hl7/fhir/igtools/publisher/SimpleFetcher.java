@@ -21,18 +21,31 @@ package org.hl7.fhir.igtools.publisher;
  */
 
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService.LogCategory;
+import org.hl7.fhir.r5.elementmodel.ParserBase.ValidationPolicy;
 import org.hl7.fhir.r5.formats.FormatUtilities;
 import org.hl7.fhir.r5.model.CanonicalType;
 import org.hl7.fhir.r5.model.DataType;
@@ -41,6 +54,10 @@ import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.model.UriType;
 import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 public class SimpleFetcher implements IFetchFile {
 
@@ -49,6 +66,23 @@ public class SimpleFetcher implements IFetchFile {
   private List<String> resourceDirs;
   private ILoggingService log;
   private String rootDir;
+  private Map<String, FileStat> stats = new ConcurrentHashMap<>();
+  private int threads = Runtime.getRuntime().availableProcessors(); // for scanning the source folders
+
+  private static class FileStat {
+    private long time;
+    private long size;
+    private String hash;
+    private String contentType; // once the file has been scanned
+    private String type;
+
+    private FileStat(long time, long size, String hash) {
+      super();
+      this.time = time;
+      this.size = size;
+      this.hash = hash;
+    }
+  }
   
   public SimpleFetcher(ILoggingService log) {
     this.log = log;
@@ -73,6 +107,11 @@ public class SimpleFetcher implements IFetchFile {
     this.rootDir = rootDir;
   }
 
+  @Override
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   @Override
   public FetchedFile fetch(String path) throws Exception {
     File f = new File(path);
@@ -97,15 +136,41 @@ public class SimpleFetcher implements IFetchFile {
       } else if (path.endsWith("xml")) {
         ff.setContentType("application/fhir+xml");
       }
-      InputStream ss = new FileInputStream(f);
-      byte[] b = new byte[ss.available()];
-      ss.read(b, 0, ss.available());
-      ff.setSource(b);
-      ss.close();
+      readSource(ff, f);
     }
     return ff;
   }
 
+  /**
+   * reads the file, working out the digest as it's read. If the file has the same time 
+   * and size as when it was last read, the digest from then is used, and the file isn't 
+   * read again unless something asks for the content
+   */
+  private void readSource(FetchedFile ff, File f) throws IOException {
+    ff.setSize(f.length());
+    FileStat prev = stats.get(ff.getPath());
+    if (prev != null && prev.time == ff.getTime() && prev.size == ff.getSize()) {
+      ff.setUnreadSource(f, prev.hash);
+    } else {
+      ContentDigest cd = ContentDigest.read(f);
+      ff.setSource(cd.getContent(), cd.getDigest());
+      stats.put(ff.getPath(), new FileStat(ff.getTime(), ff.getSize(), cd.getDigest()));
+    }
+  }
+
+  /**
+   * the watcher reported these paths (files, or folders if it lost track of what happened in 
+   * them) as changed, so they are read again, even if the time and size are the same as last 
+   * time (file times may only be accurate to a second or two)
+   */
+  public void changed(Set<String> paths) {
+    for (String p : paths) {
+      stats.remove(p);
+      String folder = p+File.separator;
+      stats.keySet().removeIf(k -> k.startsWith(folder));
+    }
+  }
+
   private boolean isIgnoredFile(String name) {
     return name.startsWith(".");
   }
@@ -138,11 +203,7 @@ public class SimpleFetcher implements IFetchFile {
     } else if (f.getName().endsWith("xml")) {
       ff.setContentType("application/fhir+xml");
     }
-    InputStream ss = new FileInputStream(f);
-    byte[] b = new byte[ss.available()];
-    ss.read(b, 0, ss.available());
-    ff.setSource(b);
-    ss.close();
+    readSource(ff, f);
     return ff;
   }
 
@@ -300,9 +361,10 @@ public class SimpleFetcher implements IFetchFile {
     if (sources.isEmpty())
       throw new FHIRException("No Source directories to scan found"); // though it's not possible to get to this point...
 
-    List<FetchedFile> res = new ArrayList<>();
+    // the files are sniffed in parallel, but the results are used in the same order as the files are listed
+    List<File> files = new ArrayList<>();
+    List<String> dirs = new ArrayList<>();
     for (String s : sources) {
-      int count = 0;
       File file = new File(s);
       if (file.exists()) {
         for (File f : file.listFiles()) {
@@ -310,45 +372,43 @@ public class SimpleFetcher implements IFetchFile {
             String fn = f.getCanonicalPath();
             String ext = Utilities.getFileExtension(fn);
             if (!Utilities.existsInList(ext, "md", "txt") && !fn.endsWith(".gitignore") && !fn.contains("-spreadsheet") && !isIgnoredFile(f.getName())) {
-              boolean ok = false;
-              if (!Utilities.existsInList(ext, "json", "ttl", "html", "txt"))
-                try {
-                  org.hl7.fhir.r5.elementmodel.Element e = new org.hl7.fhir.r5.elementmodel.XmlParser(context).parse(new FileInputStream(f));
-                  addFile(res, f, e, "application/fhir+xml");
-                  count++;
-                  ok = true;
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-                    log.logMessage(e.getMessage() +" loading "+f);
-                    e.printStackTrace();
-                  }
-                }
-              if (!ok && !Utilities.existsInList(ext, "xml", "ttl", "html", "txt")) {
-                try {
-                  org.hl7.fhir.r5.elementmodel.Element e = new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new FileInputStream(fn));
-                  addFile(res, f, e, "application/fhir+json");
-                  count++;
-                  ok = true;
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-                    log.logMessage(e.getMessage() +" loading "+f);
-                    e.printStackTrace();
-                  }
-                }
-              }
-              if (!ok && !Utilities.existsInList(ext, "json", "xml", "html", "txt")) {
-                try {
-                  org.hl7.fhir.r5.elementmodel.Element e = new org.hl7.fhir.r5.elementmodel.TurtleParser(context).parse(new FileInputStream(fn));
-                  addFile(res, f, e, "application/fhir+turtle");
-                  count++;
-                  ok = true;
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-                    log.logMessage(e.getMessage() +" loading "+f);
-                    e.printStackTrace();
-                  }
-                }
-              }
+              files.add(f);
+              dirs.add(s);
+            }
+          }
+        }
+      }
+    }
+    List<ScanResult> results = new ArrayList<>();
+    if (!files.isEmpty()) {
+      try (WorkerPool pool = new WorkerPool("scanner", Math.min(files.size(), threads))) {
+        List<Future<ScanResult>> futures = new ArrayList<>();
+        for (File f : files) {
+          futures.add(pool.submit(() -> scanFile(f, context)));
+        }
+        for (Future<ScanResult> ft : futures) {
+          results.add(WorkerPool.get(ft));
+        }
+      } catch (IOException | FHIRException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new FHIRException("Error scanning source directories: "+e.getMessage(), e);
+      }
+    }
+
+    List<FetchedFile> res = new ArrayList<>();
+    for (String s : sources) {
+      int count = 0;
+      for (int i = 0; i < files.size(); i++) {
+        if (dirs.get(i).equals(s)) {
+          ScanResult sr = results.get(i);
+          for (String msg : sr.messages) {
+            log.logMessage(msg);
+          }
+          if (sr.file != null) {
+            count++;
+            if (!"ImplementationGuide".equals(sr.type)) {
+              res.add(sr.file);
             }
           }
         }
@@ -358,24 +418,121 @@ public class SimpleFetcher implements IFetchFile {
     return res;
   }
 
-  private void addFile(List<FetchedFile> res, File f, org.hl7.fhir.r5.elementmodel.Element e, String cnt) throws IOException {
-    if (!e.fhirType().equals("ImplementationGuide"))
-      addFile(res, f, cnt);
+  private class ScanResult {
+    private FetchedFile file;
+    private String type;
+    private List<String> messages = new ArrayList<>();
   }
-  
-  private void addFile(List<FetchedFile> res, File f, String cnt) throws IOException {
+
+  /**
+   * works out whether the file is a FHIR resource, and what type, by reading the start of it 
+   * (the root element for XML, or the resourceType property for JSON). Turtle has to be parsed 
+   * to find out, and then the parsed element is kept on the file for the load phase
+   */
+  private ScanResult scanFile(File f, IWorkerContext context) throws IOException {
+    ScanResult res = new ScanResult();
+    String ext = Utilities.getFileExtension(f.getName());
     FetchedFile ff = new FetchedFile(new File(rootDir).toURI().relativize(f.toURI()).getPath());
     ff.setPath(f.getCanonicalPath());
     ff.setName(fileTitle(f.getCanonicalPath()));
     ff.setTime(f.lastModified());
     ff.setFolder(false);   
-    ff.setContentType(cnt);
-    InputStream ss = new FileInputStream(f);
-    byte[] b = new byte[ss.available()];
-    ss.read(b, 0, ss.available());
-    ff.setSource(b);
-    ss.close();
-    res.add(ff);    
+    readSource(ff, f);
+    FileStat stat = stats.get(ff.getPath());
+    if (stat != null && stat.hash.equals(ff.getHash()) && stat.contentType != null && !stat.contentType.contains("turtle")) {
+      // we've seen this content before
+      ff.setContentType(stat.contentType);
+      res.type = stat.type;
+      res.file = ff;
+      return res;
+    }
+    if (!Utilities.existsInList(ext, "json", "ttl", "html", "txt")) {
+      try {
+        res.type = sniffXml(ff.getSource());
+        ff.setContentType("application/fhir+xml");
+      } catch (Exception e) {
+        noteScanError(res, f, e);
+      }
+    }
+    if (res.type == null && !Utilities.existsInList(ext, "xml", "ttl", "html", "txt")) {
+      try {
+        res.type = sniffJson(ff.getSource());
+        ff.setContentType("application/fhir+json");
+      } catch (Exception e) {
+        noteScanError(res, f, e);
+      }
+    }
+    if (res.type == null && !Utilities.existsInList(ext, "json", "xml", "html", "txt")) {
+      try {
+        org.hl7.fhir.r5.elementmodel.TurtleParser tp = new org.hl7.fhir.r5.elementmodel.TurtleParser(context);
+        List<ValidationMessage> errors = new ArrayList<>();
+        tp.setupValidation(ValidationPolicy.EVERYTHING, errors);
+        org.hl7.fhir.r5.elementmodel.Element e = tp.parse(new ByteArrayInputStream(ff.getSource()));
+        if (e == null) {
+          throw new FHIRException("Unable to parse Turtle");
+        }
+        res.type = e.fhirType();
+        ff.setContentType("application/fhir+turtle");
+        ff.setParsed(e, errors);
+      } catch (Exception e) {
+        noteScanError(res, f, e);
+      }
+    }
+    if (res.type != null) {
+      res.file = ff;
+      if (stat != null && stat.hash.equals(ff.getHash())) {
+        stat.contentType = ff.getContentType();
+        stat.type = res.type;
+      }
+    }
+    return res;
+  }
+
+  private void noteScanError(ScanResult res, File f, Exception e) {
+    if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
+      res.messages.add(e.getMessage() +" loading "+f);
+    }
+  }
+
+  /**
+   * @return the resource type, from the name of the root element, which must be in the FHIR namespace
+   */
+  private String sniffXml(byte[] source) throws XMLStreamException, FHIRException {
+    XMLInputFactory xif = XMLInputFactory.newInstance();
+    xif.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    XMLStreamReader xr = xif.createXMLStreamReader(new ByteArrayInputStream(source));
+    try {
+      while (xr.hasNext()) {
+        if (xr.next() == XMLStreamConstants.START_ELEMENT) {
+          if (!FormatUtilities.FHIR_NS.equals(xr.getNamespaceURI())) {
+            throw new FHIRException("This does not appear to be a FHIR resource (wrong namespace '"+xr.getNamespaceURI()+"')");
+          }
+          return xr.getLocalName();
+        }
+      }
+      throw new FHIRException("No content found");
+    } finally {
+      xr.close();
+    }
+  }
+
+  /**
+   * @return the resource type, from the resourceType property of the root object. Other properties are skipped without being parsed
+   */
+  private String sniffJson(byte[] source) throws IOException, FHIRException {
+    try (JsonReader jr = new JsonReader(new InputStreamReader(new ByteArrayInputStream(source), StandardCharsets.UTF_8))) {
+      jr.setLenient(true); // allow comments
+      jr.beginObject();
+      while (jr.hasNext()) {
+        if ("resourceType".equals(jr.nextName()) && jr.peek() == JsonToken.STRING) {
+          return jr.nextString();
+        } else {
+          jr.skipValue();
+        }
+      }
+      throw new FHIRException("Unable to find resourceType property");
+    }
   }
 
   public ILoggingService getLogger() {
@@ -0,0 +1,1617 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.TextStyle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.utilities.Utilities;
+
+import com.google.gson.Gson;
+
+/**
+ * A Liquid template engine for rendering Jekyll sites in process (see SiteRenderer).
+ *
+ * This covers the Liquid that IG templates and pages use in practice: output with filters,
+ * the assign, capture, if/elsif/else, unless, case, for, break/continue, include, raw and
+ * comment tags, the standard Liquid filters, and the common Jekyll ones. Anything else
+ * (including anything Jekyll would report as an error) raises UnsupportedFeatureException,
+ * so that the caller can run Jekyll itself instead, and get exactly what Jekyll does.
+ *
+ * Values are what the data is loaded as: String, Long, Double, Boolean, null, List and Map.
+ *
+ * (The r5 LiquidEngine is for narrative templates - it evaluates FHIRPath against resources,
+ * and doesn't know about Jekyll's data model or filters)
+ */
+public class SiteLiquid {
+
+  public static class UnsupportedFeatureException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedFeatureException(String message) {
+      super(message);
+    }
+  }
+
+  public interface IncludeHost {
+    /**
+     * @param name - the include name, after any variables in it have been rendered
+     * @param relative - true for include_relative, where the name is relative to the current template (ctx.getPath())
+     */
+    Template include(String name, boolean relative, Context ctx) throws IOException, UnsupportedFeatureException;
+    String markdownify(String source) throws UnsupportedFeatureException;
+  }
+
+  private static final Object EMPTY = new Object();
+  private static final Object BLANK = new Object();
+  private static final int MAX_INCLUDE_DEPTH = 100;
+
+  private static final Set<String> FILTERS = new HashSet<>(Arrays.asList(
+      "size", "downcase", "upcase", "capitalize", "strip", "lstrip", "rstrip", "strip_newlines", "newline_to_br", "strip_html",
+      "escape", "escape_once", "xml_escape", "cgi_escape", "url_encode", "url_decode", "uri_escape",
+      "append", "prepend", "replace", "replace_first", "remove", "remove_first", "split", "join", "first", "last", "reverse",
+      "sort", "sort_natural", "uniq", "map", "where", "compact", "concat", "slice", "truncate", "truncatewords",
+      "plus", "minus", "times", "divided_by", "modulo", "abs", "ceil", "floor", "round", "default", "date", "date_to_xmlschema",
+      "jsonify", "markdownify", "relative_url", "absolute_url", "slugify", "number_of_words", "array_to_sentence_string",
+      "normalize_whitespace", "push", "pop", "shift", "unshift"));
+
+  // ---- templates -------------------------------------------------------------------------
+
+  public static class Template {
+    private String path;
+    private List<Node> nodes;
+
+    private Template(String path, List<Node> nodes) {
+      this.path = path;
+      this.nodes = nodes;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String render(Context ctx) throws IOException, UnsupportedFeatureException {
+      StringBuilder b = new StringBuilder();
+      renderInto(ctx, b);
+      return b.toString();
+    }
+
+    private void renderInto(Context ctx, StringBuilder b) throws IOException, UnsupportedFeatureException {
+      String current = ctx.path;
+      ctx.path = path;
+      try {
+        renderNodes(nodes, ctx, b);
+      } finally {
+        ctx.path = current;
+      }
+    }
+  }
+
+  public static class Context {
+    private IncludeHost host;
+    private Map<String, Object> root;
+    private Deque<Map<String, Object>> scopes = new ArrayDeque<>(); // innermost first
+    private String path;
+    private int depth;
+    private int interrupt; // 0, or BREAK or CONTINUE
+
+    public Context(IncludeHost host, Map<String, Object> variables) {
+      super();
+      this.host = host;
+      root = new HashMap<>(variables);
+      scopes.push(root);
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public Object get(String name) {
+      for (Map<String, Object> m : scopes) {
+        if (m.containsKey(name)) {
+          return m.get(name);
+        }
+      }
+      return null;
+    }
+
+    // liquid assigns always go to the outermost scope, so they're still visible after a loop or include
+    private void assign(String name, Object value) {
+      root.put(name, value);
+    }
+  }
+
+  private static final int BREAK = 1;
+  private static final int CONTINUE = 2;
+
+  private static void renderNodes(List<Node> nodes, Context ctx, StringBuilder b) throws IOException, UnsupportedFeatureException {
+    for (Node n : nodes) {
+      n.render(ctx, b);
+      if (ctx.interrupt != 0) {
+        return;
+      }
+    }
+  }
+
+  private static abstract class Node {
+    abstract void render(Context ctx, StringBuilder b) throws IOException, UnsupportedFeatureException;
+  }
+
+  private static class TextNode extends Node {
+    private String text;
+
+    TextNode(String text) {
+      this.text = text;
+    }
+
+    @Override
+    void render(Context ctx, StringBuilder b) {
+      b.append(text);
+    }
+  }
+
+  private static class OutputNode extends Node {
+    private Expr expr;
+
+    OutputNode(Expr expr) {
+      this.expr = expr;
+    }
+
+    @Override
+    void render(Context ctx, StringBuilder b) throws UnsupportedFeatureException {
+      b.append(str(expr.eval(ctx)));
+    }
+  }
+
+  private static class AssignNode extends Node {
+    private String name;
+    private Expr expr;
+
+    AssignNode(String name, Expr expr) {
+      this.name = name;
+      this.expr = expr;
+    }
+
+    @Override
+    void render(Context ctx, StringBuilder b) throws UnsupportedFeatureException {
+      ctx.assign(name, expr.eval(ctx));
+    }
+  }
+
+  private static class CaptureNode extends Node {
+    private String name;
+    private List<Node> body;
+
+    CaptureNode(String name, List<Node> body) {
+      this.name = name;
+      this.body = body;
+    }
+
+    @Override
+    void render(Context ctx, StringBuilder b) throws IOException, UnsupportedFeatureException {
+      StringBuilder c = new StringBuilder();
+      renderNodes(body, ctx, c);
+      ctx.assign(name, c.toString());
+    }
+  }
+
+  private static class IfNode extends Node {
+    private List<Condition> conditions = new ArrayList<>();
+    private List<List<Node>> bodies = new ArrayList<>();
+    private List<Node> elseBody;
+    private boolean unless;
+
+    @Override
+    void render(Context ctx, StringBuilder b) throws IOException, UnsupportedFeatureException {
+      for (int i = 0; i < conditions.size(); i++) {
+        boolean test = conditions.get(i).test(ctx);
+        if (i == 0 && unless) {
+          test = !test;
+        }
+        if (test) {
+          renderNodes(bodies.get(i), ctx, b);
+          return;
+        }
+      }
+      if (elseBody != null) {
+        renderNodes(elseBody, ctx, b);
+      }
+    }
+  }
+
+  private static class CaseNode extends Node {
+    private Expr subject;
+    private List<List<Expr>> whens = new ArrayList<>();
+    private List<List<Node>> bodies = new ArrayList<>();
+    private List<Node> elseBody;
+
+    @Override
+    void render(Context ctx, StringBuilder b) throws IOException, UnsupportedFeatureException {
+      Object v = subject.eval(ctx);
+      boolean matched = false;
+      for (int i = 0; i < whens.size(); i++) {
+        for (Expr e : whens.get(i)) {
+          if (equal(v, e.eval(ctx))) {
+            matched = true;
+            renderNodes(bodies.get(i), ctx, b);
+            break;
+          }
+        }
+      }
+      if (!matched && elseBody != null) {
+        renderNodes(elseBody, ctx, b);
+      }
+    }
+  }
+
+  private static class ForNode extends Node {
+    private String variable;
+    private Expr collection;
+    private Expr limit;
+    private Expr offset;
+    private boolean reversed;
+    private List<Node> body;
+    private List<Node> elseBody;
+
+    @Override
+    void render(Context ctx, StringBuilder b) throws IOException, UnsupportedFeatureException {
+      List<Object> items = iterable(collection.eval(ctx));
+      int from = offset == null ? 0 : (int) Math.max(0, toLong(offset.eval(ctx)));
+      int to = limit == null ? items.size() : (int) Math.min(items.size(), from + Math.max(0, toLong(limit.eval(ctx))));
+      items = from >= to ? new ArrayList<>() : new ArrayList<>(items.subList(from, to));
+      if (reversed) {
+        Collections.reverse(items);
+      }
+      if (items.isEmpty()) {
+        if (elseBody != null) {
+          renderNodes(elseBody, ctx, b);
+        }
+        return;
+      }
+      Map<String, Object> scope = new HashMap<>();
+      Map<String, Object> loop = new HashMap<>();
+      loop.put("name", variable+"-"+collection.toString());
+      loop.put("length", (long) items.size());
+      loop.put("parentloop", ctx.get("forloop"));
+      scope.put("forloop", loop);
+      ctx.scopes.push(scope);
+      try {
+        for (int i = 0; i < items.size(); i++) {
+          scope.put(variable, items.get(i));
+          loop.put("index", (long) i+1);
+          loop.put("index0", (long) i);
+          loop.put("rindex", (long) (items.size() - i));
+          loop.put("rindex0", (long) (items.size() - i - 1));
+          loop.put("first", i == 0);
+          loop.put("last", i == items.size() - 1);
+          renderNodes(body, ctx, b);
+          if (ctx.interrupt == BREAK) {
+            ctx.interrupt = 0;
+            break;
+          }
+          ctx.interrupt = 0;
+        }
+      } finally {
+        ctx.scopes.pop();
+      }
+    }
+  }
+
+  private static class InterruptNode extends Node {
+    private int interrupt;
+
+    InterruptNode(int interrupt) {
+      this.interrupt = interrupt;
+    }
+
+    @Override
+    void render(Context ctx, StringBuilder b) {
+      ctx.interrupt = interrupt;
+    }
+  }
+
+  private static class IncludeNode extends Node {
+    private Template name;
+    private Map<String, Expr> params;
+    private boolean relative;
+
+    @Override
+    void render(Context ctx, StringBuilder b) throws IOException, UnsupportedFeatureException {
+      String n = name.render(ctx).trim();
+      Template t = ctx.host.include(n, relative, ctx);
+      Map<String, Object> scope = new HashMap<>();
+      if (!params.isEmpty()) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (String p : params.keySet()) {
+          values.put(p, params.get(p).eval(ctx));
+        }
+        scope.put("include", values);
+      }
+      if (ctx.depth >= MAX_INCLUDE_DEPTH) {
+        throw new UnsupportedFeatureException("Includes nested too deeply at "+n);
+      }
+      ctx.depth++;
+      ctx.scopes.push(scope);
+      try {
+        t.renderInto(ctx, b);
+      } finally {
+        ctx.scopes.pop();
+        ctx.depth--;
+      }
+    }
+  }
+
+  // ---- expressions -----------------------------------------------------------------------
+
+  private static abstract class Expr {
+    abstract Object eval(Context ctx) throws UnsupportedFeatureException;
+  }
+
+  private static class Literal extends Expr {
+    private Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object eval(Context ctx) {
+      return value;
+    }
+
+    @Override
+    public String toString() {
+      return str(value);
+    }
+  }
+
+  private static class Lookup extends Expr {
+    private String name;
+    private List<Object> segments = new ArrayList<>(); // String for .name, Expr for [expr]
+
+    Lookup(String name) {
+      this.name = name;
+    }
+
+    @Override
+    Object eval(Context ctx) throws UnsupportedFeatureException {
+      Object v = ctx.get(name);
+      for (Object s : segments) {
+        if (v == null) {
+          return null;
+        }
+        v = property(v, s instanceof Expr ? ((Expr) s).eval(ctx) : s, s instanceof String);
+      }
+      return v;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder b = new StringBuilder(name);
+      for (Object s : segments) {
+        b.append(s instanceof String ? "."+s : "[]");
+      }
+      return b.toString();
+    }
+  }
+
+  private static class Range extends Expr {
+    private Expr from;
+    private Expr to;
+
+    Range(Expr from, Expr to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    Object eval(Context ctx) throws UnsupportedFeatureException {
+      List<Object> res = new ArrayList<>();
+      long f = toLong(from.eval(ctx));
+      long t = toLong(to.eval(ctx));
+      for (long i = f; i <= t; i++) {
+        res.add(i);
+      }
+      return res;
+    }
+  }
+
+  private static class Filtered extends Expr {
+    private Expr base;
+    private List<String> names = new ArrayList<>();
+    private List<List<Expr>> args = new ArrayList<>();
+
+    Filtered(Expr base) {
+      this.base = base;
+    }
+
+    @Override
+    Object eval(Context ctx) throws UnsupportedFeatureException {
+      Object v = base.eval(ctx);
+      for (int i = 0; i < names.size(); i++) {
+        List<Object> a = new ArrayList<>();
+        for (Expr e : args.get(i)) {
+          a.add(e.eval(ctx));
+        }
+        v = filter(names.get(i), v, a, ctx);
+      }
+      return v;
+    }
+  }
+
+  private static abstract class Condition {
+    abstract boolean test(Context ctx) throws UnsupportedFeatureException;
+  }
+
+  private static class Comparison extends Condition {
+    private Expr left;
+    private String op;
+    private Expr right;
+
+    @Override
+    boolean test(Context ctx) throws UnsupportedFeatureException {
+      Object l = left.eval(ctx);
+      if (op == null) {
+        return truthy(l);
+      }
+      Object r = right.eval(ctx);
+      switch (op) {
+      case "==": return equal(l, r);
+      case "!=":
+      case "<>": return !equal(l, r);
+      case "contains": return contains(l, r);
+      default: return compare(l, op, r);
+      }
+    }
+  }
+
+  private static class Logical extends Condition {
+    private Condition left;
+    private boolean and;
+    private Condition right;
+
+    @Override
+    boolean test(Context ctx) throws UnsupportedFeatureException {
+      return and ? left.test(ctx) && right.test(ctx) : left.test(ctx) || right.test(ctx);
+    }
+  }
+
+  // ---- parsing ---------------------------------------------------------------------------
+
+  private static final Pattern END_RAW = Pattern.compile("\\{%-?\\s*endraw\\s*-?%\\}");
+  private static final Pattern END_COMMENT = Pattern.compile("\\{%-?\\s*endcomment\\s*-?%\\}");
+  private static final Pattern INCLUDE_PARAM = Pattern.compile("([\\w-]+)\\s*=\\s*(?:\"([^\"\\\\]*(?:\\\\.[^\"\\\\]*)*)\"|'([^'\\\\]*(?:\\\\.[^'\\\\]*)*)'|([\\w.\\-\\[\\]]+))");
+
+  private static class Segment {
+    private static final int TEXT = 0;
+    private static final int OUTPUT = 1;
+    private static final int TAG = 2;
+
+    private int kind;
+    private String text; // or markup
+    private String tag;
+
+    Segment(int kind, String text) {
+      this.kind = kind;
+      this.text = text;
+      if (kind == TAG) {
+        String t = text.trim();
+        int i = 0;
+        while (i < t.length() && !Character.isWhitespace(t.charAt(i))) {
+          i++;
+        }
+        tag = t.substring(0, i);
+        this.text = t.substring(i).trim();
+      }
+    }
+  }
+
+  /**
+   * @param path - identifies the template in messages, and is where include_relative starts from
+   */
+  public static Template parse(String source, String path) throws UnsupportedFeatureException {
+    Parser p = new Parser(path, tokenize(source, path));
+    return new Template(path, p.parseNodes(Collections.<String>emptySet()));
+  }
+
+  private static List<Segment> tokenize(String src, String path) throws UnsupportedFeatureException {
+    List<Segment> res = new ArrayList<>();
+    int i = 0;
+    boolean stripNext = false;
+    while (i < src.length()) {
+      int s = nextMarkup(src, i);
+      String text = s == -1 ? src.substring(i) : src.substring(i, s);
+      if (stripNext) {
+        text = ltrim(text);
+      }
+      if (s == -1) {
+        addText(res, text);
+        break;
+      }
+      boolean tag = src.charAt(s+1) == '%';
+      if (s + 2 < src.length() && src.charAt(s+2) == '-') {
+        text = rtrim(text);
+      }
+      addText(res, text);
+      int e = src.indexOf(tag ? "%}" : "}}", s+2);
+      if (e == -1) {
+        throw new UnsupportedFeatureException("Unterminated "+(tag ? "tag" : "output")+" in "+path);
+      }
+      String inner = src.substring(s+2, e);
+      stripNext = inner.endsWith("-");
+      inner = trimMarkers(inner);
+      i = e + 2;
+      Segment seg = new Segment(tag ? Segment.TAG : Segment.OUTPUT, inner);
+      if (tag && ("raw".equals(seg.tag) || "comment".equals(seg.tag))) {
+        Matcher m = ("raw".equals(seg.tag) ? END_RAW : END_COMMENT).matcher(src);
+        if (!m.find(i)) {
+          throw new UnsupportedFeatureException("Unterminated "+seg.tag+" in "+path);
+        }
+        if ("raw".equals(seg.tag)) {
+          addText(res, stripNext ? ltrim(src.substring(i, m.start())) : src.substring(i, m.start()));
+        }
+        stripNext = m.group().endsWith("-%}");
+        if (m.group().startsWith("{%-") && !res.isEmpty() && res.get(res.size()-1).kind == Segment.TEXT) {
+          Segment last = res.get(res.size()-1);
+          last.text = rtrim(last.text);
+        }
+        i = m.end();
+      } else {
+        res.add(seg);
+      }
+    }
+    return res;
+  }
+
+  private static int nextMarkup(String src, int from) {
+    int i = src.indexOf('{', from);
+    while (i != -1 && i < src.length() - 1) {
+      char c = src.charAt(i+1);
+      if (c == '{' || c == '%') {
+        return i;
+      }
+      i = src.indexOf('{', i+1);
+    }
+    return -1;
+  }
+
+  private static String trimMarkers(String inner) {
+    if (inner.startsWith("-")) {
+      inner = inner.substring(1);
+    }
+    if (inner.endsWith("-")) {
+      inner = inner.substring(0, inner.length()-1);
+    }
+    return inner;
+  }
+
+  private static void addText(List<Segment> res, String text) {
+    if (!text.isEmpty()) {
+      res.add(new Segment(Segment.TEXT, text));
+    }
+  }
+
+  private static String ltrim(String s) {
+    int i = 0;
+    while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+      i++;
+    }
+    return s.substring(i);
+  }
+
+  private static String rtrim(String s) {
+    int i = s.length();
+    while (i > 0 && Character.isWhitespace(s.charAt(i-1))) {
+      i--;
+    }
+    return s.substring(0, i);
+  }
+
+  private static class Parser {
+    private String path;
+    private List<Segment> segments;
+    private int cursor;
+    private Segment end; // the tag that ended the last call to parseNodes
+
+    Parser(String path, List<Segment> segments) {
+      this.path = path;
+      this.segments = segments;
+    }
+
+    List<Node> parseNodes(Set<String> ends) throws UnsupportedFeatureException {
+      List<Node> res = new ArrayList<>();
+      while (cursor < segments.size()) {
+        Segment s = segments.get(cursor++);
+        if (s.kind == Segment.TEXT) {
+          res.add(new TextNode(s.text));
+        } else if (s.kind == Segment.OUTPUT) {
+          res.add(new OutputNode(new ExprParser(s.text, path).filtered()));
+        } else if (ends.contains(s.tag)) {
+          end = s;
+          return res;
+        } else {
+          res.add(parseTag(s));
+        }
+      }
+      if (!ends.isEmpty()) {
+        throw new UnsupportedFeatureException("Missing '"+ends.iterator().next()+"' in "+path);
+      }
+      end = null;
+      return res;
+    }
+
+    private Node parseTag(Segment s) throws UnsupportedFeatureException {
+      switch (s.tag) {
+      case "assign": return parseAssign(s);
+      case "capture": return parseCapture(s);
+      case "if": return parseIf(s, false);
+      case "unless": return parseIf(s, true);
+      case "case": return parseCase(s);
+      case "for": return parseFor(s);
+      case "break": return new InterruptNode(BREAK);
+      case "continue": return new InterruptNode(CONTINUE);
+      case "include": return parseInclude(s, false);
+      case "include_relative": return parseInclude(s, true);
+      default:
+        throw new UnsupportedFeatureException("Unsupported tag '"+s.tag+"' in "+path);
+      }
+    }
+
+    private Node parseAssign(Segment s) throws UnsupportedFeatureException {
+      int i = s.text.indexOf('=');
+      if (i < 1) {
+        throw new UnsupportedFeatureException("Bad assign '"+s.text+"' in "+path);
+      }
+      return new AssignNode(s.text.substring(0, i).trim(), new ExprParser(s.text.substring(i+1), path).filtered());
+    }
+
+    private Node parseCapture(Segment s) throws UnsupportedFeatureException {
+      String name = s.text.trim();
+      if (name.length() > 1 && (name.startsWith("'") || name.startsWith("\""))) {
+        name = name.substring(1, name.length()-1);
+      }
+      return new CaptureNode(name, parseNodes(Collections.singleton("endcapture")));
+    }
+
+    private Node parseIf(Segment s, boolean unless) throws UnsupportedFeatureException {
+      IfNode res = new IfNode();
+      res.unless = unless;
+      String close = unless ? "endunless" : "endif";
+      Set<String> ends = new HashSet<>(Arrays.asList("elsif", "else", close));
+      Segment current = s;
+      while (true) {
+        res.conditions.add(new ExprParser(current.text, path).condition());
+        res.bodies.add(parseNodes(ends));
+        if (!"elsif".equals(end.tag)) {
+          break;
+        }
+        current = end;
+      }
+      if ("else".equals(end.tag)) {
+        res.elseBody = parseNodes(Collections.singleton(close));
+      }
+      return res;
+    }
+
+    private Node parseCase(Segment s) throws UnsupportedFeatureException {
+      CaseNode res = new CaseNode();
+      res.subject = new ExprParser(s.text, path).value();
+      Set<String> ends = new HashSet<>(Arrays.asList("when", "else", "endcase"));
+      parseNodes(ends); // anything before the first when is ignored
+      while ("when".equals(end.tag)) {
+        res.whens.add(new ExprParser(end.text, path).whenValues());
+        res.bodies.add(parseNodes(ends));
+      }
+      if ("else".equals(end.tag)) {
+        res.elseBody = parseNodes(Collections.singleton("endcase"));
+      }
+      return res;
+    }
+
+    private Node parseFor(Segment s) throws UnsupportedFeatureException {
+      ForNode res = new ForNode();
+      ExprParser p = new ExprParser(s.text, path);
+      res.variable = p.identifier();
+      if (!"in".equals(p.identifier())) {
+        throw new UnsupportedFeatureException("Bad for loop '"+s.text+"' in "+path);
+      }
+      res.collection = p.value();
+      while (!p.done()) {
+        String n = p.identifier();
+        if ("reversed".equals(n)) {
+          res.reversed = true;
+        } else if ("limit".equals(n) || "offset".equals(n)) {
+          p.expect(":");
+          if ("limit".equals(n)) {
+            res.limit = p.value();
+          } else {
+            res.offset = p.value();
+          }
+        } else {
+          throw new UnsupportedFeatureException("Unsupported for loop option '"+n+"' in "+path);
+        }
+        p.skip(",");
+      }
+      Set<String> ends = new HashSet<>(Arrays.asList("else", "endfor"));
+      res.body = parseNodes(ends);
+      if ("else".equals(end.tag)) {
+        res.elseBody = parseNodes(Collections.singleton("endfor"));
+      }
+      return res;
+    }
+
+    private Node parseInclude(Segment s, boolean relative) throws UnsupportedFeatureException {
+      IncludeNode res = new IncludeNode();
+      res.relative = relative;
+      // the name runs to the first space that isn't inside {{ }}
+      String m = s.text;
+      int i = 0;
+      int nesting = 0;
+      while (i < m.length() && (nesting > 0 || !Character.isWhitespace(m.charAt(i)))) {
+        if (m.startsWith("{{", i)) {
+          nesting++;
+          i++;
+        } else if (m.startsWith("}}", i)) {
+          nesting--;
+          i++;
+        }
+        i++;
+      }
+      res.name = SiteLiquid.parse(m.substring(0, Math.min(i, m.length())), path);
+      res.params = new LinkedHashMap<>();
+      String rest = m.substring(Math.min(i, m.length())).trim();
+      Matcher pm = INCLUDE_PARAM.matcher(rest);
+      int last = 0;
+      while (pm.find()) {
+        if (!rest.substring(last, pm.start()).trim().isEmpty()) {
+          throw new UnsupportedFeatureException("Bad include parameters '"+rest+"' in "+path);
+        }
+        last = pm.end();
+        if (pm.group(4) != null) {
+          res.params.put(pm.group(1), new ExprParser(pm.group(4), path).value());
+        } else {
+          String v = pm.group(2) != null ? pm.group(2) : pm.group(3);
+          res.params.put(pm.group(1), new Literal(v.replace("\\\"", "\"").replace("\\'", "'")));
+        }
+      }
+      if (!rest.substring(last).trim().isEmpty()) {
+        throw new UnsupportedFeatureException("Bad include parameters '"+rest+"' in "+path);
+      }
+      return res;
+    }
+  }
+
+  private static class Token {
+    private char kind; // s = string, n = number, i = identifier, o = operator
+    private String text;
+
+    Token(char kind, String text) {
+      this.kind = kind;
+      this.text = text;
+    }
+
+    boolean is(String s) {
+      return kind != 's' && text.equals(s);
+    }
+  }
+
+  private static class ExprParser {
+    private String source;
+    private String path;
+    private List<Token> tokens = new ArrayList<>();
+    private int cursor;
+
+    ExprParser(String source, String path) throws UnsupportedFeatureException {
+      this.source = source;
+      this.path = path;
+      lex();
+    }
+
+    private UnsupportedFeatureException error(String msg) {
+      return new UnsupportedFeatureException(msg+" in '"+source.trim()+"' in "+path);
+    }
+
+    private void lex() throws UnsupportedFeatureException {
+      String s = source;
+      int i = 0;
+      while (i < s.length()) {
+        char c = s.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        } else if (c == '\'' || c == '"') {
+          int e = s.indexOf(c, i+1);
+          if (e == -1) {
+            throw error("Unterminated string");
+          }
+          tokens.add(new Token('s', s.substring(i+1, e)));
+          i = e + 1;
+        } else if (Character.isDigit(c) || (c == '-' && i+1 < s.length() && Character.isDigit(s.charAt(i+1)))) {
+          int e = i + 1;
+          while (e < s.length() && (Character.isDigit(s.charAt(e)) || (s.charAt(e) == '.' && e+1 < s.length() && Character.isDigit(s.charAt(e+1))))) {
+            e++;
+          }
+          tokens.add(new Token('n', s.substring(i, e)));
+          i = e;
+        } else if (Character.isLetter(c) || c == '_') {
+          int e = i + 1;
+          while (e < s.length() && (Character.isLetterOrDigit(s.charAt(e)) || s.charAt(e) == '_' || s.charAt(e) == '-' || s.charAt(e) == '?')) {
+            e++;
+          }
+          tokens.add(new Token('i', s.substring(i, e)));
+          i = e;
+        } else if (s.startsWith("..", i) || s.startsWith("==", i) || s.startsWith("!=", i) || s.startsWith("<>", i) || s.startsWith("<=", i) || s.startsWith(">=", i)) {
+          tokens.add(new Token('o', s.substring(i, i+2)));
+          i = i + 2;
+        } else if (".[]()|:,<>".indexOf(c) > -1) {
+          tokens.add(new Token('o', String.valueOf(c)));
+          i++;
+        } else {
+          throw error("Unexpected character '"+c+"'");
+        }
+      }
+    }
+
+    boolean done() {
+      return cursor >= tokens.size();
+    }
+
+    private Token peek() {
+      return done() ? null : tokens.get(cursor);
+    }
+
+    private boolean peekIs(String s) {
+      return !done() && peek().is(s);
+    }
+
+    private Token next() throws UnsupportedFeatureException {
+      if (done()) {
+        throw error("Unexpected end");
+      }
+      return tokens.get(cursor++);
+    }
+
+    void expect(String s) throws UnsupportedFeatureException {
+      if (!next().is(s)) {
+        throw error("Expected '"+s+"'");
+      }
+    }
+
+    void skip(String s) {
+      if (peekIs(s)) {
+        cursor++;
+      }
+    }
+
+    String identifier() throws UnsupportedFeatureException {
+      Token t = next();
+      if (t.kind != 'i') {
+        throw error("Expected a name");
+      }
+      return t.text;
+    }
+
+    Expr filtered() throws UnsupportedFeatureException {
+      Expr base = value();
+      if (!peekIs("|")) {
+        checkDone();
+        return base;
+      }
+      Filtered res = new Filtered(base);
+      while (peekIs("|")) {
+        cursor++;
+        String name = identifier();
+        if (!FILTERS.contains(name)) {
+          throw error("Unsupported filter '"+name+"'");
+        }
+        List<Expr> args = new ArrayList<>();
+        if (peekIs(":")) {
+          cursor++;
+          while (true) {
+            if (peek() != null && peek().kind == 'i' && cursor + 1 < tokens.size() && tokens.get(cursor+1).is(":")) {
+              throw error("Unsupported named filter argument");
+            }
+            args.add(value());
+            if (!peekIs(",")) {
+              break;
+            }
+            cursor++;
+          }
+        }
+        res.names.add(name);
+        res.args.add(args);
+      }
+      checkDone();
+      return res;
+    }
+
+    Condition condition() throws UnsupportedFeatureException {
+      Condition res = comparison();
+      if (peekIs("and") || peekIs("or")) {
+        // liquid evaluates and/or from right to left, without precedence
+        Logical l = new Logical();
+        l.left = res;
+        l.and = next().is("and");
+        l.right = condition();
+        return l;
+      }
+      checkDone();
+      return res;
+    }
+
+    private Condition comparison() throws UnsupportedFeatureException {
+      Comparison res = new Comparison();
+      res.left = value();
+      Token t = peek();
+      if (t != null && t.kind != 's' && Utilities.existsInList(t.text, "==", "!=", "<>", "<", ">", "<=", ">=", "contains")) {
+        cursor++;
+        res.op = t.text;
+        res.right = value();
+      }
+      return res;
+    }
+
+    List<Expr> whenValues() throws UnsupportedFeatureException {
+      List<Expr> res = new ArrayList<>();
+      res.add(value());
+      while (peekIs(",") || peekIs("or")) {
+        cursor++;
+        res.add(value());
+      }
+      checkDone();
+      return res;
+    }
+
+    Expr value() throws UnsupportedFeatureException {
+      Token t = next();
+      switch (t.kind) {
+      case 's': return new Literal(t.text);
+      case 'n': return new Literal(t.text.contains(".") ? (Object) Double.valueOf(t.text) : (Object) Long.valueOf(t.text));
+      case 'o':
+        if (t.is("(")) {
+          Expr from = value();
+          expect("..");
+          Expr to = value();
+          expect(")");
+          return new Range(from, to);
+        }
+        throw error("Unexpected '"+t.text+"'");
+      default:
+        switch (t.text) {
+        case "true": return new Literal(true);
+        case "false": return new Literal(false);
+        case "nil":
+        case "null": return new Literal(null);
+        case "empty": return new Literal(EMPTY);
+        case "blank": return new Literal(BLANK);
+        }
+        Lookup res = new Lookup(t.text);
+        while (peekIs(".") || peekIs("[")) {
+          if (next().is(".")) {
+            Token n = next();
+            if (n.kind == 'n') {
+              res.segments.add(new Literal(Long.valueOf(n.text)));
+            } else if (n.kind == 'i') {
+              res.segments.add(n.text);
+            } else {
+              throw error("Expected a name");
+            }
+          } else {
+            res.segments.add(value());
+            expect("]");
+          }
+        }
+        return res;
+      }
+    }
+
+    private void checkDone() throws UnsupportedFeatureException {
+      if (!done()) {
+        throw error("Unexpected '"+peek().text+"'");
+      }
+    }
+  }
+
+  // ---- values ----------------------------------------------------------------------------
+
+  private static Object property(Object obj, Object key, boolean named) {
+    if (obj instanceof Map) {
+      Map<?, ?> m = (Map<?, ?>) obj;
+      String k = str(key);
+      if (m.containsKey(k)) {
+        return m.get(k);
+      }
+      return named && "size".equals(k) ? (Object) (long) m.size() : null;
+    }
+    if (obj instanceof List) {
+      List<?> l = (List<?>) obj;
+      if (key instanceof Number) {
+        int i = ((Number) key).intValue();
+        if (i < 0) {
+          i = l.size() + i;
+        }
+        return i >= 0 && i < l.size() ? l.get(i) : null;
+      }
+      if (named) {
+        switch (str(key)) {
+        case "size": return (long) l.size();
+        case "first": return l.isEmpty() ? null : l.get(0);
+        case "last": return l.isEmpty() ? null : l.get(l.size()-1);
+        }
+      }
+      return null;
+    }
+    if (obj instanceof String && named && "size".equals(key)) {
+      return (long) ((String) obj).length();
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Object> iterable(Object v) {
+    if (v == null) {
+      return new ArrayList<>();
+    }
+    if (v instanceof List) {
+      return (List<Object>) v;
+    }
+    if (v instanceof Map) {
+      List<Object> res = new ArrayList<>();
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()) {
+        res.add(Arrays.asList(e.getKey(), e.getValue()));
+      }
+      return res;
+    }
+    if (v instanceof String && ((String) v).isEmpty()) {
+      return new ArrayList<>();
+    }
+    return Collections.singletonList(v);
+  }
+
+  private static boolean truthy(Object v) {
+    return v != null && !Boolean.FALSE.equals(v);
+  }
+
+  private static boolean isEmpty(Object v) {
+    return (v instanceof String && ((String) v).isEmpty()) || (v instanceof List && ((List<?>) v).isEmpty()) || (v instanceof Map && ((Map<?, ?>) v).isEmpty());
+  }
+
+  private static boolean isBlank(Object v) {
+    return v == null || Boolean.FALSE.equals(v) || isEmpty(v) || (v instanceof String && ((String) v).trim().isEmpty());
+  }
+
+  private static boolean equal(Object a, Object b) {
+    if (a == EMPTY || b == EMPTY) {
+      return isEmpty(a == EMPTY ? b : a);
+    }
+    if (a == BLANK || b == BLANK) {
+      return isBlank(a == BLANK ? b : a);
+    }
+    if (a instanceof Number && b instanceof Number) {
+      return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+    }
+    if (a == null || b == null) {
+      return a == b;
+    }
+    return a.equals(b);
+  }
+
+  private static boolean contains(Object l, Object r) {
+    if (l instanceof String) {
+      return r != null && ((String) l).contains(str(r));
+    }
+    if (l instanceof List) {
+      for (Object o : (List<?>) l) {
+        if (equal(o, r)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (l instanceof Map) {
+      return ((Map<?, ?>) l).containsKey(str(r));
+    }
+    return false;
+  }
+
+  private static boolean compare(Object l, String op, Object r) throws UnsupportedFeatureException {
+    int c;
+    if (l == null || r == null || l instanceof Map || r instanceof Map) {
+      return false;
+    } else if (l instanceof Number && r instanceof Number) {
+      c = Double.compare(((Number) l).doubleValue(), ((Number) r).doubleValue());
+    } else if (l instanceof String && r instanceof String) {
+      c = ((String) l).compareTo((String) r);
+    } else {
+      // liquid raises an error for this
+      throw new UnsupportedFeatureException("Can't compare "+str(l)+" with "+str(r));
+    }
+    switch (op) {
+    case "<": return c < 0;
+    case ">": return c > 0;
+    case "<=": return c <= 0;
+    default: return c >= 0;
+    }
+  }
+
+  /**
+   * renders a value the way liquid outputs it
+   */
+  public static String str(Object v) {
+    if (v == null || v == EMPTY || v == BLANK) {
+      return "";
+    }
+    if (v instanceof String) {
+      return (String) v;
+    }
+    if (v instanceof List) {
+      StringBuilder b = new StringBuilder();
+      for (Object o : (List<?>) v) {
+        b.append(str(o));
+      }
+      return b.toString();
+    }
+    if (v instanceof Map) {
+      return new Gson().toJson(v);
+    }
+    return v.toString();
+  }
+
+  private static long toLong(Object v) {
+    Number n = toNumber(v);
+    return n.longValue();
+  }
+
+  private static Number toNumber(Object v) {
+    if (v instanceof Number) {
+      return (Number) v;
+    }
+    if (v instanceof String) {
+      String s = ((String) v).trim();
+      try {
+        return s.contains(".") ? (Number) Double.valueOf(s) : (Number) Long.valueOf(s);
+      } catch (NumberFormatException e) {
+        return 0L;
+      }
+    }
+    return 0L;
+  }
+
+  private static boolean integral(Number n) {
+    return !(n instanceof Double || n instanceof Float);
+  }
+
+  // ---- filters ---------------------------------------------------------------------------
+
+  @SuppressWarnings("unchecked")
+  private static Object filter(String name, Object input, List<Object> args, Context ctx) throws UnsupportedFeatureException {
+    String s = str(input);
+    switch (name) {
+    case "size":
+      if (input instanceof List) {
+        return (long) ((List<?>) input).size();
+      } else if (input instanceof Map) {
+        return (long) ((Map<?, ?>) input).size();
+      }
+      return input instanceof String ? (long) s.length() : 0L;
+    case "downcase": return s.toLowerCase();
+    case "upcase": return s.toUpperCase();
+    case "capitalize": return s.isEmpty() ? s : s.substring(0, 1).toUpperCase()+s.substring(1).toLowerCase();
+    case "strip": return s.trim();
+    case "lstrip": return ltrim(s);
+    case "rstrip": return rtrim(s);
+    case "strip_newlines": return s.replace("\r", "").replace("\n", "");
+    case "newline_to_br": return s.replace("\r\n", "\n").replace("\n", "<br />\n");
+    case "normalize_whitespace": return s.replaceAll("\\s+", " ");
+    case "strip_html": return s.replaceAll("(?s)<script.*?</script>|<!--.*?-->|<style.*?</style>", "").replaceAll("(?s)<.*?>", "");
+    case "escape": return escapeHtml(s);
+    case "escape_once": return escapeHtml(s).replaceAll("&amp;(#?\\w+;)", "&$1");
+    case "xml_escape": return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    case "cgi_escape":
+    case "url_encode": return urlEncode(s);
+    case "url_decode": return urlDecode(s);
+    case "uri_escape": return uriEscape(s);
+    case "append": return s + str(arg(args, 0));
+    case "prepend": return str(arg(args, 0)) + s;
+    case "replace": return s.replace(str(arg(args, 0)), str(arg(args, 1)));
+    case "replace_first": return replaceFirst(s, str(arg(args, 0)), str(arg(args, 1)));
+    case "remove": return s.replace(str(arg(args, 0)), "");
+    case "remove_first": return replaceFirst(s, str(arg(args, 0)), "");
+    case "split": return split(s, str(arg(args, 0)));
+    case "join": return join(input, args.isEmpty() ? " " : str(args.get(0)));
+    case "first": return input instanceof List ? property(input, "first", true) : null;
+    case "last": return input instanceof List ? property(input, "last", true) : null;
+    case "reverse": {
+      List<Object> l = new ArrayList<>(iterable(input));
+      Collections.reverse(l);
+      return l;
+    }
+    case "sort":
+    case "sort_natural": return sort(input, arg(args, 0), "sort_natural".equals(name));
+    case "uniq": return new ArrayList<>(new LinkedHashSet<>(iterable(input)));
+    case "compact": {
+      List<Object> l = new ArrayList<>(iterable(input));
+      l.removeAll(Collections.singleton(null));
+      return l;
+    }
+    case "concat": {
+      List<Object> l = new ArrayList<>(iterable(input));
+      l.addAll(iterable(arg(args, 0)));
+      return l;
+    }
+    case "push":
+    case "unshift": {
+      List<Object> l = new ArrayList<>(iterable(input));
+      l.add("push".equals(name) ? l.size() : 0, arg(args, 0));
+      return l;
+    }
+    case "pop":
+    case "shift": {
+      List<Object> l = new ArrayList<>(iterable(input));
+      if (!l.isEmpty()) {
+        l.remove("pop".equals(name) ? l.size()-1 : 0);
+      }
+      return l;
+    }
+    case "map": {
+      List<Object> l = new ArrayList<>();
+      for (Object o : iterable(input)) {
+        l.add(property(o, str(arg(args, 0)), true));
+      }
+      return l;
+    }
+    case "where": {
+      List<Object> l = new ArrayList<>();
+      for (Object o : iterable(input)) {
+        Object v = property(o, str(arg(args, 0)), true);
+        if (args.size() < 2 ? truthy(v) : (v instanceof List ? contains(v, str(args.get(1))) : str(v).equals(str(args.get(1))))) {
+          l.add(o);
+        }
+      }
+      return l;
+    }
+    case "slice": return slice(input, (int) toLong(arg(args, 0)), args.size() > 1 ? (int) toLong(args.get(1)) : 1);
+    case "truncate": return truncate(s, args.isEmpty() ? 50 : (int) toLong(args.get(0)), args.size() > 1 ? str(args.get(1)) : "...");
+    case "truncatewords": return truncateWords(s, args.isEmpty() ? 15 : (int) toLong(args.get(0)), args.size() > 1 ? str(args.get(1)) : "...");
+    case "plus":
+    case "minus":
+    case "times":
+    case "divided_by":
+    case "modulo": return arithmetic(name, toNumber(input), toNumber(arg(args, 0)));
+    case "abs": {
+      Number n = toNumber(input);
+      return integral(n) ? (Object) Math.abs(n.longValue()) : (Object) Math.abs(n.doubleValue());
+    }
+    case "ceil": return (long) Math.ceil(toNumber(input).doubleValue());
+    case "floor": return (long) Math.floor(toNumber(input).doubleValue());
+    case "round": {
+      Number n = toNumber(input);
+      int places = args.isEmpty() ? 0 : (int) toLong(args.get(0));
+      if (places <= 0) {
+        return Math.round(n.doubleValue());
+      }
+      double f = Math.pow(10, places);
+      return Math.round(n.doubleValue() * f) / f;
+    }
+    case "default": return input == null || Boolean.FALSE.equals(input) || isEmpty(input) ? arg(args, 0) : input;
+    case "date": return date(input, str(arg(args, 0)));
+    case "date_to_xmlschema": return date(input, "%Y-%m-%dT%H:%M:%S%:z");
+    case "jsonify": return new Gson().toJson(input);
+    case "markdownify": return ctx.host.markdownify(s);
+    case "relative_url": return relativeUrl(s, ctx);
+    case "absolute_url": {
+      String url = str(property(ctx.get("site"), "url", true));
+      return url + relativeUrl(s, ctx);
+    }
+    case "slugify": return s.toLowerCase().replaceAll("[^\\p{Alnum}]+", "-").replaceAll("^-+|-+$", "");
+    case "number_of_words": return s.trim().isEmpty() ? 0L : (long) s.trim().split("\\s+").length;
+    case "array_to_sentence_string": {
+      List<Object> l = iterable(input);
+      String connector = args.isEmpty() ? "and" : str(args.get(0));
+      if (l.size() <= 1) {
+        return join(l, "");
+      } else if (l.size() == 2) {
+        return str(l.get(0))+" "+connector+" "+str(l.get(1));
+      }
+      return join(l.subList(0, l.size()-1), ", ")+", "+connector+" "+str(l.get(l.size()-1));
+    }
+    default:
+      throw new UnsupportedFeatureException("Unsupported filter '"+name+"'");
+    }
+  }
+
+  private static Object arg(List<Object> args, int i) {
+    return i < args.size() ? args.get(i) : null;
+  }
+
+  private static String escapeHtml(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&#39;");
+  }
+
+  private static String urlEncode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new Error(e);
+    }
+  }
+
+  private static String urlDecode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new Error(e);
+    }
+  }
+
+  private static String uriEscape(String s) {
+    StringBuilder b = new StringBuilder();
+    for (byte x : s.getBytes(java.nio.charset.StandardCharsets.UTF_8)) {
+      char c = (char) (x & 0xFF);
+      if (c < 128 && (Character.isLetterOrDigit(c) || "-_.~!*'();:@&=+$,/?#[]%".indexOf(c) > -1)) {
+        b.append(c);
+      } else {
+        b.append('%').append(Character.toUpperCase(Character.forDigit((x >> 4) & 0xF, 16))).append(Character.toUpperCase(Character.forDigit(x & 0xF, 16)));
+      }
+    }
+    return b.toString();
+  }
+
+  private static String replaceFirst(String s, String find, String replace) {
+    int i = s.indexOf(find);
+    return i == -1 ? s : s.substring(0, i) + replace + s.substring(i + find.length());
+  }
+
+  private static List<Object> split(String s, String sep) {
+    List<Object> res = new ArrayList<>();
+    if (sep.isEmpty()) {
+      for (char c : s.toCharArray()) {
+        res.add(String.valueOf(c));
+      }
+      return res;
+    }
+    if (" ".equals(sep)) {
+      // ruby splits on runs of whitespace in this case
+      s = s.trim();
+      if (!s.isEmpty()) {
+        res.addAll(Arrays.asList(s.split("\\s+")));
+      }
+      return res;
+    }
+    res.addAll(Arrays.asList(s.split(Pattern.quote(sep))));
+    // ruby drops trailing empty strings (java already does, except when the whole string is empty)
+    if (s.isEmpty()) {
+      res.clear();
+    }
+    return res;
+  }
+
+  private static String join(Object input, String sep) {
+    StringBuilder b = new StringBuilder();
+    boolean first = true;
+    for (Object o : iterable(input)) {
+      if (!first) {
+        b.append(sep);
+      }
+      first = false;
+      b.append(str(o));
+    }
+    return b.toString();
+  }
+
+  private static List<Object> sort(Object input, Object property, boolean natural) throws UnsupportedFeatureException {
+    List<Object> l = new ArrayList<>(iterable(input));
+    String p = property == null ? null : str(property);
+    List<Object> keys = new ArrayList<>();
+    for (Object o : l) {
+      keys.add(p == null ? o : property(o, p, true));
+    }
+    Integer[] order = new Integer[l.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    try {
+      Arrays.sort(order, (a, b) -> {
+        Object ka = keys.get(a);
+        Object kb = keys.get(b);
+        if (ka == null || kb == null) {
+          // jekyll puts nils last
+          return ka == kb ? 0 : ka == null ? 1 : -1;
+        }
+        if (ka instanceof Number && kb instanceof Number) {
+          return Double.compare(((Number) ka).doubleValue(), ((Number) kb).doubleValue());
+        }
+        if (ka instanceof String && kb instanceof String) {
+          return natural ? ((String) ka).compareToIgnoreCase((String) kb) : ((String) ka).compareTo((String) kb);
+        }
+        throw new IllegalArgumentException("Can't sort "+str(ka)+" with "+str(kb));
+      });
+    } catch (IllegalArgumentException e) {
+      throw new UnsupportedFeatureException(e.getMessage());
+    }
+    List<Object> res = new ArrayList<>();
+    for (Integer i : order) {
+      res.add(l.get(i));
+    }
+    return res;
+  }
+
+  private static Object slice(Object input, int offset, int length) {
+    if (input instanceof List) {
+      List<?> l = (List<?>) input;
+      int start = offset < 0 ? l.size() + offset : offset;
+      if (start < 0 || start > l.size()) {
+        return new ArrayList<>();
+      }
+      return new ArrayList<>(l.subList(start, Math.min(l.size(), start + Math.max(0, length))));
+    }
+    String s = str(input);
+    int start = offset < 0 ? s.length() + offset : offset;
+    if (start < 0 || start > s.length()) {
+      return "";
+    }
+    return s.substring(start, Math.min(s.length(), start + Math.max(0, length)));
+  }
+
+  private static String truncate(String s, int length, String ellipsis) {
+    if (s.length() <= length) {
+      return s;
+    }
+    int l = Math.max(0, length - ellipsis.length());
+    return s.substring(0, l) + ellipsis;
+  }
+
+  private static String truncateWords(String s, int count, String ellipsis) {
+    String[] words = s.trim().split("\\s+");
+    if (words.length <= Math.max(1, count)) {
+      return s;
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < Math.max(1, count); i++) {
+      if (i > 0) {
+        b.append(' ');
+      }
+      b.append(words[i]);
+    }
+    return b.append(ellipsis).toString();
+  }
+
+  private static Object arithmetic(String op, Number a, Number b) throws UnsupportedFeatureException {
+    if (integral(a) && integral(b)) {
+      long x = a.longValue();
+      long y = b.longValue();
+      switch (op) {
+      case "plus": return x + y;
+      case "minus": return x - y;
+      case "times": return x * y;
+      default:
+        if (y == 0) {
+          throw new UnsupportedFeatureException("Division by zero");
+        }
+        // ruby integer division and modulo round towards negative infinity
+        return "divided_by".equals(op) ? Math.floorDiv(x, y) : Math.floorMod(x, y);
+      }
+    }
+    double x = a.doubleValue();
+    double y = b.doubleValue();
+    switch (op) {
+    case "plus": return x + y;
+    case "minus": return x - y;
+    case "times": return x * y;
+    case "divided_by": return x / y;
+    default: return x - y * Math.floor(x / y);
+    }
+  }
+
+  private static String relativeUrl(String s, Context ctx) {
+    if (s.contains("://") || s.startsWith("//")) {
+      return s;
+    }
+    String base = str(property(ctx.get("site"), "baseurl", true));
+    if (!base.isEmpty() && !base.startsWith("/")) {
+      base = "/"+base;
+    }
+    if (base.endsWith("/")) {
+      base = base.substring(0, base.length()-1);
+    }
+    return base + (s.startsWith("/") ? s : "/"+s);
+  }
+
+  private static Object date(Object input, String format) throws UnsupportedFeatureException {
+    ZonedDateTime dt = toDate(input);
+    if (dt == null || format.isEmpty()) {
+      return input;
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < format.length(); i++) {
+      char c = format.charAt(i);
+      if (c != '%' || i == format.length() - 1) {
+        b.append(c);
+        continue;
+      }
+      char d = format.charAt(++i);
+      boolean colon = d == ':' && i < format.length() - 1;
+      if (colon) {
+        d = format.charAt(++i);
+      }
+      switch (d) {
+      case 'Y': b.append(dt.getYear()); break;
+      case 'y': b.append(String.format("%02d", dt.getYear() % 100)); break;
+      case 'm': b.append(String.format("%02d", dt.getMonthValue())); break;
+      case 'd': b.append(String.format("%02d", dt.getDayOfMonth())); break;
+      case 'e': b.append(String.format("%2d", dt.getDayOfMonth())); break;
+      case 'j': b.append(String.format("%03d", dt.getDayOfYear())); break;
+      case 'H': b.append(String.format("%02d", dt.getHour())); break;
+      case 'I': b.append(String.format("%02d", dt.getHour() % 12 == 0 ? 12 : dt.getHour() % 12)); break;
+      case 'M': b.append(String.format("%02d", dt.getMinute())); break;
+      case 'S': b.append(String.format("%02d", dt.getSecond())); break;
+      case 'L': b.append(String.format("%03d", dt.getNano() / 1000000)); break;
+      case 'p': b.append(dt.getHour() < 12 ? "AM" : "PM"); break;
+      case 'b': b.append(dt.getMonth().getDisplayName(TextStyle.SHORT, Locale.ENGLISH)); break;
+      case 'B': b.append(dt.getMonth().getDisplayName(TextStyle.FULL, Locale.ENGLISH)); break;
+      case 'a': b.append(dt.getDayOfWeek().getDisplayName(TextStyle.SHORT, Locale.ENGLISH)); break;
+      case 'A': b.append(dt.getDayOfWeek().getDisplayName(TextStyle.FULL, Locale.ENGLISH)); break;
+      case 's': b.append(dt.toEpochSecond()); break;
+      case 'z': b.append(dt.format(DateTimeFormatter.ofPattern(colon ? "xxx" : "xx"))); break;
+      case 'Z': b.append(dt.getZone().getDisplayName(TextStyle.SHORT, Locale.ENGLISH)); break;
+      case '%': b.append('%'); break;
+      default:
+        throw new UnsupportedFeatureException("Unsupported date format '%"+d+"'");
+      }
+    }
+    return b.toString();
+  }
+
+  private static ZonedDateTime toDate(Object input) {
+    if (input instanceof Number) {
+      return ZonedDateTime.ofInstant(java.time.Instant.ofEpochSecond(((Number) input).longValue()), ZoneId.systemDefault());
+    }
+    String s = str(input).trim();
+    if ("now".equals(s) || "today".equals(s)) {
+      return ZonedDateTime.now();
+    }
+    try {
+      // how site.time is presented
+      return ZonedDateTime.parse(s, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss Z"));
+    } catch (DateTimeParseException e) {
+      // try the next
+    }
+    try {
+      return OffsetDateTime.parse(s).toZonedDateTime();
+    } catch (DateTimeParseException e) {
+      // try the next
+    }
+    try {
+      return LocalDateTime.parse(s.replace(' ', 'T')).atZone(ZoneId.systemDefault());
+    } catch (DateTimeParseException e) {
+      // try the next
+    }
+    try {
+      return LocalDate.parse(s).atStartOfDay(ZoneId.systemDefault());
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+}
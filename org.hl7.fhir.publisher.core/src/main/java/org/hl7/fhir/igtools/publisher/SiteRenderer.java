@@ -0,0 +1,641 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.igtools.publisher.SiteLiquid.Context;
+import org.hl7.fhir.igtools.publisher.SiteLiquid.IncludeHost;
+import org.hl7.fhir.igtools.publisher.SiteLiquid.Template;
+import org.hl7.fhir.igtools.publisher.SiteLiquid.UnsupportedFeatureException;
+import org.hl7.fhir.utilities.MarkDownProcessor;
+import org.hl7.fhir.utilities.MarkDownProcessor.Dialect;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Builds the Jekyll site in the temp folder into the output folder in process, instead of
+ * running Jekyll (GenerationTool.Native).
+ *
+ * Works the way Jekyll does for the parts of Jekyll that IGs use: _config.yml, _data,
+ * _layouts, _includes, pages with front matter (html or markdown), front matter defaults,
+ * and static files. The Liquid is done by SiteLiquid.
+ *
+ * Pages are rendered in parallel, on a pool that only lasts for the render. Compiled templates are kept, and reused while the file
+ * is unchanged, and the renderer remembers what each page was rendered from (the page,
+ * the includes and layouts it used, and the config and data), so when the same renderer
+ * is run again (watch mode), only the pages where something they use changed are rendered
+ * again.
+ *
+ * Anything this can't do exactly the way Jekyll would (plugins, collections, permalinks,
+ * kramdown extensions, Liquid that SiteLiquid doesn't support, or anything Jekyll itself
+ * would fail on) raises UnsupportedFeatureException, and the caller should run Jekyll.
+ * Markdown is converted by the CommonMark processor rather than kramdown; headings get
+ * kramdown style ids.
+ */
+public class SiteRenderer {
+
+  private static final Pattern HEADING = Pattern.compile("<h([1-6])>(.*?)</h\\1>", Pattern.DOTALL);
+  private static final List<String> DEFAULT_MARKDOWN_EXTENSIONS = Arrays.asList("markdown", "mkdown", "mkdn", "mkd", "md");
+  private static final List<String> DEFAULT_EXCLUSIONS = Arrays.asList("Gemfile", "Gemfile.lock", "node_modules", "vendor/bundle/", "vendor/cache/", "vendor/gems/", "vendor/ruby/");
+
+  private static class CachedTemplate {
+    private String digest;
+    private Template template;
+    private Map<String, Object> frontMatter;
+  }
+
+  private static class Page {
+    private String path; // relative to the source, with / separators
+    private String output; // ditto, relative to the destination
+    private String digest;
+    private String body;
+    private boolean markdown;
+    private Map<String, Object> data = new LinkedHashMap<>();
+  }
+
+  private static class PageRecord {
+    private String digest;
+    private String global;
+    private Map<String, String> uses = new HashMap<>(); // includes and layouts -> digest, when the page was rendered
+  }
+
+  private String source;
+  private String destination;
+  private int threads;
+  private ThreadLocal<MarkDownProcessor> markdown = ThreadLocal.withInitial(() -> new MarkDownProcessor(Dialect.COMMON_MARK));
+
+  private Map<String, CachedTemplate> templates = new ConcurrentHashMap<>();
+  private Map<String, PageRecord> records = new ConcurrentHashMap<>();
+
+  // for the current run
+  private Map<String, String> digests;
+  private Map<String, Object> site;
+  private String global;
+  private String layoutsDir;
+  private String includesDir;
+  private List<String> markdownExtensions;
+  private List<String> exclusions;
+  private List<String> inclusions;
+  private List<Object> defaults;
+  private boolean autoIds;
+  private int renderedCount;
+  private int unchangedCount;
+  private int copiedCount;
+  private volatile boolean failed;
+
+  public SiteRenderer(String source, String destination, int threads) {
+    super();
+    this.source = source;
+    this.destination = destination;
+    this.threads = threads;
+  }
+
+  public int getRenderedCount() {
+    return renderedCount;
+  }
+
+  public int getUnchangedCount() {
+    return unchangedCount;
+  }
+
+  public int getCopiedCount() {
+    return copiedCount;
+  }
+
+  public void render() throws IOException, UnsupportedFeatureException {
+    digests = new ConcurrentHashMap<>();
+    renderedCount = 0;
+    unchangedCount = 0;
+    copiedCount = 0;
+    StringBuilder g = new StringBuilder();
+    loadConfig(g);
+    loadData(g);
+
+    List<Page> pages = new ArrayList<>();
+    List<String> statics = new ArrayList<>();
+    scan(new File(source), "", pages, statics);
+    List<Object> pageList = new ArrayList<>();
+    for (Page p : pages) {
+      pageList.add(p.data);
+    }
+    site.put("pages", pageList);
+    site.put("html_pages", pageList);
+    g.append(new Gson().toJson(pageList));
+    global = ContentDigest.of(g.toString());
+    site.put("time", ZonedDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss Z")));
+
+    for (String s : statics) {
+      copyStatic(s);
+    }
+
+    failed = false;
+    Throwable error = null;
+    try (WorkerPool pool = new WorkerPool("site", threads)) {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (Page p : pages) {
+        results.add(pool.submit(() -> !failed && renderIfChanged(p)));
+      }
+      // wait for all of them, even after a failure, so nothing is still writing when Jekyll runs instead
+      for (Future<Boolean> f : results) {
+        try {
+          if (f.get()) {
+            renderedCount++;
+          } else {
+            unchangedCount++;
+          }
+        } catch (ExecutionException | InterruptedException e) {
+          failed = true;
+          if (error == null) {
+            error = e.getCause() == null ? e : e.getCause();
+          }
+        }
+      }
+    }
+    if (error instanceof UnsupportedFeatureException) {
+      throw (UnsupportedFeatureException) error;
+    } else if (error instanceof IOException) {
+      throw (IOException) error;
+    } else if (error != null) {
+      throw new IOException(error);
+    }
+    digests = null;
+  }
+
+  // ---- configuration ---------------------------------------------------------------------
+
+  @SuppressWarnings("unchecked")
+  private void loadConfig(StringBuilder g) throws IOException, UnsupportedFeatureException {
+    File cfg = new File(Utilities.path(source, "_config.yml"));
+    String src = cfg.exists() ? TextFile.fileToString(cfg) : "";
+    g.append(src);
+    site = SiteYaml.parse(src, "_config.yml");
+    for (String s : new String[] {"plugins", "gems", "collections", "whitelist"}) {
+      if (site.get(s) instanceof List ? !((List<?>) site.get(s)).isEmpty() : site.get(s) != null) {
+        throw new UnsupportedFeatureException("_config.yml uses "+s);
+      }
+    }
+    if (site.containsKey("permalink") && !"date".equals(site.get("permalink"))) {
+      throw new UnsupportedFeatureException("_config.yml sets permalink");
+    }
+    String md = SiteLiquid.str(site.get("markdown"));
+    if (!md.isEmpty() && !Utilities.existsInList(md.toLowerCase(), "kramdown", "commonmark", "commonmarkghpages")) {
+      throw new UnsupportedFeatureException("Unsupported markdown processor "+md);
+    }
+    Object kd = site.get("kramdown");
+    autoIds = !(kd instanceof Map) || !Boolean.FALSE.equals(((Map<String, Object>) kd).get("auto_ids"));
+    if (hasContent(new File(Utilities.path(source, folder("plugins_dir", "_plugins")))) || hasContent(new File(Utilities.path(source, "_posts")))) {
+      throw new UnsupportedFeatureException("The site has plugins or posts");
+    }
+    layoutsDir = folder("layouts_dir", "_layouts");
+    includesDir = folder("includes_dir", "_includes");
+    markdownExtensions = site.containsKey("markdown_ext") ? Arrays.asList(SiteLiquid.str(site.get("markdown_ext")).split("\\s*,\\s*")) : DEFAULT_MARKDOWN_EXTENSIONS;
+    exclusions = new ArrayList<>(DEFAULT_EXCLUSIONS);
+    exclusions.addAll(stringList(site.get("exclude")));
+    exclusions.add(folder("data_dir", "_data"));
+    inclusions = stringList(site.get("include"));
+    defaults = site.get("defaults") instanceof List ? (List<Object>) site.get("defaults") : new ArrayList<>();
+    if (!site.containsKey("baseurl")) {
+      site.put("baseurl", "");
+    }
+    if (!site.containsKey("url")) {
+      site.put("url", "");
+    }
+  }
+
+  private String folder(String setting, String dflt) {
+    String s = SiteLiquid.str(site.get(setting));
+    return s.isEmpty() ? dflt : s;
+  }
+
+  private boolean hasContent(File f) {
+    String[] list = f.list();
+    return list != null && list.length > 0;
+  }
+
+  private List<String> stringList(Object o) {
+    List<String> res = new ArrayList<>();
+    if (o instanceof List) {
+      for (Object s : (List<?>) o) {
+        res.add(SiteLiquid.str(s));
+      }
+    } else if (o != null) {
+      res.add(SiteLiquid.str(o));
+    }
+    return res;
+  }
+
+  private void loadData(StringBuilder g) throws IOException, UnsupportedFeatureException {
+    Map<String, Object> data = new LinkedHashMap<>();
+    File dir = new File(Utilities.path(source, folder("data_dir", "_data")));
+    if (dir.isDirectory()) {
+      loadDataFolder(dir, data, g);
+    }
+    site.put("data", data);
+  }
+
+  private void loadDataFolder(File dir, Map<String, Object> data, StringBuilder g) throws IOException, UnsupportedFeatureException {
+    File[] files = dir.listFiles();
+    Arrays.sort(files);
+    for (File f : files) {
+      String name = f.getName();
+      if (name.startsWith(".")) {
+        continue;
+      }
+      if (f.isDirectory()) {
+        Map<String, Object> sub = new LinkedHashMap<>();
+        loadDataFolder(f, sub, g);
+        data.put(name, sub);
+      } else {
+        ContentDigest cd = ContentDigest.read(f);
+        g.append(name).append(cd.getDigest());
+        String key = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+        String content = new String(cd.getContent(), StandardCharsets.UTF_8);
+        if (name.endsWith(".json")) {
+          data.put(key, fromJson(new JsonParser().parse(content)));
+        } else if (name.endsWith(".yml") || name.endsWith(".yaml")) {
+          data.put(key, SiteYaml.parse(content, f.getName()));
+        } else {
+          throw new UnsupportedFeatureException("Unsupported data file "+name);
+        }
+      }
+    }
+  }
+
+  private Object fromJson(JsonElement e) {
+    if (e == null || e.isJsonNull()) {
+      return null;
+    }
+    if (e instanceof JsonObject) {
+      Map<String, Object> res = new LinkedHashMap<>();
+      for (Map.Entry<String, JsonElement> p : ((JsonObject) e).entrySet()) {
+        res.put(p.getKey(), fromJson(p.getValue()));
+      }
+      return res;
+    }
+    if (e instanceof JsonArray) {
+      List<Object> res = new ArrayList<>();
+      for (JsonElement i : (JsonArray) e) {
+        res.add(fromJson(i));
+      }
+      return res;
+    }
+    JsonPrimitive p = (JsonPrimitive) e;
+    if (p.isBoolean()) {
+      return p.getAsBoolean();
+    }
+    if (p.isNumber()) {
+      String s = p.getAsString();
+      return s.contains(".") || s.contains("e") || s.contains("E") ? (Object) p.getAsDouble() : (Object) p.getAsLong();
+    }
+    return p.getAsString();
+  }
+
+  // ---- pages and static files ------------------------------------------------------------
+
+  private void scan(File dir, String path, List<Page> pages, List<String> statics) throws IOException, UnsupportedFeatureException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File f : files) {
+      String rel = path + f.getName();
+      if (!isIncluded(rel, f.getName()) || f.getCanonicalPath().equals(new File(destination).getCanonicalPath())) {
+        continue;
+      }
+      if (f.isDirectory()) {
+        scan(f, rel+"/", pages, statics);
+      } else if (hasFrontMatter(f)) {
+        pages.add(loadPage(f, rel));
+      } else {
+        statics.add(rel);
+      }
+    }
+  }
+
+  private boolean isIncluded(String rel, String name) {
+    for (String s : inclusions) {
+      if (matches(rel, s)) {
+        return true;
+      }
+    }
+    if (name.startsWith("_") || name.startsWith(".") || name.startsWith("#") || name.endsWith("~")) {
+      return false;
+    }
+    for (String s : exclusions) {
+      if (matches(rel, s)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean matches(String rel, String entry) {
+    String e = entry.startsWith("/") ? entry.substring(1) : entry;
+    if (e.endsWith("/")) {
+      e = e.substring(0, e.length()-1);
+    }
+    if (e.contains("*") || e.contains("?")) {
+      return rel.matches(e.replace(".", "\\.").replace("**", "\u0000").replace("*", "[^/]*").replace("?", "[^/]").replace("\u0000", ".*"));
+    }
+    return rel.equals(e) || rel.startsWith(e+"/");
+  }
+
+  private boolean hasFrontMatter(File f) throws IOException {
+    byte[] start = new byte[5];
+    try (InputStream s = new FileInputStream(f)) {
+      int n = s.read(start);
+      String h = n < 4 ? "" : new String(start, 0, n, StandardCharsets.UTF_8);
+      return h.startsWith("---\n") || h.startsWith("---\r\n");
+    }
+  }
+
+  private Page loadPage(File f, String rel) throws IOException, UnsupportedFeatureException {
+    Page p = new Page();
+    p.path = rel;
+    ContentDigest cd = ContentDigest.read(f);
+    p.digest = cd.getDigest();
+    String src = new String(cd.getContent(), StandardCharsets.UTF_8);
+    Map<String, Object> fm = new LinkedHashMap<>();
+    p.body = splitFrontMatter(src, rel, fm);
+    if (fm.containsKey("permalink")) {
+      throw new UnsupportedFeatureException(rel+" has a permalink");
+    }
+    String ext = rel.contains(".") ? rel.substring(rel.lastIndexOf('.')+1) : "";
+    p.markdown = markdownExtensions.contains(ext);
+    String base = rel.contains(".") ? rel.substring(0, rel.lastIndexOf('.')) : rel;
+    p.output = p.markdown ? base+".html" : rel;
+
+    applyDefaults(p);
+    p.data.putAll(fm);
+    String name = rel.contains("/") ? rel.substring(rel.lastIndexOf('/')+1) : rel;
+    String dir = "/" + (rel.contains("/") ? rel.substring(0, rel.lastIndexOf('/')+1) : "");
+    p.data.put("path", rel);
+    p.data.put("name", name);
+    p.data.put("dir", dir);
+    boolean html = p.output.endsWith(".html") || p.output.endsWith(".htm") || p.output.endsWith(".xhtml");
+    p.data.put("url", html && p.output.substring(dir.length()-1).startsWith("index.") ? dir : "/"+p.output);
+    return p;
+  }
+
+  /**
+   * @return the content after the front matter (which is loaded into fm)
+   */
+  private String splitFrontMatter(String src, String name, Map<String, Object> fm) throws UnsupportedFeatureException {
+    Matcher m = Pattern.compile("\\A---\\s*\\r?\\n(.*?\\r?\\n)??^(---|\\.\\.\\.)\\s*$\\r?\\n?", Pattern.DOTALL | Pattern.MULTILINE).matcher(src);
+    if (!m.find()) {
+      return src;
+    }
+    fm.putAll(SiteYaml.parse(m.group(1) == null ? "" : m.group(1), name));
+    return src.substring(m.end());
+  }
+
+  @SuppressWarnings("unchecked")
+  private void applyDefaults(Page p) {
+    for (Object o : defaults) {
+      if (!(o instanceof Map)) {
+        continue;
+      }
+      Map<String, Object> d = (Map<String, Object>) o;
+      Map<String, Object> scope = d.get("scope") instanceof Map ? (Map<String, Object>) d.get("scope") : new HashMap<>();
+      String path = SiteLiquid.str(scope.get("path"));
+      String type = SiteLiquid.str(scope.get("type"));
+      if ((path.isEmpty() || matches(p.path, path)) && (type.isEmpty() || "pages".equals(type)) && d.get("values") instanceof Map) {
+        p.data.putAll((Map<String, Object>) d.get("values"));
+      }
+    }
+  }
+
+  private void copyStatic(String rel) throws IOException {
+    File src = new File(Utilities.path(source, rel));
+    File dst = new File(Utilities.path(destination, rel));
+    if (dst.exists() && dst.length() == src.length() && dst.lastModified() == src.lastModified()) {
+      return;
+    }
+    Utilities.createDirectory(dst.getParent());
+    Files.copy(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    dst.setLastModified(src.lastModified());
+    copiedCount++;
+  }
+
+  // ---- rendering -------------------------------------------------------------------------
+
+  /**
+   * @return true if the page was rendered (false if it's unchanged since last time)
+   */
+  private boolean renderIfChanged(Page p) throws IOException, UnsupportedFeatureException {
+    File out = new File(Utilities.path(destination, p.output));
+    PageRecord r = records.get(p.path);
+    if (r != null && r.digest.equals(p.digest) && r.global.equals(global) && out.exists() && usesUnchanged(r)) {
+      return false;
+    }
+    PageHost host = new PageHost(p);
+    String content = renderPage(p, host);
+    Utilities.createDirectory(out.getParent());
+    TextFile.stringToFile(content, out.getAbsolutePath(), false);
+    r = new PageRecord();
+    r.digest = p.digest;
+    r.global = global;
+    for (String s : host.uses) {
+      r.uses.put(s, digests.get(s));
+    }
+    records.put(p.path, r);
+    return true;
+  }
+
+  private boolean usesUnchanged(PageRecord r) {
+    for (String s : r.uses.keySet()) {
+      if (!r.uses.get(s).equals(currentDigest(s))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String currentDigest(String rel) {
+    return digests.computeIfAbsent(rel, k -> {
+      File f = new File(Utilities.path(source, k));
+      try {
+        return f.exists() ? ContentDigest.read(f).getDigest() : "";
+      } catch (IOException e) {
+        return "";
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private String renderPage(Page p, PageHost host) throws IOException, UnsupportedFeatureException {
+    Map<String, Object> vars = new HashMap<>();
+    vars.put("site", site);
+    vars.put("page", p.data);
+    vars.put("paginator", null);
+    String content = SiteLiquid.parse(p.body, p.path).render(new Context(host, vars));
+    if (p.markdown) {
+      content = host.markdownify(content);
+    }
+
+    Map<String, Object> page = new LinkedHashMap<>(p.data);
+    page.put("content", content);
+    Map<String, Object> layoutData = new LinkedHashMap<>();
+    Set<String> done = new HashSet<>();
+    String name = SiteLiquid.str(p.data.get("layout"));
+    while (!name.isEmpty() && !Utilities.existsInList(name, "none", "null") && done.add(name)) {
+      String file = findLayout(name);
+      if (file == null) {
+        // jekyll just warns about this
+        break;
+      }
+      CachedTemplate l = template(file, true);
+      host.uses.add(file);
+      Map<String, Object> merged = new LinkedHashMap<>(l.frontMatter);
+      merged.putAll(layoutData);
+      layoutData = merged;
+      vars = new HashMap<>();
+      vars.put("site", site);
+      vars.put("page", page);
+      vars.put("layout", layoutData);
+      vars.put("content", content);
+      vars.put("paginator", null);
+      content = l.template.render(new Context(host, vars));
+      name = SiteLiquid.str(l.frontMatter.get("layout"));
+    }
+    return content;
+  }
+
+  private String findLayout(String name) {
+    File dir = new File(Utilities.path(source, layoutsDir));
+    String[] files = dir.list();
+    if (files != null) {
+      Arrays.sort(files);
+      for (String f : files) {
+        if (f.equals(name) || (f.startsWith(name+".") && !f.substring(name.length()+1).contains("."))) {
+          return layoutsDir+"/"+f;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * the compiled template for the file, from the cache if the file hasn't changed
+   */
+  private CachedTemplate template(String rel, boolean frontMatter) throws IOException, UnsupportedFeatureException {
+    String digest = digests.get(rel);
+    CachedTemplate c = templates.get(rel);
+    if (c != null && c.digest.equals(digest)) {
+      return c;
+    }
+    File f = new File(Utilities.path(source, rel));
+    if (!f.exists()) {
+      // jekyll fails in this case
+      throw new UnsupportedFeatureException("Unable to find "+rel);
+    }
+    ContentDigest cd = ContentDigest.read(f);
+    digests.put(rel, cd.getDigest());
+    if (c != null && c.digest.equals(cd.getDigest())) {
+      return c;
+    }
+    c = new CachedTemplate();
+    c.digest = cd.getDigest();
+    c.frontMatter = new LinkedHashMap<>();
+    String src = new String(cd.getContent(), StandardCharsets.UTF_8);
+    c.template = SiteLiquid.parse(frontMatter ? splitFrontMatter(src, rel, c.frontMatter) : src, rel);
+    templates.put(rel, c);
+    return c;
+  }
+
+  private String markdownify(String src, String name) throws UnsupportedFeatureException {
+    if (src.contains("{:") || src.contains("{::")) {
+      throw new UnsupportedFeatureException("kramdown extensions in "+name);
+    }
+    String html = markdown.get().process(src, name);
+    return autoIds ? addHeadingIds(html) : html;
+  }
+
+  /**
+   * kramdown gives headings an id made from their text
+   */
+  private String addHeadingIds(String html) {
+    Matcher m = HEADING.matcher(html);
+    if (!m.find()) {
+      return html;
+    }
+    Set<String> used = new HashSet<>();
+    StringBuffer b = new StringBuffer();
+    do {
+      String text = m.group(2).replaceAll("<[^>]*>", "");
+      String id = text.replaceAll("[^\\p{Alnum} -]", "").replaceAll("^[^\\p{Alpha}]+", "").replace(' ', '-').toLowerCase();
+      if (id.isEmpty()) {
+        id = "section";
+      }
+      String base = id;
+      int i = 1;
+      while (!used.add(id)) {
+        id = base+"-"+(i++);
+      }
+      m.appendReplacement(b, Matcher.quoteReplacement("<h"+m.group(1)+" id=\""+id+"\">"+m.group(2)+"</h"+m.group(1)+">"));
+    } while (m.find());
+    m.appendTail(b);
+    return b.toString();
+  }
+
+  /**
+   * includes for a single page render; keeps track of the files the page used
+   */
+  private class PageHost implements IncludeHost {
+    private Page page;
+    private Set<String> uses = new HashSet<>();
+
+    private PageHost(Page page) {
+      this.page = page;
+    }
+
+    @Override
+    public Template include(String name, boolean relative, Context ctx) throws IOException, UnsupportedFeatureException {
+      if (name.contains("..") || name.startsWith("/")) {
+        throw new UnsupportedFeatureException("Invalid include "+name+" in "+page.path);
+      }
+      String rel;
+      if (relative) {
+        rel = page.path.contains("/") ? page.path.substring(0, page.path.lastIndexOf('/')+1)+name : name;
+      } else {
+        rel = includesDir+"/"+name;
+      }
+      Template t = template(rel, false).template;
+      uses.add(rel);
+      return t;
+    }
+
+    @Override
+    public String markdownify(String source) throws UnsupportedFeatureException {
+      return SiteRenderer.this.markdownify(source, page.path);
+    }
+  }
+}
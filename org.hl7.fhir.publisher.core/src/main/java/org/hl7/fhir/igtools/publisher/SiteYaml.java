@@ -0,0 +1,409 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.igtools.publisher.SiteLiquid.UnsupportedFeatureException;
+
+/**
+ * Reads the YAML in Jekyll's _config.yml, _data/*.yml and page front matter, for SiteRenderer.
+ *
+ * Only the block and flow styles that those files use in practice are supported: nested
+ * maps and lists, [..] and {..}, plain, quoted and | or > scalars. Anchors, tags and
+ * multiple documents raise UnsupportedFeatureException, so Jekyll gets used instead.
+ */
+public class SiteYaml {
+
+  private String name;
+  private List<String> lines = new ArrayList<>();
+  private int cursor;
+
+  private SiteYaml(String source, String name) {
+    this.name = name;
+    for (String l : source.replace("\r\n", "\n").replace('\r', '\n').split("\n")) {
+      lines.add(l);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public static Map<String, Object> parse(String source, String name) throws UnsupportedFeatureException {
+    SiteYaml p = new SiteYaml(source, name);
+    if (p.skipToContent() && p.content(p.cursor).startsWith("---")) {
+      // an explicit document start
+      p.cursor++;
+    }
+    Object res = p.node(0);
+    if (p.skipToContent()) {
+      throw p.error("Unexpected content");
+    }
+    if (res == null) {
+      return new LinkedHashMap<>();
+    }
+    if (!(res instanceof Map)) {
+      throw p.error("Expected a map");
+    }
+    return (Map<String, Object>) res;
+  }
+
+  private UnsupportedFeatureException error(String msg) {
+    return new UnsupportedFeatureException(msg+" at line "+(cursor+1)+" in "+name);
+  }
+
+  /**
+   * @return true if there's another line with content (cursor is left on it)
+   */
+  private boolean skipToContent() {
+    while (cursor < lines.size()) {
+      String t = lines.get(cursor).trim();
+      if (!t.isEmpty() && !t.startsWith("#")) {
+        return true;
+      }
+      cursor++;
+    }
+    return false;
+  }
+
+  private int indent(int line) {
+    String l = lines.get(line);
+    int i = 0;
+    while (i < l.length() && l.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private String content(int line) {
+    return lines.get(line).trim();
+  }
+
+  private boolean isListItem(String content) {
+    return content.equals("-") || content.startsWith("- ");
+  }
+
+  private Object node(int minIndent) throws UnsupportedFeatureException {
+    if (!skipToContent()) {
+      return null;
+    }
+    int ind = indent(cursor);
+    if (ind < minIndent) {
+      return null;
+    }
+    String c = content(cursor);
+    if (c.startsWith("&") || c.startsWith("*") || c.startsWith("!") || c.startsWith("---") || c.startsWith("...") || lines.get(cursor).startsWith("\t")) {
+      throw error("Unsupported YAML");
+    }
+    if (isListItem(c)) {
+      return list(ind);
+    }
+    if (keyEnd(c) > -1) {
+      return map(ind);
+    }
+    cursor++;
+    return scalar(c, ind);
+  }
+
+  private List<Object> list(int ind) throws UnsupportedFeatureException {
+    List<Object> res = new ArrayList<>();
+    while (skipToContent() && indent(cursor) == ind && isListItem(content(cursor))) {
+      String rest = content(cursor).substring(1).trim();
+      if (rest.isEmpty()) {
+        cursor++;
+        res.add(node(ind+1));
+      } else if (keyEnd(rest) > -1 && !rest.startsWith("{") && !rest.startsWith("[")) {
+        // a map that starts on the same line as the -: re-read the line as if the map started there
+        int col = lines.get(cursor).indexOf(rest);
+        lines.set(cursor, spaces(col)+rest);
+        res.add(map(col));
+      } else {
+        cursor++;
+        res.add(scalar(rest, ind));
+      }
+    }
+    return res;
+  }
+
+  private Map<String, Object> map(int ind) throws UnsupportedFeatureException {
+    Map<String, Object> res = new LinkedHashMap<>();
+    while (skipToContent() && indent(cursor) >= ind) {
+      if (indent(cursor) > ind) {
+        throw error("Unexpected indentation");
+      }
+      String c = content(cursor);
+      int k = keyEnd(c);
+      if (k == -1 || isListItem(c)) {
+        break;
+      }
+      String key = unquote(c.substring(0, k).trim());
+      String value = c.substring(k+1).trim();
+      cursor++;
+      if (stripComment(value).isEmpty()) {
+        if (skipToContent() && indent(cursor) == ind && isListItem(content(cursor))) {
+          // lists are often not indented under their key
+          res.put(key, list(ind));
+        } else {
+          res.put(key, node(ind+1));
+        }
+      } else {
+        res.put(key, scalar(value, ind));
+      }
+    }
+    return res;
+  }
+
+  /**
+   * @return the index of the : that ends the key, or -1 if the content isn't a key: value
+   */
+  private int keyEnd(String c) {
+    int i = 0;
+    if (c.startsWith("\"") || c.startsWith("'")) {
+      i = c.indexOf(c.charAt(0), 1);
+      if (i == -1) {
+        return -1;
+      }
+    }
+    while (i < c.length()) {
+      if (c.charAt(i) == ':' && (i == c.length() - 1 || c.charAt(i+1) == ' ')) {
+        return i;
+      }
+      if (c.charAt(i) == '#' && i > 0 && c.charAt(i-1) == ' ') {
+        return -1;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  private Object scalar(String value, int ind) throws UnsupportedFeatureException {
+    String v = stripComment(value);
+    if (v.startsWith("&") || v.startsWith("*") || v.startsWith("!")) {
+      throw error("Unsupported YAML");
+    }
+    if (v.startsWith("|") || v.startsWith(">")) {
+      return blockScalar(v, ind);
+    }
+    if (v.startsWith("[") || v.startsWith("{")) {
+      int[] pos = new int[] {0};
+      Object res = flow(v, pos);
+      if (pos[0] < v.length()) {
+        throw error("Unexpected content after "+v.substring(0, pos[0]));
+      }
+      return res;
+    }
+    return plain(v);
+  }
+
+  private Object blockScalar(String header, int ind) throws UnsupportedFeatureException {
+    boolean literal = header.startsWith("|");
+    String chomp = header.substring(1).trim();
+    if (!chomp.isEmpty() && !chomp.equals("-") && !chomp.equals("+")) {
+      throw error("Unsupported block scalar "+header);
+    }
+    List<String> content = new ArrayList<>();
+    int blockIndent = -1;
+    while (cursor < lines.size()) {
+      String l = lines.get(cursor);
+      if (!l.trim().isEmpty()) {
+        int i = indent(cursor);
+        if (i <= ind) {
+          break;
+        }
+        if (blockIndent == -1) {
+          blockIndent = i;
+        }
+        if (i < blockIndent) {
+          break;
+        }
+        content.add(l.substring(blockIndent));
+      } else {
+        content.add("");
+      }
+      cursor++;
+    }
+    int trailing = 0;
+    while (!content.isEmpty() && content.get(content.size()-1).isEmpty()) {
+      content.remove(content.size()-1);
+      trailing++;
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < content.size(); i++) {
+      String l = content.get(i);
+      if (i > 0) {
+        boolean fold = !literal && !l.isEmpty() && !content.get(i-1).isEmpty() && !l.startsWith(" ");
+        b.append(fold ? " " : "\n");
+      }
+      b.append(l);
+    }
+    if (content.isEmpty() || chomp.equals("-")) {
+      return b.toString();
+    }
+    b.append("\n");
+    if (chomp.equals("+")) {
+      for (int i = 0; i < trailing; i++) {
+        b.append("\n");
+      }
+    }
+    return b.toString();
+  }
+
+  private Object flow(String s, int[] pos) throws UnsupportedFeatureException {
+    skipSpaces(s, pos);
+    char c = s.charAt(pos[0]);
+    if (c == '[' || c == '{') {
+      boolean isMap = c == '{';
+      char close = isMap ? '}' : ']';
+      pos[0]++;
+      List<Object> list = new ArrayList<>();
+      Map<String, Object> map = new LinkedHashMap<>();
+      skipSpaces(s, pos);
+      while (pos[0] < s.length() && s.charAt(pos[0]) != close) {
+        Object v = flow(s, pos);
+        if (isMap) {
+          skipSpaces(s, pos);
+          if (pos[0] >= s.length() || s.charAt(pos[0]) != ':') {
+            throw error("Expected : in "+s);
+          }
+          pos[0]++;
+          map.put(SiteLiquid.str(v), flow(s, pos));
+        } else {
+          list.add(v);
+        }
+        skipSpaces(s, pos);
+        if (pos[0] < s.length() && s.charAt(pos[0]) == ',') {
+          pos[0]++;
+          skipSpaces(s, pos);
+        }
+      }
+      if (pos[0] >= s.length()) {
+        throw error("Unterminated "+s);
+      }
+      pos[0]++;
+      return isMap ? map : list;
+    }
+    if (c == '"' || c == '\'') {
+      int e = closingQuote(s, pos[0]);
+      if (e == -1) {
+        throw error("Unterminated string in "+s);
+      }
+      String v = s.substring(pos[0], e+1);
+      pos[0] = e + 1;
+      return unquote(v);
+    }
+    int start = pos[0];
+    while (pos[0] < s.length() && ",]}".indexOf(s.charAt(pos[0])) == -1 && !(s.charAt(pos[0]) == ':' && (pos[0]+1 == s.length() || s.charAt(pos[0]+1) == ' '))) {
+      pos[0]++;
+    }
+    return plain(s.substring(start, pos[0]).trim());
+  }
+
+  private void skipSpaces(String s, int[] pos) {
+    while (pos[0] < s.length() && s.charAt(pos[0]) == ' ') {
+      pos[0]++;
+    }
+  }
+
+  private int closingQuote(String s, int start) {
+    char q = s.charAt(start);
+    int i = start + 1;
+    while (i < s.length()) {
+      char c = s.charAt(i);
+      if (q == '"' && c == '\\') {
+        i = i + 2;
+      } else if (c == q) {
+        if (q == '\'' && i+1 < s.length() && s.charAt(i+1) == '\'') {
+          i = i + 2;
+        } else {
+          return i;
+        }
+      } else {
+        i++;
+      }
+    }
+    return -1;
+  }
+
+  private String stripComment(String v) {
+    if (v.startsWith("\"") || v.startsWith("'")) {
+      int e = closingQuote(v, 0);
+      if (e > -1) {
+        return v.substring(0, e+1);
+      }
+      return v;
+    }
+    int i = v.indexOf(" #");
+    if (v.startsWith("#")) {
+      return "";
+    }
+    return i == -1 ? v : v.substring(0, i).trim();
+  }
+
+  private Object plain(String v) throws UnsupportedFeatureException {
+    if (v.startsWith("\"") || v.startsWith("'")) {
+      return unquote(v);
+    }
+    switch (v) {
+    case "":
+    case "~":
+    case "null":
+    case "Null":
+    case "NULL": return null;
+    case "true":
+    case "True":
+    case "TRUE": return true;
+    case "false":
+    case "False":
+    case "FALSE": return false;
+    }
+    if (v.matches("[-+]?[0-9]+")) {
+      try {
+        return Long.valueOf(v);
+      } catch (NumberFormatException e) {
+        return v;
+      }
+    }
+    if (v.matches("[-+]?([0-9]+\\.[0-9]*|\\.[0-9]+)([eE][-+]?[0-9]+)?")) {
+      return Double.valueOf(v);
+    }
+    return v;
+  }
+
+  private String unquote(String v) {
+    if (v.length() < 2) {
+      return v;
+    }
+    char q = v.charAt(0);
+    if (q == '\'' && v.endsWith("'")) {
+      return v.substring(1, v.length()-1).replace("''", "'");
+    }
+    if (q == '"' && v.endsWith("\"")) {
+      String s = v.substring(1, v.length()-1);
+      StringBuilder b = new StringBuilder();
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c == '\\' && i + 1 < s.length()) {
+          char n = s.charAt(++i);
+          switch (n) {
+          case 'n': b.append('\n'); break;
+          case 't': b.append('\t'); break;
+          case 'r': b.append('\r'); break;
+          case '0': b.append('\0'); break;
+          default: b.append(n);
+          }
+        } else {
+          b.append(c);
+        }
+      }
+      return b.toString();
+    }
+    return v;
+  }
+
+  private static String spaces(int count) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      b.append(' ');
+    }
+    return b.toString();
+  }
+}
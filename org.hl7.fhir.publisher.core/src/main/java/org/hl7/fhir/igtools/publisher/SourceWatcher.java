@@ -0,0 +1,132 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the IG source folders (and their sub-folders) for changes, for watch mode.
+ *
+ * Editors and build tools tend to write files in bursts, so once something changes, the
+ * watcher waits until there's been no activity for a short while before reporting.
+ */
+public class SourceWatcher implements Closeable {
+
+  private static final long QUIET_PERIOD = 300; // milliseconds
+
+  private WatchService service;
+  private Map<WatchKey, Path> keys = new HashMap<>();
+  private List<String> exclusions = new ArrayList<>();
+
+  public SourceWatcher() throws IOException {
+    super();
+    service = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * folders that are never reported (e.g. the output and temp folders, if they are inside a watched folder)
+   */
+  public void exclude(String folder) throws IOException {
+    if (folder != null) {
+      exclusions.add(new File(folder).getCanonicalPath());
+    }
+  }
+
+  public void watch(String folder) throws IOException {
+    if (folder != null) {
+      File f = new File(folder);
+      if (f.isDirectory()) {
+        registerTree(f.getCanonicalFile().toPath());
+      }
+    }
+  }
+
+  /**
+   * blocks until something changes, and then until things have been quiet for a moment
+   *
+   * @return the paths that changed (if events were lost, the folder is reported instead)
+   */
+  public Set<String> waitForChanges() throws InterruptedException, IOException {
+    Set<String> res = new HashSet<>();
+    WatchKey key = service.take();
+    while (key != null) {
+      Path dir = keys.get(key);
+      for (WatchEvent<?> ev : key.pollEvents()) {
+        if (dir == null) {
+          continue;
+        }
+        if (ev.kind() == OVERFLOW) {
+          res.add(dir.toString());
+        } else {
+          Path p = dir.resolve((Path) ev.context());
+          if (!isExcluded(p) && !p.getFileName().toString().startsWith(".")) {
+            res.add(p.toString());
+            if (ev.kind() == ENTRY_CREATE && Files.isDirectory(p)) {
+              registerTree(p);
+            }
+          }
+        }
+      }
+      if (!key.reset()) {
+        keys.remove(key);
+      }
+      key = service.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+    }
+    return res;
+  }
+
+  public int getFolderCount() {
+    return keys.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    service.close();
+  }
+
+  private void registerTree(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (isExcluded(dir) || (dir != root && dir.getFileName().toString().startsWith("."))) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        if (!keys.containsValue(dir)) {
+          keys.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private boolean isExcluded(Path p) {
+    String s = p.toString();
+    for (String e : exclusions) {
+      if (s.equals(e) || s.startsWith(e+File.separator)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
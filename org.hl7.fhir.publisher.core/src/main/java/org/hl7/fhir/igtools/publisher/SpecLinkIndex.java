@@ -0,0 +1,159 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * An index of the specifications that the IG links to, for the link checker.
+ *
+ * It is built once per check, so that resolving a link doesn't mean going through every
+ * SpecMapManager and building the urls of its files each time. The spec bases are kept in
+ * a prefix tree, so the specs that a link could point into are found in a single pass over
+ * the link, and only those are asked whether they have the target.
+ */
+public class SpecLinkIndex {
+
+  /**
+   * files that every spec publishes, whether or not they are in spec.internals
+   */
+  private static final String[] SPEC_FILES = new String[] {"definitions.json.zip", "full-ig.zip", "definitions.xml.zip", "package.tgz"};
+
+  private static class Node {
+    private Map<Character, Node> children;
+    private List<SpecMapManager> specs; // specs with this base
+    private List<SpecMapManager> specs2; // specs with this versioned base
+  }
+
+  private Set<String> urls = new HashSet<>();
+  private Node root = new Node();
+
+  public SpecLinkIndex(List<SpecMapManager> specs) {
+    if (specs != null) {
+      for (SpecMapManager spec : specs) {
+        if (spec.getBase() != null) {
+          addUrls(spec.getBase());
+          node(spec.getBase()).specs = add(node(spec.getBase()).specs, spec);
+        }
+        if (spec.getBase2() != null) {
+          addUrls(spec.getBase2());
+          node(spec.getBase2()).specs2 = add(node(spec.getBase2()).specs2, spec);
+        }
+      }
+    }
+  }
+
+  private void addUrls(String base) {
+    urls.add(base);
+    if (base.endsWith("/")) {
+      urls.add(base.substring(0, base.length()-1));
+    }
+    for (String s : SPEC_FILES) {
+      urls.add(Utilities.pathURL(base, s));
+    }
+  }
+
+  private List<SpecMapManager> add(List<SpecMapManager> list, SpecMapManager spec) {
+    if (list == null) {
+      list = new ArrayList<>();
+    }
+    list.add(spec);
+    return list;
+  }
+
+  private Node node(String base) {
+    Node n = root;
+    for (int i = 0; i < base.length(); i++) {
+      if (n.children == null) {
+        n.children = new HashMap<>();
+      }
+      Node c = n.children.get(base.charAt(i));
+      if (c == null) {
+        c = new Node();
+        n.children.put(base.charAt(i), c);
+      }
+      n = c;
+    }
+    return n;
+  }
+
+  /**
+   * @return the nodes for all the bases that the url starts with
+   */
+  private List<Node> prefixes(String url) {
+    List<Node> res = new ArrayList<>();
+    Node n = root;
+    int i = 0;
+    while (n != null) {
+      if (n.specs != null || n.specs2 != null) {
+        res.add(n);
+      }
+      if (i == url.length() || n.children == null) {
+        break;
+      }
+      n = n.children.get(url.charAt(i));
+      i++;
+    }
+    return res;
+  }
+
+  /**
+   * true if the url is the base of a spec, or one of the files that every spec publishes
+   */
+  public boolean isSpecUrl(String url) {
+    return urls.contains(url);
+  }
+
+  /**
+   * true if the url is a target (page, anchor, or canonical url) in one of the specs
+   */
+  public boolean hasTarget(String url) {
+    for (Node n : prefixes(url)) {
+      if (n.specs != null) {
+        for (SpecMapManager spec : n.specs) {
+          if (spec.hasTarget1(url)) {
+            return true;
+          }
+        }
+      }
+      if (n.specs2 != null) {
+        for (SpecMapManager spec : n.specs2) {
+          if (spec.getBase() != null && spec.hasTarget2(url)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  public boolean hasImage(String url) {
+    for (Node n : prefixes(url)) {
+      if (n.specs != null) {
+        for (SpecMapManager spec : n.specs) {
+          if (spec.hasImage(url)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * true if the url points into one of the specs (whether or not the target exists)
+   */
+  public boolean isInSpec(String url) {
+    for (Node n : prefixes(url)) {
+      if (n.specs != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,376 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.JsonTrackingParser;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Persistent cache of validation outcomes, kept in the IG temp folder between runs.
+ *
+ * The key for a resource is a hash of:
+ *   - the resource content, as it is validated (i.e. after snapshot and narrative generation)
+ *   - the profiles defined in the IG that it uses (stated profiles, meta.profile, extensions,
+ *     its type), including the IG profiles those profiles depend on
+ *   - the content of IG resources it refers to directly, whether by type/id or by absolute
+ *     URL (a canonical URL, the IG canonical + type/id, or the fullUrl of a bundle entry)
+ *   - a global part: publisher version, FHIR version, validation and terminology settings,
+ *     package dependencies, the list of resources in the IG, and all the non-profile
+ *     conformance resources in the IG
+ *
+ * So any change to a profile invalidates the resources that depend on it, and any change
+ * to a value set, code system etc invalidates everything.
+ */
+public class ValidationCache {
+
+  // Jekyll builds from the temp folder, and ignores folders that start with _
+  public static final String FOLDER = "_validation-cache";
+
+  private String folder;
+  private IWorkerContext context;
+  private ResourceRegistry registry;
+  private String canonical;
+  private String settings;
+  private String global;
+  private Set<String> used = new HashSet<>();
+  private Map<String, String> profileHashes = new HashMap<>();
+  private Map<Object, String> contentHashes = new IdentityHashMap<>();
+  private int hits;
+  private int misses;
+
+  public ValidationCache(String folder, IWorkerContext context, ResourceRegistry registry, String canonical, String settings) throws IOException {
+    super();
+    this.folder = folder;
+    this.context = context;
+    this.registry = registry;
+    this.canonical = canonical;
+    this.settings = settings;
+    Utilities.createDirectory(folder);
+  }
+
+  public void clear() throws IOException {
+    Utilities.clearDirectory(folder);
+  }
+
+  /**
+   * Called before each validation pass: works out the global part of the key.
+   */
+  public synchronized void startPass(List<FetchedFile> files, List<NpmPackage> packages) throws Exception {
+    profileHashes.clear();
+    contentHashes.clear(); // resources may have been changed since the last pass
+    List<String> parts = new ArrayList<>();
+    for (NpmPackage npm : packages) {
+      parts.add(npm.name()+"#"+npm.version());
+    }
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        parts.add(r.getLocalRef());
+        if (r.getResource() instanceof CanonicalResource && !(r.getResource() instanceof StructureDefinition)) {
+          parts.add(hashResource(r.getResource()));
+        }
+      }
+    }
+    Collections.sort(parts);
+    parts.add(0, settings);
+    global = ContentDigest.of(String.join("\n", parts));
+  }
+
+  /**
+   * @return the cache key for the resource, or null if the resource can't be cached
+   */
+  public String makeKey(FetchedResource r) throws Exception {
+    if (global == null || r.getElement() == null || r.isValidateAsResource()) {
+      return null;
+    }
+    Set<String> profiles = new HashSet<>();
+    Set<String> refs = new HashSet<>();
+    profiles.addAll(r.getStatedProfiles());
+    if (r.getElement().hasUserData("profile")) {
+      profiles.add(r.getElement().getUserString("profile"));
+    }
+    if (r.getExampleUri() != null) {
+      profiles.add(r.getExampleUri());
+    }
+    scan(r.getElement(), profiles, refs);
+
+    List<String> parts = new ArrayList<>();
+    for (String url : profiles) {
+      String h = profileHash(url);
+      if (h != null) {
+        parts.add(url+"="+h);
+      }
+    }
+    for (String ref : refs) {
+      FetchedResource t = resolve(ref);
+      if (t != null && t != r && t.getElement() != null) {
+        parts.add(ref+"="+hashElement(t.getElement()));
+      }
+    }
+    Collections.sort(parts);
+    parts.add(0, hashElement(r.getElement()));
+    parts.add(0, r.getLocalRef());
+    parts.add(0, global);
+    return ContentDigest.of(String.join("\n", parts));
+  }
+
+  /**
+   * the IG resource a reference resolves to, the way the validator finds it. For a bundle entry, this is the bundle
+   */
+  FetchedResource resolve(String ref) {
+    if (!Utilities.isAbsoluteUrl(ref)) {
+      return registry.getByRef(ref);
+    }
+    FetchedResource res = registry.getByCanonical(ref);
+    if (res == null && canonical != null && ref.startsWith(canonical+"/")) {
+      res = registry.getByRef(ref.substring(canonical.length()+1));
+    }
+    if (res == null) {
+      res = registry.getBundleForFullUrl(ref);
+    }
+    return res;
+  }
+
+  /**
+   * @param foundProfiles - populated with the IG profiles the validator found the resource conforms to
+   * @return the cached messages, or null if there's nothing cached for this key
+   */
+  public List<ValidationMessage> load(String key, List<String> foundProfiles) {
+    File f = new File(Utilities.path(folder, key+".json"));
+    synchronized (this) {
+      used.add(key);
+      if (!f.exists()) {
+        misses++;
+        return null;
+      }
+    }
+    try {
+      JsonObject json = JsonTrackingParser.parseJsonFile(f.getAbsolutePath());
+      List<ValidationMessage> res = new ArrayList<>();
+      for (JsonElement e : json.getAsJsonArray("messages")) {
+        res.add(readMessage((JsonObject) e));
+      }
+      for (JsonElement e : json.getAsJsonArray("profiles")) {
+        foundProfiles.add(e.getAsString());
+      }
+      synchronized (this) {
+        hits++;
+      }
+      return res;
+    } catch (Exception e) {
+      // corrupt or old entry - just validate again
+      synchronized (this) {
+        misses++;
+      }
+      return null;
+    }
+  }
+
+  public void store(String key, List<ValidationMessage> messages, List<String> foundProfiles) throws IOException {
+    JsonObject json = new JsonObject();
+    JsonArray arr = new JsonArray();
+    json.add("messages", arr);
+    for (ValidationMessage vm : messages) {
+      if (vm.isSlicingHint() || vm.getSliceHtml() != null) {
+        return; // we don't keep the slicing details, so we don't cache these
+      }
+      arr.add(writeMessage(vm));
+    }
+    arr = new JsonArray();
+    json.add("profiles", arr);
+    for (String p : foundProfiles) {
+      arr.add(p);
+    }
+    TextFile.stringToFile(new Gson().toJson(json), Utilities.path(folder, key+".json"), false);
+  }
+
+  /**
+   * delete any entries that weren't looked up in this run
+   */
+  public void prune() {
+    File[] list = new File(folder).listFiles();
+    if (list != null) {
+      for (File f : list) {
+        if (f.getName().endsWith(".json") && !used.contains(f.getName().substring(0, f.getName().length()-5))) {
+          f.delete();
+        }
+      }
+    }
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  public int getMisses() {
+    return misses;
+  }
+
+  private void scan(Element e, Set<String> profiles, Set<String> refs) {
+    if (e.getProperty() != null && e.getProperty().getStructure() != null) {
+      profiles.add(e.getProperty().getStructure().getUrl());
+    }
+    if ("Extension".equals(e.fhirType()) && e.hasChild("url")) {
+      profiles.add(e.getNamedChildValue("url"));
+    } else if ("Meta".equals(e.fhirType())) {
+      for (Element p : e.getChildrenByName("profile")) {
+        profiles.add(p.primitiveValue());
+      }
+    } else if ("Reference".equals(e.fhirType()) && e.hasChild("reference")) {
+      refs.add(e.getNamedChildValue("reference"));
+    }
+    for (Element c : e.getChildren()) {
+      scan(c, profiles, refs);
+    }
+  }
+
+  /**
+   * the hash of a profile defined in this IG, and all the IG profiles it depends on. null if the profile isn't defined in the IG
+   * 
+   * Profiles can depend on each other in a cycle, so this isn't built from the hashes of the 
+   * dependencies: it's a hash of everything the profile reaches, which is the same whichever 
+   * profile in a cycle is looked at first
+   */
+  synchronized String profileHash(String url) throws IOException {
+    if (url == null) {
+      return null;
+    }
+    if (profileHashes.containsKey(url)) {
+      return profileHashes.get(url);
+    }
+    Map<String, StructureDefinition> reached = new TreeMap<>();
+    reach(url, reached);
+    String res = null;
+    if (reached.containsKey(url)) {
+      List<String> parts = new ArrayList<>();
+      parts.add(url);
+      for (String u : reached.keySet()) {
+        parts.add(u+"="+hashResource(reached.get(u)));
+      }
+      res = ContentDigest.of(String.join("\n", parts));
+    }
+    profileHashes.put(url, res);
+    return res;
+  }
+
+  private void reach(String url, Map<String, StructureDefinition> reached) {
+    if (url == null || reached.containsKey(url)) {
+      return;
+    }
+    FetchedResource r = registry.getByCanonical(url);
+    if (r == null || !(r.getResource() instanceof StructureDefinition)) {
+      return;
+    }
+    StructureDefinition sd = (StructureDefinition) r.getResource();
+    reached.put(url, sd);
+    reach(sd.getBaseDefinition(), reached);
+    for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+      for (TypeRefComponent tr : ed.getType()) {
+        for (CanonicalType c : tr.getProfile()) {
+          reach(c.getValue(), reached);
+        }
+        for (CanonicalType c : tr.getTargetProfile()) {
+          reach(c.getValue(), reached);
+        }
+      }
+    }
+  }
+
+  private synchronized String hashResource(Resource r) throws IOException {
+    String res = contentHashes.get(r);
+    if (res == null) {
+      ByteArrayOutputStream bs = new ByteArrayOutputStream();
+      new org.hl7.fhir.r5.formats.JsonParser().setOutputStyle(OutputStyle.NORMAL).compose(bs, r);
+      res = ContentDigest.of(bs.toByteArray());
+      contentHashes.put(r, res);
+    }
+    return res;
+  }
+
+  private String hashElement(Element e) throws IOException {
+    synchronized (this) {
+      String res = contentHashes.get(e);
+      if (res != null) {
+        return res;
+      }
+    }
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    new org.hl7.fhir.r5.elementmodel.JsonParser(context).compose(e, bs, OutputStyle.NORMAL, null);
+    String res = ContentDigest.of(bs.toByteArray());
+    synchronized (this) {
+      contentHashes.put(e, res);
+    }
+    return res;
+  }
+
+  static JsonObject writeMessage(ValidationMessage vm) {
+    JsonObject j = new JsonObject();
+    if (vm.getSource() != null) {
+      j.addProperty("source", vm.getSource().name());
+    }
+    if (vm.getType() != null) {
+      j.addProperty("type", vm.getType().name());
+    }
+    if (vm.getLevel() != null) {
+      j.addProperty("level", vm.getLevel().name());
+    }
+    j.addProperty("line", vm.getLine());
+    j.addProperty("col", vm.getCol());
+    j.addProperty("location", vm.getLocation());
+    j.addProperty("message", vm.getMessage());
+    j.addProperty("messageId", vm.getMessageId());
+    j.addProperty("html", vm.getHtml());
+    j.addProperty("locationLink", vm.getLocationLink());
+    j.addProperty("txLink", vm.getTxLink());
+    j.addProperty("signpost", vm.isSignpost());
+    return j;
+  }
+
+  static ValidationMessage readMessage(JsonObject j) {
+    ValidationMessage vm = new ValidationMessage(
+        j.has("source") ? Source.valueOf(j.get("source").getAsString()) : null,
+        j.has("type") ? IssueType.valueOf(j.get("type").getAsString()) : null,
+        j.get("line").getAsInt(), j.get("col").getAsInt(), str(j, "location"), str(j, "message"),
+        j.has("level") ? IssueSeverity.valueOf(j.get("level").getAsString()) : null);
+    vm.setMessageId(str(j, "messageId"));
+    vm.setHtml(str(j, "html"));
+    vm.setLocationLink(str(j, "locationLink"));
+    vm.setTxLink(str(j, "txLink"));
+    vm.setSignpost(j.get("signpost").getAsBoolean());
+    return vm;
+  }
+
+  private static String str(JsonObject j, String name) {
+    return j.has(name) && !j.get(name).isJsonNull() ? j.get(name).getAsString() : null;
+  }
+}
@@ -27,7 +27,10 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Locale;
 
 import org.hl7.fhir.exceptions.FHIRException;
@@ -62,6 +65,20 @@ public class ValidationServices implements IValidatorResourceFetcher {
   private List<String> otherUrls = new ArrayList<>();
   private List<String> mappingUrls = new ArrayList<>();
   private boolean bundleReferencesResolve;
+
+  // lookups, built once per validation pass (see startPass)
+  private static final int CACHE_SIZE = 2000;
+  private Map<String, FetchedResource> resources; // type/id
+  private Map<String, FetchedResource> bundles; // entry fullUrl -> the bundle it's in
+  private Map<String, Element> cache = new LinkedHashMap<String, Element>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+    protected boolean removeEldestEntry(Map.Entry<String, Element> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+  private ObjectConverter converter;
+  private int hits;
+  private int misses;
   
   
   public ValidationServices(IWorkerContext context, IGKnowledgeProvider ipg, List<FetchedFile> files, List<NpmPackage> packages, boolean bundleReferencesResolve) {
@@ -74,6 +91,71 @@ public class ValidationServices implements IValidatorResourceFetcher {
     initOtherUrls();
   }
 
+  /**
+   * the IG's resources are indexed the first time they're needed in each pass, since the
+   * list of files can change between passes (watch mode). Converted resources, and what
+   * was found (or not) in the packages, are cached for the pass, up to CACHE_SIZE.
+   *
+   * A fetch is a hit if it was answered from the cache or the indexes, and a miss if it
+   * had to convert or parse something, or found nothing
+   */
+  public synchronized void startPass() {
+    resources = null;
+    bundles = null;
+    cache.clear();
+    hits = 0;
+    misses = 0;
+  }
+
+  private synchronized void buildIndexes() {
+    if (resources == null) {
+      resources = new HashMap<>();
+      bundles = new HashMap<>();
+      for (FetchedFile f : files) {
+        for (FetchedResource r : f.getResources()) {
+          if (!resources.containsKey(r.fhirType()+"/"+r.getId())) {
+            resources.put(r.fhirType()+"/"+r.getId(), r);
+          }
+          if (r.fhirType().equals("Bundle")) {
+            for (Element be : r.getElement().getChildren("entry")) {
+              if (be.hasChild("resource") && be.hasChild("fullUrl") && !bundles.containsKey(be.getChildValue("fullUrl"))) {
+                bundles.put(be.getChildValue("fullUrl"), r);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private synchronized Element getCached(String url) {
+    return cache.get(url);
+  }
+
+  private synchronized boolean isCached(String url) {
+    return cache.containsKey(url);
+  }
+
+  private synchronized Element cache(String url, Element e) {
+    cache.put(url, e);
+    return e;
+  }
+
+  private synchronized ObjectConverter getConverter() {
+    if (converter == null) {
+      converter = new ObjectConverter(context);
+    }
+    return converter;
+  }
+
+  private synchronized void hit() {
+    hits++;
+  }
+
+  private synchronized void miss() {
+    misses++;
+  }
+
   @Override
   public Element fetch(IResourceValidator validator, Object appContext, String url) throws FHIRException, IOException {
     if (url == null)
@@ -84,28 +166,27 @@ public class ValidationServices implements IValidatorResourceFetcher {
       Element e = (Element)res.getUserData("element");
       if (e!=null)
         return e;
-      else
-        return new ObjectConverter(context).convert(res);
+      else if (isCached(turl)) {
+        hit();
+        return getCached(turl);
+      } else {
+        miss();
+        return cache(turl, getConverter().convert(res));
+      }
     }
 
-    ValueSet vs = ImplicitValueSets.build(url);
-    if (vs != null)
-      return new ObjectConverter(context).convert(vs);
-    
-    for (NpmPackage npm : packages) {
-      if (npm.canonical() != null && url.startsWith(npm.canonical())) {
-        String u = url.substring(npm.canonical().length());
-        if (u.startsWith("/"))
-          u = u.substring(1);
-        String[] ul = u.split("\\/");
-        if (ul.length >= 2) {
-          InputStream s = npm.loadResource(ul[0], ul[1]);
-          if (s == null) {
-            s = npm.loadExampleResource(ul[0], ul[1]);
-          }
-          if (s != null)
-            return Manager.makeParser(context, FhirFormat.JSON).parse(s);
-        }
+    // implicit value sets and package content (or the lack of it)
+    if (isCached(url)) {
+      Element e = getCached(url);
+      if (e != null) {
+        hit();
+        return e;
+      }
+    } else {
+      Element e = cache(url, fetchOther(url));
+      if (e != null) {
+        miss();
+        return e;
       }
     }
     String[] parts = url.split("\\/");
@@ -126,35 +207,70 @@ public class ValidationServices implements IValidatorResourceFetcher {
       }
     }
     
+    buildIndexes();
     if (!Utilities.isAbsoluteUrl(url) || url.startsWith(ipg.getCanonical())) {
       if (parts.length == 2) {
-        for (FetchedFile f : files) {
-          for (FetchedResource r : f.getResources()) {
-            if (r.getElement().fhirType().equals(parts[parts.length-2]) && r.getId().equals(parts[parts.length-1]))
-              return r.getElement();
-          }
+        FetchedResource r = resources.get(parts[0]+"/"+parts[1]);
+        if (r != null) {
+          hit();
+          return r.getElement();
         }
       }
     }
     
     if (Utilities.isAbsoluteUrl(url)) {
-      for (FetchedFile f : files) {
-        for (FetchedResource r : f.getResources()) {
-          if (r.getElement().fhirType().equals("Bundle")) {
-            for (Element be : r.getElement().getChildren("entry")) {
-              Element ber = be.getNamedChild("resource");
-              if (ber != null) {
-                if (be.hasChild("fullUrl") && be.getChildValue("fullUrl").equals(url))
-                  return ber;
-              }
+      FetchedResource r = bundles.get(url);
+      if (r != null) {
+        for (Element be : r.getElement().getChildren("entry")) {
+          Element ber = be.getNamedChild("resource");
+          if (ber != null) {
+            if (be.hasChild("fullUrl") && be.getChildValue("fullUrl").equals(url)) {
+              hit();
+              return ber;
             }
           }
         }
       }
     }
+    miss();
     return null;
   }
 
+  /**
+   * implicit value sets, and the content of the packages
+   */
+  private Element fetchOther(String url) throws FHIRException, IOException {
+    ValueSet vs = ImplicitValueSets.build(url);
+    if (vs != null)
+      return getConverter().convert(vs);
+    
+    for (NpmPackage npm : packages) {
+      if (npm.canonical() != null && url.startsWith(npm.canonical())) {
+        String u = url.substring(npm.canonical().length());
+        if (u.startsWith("/"))
+          u = u.substring(1);
+        String[] ul = u.split("\\/");
+        if (ul.length >= 2) {
+          InputStream s = npm.loadResource(ul[0], ul[1]);
+          if (s == null) {
+            s = npm.loadExampleResource(ul[0], ul[1]);
+          }
+          if (s != null)
+            return Manager.makeParser(context, FhirFormat.JSON).parse(s);
+        }
+      }
+    }
+    return null;
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  public int getMisses() {
+    return misses;
+  }
+
   private Class getResourceType(String url) {
     if (url.contains("/ValueSet/"))
       return ValueSet.class;
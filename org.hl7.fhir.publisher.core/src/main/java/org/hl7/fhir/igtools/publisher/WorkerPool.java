@@ -0,0 +1,57 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A fixed pool of named daemon threads for one phase of a build (e.g. validation).
+ *
+ * The pool only lasts as long as the phase: close() ends the threads, and with them
+ * anything the tasks kept in thread locals (e.g. each thread's validator, and the context
+ * it refers to), so nothing is kept alive into the next build in the same JVM. If the
+ * phase fails, close() also stops the tasks that haven't finished.
+ */
+public class WorkerPool implements AutoCloseable {
+
+  private ExecutorService executor;
+
+  public WorkerPool(String name, int threads) {
+    super();
+    executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      private int count = 0;
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name+"-"+(++count));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  public <T> Future<T> submit(Callable<T> task) {
+    return executor.submit(task);
+  }
+
+  /**
+   * wait for the task, and throw what the task threw, rather than an ExecutionException
+   */
+  public static <T> T get(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
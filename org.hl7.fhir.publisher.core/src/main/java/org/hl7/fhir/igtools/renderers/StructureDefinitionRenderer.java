@@ -39,7 +39,6 @@ import org.hl7.fhir.igtools.publisher.SpecMapManager;
 import org.hl7.fhir.r5.conformance.ProfileUtilities;
 import org.hl7.fhir.r5.conformance.ProfileUtilities.ProfileKnowledgeProvider.BindingResolution;
 import org.hl7.fhir.r5.context.IWorkerContext;
-import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.r5.formats.IParser.OutputStyle;
 import org.hl7.fhir.r5.formats.XmlParser;
 import org.hl7.fhir.r5.model.CanonicalResource;
@@ -102,6 +101,7 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   private String destDir;
   private List<FetchedFile> files;
   private boolean allInvariants;
+  private StructureUsageIndex usages;
 
   public StructureDefinitionRenderer(IWorkerContext context, String corePath, StructureDefinition sd, String destDir, IGKnowledgeProvider igp, List<SpecMapManager> maps, MarkDownProcessor markdownEngine, NpmPackage packge, List<FetchedFile> files, RenderingContext gen, boolean allInvariants) {
     super(context, corePath, sd, destDir, igp, maps, markdownEngine, packge, gen);
@@ -113,6 +113,20 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
     this.allInvariants = allInvariants;
   }
 
+  /**
+   * the index of where structures are used, if it's shared across the profiles (otherwise one is built when needed)
+   */
+  public void setUsages(StructureUsageIndex usages) {
+    this.usages = usages;
+  }
+
+  private StructureUsageIndex getUsages() {
+    if (usages == null) {
+      usages = new StructureUsageIndex(context, files);
+    }
+    return usages;
+  }
+
   @Override
   public void setTranslator(org.hl7.fhir.utilities.TranslationServices translator) {
     super.setTranslator(translator);
@@ -1450,31 +1464,11 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
 
 
   private List<StructureDefinition> findDerived() {
-    List<StructureDefinition> res = new ArrayList<>();
-    for (StructureDefinition t : context.allStructures()) {
-      if (sd.getUrl().equals(t.getBaseDefinition())) {
-        res.add(t);
-      }
-    }
-    return res;
+    return getUsages().getDerived(sd.getUrl());
   }
 
   private List<StructureDefinition> findUses() {
-    List<StructureDefinition> res = new ArrayList<>();
-    for (StructureDefinition t : context.allStructures()) {
-      boolean uses = false;
-      for (ElementDefinition ed : t.getSnapshot().getElement()) {
-        for (TypeRefComponent u : ed.getType()) {
-          if (u.hasProfile(sd.getUrl())) {
-            uses = true;
-          }
-        }
-      }
-      if (uses) {
-        res.add(t);
-      }
-    }
-    return res;
+    return getUsages().getProfileUses(sd.getUrl());
   }
 
 
@@ -2033,32 +2027,18 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
     Map<String, String> refs = new HashMap<>();
     Map<String, String> trefs = new HashMap<>();
     Map<String, String> examples = new HashMap<>();
-    for (StructureDefinition sd : context.allStructures()) {
-      if (this.sd.getUrl().equals(sd.getBaseDefinition())) {
-        base.put(sd.getUserString("path"), sd.present());
-      }
-      for (ElementDefinition ed : sd.getSnapshot().getElement()) {
-        for (TypeRefComponent tr : ed.getType()) {
-          for (CanonicalType u : tr.getProfile()) {
-            if (this.sd.getUrl().equals(u.getValue())) {
-              refs.put(sd.getUserString("path"), sd.present());
-            }
-          }
-          for (CanonicalType u : tr.getTargetProfile()) {
-            if (this.sd.getUrl().equals(u.getValue())) {
-              trefs.put(sd.getUserString("path"), sd.present());
-            }
-          }
-        }
-      }
+    for (StructureDefinition sd : getUsages().getDerived(this.sd.getUrl())) {
+      base.put(sd.getUserString("path"), sd.present());
     }
-    for (FetchedFile f : files) {
-      for (FetchedResource r : f.getResources()) {
-        if (usesSD(r.getElement())) {
-          String p = igp.getLinkFor(r, true);
-          examples.put(p, r.getTitle());          
-        }
-      }
+    for (StructureDefinition sd : getUsages().getProfileUses(this.sd.getUrl())) {
+      refs.put(sd.getUserString("path"), sd.present());
+    }
+    for (StructureDefinition sd : getUsages().getTargetProfileUses(this.sd.getUrl())) {
+      trefs.put(sd.getUserString("path"), sd.present());
+    }
+    for (FetchedResource r : getUsages().getInstanceUses(this.sd.getUrl())) {
+      String p = igp.getLinkFor(r, true);
+      examples.put(p, r.getTitle());          
     }
 
     StringBuilder b= new StringBuilder();
@@ -2077,27 +2057,6 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
     return b.toString();
   }
 
-  private boolean usesSD(Element resource) {
-    if (resource.hasChild("meta")) {
-      Element meta = resource.getNamedChild("meta");
-      for (Element p : meta.getChildrenByName("profile")) {
-        if (sd.getUrl().equals(p.getValue()))
-          return true;
-      }
-    }
-    return usesExtension(resource);
-  }
-
-  private boolean usesExtension(Element focus) {
-    for (Element child : focus.getChildren()) {
-      if (child.getName().equals("extension") && sd.getUrl().equals(child.getChildValue("url")))
-        return true;
-      if (usesExtension(child))
-        return true;
-    }   
-    return false;
-  }
-
   private String refList(Map<String, String> base) {
     CommaSeparatedStringBuilder b = new CommaSeparatedStringBuilder();
     for (String s : sorted(base.keySet())) {
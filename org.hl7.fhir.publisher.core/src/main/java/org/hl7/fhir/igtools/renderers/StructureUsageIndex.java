@@ -0,0 +1,126 @@
+package org.hl7.fhir.igtools.renderers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.igtools.publisher.FetchedFile;
+import org.hl7.fhir.igtools.publisher.FetchedResource;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+/**
+ * Where each structure is used: which structures are derived from it, which use it as a
+ * profile or target profile on a type, and which resources in the IG claim it in
+ * meta.profile or use it as an extension.
+ *
+ * Building this means going through every structure (core and dependencies included) and
+ * every resource in the IG once, so it's built once per build and shared by all the
+ * profile pages, instead of each page going through everything to find its own uses.
+ */
+public class StructureUsageIndex {
+
+  private Map<String, List<StructureDefinition>> derived = new HashMap<>();
+  private Map<String, List<StructureDefinition>> profiles = new HashMap<>();
+  private Map<String, List<StructureDefinition>> targetProfiles = new HashMap<>();
+  private Map<String, List<FetchedResource>> instances = new HashMap<>();
+
+  public StructureUsageIndex(IWorkerContext context, List<FetchedFile> files) {
+    for (StructureDefinition t : context.allStructures()) {
+      if (t.hasBaseDefinition()) {
+        add(derived, t.getBaseDefinition(), t);
+      }
+      for (ElementDefinition ed : t.getSnapshot().getElement()) {
+        for (TypeRefComponent tr : ed.getType()) {
+          for (CanonicalType u : tr.getProfile()) {
+            if (u.hasValue()) {
+              add(profiles, u.getValue(), t);
+            }
+          }
+          for (CanonicalType u : tr.getTargetProfile()) {
+            if (u.hasValue()) {
+              add(targetProfiles, u.getValue(), t);
+            }
+          }
+        }
+      }
+    }
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        Element e = r.getElement();
+        if (e != null) {
+          if (e.hasChild("meta")) {
+            for (Element p : e.getNamedChild("meta").getChildrenByName("profile")) {
+              if (p.getValue() != null) {
+                add(instances, p.getValue(), r);
+              }
+            }
+          }
+          scanExtensions(e, r);
+        }
+      }
+    }
+  }
+
+  private void scanExtensions(Element focus, FetchedResource r) {
+    for (Element child : focus.getChildren()) {
+      if (child.getName().equals("extension")) {
+        String url = child.getChildValue("url");
+        if (url != null) {
+          add(instances, url, r);
+        }
+      }
+      scanExtensions(child, r);
+    }
+  }
+
+  private <T> void add(Map<String, List<T>> map, String url, T value) {
+    List<T> list = map.get(url);
+    if (list == null) {
+      list = new ArrayList<>();
+      map.put(url, list);
+    }
+    // uses from the same source are found together, so this is enough to keep the list unique
+    if (list.isEmpty() || list.get(list.size()-1) != value) {
+      list.add(value);
+    }
+  }
+
+  private <T> List<T> get(Map<String, List<T>> map, String url) {
+    List<T> list = map.get(url);
+    return list == null ? new ArrayList<>() : list;
+  }
+
+  /**
+   * @return the structures with this url as their base definition
+   */
+  public List<StructureDefinition> getDerived(String url) {
+    return get(derived, url);
+  }
+
+  /**
+   * @return the structures that have an element with this url as a type profile
+   */
+  public List<StructureDefinition> getProfileUses(String url) {
+    return get(profiles, url);
+  }
+
+  /**
+   * @return the structures that have an element with this url as a target profile
+   */
+  public List<StructureDefinition> getTargetProfileUses(String url) {
+    return get(targetProfiles, url);
+  }
+
+  /**
+   * @return the resources in the IG that claim this profile in meta.profile, or use this extension
+   */
+  public List<FetchedResource> getInstanceUses(String url) {
+    return get(instances, url);
+  }
+}
@@ -0,0 +1,78 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+public class CompactJsonTests {
+
+  private String roundTrip(CompactJson compact, String json) throws Exception {
+    return new String(compact.decode(compact.encode(json.getBytes(StandardCharsets.UTF_8))), StandardCharsets.UTF_8);
+  }
+
+  private void check(String json) throws Exception {
+    // decoding gives back the same json, apart from the whitespace
+    JsonElement expected = new JsonParser().parse(json);
+    String actual = roundTrip(new CompactJson(), json);
+    Assertions.assertEquals(expected, new JsonParser().parse(actual), actual);
+    Assertions.assertEquals(expected.toString(), actual);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    check("{\"resourceType\":\"Patient\",\"id\":\"example\",\"active\":true,\"deceasedBoolean\":false,"
+        + "\"name\":[{\"family\":\"Doe\",\"given\":[\"Jo\",\"Anne\"]},{\"family\":\"Doe\"}],"
+        + "\"contact\":[],\"extension\":[{\"url\":\"http://example.org/ext\",\"valueString\":\"\"}]}");
+    check("[]");
+    check("{}");
+    check("\"just a string\"");
+  }
+
+  @Test
+  public void testNumbers() throws Exception {
+    // numbers are kept as they were written, so precision and trailing zeros aren't lost
+    check("{\"a\":0,\"b\":-1,\"c\":1.50,\"d\":12345678901234567890,\"e\":1e-7,\"f\":3.14159265358979323846,\"g\":[1,2.0,-0.0]}");
+    Assertions.assertEquals("{\"v\":1.50}", roundTrip(new CompactJson(), "{\"v\":1.50}"));
+  }
+
+  @Test
+  public void testEscapes() throws Exception {
+    check("{\"s\":\"quote \\\" backslash \\\\ slash / tab \\t newline \\n return \\r\","
+        + "\"u\":\"\\u0001 \\u001f \\u00e9 \\u65e5\\u672c \\ud83d\\ude00\",\"h\":\"<b>&amp;</b> ='\\u2028'\"}");
+    // non-ASCII names, in the dictionary and not
+    check("{\"na\\u00efve\":\"\\u00e9t\\u00e9\",\"list\":[\"\\u00e9t\\u00e9\",\"\\u00e9t\\u00e9\"]}");
+  }
+
+  @Test
+  public void testNulls() throws Exception {
+    check("{\"a\":null,\"b\":[null,null],\"c\":{\"d\":null}}");
+    check("null");
+  }
+
+  @Test
+  public void testOnlyNamesAndRepeatedValuesInterned() throws Exception {
+    CompactJson compact = new CompactJson();
+    compact.encode("{\"system\":\"http://loinc.org\",\"id\":\"one-off\"}".getBytes(StandardCharsets.UTF_8));
+    // the names are in; neither value is yet
+    Assertions.assertEquals(Arrays.asList("system", "id"), compact.getDictionary());
+    compact.encode("{\"system\":\"http://loinc.org\",\"id\":\"another\"}".getBytes(StandardCharsets.UTF_8));
+    // the second time it's seen, the system goes in
+    Assertions.assertEquals(Arrays.asList("system", "id", "http://loinc.org"), compact.getDictionary());
+    Assertions.assertFalse(compact.isFull());
+  }
+
+  @Test
+  public void testSavedDictionary() throws Exception {
+    CompactJson compact = new CompactJson();
+    String json = "{\"code\":\"x\",\"codes\":[\"x\",\"x\",\"y\"]}";
+    byte[] b = compact.encode(json.getBytes(StandardCharsets.UTF_8));
+    CompactJson other = new CompactJson();
+    other.setDictionary(compact.getDictionary());
+    Assertions.assertEquals(new JsonParser().parse(json), new JsonParser().parse(new String(other.decode(b), StandardCharsets.UTF_8)));
+  }
+}
@@ -0,0 +1,99 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.utilities.npm.ToolsVersion;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CoreSnapshotTests {
+
+  private static final String VS = "http://hl7.org/fhir/ValueSet/administrative-gender";
+
+  private static NpmPackage npm;
+
+  private SimpleWorkerContext context;
+  private String folder;
+
+  @BeforeAll
+  public static void setUpPackage() throws Exception {
+    FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    npm = pcm.loadPackage("hl7.fhir.r5.core", Constants.VERSION);
+  }
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    // each test gets its own, since some change it
+    context = SimpleWorkerContext.fromPackage(npm);
+    context.fetchResource(ValueSet.class, VS).setUserData("path", "valueset-administrative-gender.html");
+    folder = Files.createTempDirectory("snapshot").toFile().getAbsolutePath();
+  }
+
+  private CoreSnapshot saved() throws IOException {
+    CoreSnapshot snapshot = new CoreSnapshot(folder, npm, "test");
+    snapshot.save(context);
+    Assertions.assertTrue(snapshot.exists());
+    Assertions.assertEquals(context.allConformanceResources().size(), snapshot.getCount());
+    return snapshot;
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    saved();
+    CoreSnapshot snapshot = new CoreSnapshot(folder, npm, "test");
+    SimpleWorkerContext loaded = SimpleWorkerContext.fromNothing();
+    Assertions.assertTrue(snapshot.load(loaded));
+    Assertions.assertEquals(context.allConformanceResources().size(), snapshot.getCount());
+    Assertions.assertEquals(context.allConformanceResources().size(), loaded.allConformanceResources().size());
+    ValueSet vs = loaded.fetchResource(ValueSet.class, VS);
+    Assertions.assertNotNull(vs);
+    Assertions.assertEquals("valueset-administrative-gender.html", vs.getUserData("path"));
+    Assertions.assertTrue(snapshot.verify(context).isEmpty());
+  }
+
+  @Test
+  public void testDifferentKey() throws Exception {
+    saved();
+    CoreSnapshot snapshot = new CoreSnapshot(folder, npm, "other");
+    Assertions.assertFalse(snapshot.exists());
+    Assertions.assertFalse(snapshot.load(SimpleWorkerContext.fromNothing()));
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    File f = saved().getFile();
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.setLength(raf.length() / 2);
+    }
+    CoreSnapshot snapshot = new CoreSnapshot(folder, npm, "test");
+    Assertions.assertTrue(snapshot.exists());
+    // not usable, so it's loaded from the package instead
+    Assertions.assertFalse(snapshot.load(SimpleWorkerContext.fromNothing()));
+    List<String> diffs = snapshot.verify(context);
+    Assertions.assertEquals(1, diffs.size());
+    Assertions.assertTrue(diffs.get(0).startsWith("No usable snapshot"), diffs.get(0));
+  }
+
+  @Test
+  public void testVerifyReportsDifferences() throws Exception {
+    CoreSnapshot snapshot = saved();
+    ValueSet vs = context.fetchResource(ValueSet.class, VS);
+    vs.setTitle("Changed");
+    vs.setUserData("path", "changed.html");
+    List<String> diffs = snapshot.verify(context);
+    Assertions.assertEquals(2, diffs.size(), diffs.toString());
+    Assertions.assertTrue(diffs.get(0).contains(VS) && diffs.get(0).endsWith("content is different"), diffs.get(0));
+    Assertions.assertTrue(diffs.get(1).contains(VS) && diffs.get(1).contains("user data 'path' is different"), diffs.get(1));
+  }
+}
@@ -0,0 +1,104 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.hl7.fhir.igtools.publisher.CqlSubSystem.CqlSourceFileInformation;
+import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CqlSubSystemTests {
+
+  private static final String TEXT = "Grüße, 日本";
+
+  private File folder;
+  private File cache;
+  private File source;
+
+  private ILoggingService logger = new ILoggingService() {
+    @Override
+    public void logMessage(String message) {
+    }
+
+    @Override
+    public void logDebugMessage(LogCategory category, String message) {
+    }
+  };
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    folder = Files.createTempDirectory("cql").toFile();
+    cache = Files.createTempDirectory("cql-cache").toFile();
+    source = new File(folder, "Greeting.cql");
+    Files.write(source.toPath(), ("library Greeting version '1.0.0'\n\ndefine \"Hello\": '"+TEXT+"'\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private CqlSubSystem execute() {
+    CqlSubSystem cql = new CqlSubSystem(new ArrayList<>(), Collections.singletonList(folder.getAbsolutePath()), null, logger, null, "example.fhir.ig", "http://example.org/fhir");
+    cql.setCacheFolder(cache.getAbsolutePath());
+    cql.execute();
+    return cql;
+  }
+
+  private CqlSourceFileInformation info(CqlSubSystem cql) {
+    CqlSourceFileInformation info = cql.getFileInformation(source.getAbsoluteFile().toString());
+    Assertions.assertNotNull(info);
+    Assertions.assertTrue(info.getErrors().isEmpty(), info.getErrors().toString());
+    return info;
+  }
+
+  @Test
+  public void testCachedTranslationIsUtf8() throws Exception {
+    CqlSubSystem cql = execute();
+    Assertions.assertEquals(1, cql.getTranslated());
+    CqlSourceFileInformation first = info(cql);
+    Assertions.assertTrue(new String(first.getElm(), StandardCharsets.UTF_8).contains(TEXT));
+
+    cql = execute();
+    Assertions.assertEquals(0, cql.getTranslated());
+    Assertions.assertEquals(1, cql.getReused());
+    // the cached copy has the same bytes, whatever the platform's default charset is
+    CqlSourceFileInformation second = info(cql);
+    Assertions.assertArrayEquals(first.getElm(), second.getElm());
+    Assertions.assertArrayEquals(first.getJsonElm(), second.getJsonElm());
+  }
+
+  @Test
+  public void testChangedSourceIsTranslatedAgain() throws Exception {
+    execute();
+    Files.write(source.toPath(), "library Greeting version '1.0.0'\n\ndefine \"Hello\": 'Hi'\n".getBytes(StandardCharsets.UTF_8));
+    CqlSubSystem cql = execute();
+    Assertions.assertEquals(1, cql.getTranslated());
+    Assertions.assertEquals(0, cql.getReused());
+    Assertions.assertFalse(new String(info(cql).getElm(), StandardCharsets.UTF_8).contains(TEXT));
+    // the old translation is pruned
+    Assertions.assertEquals(1, cache.listFiles().length);
+  }
+
+  @Test
+  public void testIncludedLibrariesTranslated() throws Exception {
+    File common = new File(folder, "Common.cql");
+    Files.write(common.toPath(), "library Common version '1.0.0'\n\ndefine \"One\": 1\n".getBytes(StandardCharsets.UTF_8));
+    File user = new File(folder, "User.cql");
+    Files.write(user.toPath(), ("library User version '1.0.0'\n\ninclude Common version '1.0.0'\n\ndefine \"Two\": Common.\"One\" + 1\n").getBytes(StandardCharsets.UTF_8));
+    CqlSubSystem cql = execute();
+    Assertions.assertEquals(3, cql.getTranslated());
+    for (File f : new File[] { common, user }) {
+      CqlSourceFileInformation info = cql.getFileInformation(f.getAbsoluteFile().toString());
+      Assertions.assertNotNull(info);
+      Assertions.assertTrue(info.getErrors().isEmpty(), info.getErrors().toString());
+    }
+
+    // a change to the included library means the library that includes it is translated again
+    Files.write(common.toPath(), "library Common version '1.0.0'\n\ndefine \"One\": 2\n".getBytes(StandardCharsets.UTF_8));
+    cql = execute();
+    Assertions.assertEquals(2, cql.getTranslated());
+    Assertions.assertEquals(1, cql.getReused());
+  }
+}
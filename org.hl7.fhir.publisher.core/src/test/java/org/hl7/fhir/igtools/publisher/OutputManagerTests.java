@@ -0,0 +1,94 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class OutputManagerTests {
+
+  private File folder;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    folder = Files.createTempDirectory("outputs").toFile();
+  }
+
+  private String file(String name) {
+    return new File(folder, name).getAbsolutePath();
+  }
+
+  private String read(String path) throws IOException {
+    return new String(Files.readAllBytes(new File(path).toPath()), StandardCharsets.UTF_8);
+  }
+
+  private boolean writerRunning() {
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().equals("output-writer") && t.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * the pool has terminated when close() returns, but the thread can take a moment to end
+   */
+  private boolean writerEnded() throws InterruptedException {
+    for (int i = 0; i < 100 && writerRunning(); i++) {
+      Thread.sleep(50);
+    }
+    return !writerRunning();
+  }
+
+  @Test
+  public void testOnlyChangesWritten() throws IOException {
+    OutputManager outputs = new OutputManager();
+    outputs.startRun();
+    Assertions.assertTrue(outputs.checkMakeFile("one".getBytes(StandardCharsets.UTF_8), file("a.html")));
+    Assertions.assertFalse(outputs.checkMakeFile("one".getBytes(StandardCharsets.UTF_8), file("a.html")));
+    outputs.flush();
+    Assertions.assertEquals("one", read(file("a.html")));
+    Assertions.assertTrue(outputs.checkMakeFile("two".getBytes(StandardCharsets.UTF_8), file("a.html")));
+    outputs.flush();
+    Assertions.assertEquals("two", read(file("a.html")));
+    Assertions.assertEquals(2, outputs.getWritten());
+    Assertions.assertEquals(1, outputs.getUnchanged());
+    outputs.close();
+  }
+
+  @Test
+  public void testCloseEndsWriter() throws Exception {
+    OutputManager outputs = new OutputManager();
+    for (int i = 0; i < 50; i++) {
+      outputs.checkMakeFile(("content "+i).getBytes(StandardCharsets.UTF_8), file("f"+i+".html"));
+    }
+    Assertions.assertTrue(writerRunning());
+    outputs.close();
+    Assertions.assertTrue(writerEnded());
+    // the queued writes are done before it ends
+    for (int i = 0; i < 50; i++) {
+      Assertions.assertEquals("content "+i, read(file("f"+i+".html")));
+    }
+    // and it starts again if there's more to write
+    outputs.checkMakeFile("more".getBytes(StandardCharsets.UTF_8), file("more.html"));
+    outputs.flush();
+    Assertions.assertEquals("more", read(file("more.html")));
+    outputs.close();
+    Assertions.assertTrue(writerEnded());
+  }
+
+  @Test
+  public void testFailedWriteNamesFile() throws IOException {
+    OutputManager outputs = new OutputManager();
+    String path = file("missing/x.html");
+    outputs.checkMakeFile("x".getBytes(StandardCharsets.UTF_8), path);
+    IOException e = Assertions.assertThrows(IOException.class, () -> outputs.flush());
+    Assertions.assertTrue(e.getMessage().contains(path), e.getMessage());
+    outputs.close();
+  }
+}
@@ -0,0 +1,141 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.hl7.fhir.utilities.ZipGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The zips are read back with java.util.zip.ZipFile, which checks the CRC of every entry.
+ */
+public class ParallelZipGeneratorTests {
+
+  private WorkerPool pool;
+  private File folder;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    pool = new WorkerPool("test-zip", 2);
+    folder = Files.createTempDirectory("zip").toFile();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    pool.close();
+  }
+
+  private String file(String name) {
+    return new File(folder, name).getAbsolutePath();
+  }
+
+  private ParallelZipGenerator zip(Map<String, String> content, String previous) throws IOException {
+    ParallelZipGenerator zip = new ParallelZipGenerator(file("test.zip"), previous, file("test.zip.json"), pool, 2);
+    for (String name : content.keySet()) {
+      zip.addBytes(name, content.get(name).getBytes(StandardCharsets.UTF_8), false);
+    }
+    zip.close();
+    return zip;
+  }
+
+  private Map<String, String> read(String path) throws IOException {
+    Map<String, String> res = new LinkedHashMap<>();
+    try (ZipFile zf = new ZipFile(path)) {
+      Enumeration<? extends ZipEntry> entries = zf.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry e = entries.nextElement();
+        try (InputStream s = zf.getInputStream(e)) {
+          ByteArrayOutputStream bs = new ByteArrayOutputStream();
+          byte[] buf = new byte[1024];
+          int n;
+          while ((n = s.read(buf)) != -1) {
+            bs.write(buf, 0, n);
+          }
+          res.put(e.getName(), new String(bs.toByteArray(), StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return res;
+  }
+
+  private Map<String, String> content() {
+    Map<String, String> res = new LinkedHashMap<>();
+    res.put("a.json", "{ \"resourceType\" : \"Patient\" }");
+    res.put("b.json", "{ \"resourceType\" : \"Observation\" }");
+    res.put("c.json", "{ \"resourceType\" : \"ValueSet\" }");
+    return res;
+  }
+
+  @Test
+  public void testMixedReusedAndNew() throws IOException {
+    Map<String, String> content = content();
+    Assertions.assertEquals(0, zip(content, null).getReused());
+    Assertions.assertEquals(content, read(file("test.zip")));
+
+    content.put("b.json", "{ \"resourceType\" : \"Condition\" }");
+    content.put("d.json", "{ \"resourceType\" : \"Library\" }");
+    ParallelZipGenerator zip = zip(content, null);
+    Assertions.assertEquals(2, zip.getReused());
+    Assertions.assertEquals(4, zip.getCount());
+    Assertions.assertEquals(content, read(file("test.zip")));
+  }
+
+  @Test
+  public void testSameCrcDifferentContent() throws IOException {
+    // these two have the same CRC32 and length
+    Map<String, String> content = new LinkedHashMap<>();
+    content.put("x.txt", "plumless");
+    zip(content, null);
+    content.put("x.txt", "buckeroo");
+    Assertions.assertEquals(0, zip(content, null).getReused());
+    Assertions.assertEquals(content, read(file("test.zip")));
+  }
+
+  @Test
+  public void testNonAsciiNames() throws IOException {
+    Map<String, String> content = content();
+    content.put("site/Beschäftigung-日本.html", "<p>äöü 日本</p>");
+    zip(content, null);
+    Assertions.assertEquals(content, read(file("test.zip")));
+    ParallelZipGenerator zip = zip(content, null);
+    Assertions.assertEquals(4, zip.getReused());
+    Assertions.assertEquals(content, read(file("test.zip")));
+  }
+
+  @Test
+  public void testPreviousFromZipGenerator() throws IOException {
+    Map<String, String> content = content();
+    content.put("site/été.html", "<p>été</p>");
+    zip(content, null);
+    // the last build wrote the zip with ZipGenerator, so the digests kept aren't for it
+    ZipGenerator old = new ZipGenerator(file("old.zip"));
+    for (String name : content.keySet()) {
+      old.addBytes(name, content.get(name).getBytes(StandardCharsets.UTF_8), false);
+    }
+    old.close();
+    ParallelZipGenerator zip = zip(content, file("old.zip"));
+    Assertions.assertEquals(0, zip.getReused());
+    Assertions.assertEquals(content, read(file("test.zip")));
+  }
+
+  @Test
+  public void testNoDigests() throws IOException {
+    Map<String, String> content = content();
+    zip(content, null);
+    new File(file("test.zip.json")).delete();
+    Assertions.assertEquals(0, zip(content, null).getReused());
+    Assertions.assertEquals(content, read(file("test.zip")));
+  }
+}
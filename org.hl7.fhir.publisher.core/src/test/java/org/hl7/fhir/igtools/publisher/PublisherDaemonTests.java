@@ -0,0 +1,143 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class PublisherDaemonTests {
+
+  private static final int TIMEOUT = 1000; // ms
+
+  private File folder;
+  private ServerSocket server;
+  private String token;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    folder = Files.createTempDirectory("daemon").toFile();
+    File tokenFile = new File(folder, "daemon.token");
+    PublisherDaemon daemon = new PublisherDaemon(0, tokenFile, TIMEOUT);
+    server = daemon.start();
+    token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+    Thread t = new Thread(() -> {
+      try {
+        daemon.serve(server);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }, "daemon-test");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    server.close();
+  }
+
+  private String request(String token, String... args) {
+    JsonObject json = new JsonObject();
+    json.addProperty("token", token);
+    json.addProperty("dir", folder.getAbsolutePath());
+    JsonArray arr = new JsonArray();
+    json.add("args", arr);
+    for (String a : args) {
+      arr.add(a);
+    }
+    return new Gson().toJson(json)+"\n";
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    socket.setSoTimeout(TIMEOUT * 30);
+    return socket;
+  }
+
+  private List<String> response(Socket socket) throws IOException {
+    List<String> lines = new ArrayList<>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    String line;
+    while ((line = in.readLine()) != null) {
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  private List<String> send(String request) throws IOException {
+    try (Socket socket = connect()) {
+      OutputStream out = socket.getOutputStream();
+      out.write(request.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      return response(socket);
+    }
+  }
+
+  private void assertRefused(List<String> lines, String reason) {
+    Assertions.assertEquals(2, lines.size(), lines.toString());
+    Assertions.assertTrue(lines.get(0).startsWith("Build request refused: ") && lines.get(0).contains(reason), lines.get(0));
+    Assertions.assertEquals("#exit 1", lines.get(1));
+  }
+
+  @Test
+  public void testBuild() throws Exception {
+    List<String> lines = send(request(token, "-ig", "missing"));
+    // the path is relative to the client's directory, and the build fails, since there's no IG there
+    String msg = "Unable to find the nominated IG at "+new File(folder, "missing").getAbsolutePath();
+    Assertions.assertTrue(lines.contains("Publishing Content Failed: "+msg), lines.toString());
+    Assertions.assertTrue(lines.get(lines.size()-2).startsWith("#qa "), lines.toString());
+    JsonObject qa = new com.google.gson.JsonParser().parse(lines.get(lines.size()-2).substring(4)).getAsJsonObject();
+    Assertions.assertEquals(msg, qa.get("exception").getAsString());
+    Assertions.assertEquals("#exit 1", lines.get(lines.size()-1));
+  }
+
+  @Test
+  public void testWrongTokenRefused() throws Exception {
+    assertRefused(send(request("not-the-token", "-ig", "missing")), "doesn't have the token");
+    assertRefused(send("{\"args\" : [\"-ig\", \"missing\"]}\n"), "doesn't have the token");
+  }
+
+  @Test
+  public void testDaemonParamsRefused() throws Exception {
+    assertRefused(send(request(token, "-prompt")), "-prompt can't be used with the daemon");
+    assertRefused(send(request(token, "-ig", "missing", "-proxy", "localhost:3128")), "-proxy can't be used with the daemon");
+  }
+
+  @Test
+  public void testLongRequestRefused() throws Exception {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i <= 64 * 1024; i++) {
+      b.append("x");
+    }
+    assertRefused(send(b.toString()), "longer than");
+  }
+
+  @Test
+  public void testSlowClient() throws Exception {
+    try (Socket slow = connect()) {
+      // the slow client doesn't stop other requests being handled
+      long start = System.currentTimeMillis();
+      assertRefused(send(request("not-the-token")), "doesn't have the token");
+      Assertions.assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+      // and it's refused once it has had its time
+      assertRefused(response(slow), "No build request within");
+    }
+  }
+}
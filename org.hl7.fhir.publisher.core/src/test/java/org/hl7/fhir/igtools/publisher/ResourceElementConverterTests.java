@@ -0,0 +1,149 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Bundle.BundleType;
+import org.hl7.fhir.r5.model.CodeableConcept;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.r5.model.DateTimeType;
+import org.hl7.fhir.r5.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r5.model.HumanName;
+import org.hl7.fhir.r5.model.Narrative.NarrativeStatus;
+import org.hl7.fhir.r5.model.Observation;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.Quantity;
+import org.hl7.fhir.r5.model.Reference;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.ToolsVersion;
+import org.hl7.fhir.utilities.xhtml.NodeType;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The direct conversion has to give the same element tree as the JSON round trip it replaces.
+ */
+public class ResourceElementConverterTests {
+
+  private static SimpleWorkerContext context;
+
+  @BeforeAll
+  public static void setUp() throws Exception {
+    FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    context = SimpleWorkerContext.fromPackage(pcm.loadPackage("hl7.fhir.r5.core", Constants.VERSION));
+  }
+
+  private Element viaJson(Resource res) throws Exception {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    new JsonParser().compose(bs, res);
+    return new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new ByteArrayInputStream(bs.toByteArray()));
+  }
+
+  private String compose(Element e) throws IOException {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    new org.hl7.fhir.r5.elementmodel.JsonParser(context).compose(e, bs, OutputStyle.PRETTY, null);
+    return bs.toString("UTF-8");
+  }
+
+  private void checkSameTree(Element expected, Element actual, String path) {
+    Assertions.assertEquals(expected.getName(), actual.getName(), path);
+    Assertions.assertEquals(expected.fhirType(), actual.fhirType(), path);
+    Assertions.assertEquals(expected.getValue(), actual.getValue(), path);
+    Assertions.assertEquals(expected.getProperty().getDefinition().getPath(), actual.getProperty().getDefinition().getPath(), path);
+    Assertions.assertEquals(expected.hasXhtml(), actual.hasXhtml(), path);
+    Assertions.assertEquals(expected.getChildren().size(), actual.getChildren().size(), path+": children");
+    for (int i = 0; i < expected.getChildren().size(); i++) {
+      Element c = expected.getChildren().get(i);
+      checkSameTree(c, actual.getChildren().get(i), path+"."+c.getName()+"["+i+"]");
+    }
+  }
+
+  private void check(Resource res) throws Exception {
+    Element direct = new ResourceElementConverter(context).convert(res);
+    Assertions.assertNotNull(direct, "conversion of "+res.fhirType()+" fell back");
+    Element json = viaJson(res);
+    checkSameTree(json, direct, res.fhirType());
+    Assertions.assertEquals(compose(json), compose(direct));
+  }
+
+  private Patient patient() {
+    Patient p = new Patient();
+    p.setId("example");
+    p.getMeta().addProfile("http://example.org/StructureDefinition/my-patient");
+    p.getText().setStatus(NarrativeStatus.GENERATED);
+    XhtmlNode div = new XhtmlNode(NodeType.Element, "div");
+    div.setAttribute("xmlns", "http://www.w3.org/1999/xhtml");
+    div.para().tx("Patient éxample <1>");
+    p.getText().setDiv(div);
+    p.addExtension("http://example.org/StructureDefinition/ext", new StringType("value"));
+    p.addIdentifier().setSystem("http://example.org/ids").setValue("123");
+    p.addName(new HumanName().setFamily("Doe").addGiven("Jo").addGiven("Anne"));
+    p.setGender(AdministrativeGender.FEMALE);
+    p.setBirthDateElement(new org.hl7.fhir.r5.model.DateType("1970-02-03"));
+    p.setDeceased(new org.hl7.fhir.r5.model.BooleanType(false));
+    return p;
+  }
+
+  @Test
+  public void testPatient() throws Exception {
+    check(patient());
+  }
+
+  @Test
+  public void testChoicesAndContained() throws Exception {
+    Observation obs = new Observation();
+    obs.setId("obs");
+    obs.setCode(new CodeableConcept(new Coding("http://loinc.org", "8867-4", "Heart rate")));
+    obs.setEffective(new DateTimeType("2021-01-01T10:00:00Z"));
+    obs.setValue(new Quantity().setValue(72).setUnit("beats/minute").setSystem("http://unitsofmeasure.org").setCode("/min"));
+    Patient p = patient();
+    p.setId("p1");
+    obs.getContained().add(p);
+    obs.setSubject(new Reference("#p1"));
+    check(obs);
+  }
+
+  @Test
+  public void testBundle() throws Exception {
+    Bundle b = new Bundle();
+    b.setId("bundle");
+    b.setType(BundleType.COLLECTION);
+    b.addEntry().setFullUrl("http://example.org/Patient/example").setResource(patient());
+    ValueSet vs = new ValueSet();
+    vs.setId("vs");
+    vs.setUrl("http://example.org/ValueSet/vs");
+    vs.setStatus(PublicationStatus.DRAFT);
+    vs.getCompose().addInclude().setSystem("http://loinc.org").addConcept().setCode("8867-4");
+    b.addEntry().setFullUrl("http://example.org/ValueSet/vs").setResource(vs);
+    check(b);
+  }
+
+  @Test
+  public void testListsWithEmptyItems() throws Exception {
+    // the JSON route keeps the empty items in a list that has content, and drops lists with no content
+    Patient p = patient();
+    p.addIdentifier();
+    p.addTelecom();
+    check(p);
+  }
+
+  @Test
+  public void testCommentsFallBack() throws Exception {
+    Patient p = patient();
+    p.getFormatCommentsPre().add("a comment");
+    Assertions.assertNull(new ResourceElementConverter(context).convert(p));
+  }
+}
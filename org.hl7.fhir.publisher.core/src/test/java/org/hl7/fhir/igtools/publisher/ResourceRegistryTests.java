@@ -0,0 +1,118 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ResourceRegistryTests {
+
+  private List<FetchedFile> fileList = new ArrayList<>();
+  private ResourceRegistry registry = new ResourceRegistry(fileList);
+
+  private FetchedResource add(String path, FetchedResource r) {
+    FetchedFile f = new FetchedFile(path);
+    f.setPath(path);
+    f.getResources().add(r);
+    fileList.add(f);
+    registry.seeFile(f);
+    return r;
+  }
+
+  private Element element(String type) {
+    Element e = new Element(type);
+    e.setType(type);
+    return e;
+  }
+
+  private FetchedResource patient(String id) {
+    FetchedResource r = new FetchedResource();
+    r.setElement(element("Patient"));
+    r.setResource(new Patient().setId(id));
+    r.setId(id);
+    return r;
+  }
+
+  private FetchedResource profile(String id, String url) {
+    FetchedResource r = new FetchedResource();
+    r.setElement(element("StructureDefinition"));
+    StructureDefinition sd = new StructureDefinition();
+    sd.setId(id);
+    sd.setUrl(url);
+    sd.setVersion("1.0.0");
+    r.setResource(sd);
+    r.setId(id);
+    return r;
+  }
+
+  @Test
+  public void testFirstAndLastByRef() {
+    FetchedResource p1 = add("a.json", patient("p"));
+    FetchedResource p2 = add("b.json", patient("p"));
+    Assertions.assertSame(p1, registry.getByRef("Patient/p"));
+    Assertions.assertSame(p1, registry.getByRef("Patient", "p"));
+    Assertions.assertSame(p2, registry.getLastByRef("Patient/p"));
+    Assertions.assertNull(registry.getByRef("Patient/q"));
+  }
+
+  @Test
+  public void testSkipsResourcesWithoutElement() {
+    FetchedResource p1 = new FetchedResource() {
+      @Override
+      public Element getElement() {
+        return null;
+      }
+    };
+    p1.setElement(element("Patient"));
+    p1.setId("p");
+    add("a.json", p1);
+    FetchedResource p2 = add("b.json", patient("p"));
+    Assertions.assertSame(p1, registry.getByRef("Patient/p"));
+    Assertions.assertSame(p2, registry.getByRefWithElement("Patient", "p"));
+  }
+
+  @Test
+  public void testCanonical() {
+    FetchedResource s1 = add("a.json", profile("s1", "http://example.org/sd"));
+    add("b.json", profile("s2", "http://example.org/sd"));
+    Assertions.assertSame(s1, registry.getByCanonical("http://example.org/sd"));
+    Assertions.assertSame(s1, registry.getByCanonical("http://example.org/sd", "1.0.0"));
+    Assertions.assertNull(registry.getByCanonical("http://example.org/sd", "2.0.0"));
+    // the url is compared as it is, the way the lookups the registry replaced did
+    Assertions.assertNull(registry.getByCanonical("http://example.org/sd|1.0.0"));
+    Assertions.assertSame(fileList.get(0), registry.getFileForResource(s1));
+    Assertions.assertSame(fileList.get(1), registry.getFileForPath("b.json"));
+  }
+
+  @Test
+  public void testFirstOfRefOrCanonical() {
+    FetchedResource s1 = add("a.json", profile("s1", "StructureDefinition/s2"));
+    FetchedResource s2 = add("b.json", profile("s2", "http://example.org/sd"));
+    // s1 has the canonical, s2 has the local ref; s1 comes first
+    Assertions.assertSame(s1, registry.getByRefOrCanonical("StructureDefinition/s2"));
+    Assertions.assertSame(s2, registry.getByRefOrCanonical("http://example.org/sd"));
+  }
+
+  @Test
+  public void testSeesChangedIds() {
+    FetchedResource p1 = add("a.json", patient("p"));
+    Assertions.assertSame(p1, registry.getByRef("Patient/p"));
+    p1.setId("q");
+    // not invalidated, but the registry notices that the entry no longer matches
+    Assertions.assertNull(registry.getByRef("Patient/p"));
+    Assertions.assertSame(p1, registry.getByRef("Patient/q"));
+  }
+
+  @Test
+  public void testByResourceIsLast() {
+    FetchedResource p1 = add("a.json", patient("p"));
+    FetchedResource p2 = add("b.json", patient("q"));
+    p2.setResource(p1.getResource());
+    registry.invalidate();
+    Assertions.assertSame(p2, registry.getByResource(p1.getResource()));
+  }
+}
@@ -0,0 +1,183 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.ToolsVersion;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class ResourceStoreTests {
+
+  private static SimpleWorkerContext context;
+
+  @BeforeAll
+  public static void setUp() throws Exception {
+    FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    context = SimpleWorkerContext.fromPackage(pcm.loadPackage("hl7.fhir.r5.core", Constants.VERSION));
+  }
+
+  private Element parse(String id, String family) throws Exception {
+    String json = "{\"resourceType\":\"Patient\",\"id\":\""+id+"\",\"name\":[{\"family\":\""+family+"\"}]}";
+    return new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * only the FetchedResources are kept, so the elements can go once they're spilled
+   */
+  private List<FetchedFile> files(int count) throws Exception {
+    List<FetchedFile> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      FetchedResource r = new FetchedResource();
+      r.setElement(parse("p"+i, "Family"+i));
+      r.setId("p"+i);
+      FetchedFile f = new FetchedFile("p"+i+".json");
+      f.setPath("p"+i+".json");
+      f.getResources().add(r);
+      files.add(f);
+    }
+    return files;
+  }
+
+  private FetchedResource res(List<FetchedFile> files, int i) {
+    return files.get(i).getResources().get(0);
+  }
+
+  private ResourceStore spilled(List<FetchedFile> files, boolean compact) throws Exception {
+    ResourceStore store = new ResourceStore(context, 1, compact);
+    store.register(files);
+    store.checkpoint();
+    Assertions.assertEquals(files.size(), store.getEvictions());
+    return store;
+  }
+
+  private void checkReadBack(boolean compact) throws Exception {
+    List<FetchedFile> files = files(20);
+    spilled(files, compact);
+    for (int i = 0; i < files.size(); i++) {
+      Element e = res(files, i).getElement();
+      Assertions.assertEquals("p"+i, e.getIdBase());
+      Assertions.assertEquals("Family"+i, e.getNamedChild("name").getNamedChildValue("family"));
+    }
+  }
+
+  @Test
+  public void testReadBack() throws Exception {
+    checkReadBack(false);
+  }
+
+  @Test
+  public void testReadBackCompact() throws Exception {
+    checkReadBack(true);
+  }
+
+  private void checkConcurrentReadBack(boolean compact) throws Exception {
+    List<FetchedFile> files = files(50);
+    ResourceStore store = spilled(files, compact);
+    int threads = 8;
+    List<Future<List<Element>>> results = new ArrayList<>();
+    try (WorkerPool pool = new WorkerPool("store-test", threads)) {
+      for (int t = 0; t < threads; t++) {
+        int seed = t;
+        results.add(pool.submit(() -> {
+          // each thread asks for them in a different order
+          List<Integer> order = new ArrayList<>();
+          for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+          }
+          Collections.shuffle(order, new Random(seed));
+          Element[] res = new Element[files.size()];
+          for (int i : order) {
+            res[i] = res(files, i).getElement();
+          }
+          List<Element> list = new ArrayList<>();
+          Collections.addAll(list, res);
+          return list;
+        }));
+      }
+      List<Element> first = WorkerPool.get(results.get(0));
+      for (Future<List<Element>> f : results) {
+        List<Element> list = WorkerPool.get(f);
+        for (int i = 0; i < files.size(); i++) {
+          // each resource is read back once, and every thread gets that copy
+          Assertions.assertSame(first.get(i), list.get(i), "p"+i);
+          Assertions.assertEquals("p"+i, list.get(i).getIdBase());
+        }
+      }
+    }
+    Assertions.assertTrue(store.getRehydrations() <= files.size());
+  }
+
+  @Test
+  public void testConcurrentReadBack() throws Exception {
+    checkConcurrentReadBack(false);
+  }
+
+  @Test
+  public void testConcurrentReadBackCompact() throws Exception {
+    checkConcurrentReadBack(true);
+  }
+
+  @Test
+  public void testChangedWhileSpilled() throws Exception {
+    List<FetchedFile> files = files(3);
+    spilled(files, false);
+    Element e = parse("p1", "Changed");
+    res(files, 1).setElement(e);
+    Assertions.assertSame(e, res(files, 1).getElement());
+    Assertions.assertEquals("Family2", res(files, 2).getElement().getNamedChild("name").getNamedChildValue("family"));
+  }
+
+  private void checkFamilies(List<FetchedFile> files, int count) {
+    for (int i = 0; i < count; i++) {
+      Assertions.assertEquals("Family"+i, res(files, i).getElement().getNamedChild("name").getNamedChildValue("family"));
+    }
+  }
+
+  @Test
+  public void testFilesDropped() throws Exception {
+    List<FetchedFile> files = files(20);
+    ResourceStore store = spilled(files, false);
+    long length = store.getFile().length();
+    Assertions.assertTrue(length > 0);
+
+    // as if most of the files were loaded again in watch mode: the old ones are dropped, and the file is copied without them
+    store.register(files.subList(0, 5));
+    Assertions.assertEquals(5, store.getSpilled());
+    Assertions.assertTrue(store.getFile().length() < length / 2, store.getFile().length()+" of "+length);
+    checkFamilies(files, 5);
+
+    // once they're all read back, the file is emptied
+    store.register(files.subList(0, 5));
+    Assertions.assertEquals(0, store.getSpilled());
+    Assertions.assertEquals(0, store.getFile().length());
+
+    // and they can be spilled and read back again
+    store.checkpoint();
+    Assertions.assertEquals(5, store.getSpilled());
+    checkFamilies(files, 5);
+    store.close();
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    List<FetchedFile> files = files(3);
+    ResourceStore store = spilled(files, false);
+    File f = store.getFile();
+    Assertions.assertTrue(f.exists());
+    store.close();
+    Assertions.assertFalse(f.exists());
+    Assertions.assertEquals(0, store.getSpilled());
+  }
+}
@@ -0,0 +1,122 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.igtools.publisher.SiteLiquid.Context;
+import org.hl7.fhir.igtools.publisher.SiteLiquid.IncludeHost;
+import org.hl7.fhir.igtools.publisher.SiteLiquid.Template;
+import org.hl7.fhir.igtools.publisher.SiteLiquid.UnsupportedFeatureException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The expected values are what Jekyll's Liquid gives for the same template and data.
+ */
+public class SiteLiquidTests {
+
+  private Map<String, Template> includes = new HashMap<>();
+
+  private IncludeHost host = new IncludeHost() {
+    @Override
+    public Template include(String name, boolean relative, Context ctx) throws UnsupportedFeatureException {
+      if (!includes.containsKey(name)) {
+        throw new UnsupportedFeatureException("Unable to find "+name);
+      }
+      return includes.get(name);
+    }
+
+    @Override
+    public String markdownify(String source) {
+      return "<p>"+source+"</p>";
+    }
+  };
+
+  private Map<String, Object> page(String title, String layout) {
+    Map<String, Object> p = new LinkedHashMap<>();
+    p.put("title", title);
+    p.put("layout", layout);
+    return p;
+  }
+
+  private String render(String src) throws Exception {
+    Map<String, Object> vars = new HashMap<>();
+    Map<String, Object> page = page("Hello", "page");
+    page.put("path", "StructureDefinition-foo.html");
+    vars.put("page", page);
+    vars.put("list", Arrays.asList(3L, 1L, 2L));
+    List<Object> pages = new ArrayList<>();
+    pages.add(page("One", "page"));
+    pages.add(page("Two", "default"));
+    pages.add(page("Three", "page"));
+    Map<String, Object> site = new HashMap<>();
+    site.put("pages", pages);
+    vars.put("site", site);
+    return SiteLiquid.parse(src, "test.html").render(new Context(host, vars));
+  }
+
+  @Test
+  public void testOutputAndFilters() throws Exception {
+    Assertions.assertEquals("HELLO!", render("{{ page.title | upcase | append: '!' }}"));
+    Assertions.assertEquals("StructureDefinition 2 StructureDefinition,foo.html", render("{% assign parts = page.path | split: '-' %}{{ parts[0] }} {{ parts.size }} {{ parts | join: ',' }}"));
+    Assertions.assertEquals("dflt", render("{{ nothing | default: 'dflt' }}"));
+    Assertions.assertEquals("", render("{{ nothing }}"));
+    Assertions.assertEquals("123", render("{{ list | sort | join: '' }}"));
+    Assertions.assertEquals("hello-world", render("{{ 'Hello World!' | slugify }}"));
+    Assertions.assertEquals("x &amp; y", render("{{ '<b>x & y</b>' | strip_html | escape }}"));
+    Assertions.assertEquals("Ground control to...", render("{{ 'Ground control to Major Tom.' | truncate: 20 }}"));
+    Assertions.assertEquals("4", render("{{ 'a,b,,c' | split: ',' | size }}"));
+    Assertions.assertEquals("One, Three", render("{{ site.pages | where: 'layout', 'page' | map: 'title' | join: ', ' }}"));
+    Assertions.assertEquals("March 04, 2021", render("{{ '2021-03-04' | date: '%B %d, %Y' }}"));
+    Assertions.assertEquals("<p>x</p>", render("{{ 'x' | markdownify }}"));
+  }
+
+  @Test
+  public void testNumbers() throws Exception {
+    Assertions.assertEquals("cap3 3 3.5", render("{% capture c %}cap{{ 1 | plus: 2 }}{% endcapture %}{{ c }} {{ 7 | divided_by: 2 }} {{ 7.0 | divided_by: 2 }}"));
+    Assertions.assertEquals("7.5 6", render("{{ 10 | minus: 2.5 }} {{ 3 | times: 2 }}"));
+  }
+
+  @Test
+  public void testTags() throws Exception {
+    Assertions.assertEquals("1=2,2=1,3=3", render("{% for i in list reversed %}{{forloop.index}}={{i}}{% unless forloop.last %},{% endunless %}{% endfor %}"));
+    Assertions.assertEquals("23", render("{% for i in (1..5) limit:2 offset:1 %}{{i}}{% else %}none{% endfor %}"));
+    Assertions.assertEquals("none", render("{% for i in nothing %}{{i}}{% else %}none{% endfor %}"));
+    Assertions.assertEquals("truefalsefalse", render("{% for i in list %}{{ forloop.first }}{% endfor %}"));
+    Assertions.assertEquals("3", render("{% for i in list %}{% if i == 1 %}{% break %}{% endif %}{{i}}{% endfor %}"));
+    Assertions.assertEquals("yes", render("{% if page.title == 'Hello' and list.size > 2 %}yes{% elsif x %}no{% else %}else{% endif %}"));
+    Assertions.assertEquals("E", render("{% if nothing == empty %}bad{% endif %}{% if '' == empty %}E{% endif %}"));
+    Assertions.assertEquals("SD", render("{% assign parts = page.path | split: '-' %}{% case parts[0] %}{% when 'X', 'StructureDefinition' %}SD{% else %}other{% endcase %}"));
+    Assertions.assertEquals("{{ not this }}||", render("{% raw %}{{ not this }}{% endraw %}|{% comment %} gone {% endcomment %}|"));
+  }
+
+  @Test
+  public void testWhitespaceControl() throws Exception {
+    Assertions.assertEquals("abc", render("a  {{- 'b' -}}  c"));
+    Assertions.assertEquals("[1][2]", render("{%- for i in (1..2) -%}\n  [{{ i }}]\n{%- endfor -%}"));
+  }
+
+  @Test
+  public void testIncludes() throws Exception {
+    includes.put("x.html", SiteLiquid.parse("[{{ include.p }} {{ page.title }}]{% assign fromInc = 'yes' %}", "_includes/x.html"));
+    Assertions.assertEquals("[param Hello] [ Hello] yes", render("{% include x.html p=\"param\" %} {% include {{ 'x' }}.html %} {{ fromInc }}"));
+  }
+
+  private void checkUnsupported(String src) {
+    Assertions.assertThrows(UnsupportedFeatureException.class, () -> render(src), src);
+  }
+
+  @Test
+  public void testUnsupported() {
+    checkUnsupported("{% highlight java %}int i;{% endhighlight %}");
+    checkUnsupported("{{ list | where_exp: 'i', 'i > 1' }}");
+    checkUnsupported("{% if x %}no end");
+    checkUnsupported("{{ unterminated");
+    checkUnsupported("{% include missing.html %}");
+    checkUnsupported("{{ 1 | divided_by: 0 }}");
+  }
+}
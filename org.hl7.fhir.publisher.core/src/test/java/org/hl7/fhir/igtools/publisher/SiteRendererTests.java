@@ -0,0 +1,141 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.igtools.publisher.SiteLiquid.UnsupportedFeatureException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The fixture sites in src/test/resources/site-renderer have the source of a site, and what
+ * Jekyll builds from it (expected). The in-process renderer has to build the same thing.
+ */
+public class SiteRendererTests {
+
+  private static final String FIXTURES = "src/test/resources/site-renderer";
+
+  private Path copyFixture(String name) throws IOException {
+    Path src = new File(FIXTURES, name+"/site").toPath();
+    Path dst = Files.createTempDirectory("site");
+    try (Stream<Path> s = Files.walk(src)) {
+      for (Path p : s.collect(Collectors.toList())) {
+        Path t = dst.resolve(src.relativize(p).toString());
+        if (Files.isDirectory(p)) {
+          Files.createDirectories(t);
+        } else {
+          Files.copy(p, t, StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+    }
+    return dst;
+  }
+
+  private Set<String> files(Path root) throws IOException {
+    try (Stream<Path> s = Files.walk(root)) {
+      return s.filter(p -> Files.isRegularFile(p)).map(p -> root.relativize(p).toString().replace(File.separatorChar, '/')).collect(Collectors.toCollection(TreeSet::new));
+    }
+  }
+
+  /**
+   * kramdown and CommonMark lay out blocks differently, so the comparison ignores the white space between tags
+   */
+  private String normalise(String html) {
+    return html.replace("\r\n", "\n").replaceAll(">\\s+<", "><").trim();
+  }
+
+  private String read(Path p) throws IOException {
+    return new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+  }
+
+  private Path write(Path root, String name, String content) throws IOException {
+    Path p = root.resolve(name);
+    Files.createDirectories(p.getParent());
+    Files.write(p, content.getBytes(StandardCharsets.UTF_8));
+    return p;
+  }
+
+  @Test
+  public void testSameAsJekyll() throws Exception {
+    Path site = copyFixture("basic");
+    Path out = Files.createTempDirectory("site-out");
+    new SiteRenderer(site.toString(), out.toString(), 2).render();
+    Path expected = new File(FIXTURES, "basic/expected").toPath();
+    Assertions.assertEquals(files(expected), files(out));
+    for (String f : files(expected)) {
+      Assertions.assertEquals(normalise(read(expected.resolve(f))), normalise(read(out.resolve(f))), f);
+    }
+  }
+
+  @Test
+  public void testOnlyChangedPagesRenderedAgain() throws Exception {
+    Path site = copyFixture("basic");
+    Path out = Files.createTempDirectory("site-out");
+    SiteRenderer r = new SiteRenderer(site.toString(), out.toString(), 2);
+    r.render();
+    Assertions.assertEquals(3, r.getRenderedCount());
+    r.render();
+    Assertions.assertEquals(0, r.getRenderedCount());
+    Assertions.assertEquals(3, r.getUnchangedCount());
+
+    write(site, "one.html", "---\ntitle: One\n---\n<p>changed</p>\n");
+    r.render();
+    Assertions.assertEquals(1, r.getRenderedCount());
+    Assertions.assertTrue(read(out.resolve("one.html")).contains("<p>changed</p>"));
+
+    // everything uses the layout, and so the include
+    write(site, "_includes/menu.html", "<nav/>");
+    r.render();
+    Assertions.assertEquals(3, r.getRenderedCount());
+  }
+
+  private void checkFallsBack(String file, String content, String message) throws Exception {
+    Path site = copyFixture("basic");
+    write(site, file, content);
+    UnsupportedFeatureException e = Assertions.assertThrows(UnsupportedFeatureException.class, () -> new SiteRenderer(site.toString(), Files.createTempDirectory("site-out").toString(), 2).render());
+    Assertions.assertTrue(e.getMessage().contains(message), e.getMessage());
+  }
+
+  @Test
+  public void testPluginsFallBack() throws Exception {
+    checkFallsBack("_config.yml", "title: Test IG\nplugins:\n  - jekyll-feed\n", "plugins");
+    checkFallsBack("_plugins/my-plugin.rb", "module Jekyll\nend\n", "plugins");
+  }
+
+  @Test
+  public void testConfigFallBack() throws Exception {
+    checkFallsBack("_config.yml", "title: Test IG\npermalink: pretty\n", "permalink");
+    checkFallsBack("_config.yml", "title: Test IG\ncollections:\n  recipes:\n    output: true\n", "collections");
+    checkFallsBack("_config.yml", "title: Test IG\nmarkdown: redcarpet\n", "redcarpet");
+    checkFallsBack("_config.yml", "base: &base\n  title: x\n", "Unsupported YAML");
+  }
+
+  @Test
+  public void testContentFallBack() throws Exception {
+    checkFallsBack("two.html", "---\ntitle: Two\n---\n{% highlight java %}int i;{% endhighlight %}\n", "highlight");
+    checkFallsBack("two.html", "---\ntitle: Two\n---\n{{ page.title | where_exp: 'x', 'x' }}\n", "where_exp");
+    checkFallsBack("two.html", "---\ntitle: Two\n---\n{% include missing.html %}\n", "missing.html");
+    checkFallsBack("two.md", "---\ntitle: Two\n---\nA note\n{: .note}\n", "kramdown");
+  }
+
+  @Test
+  public void testFailureLeavesNoPartialRun() throws Exception {
+    // a failure on one page doesn't stop the renderer being used again once the page is fixed
+    Path site = copyFixture("basic");
+    Path out = Files.createTempDirectory("site-out");
+    SiteRenderer r = new SiteRenderer(site.toString(), out.toString(), 2);
+    write(site, "two.html", "---\ntitle: Two\n---\n{% highlight java %}int i;{% endhighlight %}\n");
+    Assertions.assertThrows(UnsupportedFeatureException.class, () -> r.render());
+    write(site, "two.html", "---\ntitle: Two\n---\n<p>two</p>\n");
+    r.render();
+    Assertions.assertTrue(read(out.resolve("two.html")).contains("<p>two</p>"));
+  }
+}
@@ -0,0 +1,77 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.igtools.publisher.SiteLiquid.UnsupportedFeatureException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The expected values are what Jekyll's YAML reader (Psych) loads.
+ */
+public class SiteYamlTests {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testConfig() throws Exception {
+    Map<String, Object> y = SiteYaml.parse(String.join("\n",
+        "# comment",
+        "title: My IG",
+        "count: 3",
+        "ratio: 1.5",
+        "draft: false",
+        "empty:",
+        "quoted: \"a: b # c\"",
+        "single: 'it''s'",
+        "exclude:",
+        "  - Gemfile",
+        "  - vendor/",
+        "flow: [a, b, 'c d']",
+        "map: {x: 1, y: two}",
+        "defaults:",
+        "  - scope:",
+        "      path: \"\"",
+        "    values:",
+        "      layout: default",
+        "text: |",
+        "  line 1",
+        "  line 2",
+        "folded: >",
+        "  one",
+        "  two",
+        ""), "_config.yml");
+    Assertions.assertEquals("My IG", y.get("title"));
+    Assertions.assertEquals(3L, y.get("count"));
+    Assertions.assertEquals(1.5, y.get("ratio"));
+    Assertions.assertEquals(false, y.get("draft"));
+    Assertions.assertTrue(y.containsKey("empty"));
+    Assertions.assertNull(y.get("empty"));
+    Assertions.assertEquals("a: b # c", y.get("quoted"));
+    Assertions.assertEquals("it's", y.get("single"));
+    Assertions.assertEquals(Arrays.asList("Gemfile", "vendor/"), y.get("exclude"));
+    Assertions.assertEquals(Arrays.asList("a", "b", "c d"), y.get("flow"));
+    Map<String, Object> map = (Map<String, Object>) y.get("map");
+    Assertions.assertEquals(1L, map.get("x"));
+    Assertions.assertEquals("two", map.get("y"));
+    Map<String, Object> d = (Map<String, Object>) ((List<Object>) y.get("defaults")).get(0);
+    Assertions.assertEquals("", ((Map<String, Object>) d.get("scope")).get("path"));
+    Assertions.assertEquals("default", ((Map<String, Object>) d.get("values")).get("layout"));
+    Assertions.assertEquals("line 1\nline 2\n", y.get("text"));
+    Assertions.assertEquals("one two\n", y.get("folded"));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    Assertions.assertTrue(SiteYaml.parse("", "_config.yml").isEmpty());
+    Assertions.assertTrue(SiteYaml.parse("# nothing\n", "_config.yml").isEmpty());
+  }
+
+  @Test
+  public void testUnsupported() {
+    for (String src : new String[] {"base: &base\n  a: 1\n", "x: !!str 1\n", "a: 1\n---\nb: 2\n", "- a\n- b\n"}) {
+      Assertions.assertThrows(UnsupportedFeatureException.class, () -> SiteYaml.parse(src, "test.yml"), src);
+    }
+  }
+}
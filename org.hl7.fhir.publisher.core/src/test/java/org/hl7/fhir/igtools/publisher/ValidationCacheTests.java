@@ -0,0 +1,113 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ValidationCacheTests {
+
+  private List<FetchedFile> fileList = new ArrayList<>();
+  private ResourceRegistry registry = new ResourceRegistry(fileList);
+
+  private StructureDefinition profile(String url, String... refs) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setId(url.substring(url.lastIndexOf("/")+1));
+    sd.setUrl(url);
+    sd.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/DomainResource");
+    for (String ref : refs) {
+      sd.getSnapshot().addElement().setPath("X.ref").addType().setCode("Reference").addTargetProfile(ref);
+    }
+    FetchedResource r = new FetchedResource();
+    r.setResource(sd);
+    r.setId(sd.getId());
+    FetchedFile f = new FetchedFile(sd.getId()+".json");
+    f.setPath(sd.getId()+".json");
+    f.getResources().add(r);
+    fileList.add(f);
+    registry.seeFile(f);
+    return sd;
+  }
+
+  private ValidationCache cache() throws IOException {
+    return new ValidationCache(Files.createTempDirectory("vc").toFile().getAbsolutePath(), null, registry, "http://example.org/fhir", "settings");
+  }
+
+  @Test
+  public void testNotInIG() throws IOException {
+    Assertions.assertNull(cache().profileHash("http://hl7.org/fhir/StructureDefinition/Patient"));
+    Assertions.assertNull(cache().profileHash(null));
+  }
+
+  @Test
+  public void testDependencyChange() throws IOException {
+    profile("http://example.org/a", "http://example.org/b");
+    StructureDefinition b = profile("http://example.org/b");
+    profile("http://example.org/c");
+    String a1 = cache().profileHash("http://example.org/a");
+    String c1 = cache().profileHash("http://example.org/c");
+    b.setDescription("changed");
+    Assertions.assertNotEquals(a1, cache().profileHash("http://example.org/a"));
+    Assertions.assertEquals(c1, cache().profileHash("http://example.org/c"));
+  }
+
+  @Test
+  public void testCycle() throws IOException {
+    profile("http://example.org/a", "http://example.org/b");
+    StructureDefinition b = profile("http://example.org/b", "http://example.org/c");
+    profile("http://example.org/c", "http://example.org/a");
+
+    // the same, whichever member of the cycle is hashed first
+    ValidationCache first = cache();
+    String a = first.profileHash("http://example.org/a");
+    String bh = first.profileHash("http://example.org/b");
+    String c = first.profileHash("http://example.org/c");
+    ValidationCache second = cache();
+    Assertions.assertEquals(c, second.profileHash("http://example.org/c"));
+    Assertions.assertEquals(bh, second.profileHash("http://example.org/b"));
+    Assertions.assertEquals(a, second.profileHash("http://example.org/a"));
+    Assertions.assertNotEquals(a, bh);
+
+    // and a change anywhere in the cycle changes all of them
+    b.setDescription("changed");
+    ValidationCache third = cache();
+    Assertions.assertNotEquals(c, third.profileHash("http://example.org/c"));
+    Assertions.assertNotEquals(a, third.profileHash("http://example.org/a"));
+  }
+
+  @Test
+  public void testAbsoluteReference() throws IOException {
+    StructureDefinition a = profile("http://example.org/fhir/StructureDefinition/a");
+    ValidationCache cache = cache();
+    // a reference by canonical URL resolves to the IG resource, so its content is part of the key
+    Assertions.assertSame(a, cache.resolve("http://example.org/fhir/StructureDefinition/a").getResource());
+    Assertions.assertNull(cache.resolve("http://example.org/fhir/StructureDefinition/b"));
+    Assertions.assertNull(cache.resolve("http://hl7.org/fhir/StructureDefinition/Patient"));
+  }
+
+  @Test
+  public void testMessageRoundTrip() {
+    ValidationMessage vm = new ValidationMessage(Source.InstanceValidator, IssueType.CODEINVALID, 12, 3, "Patient.gender", "Unknown code 'x'", IssueSeverity.ERROR);
+    vm.setMessageId("Terminology_TX_Code_Unknown");
+    vm.setTxLink("http://tx.fhir.org/r4/ValueSet/$validate-code");
+    ValidationMessage rt = ValidationCache.readMessage(ValidationCache.writeMessage(vm));
+    Assertions.assertEquals(vm.getSource(), rt.getSource());
+    Assertions.assertEquals(vm.getType(), rt.getType());
+    Assertions.assertEquals(vm.getLevel(), rt.getLevel());
+    Assertions.assertEquals(12, rt.getLine());
+    Assertions.assertEquals(3, rt.getCol());
+    Assertions.assertEquals(vm.getLocation(), rt.getLocation());
+    Assertions.assertEquals(vm.getMessage(), rt.getMessage());
+    Assertions.assertEquals(vm.getMessageId(), rt.getMessageId());
+    Assertions.assertEquals(vm.getTxLink(), rt.getTxLink());
+    Assertions.assertFalse(rt.isSignpost());
+  }
+}
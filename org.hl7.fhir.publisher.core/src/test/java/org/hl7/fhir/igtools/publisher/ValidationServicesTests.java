@@ -0,0 +1,155 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.r5.utils.IResourceValidator.ReferenceValidationPolicy;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.ToolsVersion;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+
+public class ValidationServicesTests {
+
+  private static final String CANONICAL = "http://example.org/fhir";
+
+  private static SimpleWorkerContext context;
+  private static IGKnowledgeProvider ipg;
+
+  @BeforeAll
+  public static void setUp() throws Exception {
+    FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    context = SimpleWorkerContext.fromPackage(pcm.loadPackage("hl7.fhir.r5.core", Constants.VERSION));
+    ipg = new IGKnowledgeProvider(context, "http://hl7.org/fhir/R5", CANONICAL, new JsonObject(), new ArrayList<ValidationMessage>(), false, null, new ArrayList<String>());
+  }
+
+  private Element parse(String json) throws Exception {
+    return new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private Element patient(String id) throws Exception {
+    return parse("{\"resourceType\":\"Patient\",\"id\":\""+id+"\",\"name\":[{\"family\":\"Family-"+id+"\"}]}");
+  }
+
+  private FetchedFile file(String name, Element e) {
+    FetchedResource r = new FetchedResource();
+    r.setElement(e);
+    r.setId(e.getIdBase());
+    FetchedFile f = new FetchedFile(name);
+    f.setPath(name);
+    f.getResources().add(r);
+    return f;
+  }
+
+  private List<FetchedFile> files() throws Exception {
+    List<FetchedFile> files = new ArrayList<>();
+    files.add(file("p1.json", patient("p1")));
+    files.add(file("b1.json", parse("{\"resourceType\":\"Bundle\",\"id\":\"b1\",\"type\":\"collection\",\"entry\":["
+        + "{\"fullUrl\":\"urn:uuid:6b7e1a5c-0d42-4b6e-9a8f-3c1d2e4f5a6b\",\"resource\":{\"resourceType\":\"Patient\",\"id\":\"in-bundle\"}},"
+        + "{\"fullUrl\":\"http://other.org/fhir/Patient/x\",\"resource\":{\"resourceType\":\"Patient\",\"id\":\"x\"}}]}")));
+    return files;
+  }
+
+  private ValidationServices services(List<FetchedFile> files, boolean bundleReferencesResolve) {
+    ValidationServices vs = new ValidationServices(context, ipg, files, new ArrayList<>(), bundleReferencesResolve);
+    vs.startPass();
+    return vs;
+  }
+
+  @Test
+  public void testFetchFromIG() throws Exception {
+    ValidationServices vs = services(files(), true);
+    Element e = vs.fetch(null, null, "Patient/p1");
+    Assertions.assertNotNull(e);
+    Assertions.assertEquals("p1", e.getIdBase());
+    Assertions.assertSame(e, vs.fetch(null, null, "Patient/p1"));
+    Assertions.assertEquals(2, vs.getHits());
+    Assertions.assertEquals(0, vs.getMisses());
+  }
+
+  @Test
+  public void testFetchFromBundle() throws Exception {
+    ValidationServices vs = services(files(), true);
+    Element e = vs.fetch(null, null, "urn:uuid:6b7e1a5c-0d42-4b6e-9a8f-3c1d2e4f5a6b");
+    Assertions.assertNotNull(e);
+    Assertions.assertEquals("in-bundle", e.getIdBase());
+    Assertions.assertEquals("x", vs.fetch(null, null, "http://other.org/fhir/Patient/x").getIdBase());
+    // only the entries of a bundle are found by fullUrl, not by type/id
+    Assertions.assertNull(vs.fetch(null, null, "Patient/in-bundle"));
+  }
+
+  @Test
+  public void testFetchFromAppContext() throws Exception {
+    ValidationServices vs = services(files(), true);
+    Element bnd = parse("{\"resourceType\":\"Bundle\",\"type\":\"transaction\",\"entry\":[{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"local\"}}]}");
+    Assertions.assertEquals("local", vs.fetch(null, bnd, "Patient/local").getIdBase());
+    Assertions.assertNull(vs.fetch(null, null, "Patient/local"));
+  }
+
+  @Test
+  public void testFetchUnknown() throws Exception {
+    ValidationServices vs = services(files(), true);
+    Assertions.assertNull(vs.fetch(null, null, null));
+    Assertions.assertNull(vs.fetch(null, null, "Patient/missing"));
+    Assertions.assertNull(vs.fetch(null, null, CANONICAL+"/Observation/p1"));
+    Assertions.assertNull(vs.fetch(null, null, "http://other.org/fhir/Patient/y"));
+    Assertions.assertEquals(0, vs.getHits());
+    Assertions.assertEquals(3, vs.getMisses());
+  }
+
+  @Test
+  public void testFetchCoreResource() throws Exception {
+    ValidationServices vs = services(files(), true);
+    Element e = vs.fetch(null, null, "http://hl7.org/fhir/ValueSet/administrative-gender");
+    Assertions.assertNotNull(e);
+    Assertions.assertEquals("ValueSet", e.fhirType());
+    // converted once, then cached
+    Assertions.assertSame(e, vs.fetch(null, null, "http://hl7.org/fhir/ValueSet/administrative-gender"));
+    Assertions.assertEquals(1, vs.getHits());
+    Assertions.assertEquals(1, vs.getMisses());
+  }
+
+  @Test
+  public void testStartPassSeesNewFiles() throws Exception {
+    List<FetchedFile> files = files();
+    ValidationServices vs = services(files, true);
+    Assertions.assertNull(vs.fetch(null, null, "Patient/p2"));
+    files.add(file("p2.json", patient("p2")));
+    // the indexes are kept for the pass
+    Assertions.assertNull(vs.fetch(null, null, "Patient/p2"));
+    vs.startPass();
+    Assertions.assertEquals("p2", vs.fetch(null, null, "Patient/p2").getIdBase());
+    Assertions.assertEquals(1, vs.getHits());
+    Assertions.assertEquals(0, vs.getMisses());
+  }
+
+  @Test
+  public void testValidationPolicy() throws Exception {
+    ValidationServices vs = services(files(), false);
+    Assertions.assertEquals(ReferenceValidationPolicy.CHECK_TYPE_IF_EXISTS, vs.validationPolicy(null, null, "Bundle.entry[0].resource.subject", "Patient/p1"));
+    Assertions.assertEquals(ReferenceValidationPolicy.CHECK_EXISTS_AND_TYPE, vs.validationPolicy(null, null, "Observation.subject", "Patient/p1"));
+    vs = services(files(), true);
+    Assertions.assertEquals(ReferenceValidationPolicy.CHECK_EXISTS_AND_TYPE, vs.validationPolicy(null, null, "Bundle.entry[0].resource.subject", "Patient/p1"));
+  }
+
+  @Test
+  public void testResolveURL() throws Exception {
+    ValidationServices vs = services(files(), true);
+    Assertions.assertTrue(vs.resolveURL(null, null, "Coding.system", "http://loinc.org", null));
+    Assertions.assertTrue(vs.resolveURL(null, null, "Extension.url", "http://hl7.org/fhirpath/System.String", null));
+    Assertions.assertTrue(vs.resolveURL(null, null, "Coding.system", "http://hl7.org/fhir/administrative-gender", null));
+    Assertions.assertFalse(vs.resolveURL(null, null, "Coding.system", "http://hl7.org/fhir/no-such-thing", null));
+    Assertions.assertFalse(vs.resolveURL(null, null, "StructureDefinition.mapping.uri", "http://hl7.org/fhir/mapping-x", null));
+    vs.getMappingUrls().add("http://hl7.org/fhir/mapping-x");
+    Assertions.assertTrue(vs.resolveURL(null, null, "StructureDefinition.mapping.uri", "http://hl7.org/fhir/mapping-x", null));
+  }
+}
@@ -0,0 +1,84 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class WorkerPoolTests {
+
+  @Test
+  public void testResultsInOrder() throws Exception {
+    List<Future<Integer>> results = new ArrayList<>();
+    try (WorkerPool pool = new WorkerPool("test", 4)) {
+      for (int i = 0; i < 100; i++) {
+        int v = i;
+        results.add(pool.submit(() -> {
+          Thread.sleep(v % 3);
+          return v;
+        }));
+      }
+      for (int i = 0; i < 100; i++) {
+        Assertions.assertEquals(i, WorkerPool.get(results.get(i)).intValue());
+      }
+    }
+  }
+
+  @Test
+  public void testNamedDaemonThreads() throws Exception {
+    try (WorkerPool pool = new WorkerPool("test", 2)) {
+      Thread t = WorkerPool.get(pool.submit(() -> Thread.currentThread()));
+      Assertions.assertTrue(t.getName().startsWith("test-"));
+      Assertions.assertTrue(t.isDaemon());
+    }
+  }
+
+  @Test
+  public void testUnwrapsFailure() {
+    try (WorkerPool pool = new WorkerPool("test", 2)) {
+      Future<Object> f = pool.submit(() -> {
+        throw new IOException("bad file");
+      });
+      IOException e = Assertions.assertThrows(IOException.class, () -> WorkerPool.get(f));
+      Assertions.assertEquals("bad file", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testCloseEndsThreads() throws Exception {
+    // the threads hold their thread locals (e.g. a validator) - once the pool is closed, they have to go away
+    ThreadLocal<Object> local = ThreadLocal.withInitial(() -> new Object());
+    List<Thread> threads = new ArrayList<>();
+    try (WorkerPool pool = new WorkerPool("test", 3)) {
+      for (int i = 0; i < 3; i++) {
+        threads.add(WorkerPool.get(pool.submit(() -> {
+          local.get();
+          return Thread.currentThread();
+        })));
+      }
+    }
+    for (Thread t : threads) {
+      t.join(10000);
+      Assertions.assertFalse(t.isAlive());
+    }
+  }
+
+  @Test
+  public void testCloseStopsUnfinishedTasks() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    Future<Object> f;
+    try (WorkerPool pool = new WorkerPool("test", 1)) {
+      f = pool.submit(() -> {
+        started.countDown();
+        Thread.sleep(60000);
+        return null;
+      });
+      started.await();
+    }
+    Assertions.assertThrows(InterruptedException.class, () -> WorkerPool.get(f));
+  }
+}
@@ -0,0 +1,105 @@
+package org.hl7.fhir.igtools.renderers;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.igtools.publisher.FetchedFile;
+import org.hl7.fhir.igtools.publisher.FetchedResource;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.Constants;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.ToolsVersion;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class StructureUsageIndexTests {
+
+  private static final String BASE = "http://example.org/fhir/StructureDefinition/";
+  private static final String PATIENT = "http://hl7.org/fhir/StructureDefinition/Patient";
+
+  private static SimpleWorkerContext context;
+  private static StructureDefinition myPatient;
+  private static StructureDefinition myObservation;
+  private static StructureDefinition myExtension;
+
+  @BeforeAll
+  public static void setUp() throws Exception {
+    FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    context = SimpleWorkerContext.fromPackage(pcm.loadPackage("hl7.fhir.r5.core", Constants.VERSION));
+    myExtension = structure("my-extension", "http://hl7.org/fhir/StructureDefinition/Extension");
+    myExtension.getSnapshot().addElement().setPath("Extension");
+    myPatient = structure("my-patient", PATIENT);
+    myPatient.getSnapshot().addElement().setPath("Patient");
+    myPatient.getSnapshot().addElement().setPath("Patient.extension").addType().setCode("Extension").addProfile(BASE+"my-extension");
+    myObservation = structure("my-observation", "http://hl7.org/fhir/StructureDefinition/Observation");
+    myObservation.getSnapshot().addElement().setPath("Observation");
+    ElementDefinition subject = myObservation.getSnapshot().addElement().setPath("Observation.subject");
+    subject.addType().setCode("Reference").addTargetProfile(BASE+"my-patient");
+    // the same profile twice on one structure is only one use
+    myObservation.getSnapshot().addElement().setPath("Observation.focus").addType().setCode("Reference").addTargetProfile(BASE+"my-patient");
+  }
+
+  private static StructureDefinition structure(String id, String base) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setId(id);
+    sd.setUrl(BASE+id);
+    sd.setBaseDefinition(base);
+    context.cacheResource(sd);
+    return sd;
+  }
+
+  private FetchedFile file(String id, String json) throws Exception {
+    FetchedResource r = new FetchedResource();
+    r.setElement(new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))));
+    r.setId(id);
+    FetchedFile f = new FetchedFile(id+".json");
+    f.getResources().add(r);
+    return f;
+  }
+
+  private List<FetchedFile> files() throws Exception {
+    List<FetchedFile> files = new ArrayList<>();
+    files.add(file("p1", "{\"resourceType\":\"Patient\",\"id\":\"p1\",\"meta\":{\"profile\":[\""+BASE+"my-patient\"]},"
+        + "\"extension\":[{\"url\":\""+BASE+"my-extension\",\"valueString\":\"a\"},{\"url\":\""+BASE+"my-extension\",\"valueString\":\"b\"}]}"));
+    files.add(file("p2", "{\"resourceType\":\"Patient\",\"id\":\"p2\",\"name\":[{\"extension\":[{\"url\":\""+BASE+"my-extension\",\"valueString\":\"c\"}],\"family\":\"Smith\"}]}"));
+    files.add(file("o1", "{\"resourceType\":\"Observation\",\"id\":\"o1\",\"status\":\"final\",\"code\":{\"text\":\"x\"}}"));
+    return files;
+  }
+
+  private FetchedResource res(List<FetchedFile> files, int i) {
+    return files.get(i).getResources().get(0);
+  }
+
+  @Test
+  public void testStructureUses() throws Exception {
+    StructureUsageIndex index = new StructureUsageIndex(context, files());
+    Assertions.assertTrue(index.getDerived(PATIENT).contains(myPatient));
+    Assertions.assertFalse(index.getDerived(PATIENT).contains(myObservation));
+    Assertions.assertTrue(index.getDerived(BASE+"my-patient").isEmpty());
+    Assertions.assertEquals(1, index.getProfileUses(BASE+"my-extension").size());
+    Assertions.assertSame(myPatient, index.getProfileUses(BASE+"my-extension").get(0));
+    Assertions.assertEquals(1, index.getTargetProfileUses(BASE+"my-patient").size());
+    Assertions.assertSame(myObservation, index.getTargetProfileUses(BASE+"my-patient").get(0));
+    Assertions.assertTrue(index.getProfileUses(BASE+"my-observation").isEmpty());
+  }
+
+  @Test
+  public void testInstanceUses() throws Exception {
+    List<FetchedFile> files = files();
+    StructureUsageIndex index = new StructureUsageIndex(context, files);
+    List<FetchedResource> patients = index.getInstanceUses(BASE+"my-patient");
+    Assertions.assertEquals(1, patients.size());
+    Assertions.assertSame(res(files, 0), patients.get(0));
+    // extensions anywhere in the resource, and each resource once
+    List<FetchedResource> extensions = index.getInstanceUses(BASE+"my-extension");
+    Assertions.assertEquals(2, extensions.size());
+    Assertions.assertSame(res(files, 0), extensions.get(0));
+    Assertions.assertSame(res(files, 1), extensions.get(1));
+    Assertions.assertTrue(index.getInstanceUses(BASE+"my-observation").isEmpty());
+  }
+}